@@ -20,13 +20,21 @@ package org.apache.felix.cm.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.service.cm.ConfigurationAdmin;
 
 
 /**
@@ -34,6 +42,10 @@ import org.osgi.framework.Constants;
  * underlying actual {@link PersistenceManager} implementation. All API calls
  * are also (or primarily) routed through a local cache of dictionaries indexed
  * by the <code>service.pid</code>.
+ * <p>
+ * Additionally the cached dictionaries are indexed by selected properties (see
+ * {@link DictionaryIndex}) such that the dictionaries matching a filter can be
+ * listed without evaluating the filter against each dictionary.
  */
 class CachingPersistenceManagerProxy implements PersistenceManager
 {
@@ -44,12 +56,15 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     /** cached dictionaries */
     private final Hashtable cache;
 
+    /** index of the cached dictionaries, guarded by this */
+    private final DictionaryIndex index;
+
     /**
      * Indicates whether the getDictionaries method has already been called
      * and the cache is complete with respect to the contents of the underlying
      * persistence manager.
      */
-    private boolean fullyLoaded;
+    private volatile boolean fullyLoaded;
 
 
     /**
@@ -57,9 +72,32 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      * @param pm The actual {@link PersistenceManager}
      */
     public CachingPersistenceManagerProxy( final PersistenceManager pm )
+    {
+        this( pm, null );
+    }
+
+
+    /**
+     * Creates a new caching layer for the given actual {@link PersistenceManager}
+     * indexing the given properties in addition to the default properties.
+     * @param pm The actual {@link PersistenceManager}
+     * @param indexKeys The names of additional properties to index or
+     *      <code>null</code> to only index the default properties
+     */
+    public CachingPersistenceManagerProxy( final PersistenceManager pm, final String[] indexKeys )
     {
         this.pm = pm;
         this.cache = new Hashtable();
+        this.index = new DictionaryIndex( indexKeys );
+    }
+
+
+    /**
+     * Returns the actual {@link PersistenceManager} of this caching layer.
+     */
+    PersistenceManager getPersistenceManager()
+    {
+        return pm;
     }
 
 
@@ -70,7 +108,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public void delete( String pid ) throws IOException
     {
-        cache.remove( pid );
+        uncache( pid );
         pm.delete( pid );
     }
 
@@ -98,22 +136,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public Enumeration getDictionaries() throws IOException
     {
-        // if not fully loaded, call back to the underlying persistence
-        // manager and cach all dictionaries whose service.pid is set
-        if ( !fullyLoaded )
-        {
-            Enumeration fromPm = pm.getDictionaries();
-            while ( fromPm.hasMoreElements() )
-            {
-                Dictionary next = ( Dictionary ) fromPm.nextElement();
-                String pid = ( String ) next.get( Constants.SERVICE_PID );
-                if ( pid != null )
-                {
-                    cache.put( pid, next );
-                }
-            }
-            fullyLoaded = true;
-        }
+        loadAll();
 
         return new Enumeration()
         {
@@ -152,7 +175,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
             loaded = pm.load( pid );
             if ( loaded != null )
             {
-                cache.put( pid, loaded );
+                cache( pid, loaded );
             }
         }
         return copy( loaded );
@@ -171,7 +194,109 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     public void store( String pid, Dictionary properties ) throws IOException
     {
         pm.store( pid, properties );
-        cache.put( pid, copy( properties ) );
+        cache( pid, copy( properties ) );
+    }
+
+
+    /**
+     * Returns an <code>Enumeration</code> of <code>Dictionary</code> objects
+     * representing the configurations stored in the underlying persistence
+     * managers, which match the given filter and are bound to the given
+     * location. In contrast to {@link #getDictionaries()} the index is used to
+     * find the matching dictionaries and only these are copied.
+     *
+     * @param filter The filter the dictionaries must match or
+     *      <code>null</code> to not filter the dictionaries.
+     * @param location The bundle location the dictionaries must be bound to or
+     *      <code>null</code> if the location does not matter.
+     */
+    public Enumeration getDictionaries( final Filter filter, final String location ) throws IOException
+    {
+        loadAll();
+
+        List matches = new ArrayList();
+        synchronized ( this )
+        {
+            Collection candidates;
+            Set pids = index.getCandidates( ( filter == null ) ? null : filter.toString(), location );
+            if ( pids == null )
+            {
+                candidates = cache.values();
+            }
+            else
+            {
+                candidates = new ArrayList( pids.size() );
+                for ( Iterator pi = pids.iterator(); pi.hasNext(); )
+                {
+                    candidates.add( cache.get( pi.next() ) );
+                }
+            }
+
+            for ( Iterator ci = candidates.iterator(); ci.hasNext(); )
+            {
+                Dictionary config = ( Dictionary ) ci.next();
+                if ( location != null && !location.equals( config.get( ConfigurationAdmin.SERVICE_BUNDLELOCATION ) ) )
+                {
+                    continue;
+                }
+                if ( filter == null || filter.match( config ) )
+                {
+                    matches.add( copy( config ) );
+                }
+            }
+        }
+
+        return Collections.enumeration( matches );
+    }
+
+
+    /**
+     * If not fully loaded, calls back to the underlying persistence manager
+     * and caches all dictionaries whose service.pid is set.
+     */
+    private synchronized void loadAll() throws IOException
+    {
+        if ( !fullyLoaded )
+        {
+            Enumeration fromPm = pm.getDictionaries();
+            while ( fromPm.hasMoreElements() )
+            {
+                Dictionary next = ( Dictionary ) fromPm.nextElement();
+                String pid = ( String ) next.get( Constants.SERVICE_PID );
+                if ( pid != null )
+                {
+                    cache( pid, next );
+                }
+            }
+            fullyLoaded = true;
+        }
+    }
+
+
+    /**
+     * Puts the dictionary into the cache and updates the index.
+     */
+    private synchronized void cache( final String pid, final Dictionary dict )
+    {
+        Dictionary old = ( Dictionary ) cache.put( pid, dict );
+        if ( old != null )
+        {
+            index.remove( pid, old );
+        }
+        index.add( pid, dict );
+    }
+
+
+    /**
+     * Removes the dictionary from the cache and the index.
+     */
+    private synchronized void uncache( final String pid )
+    {
+        Dictionary old = ( Dictionary ) cache.remove( pid );
+        if ( old != null )
+        {
+            index.remove( pid, old );
+        }
     }
 
 
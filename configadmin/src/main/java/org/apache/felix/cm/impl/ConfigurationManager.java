@@ -61,6 +61,11 @@ import org.osgi.util.tracker.ServiceTracker;
  * this property is not set the <code>config</code> directory in the current
  * working directory as specified in the <code>user.dir</code> system property
  * is used.
+ * <p>
+ * The configurations of each {@link PersistenceManager} are cached and
+ * indexed by the <code>service.pid</code>, <code>service.factoryPid</code>
+ * and <code>service.bundleLocation</code> properties as well as the
+ * properties listed in the <code>felix.cm.index</code> framework property.
  */
 public class ConfigurationManager implements BundleActivator, BundleListener
 {
@@ -86,6 +91,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_LOG_LEVEL = "felix.cm.loglevel";
 
+    /**
+     * The name of the bundle context property defining the configuration
+     * properties to index in addition to the <code>service.pid</code>,
+     * <code>service.factoryPid</code> and <code>service.bundleLocation</code>
+     * properties (value is "felix.cm.index").
+     * <p>
+     * The value of this property is expected to be a comma separated list of
+     * property names. Filters used to list configurations whose equality terms
+     * refer to indexed properties are evaluated against the matching
+     * configurations only.
+     */
+    public static final String CM_INDEX = "felix.cm.index";
+
     // The name of the LogService (not using the class, which might be missing)
     private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
 
@@ -160,6 +178,9 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // the maximum log level when no LogService is available
     private int logLevel = CM_LOG_LEVEL_DEFAULT;
 
+    // the additional configuration properties to index
+    private String[] indexKeys;
+
     // flag indicating whether BundleChange events should be consumed (FELIX-979)
     private volatile boolean handleBundleEvents;
 
@@ -187,6 +208,18 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             }
         }
 
+        // assign the additional properties to index
+        String indexProp = bundleContext.getProperty( CM_INDEX );
+        if ( indexProp != null )
+        {
+            StringTokenizer tokener = new StringTokenizer( indexProp, "," );
+            indexKeys = new String[tokener.countTokens()];
+            for ( int i = 0; i < indexKeys.length; i++ )
+            {
+                indexKeys[i] = tokener.nextToken().trim();
+            }
+        }
+
         // set up some fields
         this.bundleContext = bundleContext;
 
@@ -511,7 +544,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         PersistenceManager[] pmList = getPersistenceManagers();
         for ( int i = 0; i < pmList.length; i++ )
         {
-            Enumeration configs = pmList[i].getDictionaries();
+            // the caching proxy already checks the location and the filter
+            // using its index, other persistence managers list everything
+            Enumeration configs;
+            boolean matched = pmList[i] instanceof CachingPersistenceManagerProxy;
+            if ( matched )
+            {
+                configs = ( ( CachingPersistenceManagerProxy ) pmList[i] ).getDictionaries( filter, location );
+            }
+            else
+            {
+                configs = pmList[i].getDictionaries();
+            }
+
             while ( configs.hasMoreElements() )
             {
                 Dictionary config = ( Dictionary ) configs.nextElement();
@@ -524,7 +569,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                 }
 
                 // ignore this config if not privileged and not bound to bundle
-                if ( unprivileged )
+                if ( unprivileged && !matched )
                 {
                     Object boundLocation = config.get( ConfigurationAdmin.SERVICE_BUNDLELOCATION );
                     if ( !location.equals( boundLocation ) )
@@ -534,7 +579,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                 }
 
                 // check filter
-                if ( filter == null || filter.match( config ) )
+                if ( matched || filter == null || filter.match( config ) )
                 {
                     // ensure the service.pid and returned a cached config if available
                     ConfigurationImpl cfg = getCachedConfiguration( pid );
@@ -644,6 +689,18 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             List pmList = new ArrayList();
             PersistenceManager[] pm;
 
+            // keep the caching proxies of persistence managers still
+            // registered to not lose their caches and indexes
+            Map proxies = new HashMap();
+            if ( persistenceManagers != null )
+            {
+                for ( int i = 0; i < persistenceManagers.length; i++ )
+                {
+                    CachingPersistenceManagerProxy proxy = ( CachingPersistenceManagerProxy ) persistenceManagers[i];
+                    proxies.put( proxy.getPersistenceManager(), proxy );
+                }
+            }
+
             ServiceReference[] refs = persistenceManagerTracker.getServiceReferences();
             if ( refs == null || refs.length == 0 )
             {
@@ -666,14 +723,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     Object service = persistenceManagerTracker.getService( ref );
                     if ( service != null )
                     {
-                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service ) );
+                        Object proxy = proxies.get( service );
+                        if ( proxy == null )
+                        {
+                            proxy = new CachingPersistenceManagerProxy( ( PersistenceManager ) service, indexKeys );
+                        }
+                        pmList.add( proxy );
                     }
                 }
 
                 pm = ( PersistenceManager[] ) pmList.toArray( new PersistenceManager[pmList.size()] );
             }
 
-            pmtCount = pm.length;
+            pmtCount = currentPmtCount;
             persistenceManagers = pm;
         }
 
@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+/**
+ * The <code>DictionaryIndex</code> maps the values of selected properties of
+ * configuration dictionaries to the PIDs of the dictionaries. The
+ * <code>service.pid</code>, <code>service.factoryPid</code> and
+ * <code>service.bundleLocation</code> properties are always indexed.
+ * <p>
+ * The index is used to narrow down the dictionaries which may match a filter
+ * to the dictionaries matching the equality terms of the filter, which are
+ * either the filter itself or the direct children of a top level conjunction.
+ * Only <code>String</code> values are indexed. Dictionaries with a value of
+ * another type for an indexed property are always considered candidates for
+ * that property, because the filter match might convert the value.
+ * <p>
+ * This class is not thread safe. Callers must synchronize access.
+ */
+class DictionaryIndex
+{
+
+    /** the properties always indexed */
+    private static final String[] DEFAULT_KEYS =
+        { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID, ConfigurationAdmin.SERVICE_BUNDLELOCATION };
+
+    /** the lower case names of the indexed properties */
+    private final String[] keys;
+
+    /**
+     * the String values of the indexed properties, one map per property
+     * mapping values to the <code>Set</code> of PIDs having that value
+     */
+    private final Map[] values;
+
+    /**
+     * the PIDs of the dictionaries having a non-String value, one
+     * <code>Set</code> per indexed property
+     */
+    private final Set[] others;
+
+
+    /**
+     * Creates an index of the default properties and the given additional
+     * properties.
+     *
+     * @param additionalKeys The names of the additional properties to index.
+     *      This may be <code>null</code> to only index the default properties.
+     */
+    DictionaryIndex( final String[] additionalKeys )
+    {
+        List keyList = new ArrayList();
+        addKeys( keyList, DEFAULT_KEYS );
+        if ( additionalKeys != null )
+        {
+            addKeys( keyList, additionalKeys );
+        }
+
+        this.keys = ( String[] ) keyList.toArray( new String[keyList.size()] );
+        this.values = new Map[keys.length];
+        this.others = new Set[keys.length];
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            values[i] = new HashMap();
+            others[i] = new HashSet();
+        }
+    }
+
+
+    /**
+     * Adds the dictionary with the given PID to the index.
+     */
+    void add( final String pid, final Dictionary dict )
+    {
+        for ( Enumeration ke = dict.keys(); ke.hasMoreElements(); )
+        {
+            Object key = ke.nextElement();
+            int index = indexOf( key );
+            if ( index >= 0 )
+            {
+                Object value = dict.get( key );
+                if ( value instanceof String )
+                {
+                    Set pids = ( Set ) values[index].get( value );
+                    if ( pids == null )
+                    {
+                        pids = new HashSet();
+                        values[index].put( value, pids );
+                    }
+                    pids.add( pid );
+                }
+                else
+                {
+                    others[index].add( pid );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes the dictionary with the given PID from the index. The dictionary
+     * must have the same values of the indexed properties as when it has been
+     * added.
+     */
+    void remove( final String pid, final Dictionary dict )
+    {
+        for ( Enumeration ke = dict.keys(); ke.hasMoreElements(); )
+        {
+            Object key = ke.nextElement();
+            int index = indexOf( key );
+            if ( index >= 0 )
+            {
+                Object value = dict.get( key );
+                if ( value instanceof String )
+                {
+                    Set pids = ( Set ) values[index].get( value );
+                    if ( pids != null )
+                    {
+                        pids.remove( pid );
+                        if ( pids.isEmpty() )
+                        {
+                            values[index].remove( value );
+                        }
+                    }
+                }
+                else
+                {
+                    others[index].remove( pid );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the PIDs of the dictionaries which may match the given filter
+     * and are bound to the given location.
+     *
+     * @param filter The normalized filter string as returned by
+     *      <code>Filter.toString()</code> or <code>null</code> if any
+     *      dictionary matches.
+     * @param location The bundle location the dictionaries must be bound to or
+     *      <code>null</code> if the location does not matter.
+     *
+     * @return The <code>Set</code> of candidate PIDs, which must still be
+     *      matched against the filter, or <code>null</code> if the index
+     *      cannot narrow down the candidates.
+     */
+    Set getCandidates( final String filter, final String location )
+    {
+        List terms = new ArrayList();
+        if ( location != null )
+        {
+            terms.add( new String[]
+                { ConfigurationAdmin.SERVICE_BUNDLELOCATION.toLowerCase(), location } );
+        }
+        if ( filter != null )
+        {
+            getTerms( filter, terms );
+        }
+
+        Set candidates = null;
+        for ( Iterator ti = terms.iterator(); ti.hasNext(); )
+        {
+            String[] term = ( String[] ) ti.next();
+            int index = indexOf( term[0] );
+            if ( index < 0 )
+            {
+                continue;
+            }
+
+            Set pids = ( Set ) values[index].get( term[1] );
+            if ( candidates == null )
+            {
+                candidates = new HashSet();
+                if ( pids != null )
+                {
+                    candidates.addAll( pids );
+                }
+                candidates.addAll( others[index] );
+            }
+            else
+            {
+                for ( Iterator ci = candidates.iterator(); ci.hasNext(); )
+                {
+                    Object pid = ci.next();
+                    if ( ( pids == null || !pids.contains( pid ) ) && !others[index].contains( pid ) )
+                    {
+                        ci.remove();
+                    }
+                }
+            }
+
+            if ( candidates.isEmpty() )
+            {
+                break;
+            }
+        }
+
+        return candidates;
+    }
+
+
+    /**
+     * Removes all dictionaries from the index.
+     */
+    void clear()
+    {
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            values[i].clear();
+            others[i].clear();
+        }
+    }
+
+
+    /**
+     * Returns the index of the given property name in the {@link #keys} or -1
+     * if the property is not indexed.
+     */
+    private int indexOf( final Object key )
+    {
+        if ( key instanceof String )
+        {
+            String lowerKey = ( ( String ) key ).toLowerCase();
+            for ( int i = 0; i < keys.length; i++ )
+            {
+                if ( keys[i].equals( lowerKey ) )
+                {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    private static void addKeys( final List keyList, final String[] keys )
+    {
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            String key = keys[i].trim().toLowerCase();
+            if ( key.length() > 0 && !keyList.contains( key ) )
+            {
+                keyList.add( key );
+            }
+        }
+    }
+
+
+    /**
+     * Adds the equality terms of the filter to the list of terms. Each term is
+     * an array of the lower case property name and the value. If the filter is
+     * a conjunction the equality terms among its direct children are added.
+     * Other filters and children, such as substring or presence filters, are
+     * ignored.
+     */
+    static void getTerms( final String filter, final List terms )
+    {
+        if ( filter.startsWith( "(&" ) && filter.endsWith( ")" ) )
+        {
+            int pos = 2;
+            while ( pos < filter.length() - 1 )
+            {
+                int end = findEnd( filter, pos );
+                if ( end < 0 )
+                {
+                    // unbalanced filter, ignore the remainder
+                    return;
+                }
+                addTerm( filter.substring( pos, end + 1 ), terms );
+                pos = end + 1;
+            }
+        }
+        else
+        {
+            addTerm( filter, terms );
+        }
+    }
+
+
+    /**
+     * Returns the position of the parenthesis closing the filter starting at
+     * the given position or -1 if there is none.
+     */
+    private static int findEnd( final String filter, final int start )
+    {
+        if ( filter.charAt( start ) != '(' )
+        {
+            return -1;
+        }
+
+        int depth = 0;
+        for ( int i = start; i < filter.length(); i++ )
+        {
+            char c = filter.charAt( i );
+            if ( c == '\\' )
+            {
+                i++;
+            }
+            else if ( c == '(' )
+            {
+                depth++;
+            }
+            else if ( c == ')' )
+            {
+                depth--;
+                if ( depth == 0 )
+                {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Adds the term for the given filter if it is a simple equality filter
+     * such as <code>(service.factoryPid=org.sample)</code>.
+     */
+    private static void addTerm( final String filter, final List terms )
+    {
+        if ( filter.length() < 4 || filter.charAt( 0 ) != '(' || filter.charAt( filter.length() - 1 ) != ')' )
+        {
+            return;
+        }
+
+        int eq = filter.indexOf( '=' );
+        if ( eq < 2 )
+        {
+            return;
+        }
+
+        // (attr~=value), (attr>=value) and (attr<=value) are no equality terms
+        String attr = filter.substring( 1, eq );
+        char op = attr.charAt( attr.length() - 1 );
+        if ( op == '~' || op == '>' || op == '<' || attr.indexOf( '(' ) >= 0 || attr.indexOf( '\\' ) >= 0 )
+        {
+            return;
+        }
+
+        // unescape the value, an unescaped star is a substring or presence term
+        StringBuffer value = new StringBuffer();
+        for ( int i = eq + 1; i < filter.length() - 1; i++ )
+        {
+            char c = filter.charAt( i );
+            if ( c == '\\' )
+            {
+                i++;
+                if ( i >= filter.length() - 1 )
+                {
+                    return;
+                }
+                c = filter.charAt( i );
+            }
+            else if ( c == '*' || c == '(' || c == ')' )
+            {
+                return;
+            }
+            value.append( c );
+        }
+
+        // leading and trailing blanks might be ignored by the filter match
+        String valueString = value.toString();
+        if ( !valueString.equals( valueString.trim() ) )
+        {
+            return;
+        }
+
+        terms.add( new String[]
+            { attr.trim().toLowerCase(), valueString } );
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+public class DictionaryIndexTest extends TestCase
+{
+
+    private DictionaryIndex index;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        index = new DictionaryIndex( new String[]
+            { "Color" } );
+        index.add( "a.1", createConfig( "a.1", "a", "loc1", "red" ) );
+        index.add( "a.2", createConfig( "a.2", "a", "loc2", "blue" ) );
+        index.add( "b.1", createConfig( "b.1", "b", "loc1", "red" ) );
+        index.add( "c", createConfig( "c", null, null, null ) );
+    }
+
+
+    public void testGetTermsSimple()
+    {
+        List terms = new ArrayList();
+        DictionaryIndex.getTerms( "(Service.FactoryPid=a)", terms );
+        assertEquals( 1, terms.size() );
+        assertEquals( "service.factorypid", ( ( String[] ) terms.get( 0 ) )[0] );
+        assertEquals( "a", ( ( String[] ) terms.get( 0 ) )[1] );
+    }
+
+
+    public void testGetTermsConjunction()
+    {
+        List terms = new ArrayList();
+        DictionaryIndex.getTerms( "(&(a=x)(|(b=y)(c=z))(!(d=w))(e=v*)(f>=1)(g=\\*\\(h\\)))", terms );
+        assertEquals( 2, terms.size() );
+        assertEquals( "a", ( ( String[] ) terms.get( 0 ) )[0] );
+        assertEquals( "x", ( ( String[] ) terms.get( 0 ) )[1] );
+        assertEquals( "g", ( ( String[] ) terms.get( 1 ) )[0] );
+        assertEquals( "*(h)", ( ( String[] ) terms.get( 1 ) )[1] );
+    }
+
+
+    public void testGetTermsNoEquality()
+    {
+        assertNoTerms( "(|(a=x)(b=y))" );
+        assertNoTerms( "(!(a=x))" );
+        assertNoTerms( "(a=*)" );
+        assertNoTerms( "(a~=x)" );
+        assertNoTerms( "(a<=x)" );
+    }
+
+
+    public void testCandidatesNotNarrowed()
+    {
+        assertNull( index.getCandidates( null, null ) );
+        assertNull( index.getCandidates( "(shape=round)", null ) );
+        assertNull( index.getCandidates( "(|(service.factoryPid=a)(color=red))", null ) );
+    }
+
+
+    public void testCandidatesByFactoryPid()
+    {
+        assertCandidates( new String[]
+            { "a.1", "a.2" }, index.getCandidates( "(service.factoryPid=a)", null ) );
+        assertCandidates( new String[0], index.getCandidates( "(service.factoryPid=x)", null ) );
+    }
+
+
+    public void testCandidatesByLocation()
+    {
+        assertCandidates( new String[]
+            { "a.1", "b.1" }, index.getCandidates( null, "loc1" ) );
+        assertCandidates( new String[]
+            { "a.1" }, index.getCandidates( "(service.factoryPid=a)", "loc1" ) );
+    }
+
+
+    public void testCandidatesConjunction()
+    {
+        assertCandidates( new String[]
+            { "a.1" }, index.getCandidates( "(&(service.factoryPid=a)(COLOR=red)(shape=round))", null ) );
+        assertCandidates( new String[]
+            { "c" }, index.getCandidates( "(service.pid=c)", null ) );
+    }
+
+
+    public void testCandidatesNonStringValue()
+    {
+        Dictionary config = createConfig( "d", "a", null, null );
+        config.put( "color", new String[]
+            { "red", "green" } );
+        index.add( "d", config );
+
+        assertCandidates( new String[]
+            { "a.1", "b.1", "d" }, index.getCandidates( "(color=red)", null ) );
+        assertCandidates( new String[]
+            { "d" }, index.getCandidates( "(color=green)", null ) );
+
+        index.remove( "d", config );
+        assertCandidates( new String[0], index.getCandidates( "(color=green)", null ) );
+    }
+
+
+    public void testRemove()
+    {
+        index.remove( "a.1", createConfig( "a.1", "a", "loc1", "red" ) );
+        assertCandidates( new String[]
+            { "a.2" }, index.getCandidates( "(service.factoryPid=a)", null ) );
+        assertCandidates( new String[]
+            { "b.1" }, index.getCandidates( "(color=red)", null ) );
+
+        index.clear();
+        assertCandidates( new String[0], index.getCandidates( "(service.factoryPid=a)", null ) );
+    }
+
+
+    private Dictionary createConfig( String pid, String factoryPid, String location, String color )
+    {
+        Dictionary config = new Hashtable();
+        config.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            config.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        if ( location != null )
+        {
+            config.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, location );
+        }
+        if ( color != null )
+        {
+            config.put( "color", color );
+        }
+        return config;
+    }
+
+
+    private void assertNoTerms( String filter )
+    {
+        List terms = new ArrayList();
+        DictionaryIndex.getTerms( filter, terms );
+        assertTrue( "Expected no terms for " + filter, terms.isEmpty() );
+    }
+
+
+    private void assertCandidates( String[] expected, Set actual )
+    {
+        assertNotNull( actual );
+
+        Set expectedSet = new HashSet();
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            expectedSet.add( expected[i] );
+        }
+        assertEquals( expectedSet, actual );
+    }
+}
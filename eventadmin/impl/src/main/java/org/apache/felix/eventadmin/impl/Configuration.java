@@ -25,6 +25,7 @@ import org.apache.felix.eventadmin.impl.adapter.*;
 import org.apache.felix.eventadmin.impl.dispatch.DefaultThreadPool;
 import org.apache.felix.eventadmin.impl.handler.*;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
+import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.util.LeastRecentlyUsedCacheMap;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.*;
@@ -52,10 +53,9 @@ import org.osgi.service.metatype.MetaTypeProvider;
  *      <tt>org.apache.felix.eventadmin.ThreadPoolSize</tt> - The size of the thread
  *          pool.
  * </p>
- * The default value is 10. Increase in case of a large amount of synchronous events
- * where the <tt>EventHandler</tt> services in turn send new synchronous events in
- * the event dispatching thread or a lot of timeouts are to be expected. A value of
- * less then 2 triggers the default value. A value of 2 effectively disables thread
+ * The default value is 20. Half of it is used for the asynchronous delivery
+ * of posted events, synchronous events are delivered by the sending thread. A value
+ * of less then 2 triggers the default value. A value of 2 effectively disables thread
  * pooling.
  * </p>
  * <p>
@@ -84,14 +84,33 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * </p>
  * If a timeout is configured by default all event handlers are called using the timeout.
  * For performance optimization it is possible to configure event handlers where the
- * timeout handling is not used - this reduces the thread usage from the thread pools
- * as the timout handling requires an additional thread to call the event handler.
+ * timeout handling is not used - this saves scheduling the handler on the timer
+ * that detects timeouts.
  * However, the application should work without this configuration property. It is a
  * pure optimization!
  * The value is a list of string (separated by comma). If the string ends with a dot,
  * all handlers in exactly this package are ignored. If the string ends with a star,
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueueSize</tt> - The max number of
+ *          posted events queued per <tt>EventHandler</tt>.
+ * </p>
+ * The default value is 0 which means the queues are unbounded. Posted events are
+ * delivered to each <tt>EventHandler</tt> in order from its own queue. Set this
+ * in case bursts of posted events should not pile up without limit.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncOverflow</tt> - What to do in case the
+ *          queue of an <tt>EventHandler</tt> is full.
+ * </p>
+ * The default is <tt>block</tt> which blocks the posting thread until the queue
+ * has room again. Threads delivering events are never blocked. <tt>drop</tt>
+ * drops the posted event and <tt>dropoldest</tt> drops the oldest queued event.
+ * A warning with the queue statistics is logged in case a queue is full.
+ * </p>
  *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
@@ -107,6 +126,8 @@ public class Configuration
     static final String PROP_TIMEOUT = "org.apache.felix.eventadmin.Timeout";
     static final String PROP_REQUIRE_TOPIC = "org.apache.felix.eventadmin.RequireTopic";
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
+    static final String PROP_ASYNC_QUEUE_SIZE = "org.apache.felix.eventadmin.AsyncQueueSize";
+    static final String PROP_ASYNC_OVERFLOW = "org.apache.felix.eventadmin.AsyncOverflow";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -121,9 +142,11 @@ public class Configuration
 
     private String[] m_ignoreTimeout;
 
-    // The thread pool used - this is a member because we need to close it on stop
-    private volatile DefaultThreadPool m_sync_pool;
+    private int m_asyncQueueSize;
 
+    private String m_asyncOverflow;
+
+    // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_async_pool;
 
     // The actual implementation of the service - this is a member because we need to
@@ -132,6 +155,10 @@ public class Configuration
     // the wrapper).
     private volatile EventAdminImpl m_admin;
 
+    // The tracker of the EventHandler services - this is a member because we need
+    // to close it on stop
+    private volatile EventHandlerTracker m_tracker;
+
     // The registration of the security decorator factory (i.e., the service)
     private volatile ServiceRegistration m_registration;
 
@@ -212,9 +239,9 @@ public class Configuration
             m_cacheSize = getIntProperty(PROP_CACHE_SIZE,
                 m_bundleContext.getProperty(PROP_CACHE_SIZE), 30, 10);
 
-            // The size of the internal thread pool. Note that we must execute
-            // each synchronous event dispatch that happens in the synchronous event
-            // dispatching thread in a new thread, hence a small thread pool is o.k.
+            // The size of the internal thread pool. Synchronous events are
+            // delivered by the sending thread, hence the pool is only used for
+            // posted events and a small thread pool is o.k.
             // A value of less then 2 triggers the default value. A value of 2
             // effectively disables thread pooling. Furthermore, this will be used by
             // a lazy thread pool (i.e., new threads are created when needed). Ones the
@@ -250,6 +277,16 @@ public class Configuration
                     m_ignoreTimeout[i] = st.nextToken();
                 }
             }
+
+            // The max number of posted events queued per EventHandler - A value
+            // of 0 means the queues are unbounded.
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                m_bundleContext.getProperty(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+
+            // What to do in case the queue of an EventHandler is full - block,
+            // drop, or dropoldest.
+            m_asyncOverflow = getOverflowProperty(
+                m_bundleContext.getProperty(PROP_ASYNC_OVERFLOW));
         }
         else
         {
@@ -257,6 +294,8 @@ public class Configuration
             m_threadPoolSize = getIntProperty(PROP_THREAD_POOL_SIZE, config.get(PROP_THREAD_POOL_SIZE), 20, 2);
             m_timeout = getIntProperty(PROP_TIMEOUT, config.get(PROP_TIMEOUT), 5000, Integer.MIN_VALUE);
             m_requireTopic = getBooleanProperty(config.get(PROP_REQUIRE_TOPIC), true);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE, config.get(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+            m_asyncOverflow = getOverflowProperty(config.get(PROP_ASYNC_OVERFLOW));
             m_ignoreTimeout = null;
             final Object value = config.get(PROP_IGNORE_TIMEOUT);
             if ( value instanceof String )
@@ -290,30 +329,31 @@ public class Configuration
             PROP_TIMEOUT + "=" + m_timeout);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
-
-        final TopicHandlerFilters topicHandlerFilters =
-            new CacheTopicHandlerFilters(new LeastRecentlyUsedCacheMap(m_cacheSize),
-            m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_SIZE + "=" + m_asyncQueueSize);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_OVERFLOW + "=" + m_asyncOverflow);
 
         final Filters filters = new CacheFilters(
             new LeastRecentlyUsedCacheMap(m_cacheSize), m_bundleContext);
 
+        // The tracker keeps the EventHandler services by topic. It is replaced on
+        // each update as the cache size and whether topics are required might
+        // have changed.
+        final EventHandlerTracker oldTracker = m_tracker;
+
+        m_tracker = new EventHandlerTracker(m_bundleContext, filters, m_requireTopic);
+
+        m_tracker.open();
+
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
         // is reached. Subsequently, a threadPoolSize of 2 effectively disables
         // caching of threads.
-        if ( m_sync_pool == null )
-        {
-            m_sync_pool = new DefaultThreadPool(m_threadPoolSize, true);
-        }
-        else
-        {
-            m_sync_pool.configure(m_threadPoolSize);
-        }
         final int asyncThreadPoolSize = m_threadPoolSize > 5 ? m_threadPoolSize / 2 : 2;
         if ( m_async_pool == null )
         {
-            m_async_pool = new DefaultThreadPool(asyncThreadPoolSize, false);
+            m_async_pool = new DefaultThreadPool(asyncThreadPoolSize);
         }
         else
         {
@@ -325,11 +365,12 @@ public class Configuration
         // Note that blacklisting is deactivated by selecting a different scheduler
         // below (and not in this HandlerTasks object!)
         final HandlerTasks handlerTasks = new BlacklistingHandlerTasks(m_bundleContext,
-            new CleanBlackList(), topicHandlerFilters, filters);
+            new CleanBlackList(), m_tracker);
 
         if ( m_admin == null )
         {
-            m_admin = new EventAdminImpl(handlerTasks, m_sync_pool, m_async_pool, m_timeout, m_ignoreTimeout);
+            m_admin = new EventAdminImpl(handlerTasks, m_async_pool, m_timeout, m_ignoreTimeout,
+                m_asyncQueueSize, m_asyncOverflow);
 
             // Finally, adapt the outside events to our kind of events as per spec
             adaptEvents(m_admin);
@@ -342,9 +383,13 @@ public class Configuration
         }
         else
         {
-            m_admin.update(handlerTasks, m_timeout, m_ignoreTimeout);
+            m_admin.update(handlerTasks, m_timeout, m_ignoreTimeout, m_asyncQueueSize, m_asyncOverflow);
         }
 
+        if ( oldTracker != null )
+        {
+            oldTracker.close();
+        }
     }
 
     /**
@@ -382,16 +427,16 @@ public class Configuration
                 m_admin.stop();
                 m_admin = null;
             }
+            if ( m_tracker != null )
+            {
+                m_tracker.close();
+                m_tracker = null;
+            }
             if (m_async_pool != null )
             {
                 m_async_pool.close();
                 m_async_pool = null;
             }
-            if ( m_sync_pool != null )
-            {
-                m_sync_pool.close();
-                m_sync_pool = null;
-            }
         }
     }
 
@@ -413,7 +458,7 @@ public class Configuration
         {
             return new MetaTypeProviderImpl((ManagedService)managedService,
                     m_cacheSize, m_threadPoolSize, m_timeout, m_requireTopic,
-                    m_ignoreTimeout);
+                    m_ignoreTimeout, m_asyncQueueSize, m_asyncOverflow);
         }
         catch (Throwable t)
         {
@@ -482,6 +527,31 @@ public class Configuration
         return defaultValue;
     }
 
+    /**
+     * Returns the overflow policy if the value of the property is set and is either
+     * block, drop, or dropoldest. Returns block otherwise. Additionally, a warning
+     * is generated in case the value is erroneous.
+     */
+    private String getOverflowProperty(final Object obj)
+    {
+        if(null != obj)
+        {
+            final String value = obj.toString().trim().toLowerCase();
+
+            if(AsyncDeliverTasks.OVERFLOW_BLOCK.equals(value)
+                || AsyncDeliverTasks.OVERFLOW_DROP.equals(value)
+                || AsyncDeliverTasks.OVERFLOW_DROP_OLDEST.equals(value))
+            {
+                return value;
+            }
+
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                "Value for property: " + PROP_ASYNC_OVERFLOW + " is neither block, drop, nor dropoldest - Using default");
+        }
+
+        return AsyncDeliverTasks.OVERFLOW_BLOCK;
+    }
+
     /**
      * Returns true if the value of the property is set and is either 1, true, or yes
      * Returns false if the value of the property is set and is either 0, false, or no
@@ -44,7 +44,7 @@ public class EventAdminImpl implements EventAdmin
     private volatile HandlerTasks m_managers;
 
     // The asynchronous event dispatcher
-    private final DeliverTask m_postManager;
+    private final AsyncDeliverTasks m_postManager;
 
     // The synchronous event dispatcher
     private final SyncDeliverTasks m_sendManager;
@@ -56,26 +56,30 @@ public class EventAdminImpl implements EventAdmin
      * <tt>DeliverTasks</tt> are used to dispatch the event.
      *
      * @param managers The factory used to determine applicable <tt>EventHandler</tt>
-     * @param syncPool The synchronous thread pool
      * @param asyncPool The asynchronous thread pool
+     * @param timeout The timeout for event handlers, 0 = disabled
+     * @param ignoreTimeout The event handlers that are called without a timeout
+     * @param asyncQueueSize The max number of posted events per event handler,
+     *      0 = unbounded
+     * @param asyncOverflow The policy in case the queue of an event handler is full
      */
     public EventAdminImpl(final HandlerTasks managers,
-            final DefaultThreadPool syncPool,
             final DefaultThreadPool asyncPool,
             final int timeout,
-            final String[] ignoreTimeout)
+            final String[] ignoreTimeout,
+            final int asyncQueueSize,
+            final String asyncOverflow)
     {
         checkNull(managers, "Managers");
-        checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
 
         m_managers = managers;
 
-        m_sendManager = new SyncDeliverTasks(syncPool,
-                (timeout > 100 ? timeout : 0),
+        m_sendManager = new SyncDeliverTasks((timeout > 100 ? timeout : 0),
                 ignoreTimeout);
 
-        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
+        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager,
+                asyncQueueSize, asyncOverflow);
     }
 
     /**
@@ -133,16 +137,35 @@ public class EventAdminImpl implements EventAdmin
                 throw new IllegalStateException("The EventAdmin is stopped");
             }
         };
+
+        // release posting threads waiting for full queues
+        m_postManager.stop();
+
+        // stop the timer thread
+        m_sendManager.stop();
     }
 
     /**
      * Update the event admin with new configuration.
      */
     public void update(final HandlerTasks managers, final int timeout,
-            final String[] ignoreTimeout)
+            final String[] ignoreTimeout, final int asyncQueueSize,
+            final String asyncOverflow)
     {
         m_managers = managers;
         m_sendManager.update(timeout, ignoreTimeout);
+        m_postManager.update(asyncQueueSize, asyncOverflow);
+    }
+
+    /**
+     * Returns the asynchronous event dispatcher that records the statistics of
+     * the posted events.
+     *
+     * @return The asynchronous event dispatcher
+     */
+    public AsyncDeliverTasks getPostManager()
+    {
+        return m_postManager;
     }
 
     /**
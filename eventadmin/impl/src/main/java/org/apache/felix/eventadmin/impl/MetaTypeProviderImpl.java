@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Dictionary;
 
+import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.osgi.service.metatype.*;
@@ -37,13 +38,16 @@ public class MetaTypeProviderImpl
     private final int m_timeout;
     private final boolean m_requireTopic;
     private final String[] m_ignoreTimeout;
+    private final int m_asyncQueueSize;
+    private final String m_asyncOverflow;
 
     private final ManagedService m_delegatee;
 
     public MetaTypeProviderImpl(final ManagedService delegatee,
             final int cacheSize, final int threadPoolSize,
             final int timeout, final boolean requireTopic,
-            final String[] ignoreTimeout)
+            final String[] ignoreTimeout, final int asyncQueueSize,
+            final String asyncOverflow)
     {
         m_cacheSize = cacheSize;
         m_threadPoolSize = threadPoolSize;
@@ -51,6 +55,8 @@ public class MetaTypeProviderImpl
         m_requireTopic = requireTopic;
         m_delegatee = delegatee;
         m_ignoreTimeout = ignoreTimeout;
+        m_asyncQueueSize = asyncQueueSize;
+        m_asyncOverflow = asyncOverflow;
     }
 
     private ObjectClassDefinition ocd;
@@ -91,9 +97,9 @@ public class MetaTypeProviderImpl
                     "default value.", m_cacheSize) );
 
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_THREAD_POOL_SIZE, "Thread Pool Size",
-                "The size of the thread pool. The default value is 10. Increase in case of a large amount " +
-                "of synchronous events where the event handler services in turn send new synchronous events in " +
-                "the event dispatching thread or a lot of timeouts are to be expected. A value of " +
+                "The size of the thread pool. The default value is 20. Half of it is used for the " +
+                "asynchronous delivery of posted events, synchronous events are delivered by the sending " +
+                "thread. A value of " +
                 "less then 2 triggers the default value. A value of 2 effectively disables thread pooling.",
                 m_threadPoolSize ) );
 
@@ -113,14 +119,26 @@ public class MetaTypeProviderImpl
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_IGNORE_TIMEOUT, "Ignore Timeouts",
                     "Configure event handlers to be called without a timeout. If a timeout is configured by default " +
                     "all event handlers are called using the timeout. For performance optimization it is possible to " +
-                    "configure event handlers where the timeout handling is not used - this reduces the thread usage " +
-                    "from the thread pools as the timout handling requires an additional thread to call the event " +
-                    "handler. However, the application should work without this configuration property. It is a " +
+                    "configure event handlers where the timeout handling is not used - this saves scheduling the " +
+                    "event handler on the timer that detects timeouts. However, the application should work without this configuration property. It is a " +
                     "pure optimization! The value is a list of strings. If a string ends with a dot, " +
                     "all handlers in exactly this package are ignored. If the string ends with a star, " +
                     "all handlers in this package and all subpackages are ignored. If the string neither " +
                     "ends with a dot nor with a star, this is assumed to define an exact class name.",
                     AttributeDefinition.STRING, m_ignoreTimeout, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_QUEUE_SIZE, "Async Queue Size",
+                    "The max number of posted events queued per event handler. The default value is 0 which " +
+                    "means the queues are unbounded. Posted events are delivered to each event handler in order " +
+                    "from its own queue.",
+                    m_asyncQueueSize ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_OVERFLOW, "Async Overflow",
+                    "What to do in case the queue of an event handler is full. Block blocks the posting thread " +
+                    "until the queue has room again, threads delivering events are never blocked. Drop drops the " +
+                    "posted event and drop oldest drops the oldest queued event.",
+                    AttributeDefinition.STRING, new String[] {m_asyncOverflow}, 0,
+                    new String[] {"Block", "Drop", "Drop Oldest"},
+                    new String[] {AsyncDeliverTasks.OVERFLOW_BLOCK, AsyncDeliverTasks.OVERFLOW_DROP,
+                        AsyncDeliverTasks.OVERFLOW_DROP_OLDEST}));
             ocd = new ObjectClassDefinition()
             {
 
@@ -16,7 +16,6 @@
  */
 package org.apache.felix.eventadmin.impl.dispatch;
 
-import org.apache.felix.eventadmin.impl.tasks.SyncThread;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 
 import EDU.oswego.cs.dl.util.concurrent.*;
@@ -34,39 +33,21 @@ public class DefaultThreadPool
     /**
      * Create a new pool.
      */
-    public DefaultThreadPool(final int poolSize, final boolean syncThreads)
+    public DefaultThreadPool(final int poolSize)
     {
    	    super(new LinkedQueue());
-   	    if ( syncThreads )
-   	    {
-            this.setThreadFactory(new ThreadFactory()
-            {
-
-                public Thread newThread( final Runnable command )
-                {
-                    final Thread thread = new SyncThread( command );
-                    thread.setPriority( Thread.NORM_PRIORITY );
-                    thread.setDaemon( true );
+        this.setThreadFactory(new ThreadFactory()
+        {
 
-                    return thread;
-                }
-            });
-   	    }
-   	    else
-   	    {
-            this.setThreadFactory(new ThreadFactory()
+            public Thread newThread( final Runnable command )
             {
+                final Thread thread = new Thread( command );
+                thread.setPriority( Thread.NORM_PRIORITY );
+                thread.setDaemon( false );
 
-                public Thread newThread( final Runnable command )
-                {
-                    final Thread thread = new Thread( command );
-                    thread.setPriority( Thread.NORM_PRIORITY );
-                    thread.setDaemon( false );
-
-                    return thread;
-                }
-            });
-   	    }
+                return thread;
+            }
+        });
    	    configure(poolSize);
         setKeepAliveTime(60000);
         runWhenBlocked();
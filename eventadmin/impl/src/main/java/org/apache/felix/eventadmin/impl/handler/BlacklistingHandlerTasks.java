@@ -31,11 +31,10 @@ import org.osgi.service.event.*;
 /**
  * This class is an implementation of the HandlerTasks interface that does provide
  * blacklisting of event handlers. Furthermore, handlers are determined from the
- * framework on any call to <tt>createHandlerTasks()</tt> hence, there is no
- * book-keeping of <tt>EventHandler</tt> services while they come and go but a
- * query for each sent event. In order to do this, an ldap-filter is created that
- * will match applicable <tt>EventHandler</tt> references. In order to ease some of
- * the overhead pains of this approach some light caching is going on.
+ * <tt>EventHandlerTracker</tt> on any call to <tt>createHandlerTasks()</tt> hence,
+ * the framework is not queried for each sent event. The tracker keeps the
+ * <tt>EventHandler</tt> services in a trie by topic and creates their event
+ * filters once, when they are registered.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
@@ -47,38 +46,28 @@ public class BlacklistingHandlerTasks implements HandlerTasks
     // The context of the bundle used to get the actual event handler services
     private final BundleContext m_context;
 
-    // Used to create the filters that can determine applicable event handlers for
-    // a given event
-    private final TopicHandlerFilters m_topicHandlerFilters;
-
-    // Used to create the filters that are used to determine whether an applicable
-    // event handler is interested in a particular event
-    private final Filters m_filters;
+    // Used to determine applicable event handlers for a given event
+    private final EventHandlerTracker m_tracker;
 
     /**
      * The constructor of the factory.
      *
      * @param context The context of the bundle
      * @param blackList The set to use for keeping track of blacklisted references
-     * @param topicHandlerFilters The factory for topic handler filters
-     * @param filters The factory for <tt>Filter</tt> objects
+     * @param tracker The tracker of the event handlers
      */
     public BlacklistingHandlerTasks(final BundleContext context,
-        final BlackList blackList,
-        final TopicHandlerFilters topicHandlerFilters, final Filters filters)
+        final BlackList blackList, final EventHandlerTracker tracker)
     {
         checkNull(context, "Context");
         checkNull(blackList, "BlackList");
-        checkNull(topicHandlerFilters, "TopicHandlerFilters");
-        checkNull(filters, "Filters");
+        checkNull(tracker, "EventHandlerTracker");
 
         m_context = context;
 
         m_blackList = blackList;
 
-        m_topicHandlerFilters = topicHandlerFilters;
-
-        m_filters = filters;
+        m_tracker = tracker;
     }
 
     /**
@@ -95,49 +84,35 @@ public class BlacklistingHandlerTasks implements HandlerTasks
     {
         final List result = new ArrayList();
 
-        ServiceReference[] handlerRefs = null;
+        final TrackedHandler[] handlers = m_tracker.getHandlers(event.getTopic());
 
-        try
-        {
-            handlerRefs = m_context.getServiceReferences(EventHandler.class
-                .getName(), m_topicHandlerFilters.createFilterForTopic(event
-                .getTopic()));
-        } catch (InvalidSyntaxException e)
+        for (int i = 0; i < handlers.length; i++)
         {
-            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
-                "Invalid EVENT_TOPIC [" + event.getTopic() + "]", e);
-        }
+            final ServiceReference handlerRef = handlers[i].getReference();
 
-        if(null == handlerRefs)
-        {
-            handlerRefs = new ServiceReference[0];
-        }
+            // The bundle is null in case the handler has been unregistered in
+            // the meantime
+            final Bundle bundle = handlerRef.getBundle();
 
-        for (int i = 0; i < handlerRefs.length; i++)
-        {
-            if (!m_blackList.contains(handlerRefs[i])
-                && handlerRefs[i].getBundle().hasPermission(
+            if (null != bundle && !m_blackList.contains(handlerRef)
+                && bundle.hasPermission(
                         PermissionsUtil.createSubscribePermission(event.getTopic())))
             {
-                try
-                {
-                    if (event.matches(m_filters.createFilter(
-                        (String) handlerRefs[i]
-                            .getProperty(EventConstants.EVENT_FILTER))))
-                    {
-                        result.add(new HandlerTaskImpl(handlerRefs[i],
-                            event, this));
-                    }
-                } catch (InvalidSyntaxException e)
+                if (null == handlers[i].getFilter())
                 {
                     LogWrapper.getLogger().log(
-                        handlerRefs[i],
+                        handlerRef,
                         LogWrapper.LOG_WARNING,
                         "Invalid EVENT_FILTER - Blacklisting ServiceReference ["
-                            + handlerRefs[i] + " | Bundle("
-                            + handlerRefs[i].getBundle() + ")]", e);
+                            + handlerRef + " | Bundle("
+                            + bundle + ")]",
+                        handlers[i].getFilterException());
 
-                    m_blackList.add(handlerRefs[i]);
+                    m_blackList.add(handlerRef);
+                }
+                else if (event.matches(handlers[i].getFilter()))
+                {
+                    result.add(new HandlerTaskImpl(handlerRef, event, this));
                 }
             }
         }
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.*;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * This class keeps track of the <tt>EventHandler</tt> services with the help of
+ * a service listener. The tracked handlers are held in a <tt>TopicTrie</tt> that
+ * is updated whenever a handler is registered, modified, or unregistered.
+ * Hence, the handlers for a topic can be determined without querying the
+ * framework. As handlers come and go rarely compared to the events sent, each
+ * update creates a new trie, which shares the nodes of unaffected topics with
+ * the previous one and is published in a volatile field and used without
+ * locking.
+ *
+ * @see org.apache.felix.eventadmin.impl.handler.TopicTrie
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class EventHandlerTracker implements ServiceListener
+{
+    // The context of the bundle used to listen for event handlers
+    private final BundleContext m_context;
+
+    // Used to create the event filters of the handlers
+    private final Filters m_filters;
+
+    // Whether handlers without a topic are ignored
+    private final boolean m_requireTopic;
+
+    // The tracked handlers by service reference. Furthermore used as lock
+    private final Map m_handlers = new HashMap();
+
+    // The trie of the tracked handlers
+    private volatile TopicTrie m_trie;
+
+    /**
+     * The constructor of the tracker. The tracker does not track any handlers
+     * until it is opened.
+     *
+     * @param context The context of the bundle
+     * @param filters The factory for <tt>Filter</tt> objects
+     * @param requireTopic Whether handlers without a topic are ignored or receive
+     *      all events
+     */
+    public EventHandlerTracker(final BundleContext context, final Filters filters,
+        final boolean requireTopic)
+    {
+        if(null == context)
+        {
+            throw new NullPointerException("Context may not be null");
+        }
+
+        if(null == filters)
+        {
+            throw new NullPointerException("Filters may not be null");
+        }
+
+        m_context = context;
+
+        m_filters = filters;
+
+        m_requireTopic = requireTopic;
+
+        m_trie = new TopicTrie(requireTopic);
+    }
+
+    /**
+     * Start tracking the <tt>EventHandler</tt> services. The currently registered
+     * handlers are added to the trie.
+     */
+    public void open()
+    {
+        // Hold the lock until all registered handlers are added, so that an
+        // unregistering handler can not be added after it has been removed.
+        synchronized(m_handlers)
+        {
+            try
+            {
+                m_context.addServiceListener(this, "(" + Constants.OBJECTCLASS
+                    + "=" + EventHandler.class.getName() + ")");
+
+                final ServiceReference[] refs = m_context.getServiceReferences(
+                    EventHandler.class.getName(), null);
+
+                if (null != refs)
+                {
+                    for (int i = 0; i < refs.length; i++)
+                    {
+                        if (!m_handlers.containsKey(refs[i]))
+                        {
+                            add(refs[i]);
+                        }
+                    }
+                }
+            }
+            catch (InvalidSyntaxException e)
+            {
+                // this never happens
+            }
+        }
+    }
+
+    /**
+     * Stop tracking the <tt>EventHandler</tt> services. The trie is cleared.
+     */
+    public void close()
+    {
+        m_context.removeServiceListener(this);
+
+        synchronized(m_handlers)
+        {
+            m_handlers.clear();
+
+            m_trie = new TopicTrie(m_requireTopic);
+        }
+    }
+
+    /**
+     * Returns the handlers that are registered for the given topic.
+     *
+     * @param topic The topic of the event
+     *
+     * @return The handlers for the topic
+     */
+    public TrackedHandler[] getHandlers(final String topic)
+    {
+        return m_trie.getHandlers(topic);
+    }
+
+    /**
+     * Add, update, or remove the handler of the event.
+     *
+     * @param event The service event of an <tt>EventHandler</tt> service
+     *
+     * @see org.osgi.framework.ServiceListener#serviceChanged(org.osgi.framework.ServiceEvent)
+     */
+    public void serviceChanged(final ServiceEvent event)
+    {
+        final ServiceReference ref = event.getServiceReference();
+
+        synchronized(m_handlers)
+        {
+            switch (event.getType())
+            {
+                case ServiceEvent.REGISTERED:
+                    if (!m_handlers.containsKey(ref))
+                    {
+                        add(ref);
+                    }
+                    break;
+                case ServiceEvent.MODIFIED:
+                    // The topics or the event filter might have changed
+                    remove(ref);
+                    add(ref);
+                    break;
+                case ServiceEvent.UNREGISTERING:
+                    remove(ref);
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /*
+     * Add a handler for the given reference to the trie. Must be called while
+     * holding the lock.
+     */
+    private void add(final ServiceReference ref)
+    {
+        final TrackedHandler handler = new TrackedHandler(ref, m_filters);
+
+        m_handlers.put(ref, handler);
+
+        m_trie = m_trie.add(handler);
+    }
+
+    /*
+     * Remove the handler of the given reference from the trie in case it is
+     * tracked. Must be called while holding the lock.
+     */
+    private void remove(final ServiceReference ref)
+    {
+        final TrackedHandler handler = (TrackedHandler) m_handlers.remove(ref);
+
+        if (null != handler)
+        {
+            m_trie = m_trie.remove(handler);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable trie of event handlers by topic. Each node of the trie stands for
+ * a topic prefix, split at the '/' characters, and holds the handlers registered
+ * for exactly this topic as well as the handlers registered for the wildcard
+ * topic below it (i.e., prefix/*). The handlers registered for topic=* are held
+ * by the root node. Hence, the handlers of a topic are found by walking down the
+ * trie once, which is the equivalent of the ldap-filter
+ * <tt>(|(topic=\*)(topic=org/\*)(topic=org/apache/\*)(topic=org/apache))</tt>
+ * for the topic <tt>org/apache</tt>.
+ * <p>
+ * A trie is never modified after it has been created hence, it can be used by
+ * any number of threads without locking. Adding or removing a handler returns
+ * a new trie that only copies the nodes of the handler's topics and shares all
+ * other nodes with this trie.
+ *
+ * @see org.apache.felix.eventadmin.impl.handler.EventHandlerTracker
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TopicTrie
+{
+    // The result for topics without handlers
+    private static final TrackedHandler[] EMPTY = new TrackedHandler[0];
+
+    // A node without handlers and children
+    private static final Node EMPTY_NODE = new Node(EMPTY, EMPTY, null);
+
+    // The node of the empty prefix
+    private final Node m_root;
+
+    // Whether handlers without a topic are ignored
+    private final boolean m_requireTopic;
+
+    /**
+     * The constructor of an empty trie.
+     *
+     * @param requireTopic Whether handlers without a topic are ignored or treated
+     *      the same as with a topic=*
+     */
+    public TopicTrie(final boolean requireTopic)
+    {
+        this(EMPTY_NODE, requireTopic);
+    }
+
+    /*
+     * The constructor of a trie with the given root node.
+     */
+    private TopicTrie(final Node root, final boolean requireTopic)
+    {
+        m_root = root;
+
+        m_requireTopic = requireTopic;
+    }
+
+    /**
+     * Returns a trie that additionally contains the given handler.
+     *
+     * @param handler The handler to add
+     *
+     * @return The new trie or this trie in case it already contains the handler
+     */
+    public TopicTrie add(final TrackedHandler handler)
+    {
+        return update(handler, true);
+    }
+
+    /**
+     * Returns a trie that no longer contains the given handler.
+     *
+     * @param handler The handler to remove, which must be the same instance
+     *      that has been added
+     *
+     * @return The new trie or this trie in case it does not contain the handler
+     */
+    public TopicTrie remove(final TrackedHandler handler)
+    {
+        return update(handler, false);
+    }
+
+    /**
+     * Returns the handlers that are registered for the given topic. Every handler
+     * is contained at most once, even if more than one of its topics match.
+     *
+     * @param topic The topic of the event
+     *
+     * @return The handlers for the topic
+     */
+    public TrackedHandler[] getHandlers(final String topic)
+    {
+        final List result = new ArrayList();
+
+        Node node = m_root;
+
+        add(result, node.m_wildcardHandlers);
+
+        int start = 0;
+
+        while (null != node.m_childNodes)
+        {
+            final int end = topic.indexOf('/', start);
+
+            node = (Node) node.m_childNodes.get((end < 0) ? topic.substring(start)
+                : topic.substring(start, end));
+
+            if (null == node)
+            {
+                break;
+            }
+
+            if (end < 0)
+            {
+                add(result, node.m_exactHandlers);
+
+                break;
+            }
+
+            add(result, node.m_wildcardHandlers);
+
+            start = end + 1;
+        }
+
+        return (result.isEmpty()) ? EMPTY
+            : (TrackedHandler[]) result.toArray(new TrackedHandler[result.size()]);
+    }
+
+    /*
+     * Add or remove the handler at the nodes of all its topics.
+     */
+    private TopicTrie update(final TrackedHandler handler, final boolean add)
+    {
+        final String[] topics = handler.getTopics();
+
+        Node root = m_root;
+
+        if (null == topics)
+        {
+            if (!m_requireTopic)
+            {
+                root = root.with(null, true, handler, add);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < topics.length; i++)
+            {
+                if ("*".equals(topics[i]))
+                {
+                    root = root.with(null, true, handler, add);
+                }
+                else
+                {
+                    final boolean wildcard = topics[i].endsWith("/*");
+
+                    final String prefix = (wildcard) ? topics[i].substring(0,
+                        topics[i].length() - 2) : topics[i];
+
+                    root = root.with(prefix, wildcard, handler, add);
+                }
+            }
+        }
+
+        return (root == m_root) ? this : new TopicTrie(root, m_requireTopic);
+    }
+
+    /*
+     * Add the handlers to the result unless they are already contained.
+     */
+    private static void add(final List result, final TrackedHandler[] handlers)
+    {
+        if (result.isEmpty())
+        {
+            for (int i = 0; i < handlers.length; i++)
+            {
+                result.add(handlers[i]);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < handlers.length; i++)
+            {
+                if (!result.contains(handlers[i]))
+                {
+                    result.add(handlers[i]);
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns a copy of the handlers with the handler added or removed or the
+     * handlers themselves in case nothing changes.
+     */
+    private static TrackedHandler[] with(final TrackedHandler[] handlers,
+        final TrackedHandler handler, final boolean add)
+    {
+        int index = -1;
+
+        for (int i = 0; i < handlers.length; i++)
+        {
+            if (handlers[i] == handler)
+            {
+                index = i;
+
+                break;
+            }
+        }
+
+        if (add)
+        {
+            if (-1 != index)
+            {
+                return handlers;
+            }
+
+            final TrackedHandler[] result = new TrackedHandler[handlers.length + 1];
+
+            System.arraycopy(handlers, 0, result, 0, handlers.length);
+
+            result[handlers.length] = handler;
+
+            return result;
+        }
+
+        if (-1 == index)
+        {
+            return handlers;
+        }
+
+        if (1 == handlers.length)
+        {
+            return EMPTY;
+        }
+
+        final TrackedHandler[] result = new TrackedHandler[handlers.length - 1];
+
+        System.arraycopy(handlers, 0, result, 0, index);
+
+        System.arraycopy(handlers, index + 1, result, index, result.length - index);
+
+        return result;
+    }
+
+    /*
+     * An immutable node of the trie. Nodes are shared between tries and only
+     * copied when the handlers of their subtree change.
+     */
+    private static class Node
+    {
+        private final TrackedHandler[] m_exactHandlers;
+
+        private final TrackedHandler[] m_wildcardHandlers;
+
+        // null in case the node has no children
+        private final Map m_childNodes;
+
+        Node(final TrackedHandler[] exactHandlers,
+            final TrackedHandler[] wildcardHandlers, final Map childNodes)
+        {
+            m_exactHandlers = exactHandlers;
+
+            m_wildcardHandlers = wildcardHandlers;
+
+            m_childNodes = childNodes;
+        }
+
+        /*
+         * Returns a node with the handler added to or removed from the node of
+         * the given topic prefix below this node, creating missing nodes and
+         * dropping empty ones on the way. The prefix is null for this node.
+         */
+        Node with(final String prefix, final boolean wildcard,
+            final TrackedHandler handler, final boolean add)
+        {
+            if (null == prefix)
+            {
+                final TrackedHandler[] exact = (wildcard) ? m_exactHandlers
+                    : TopicTrie.with(m_exactHandlers, handler, add);
+
+                final TrackedHandler[] wildcards = (wildcard)
+                    ? TopicTrie.with(m_wildcardHandlers, handler, add)
+                    : m_wildcardHandlers;
+
+                return ((exact == m_exactHandlers) && (wildcards == m_wildcardHandlers))
+                    ? this : new Node(exact, wildcards, m_childNodes);
+            }
+
+            final int end = prefix.indexOf('/');
+
+            final String token = (end < 0) ? prefix : prefix.substring(0, end);
+
+            Node child = (null == m_childNodes) ? null : (Node) m_childNodes.get(token);
+
+            if (null == child)
+            {
+                if (!add)
+                {
+                    return this;
+                }
+
+                child = EMPTY_NODE;
+            }
+
+            final Node updated = child.with((end < 0) ? null : prefix.substring(end + 1),
+                wildcard, handler, add);
+
+            if (updated == child)
+            {
+                return this;
+            }
+
+            final Map children = (null == m_childNodes) ? new HashMap()
+                : new HashMap(m_childNodes);
+
+            if (updated.isEmpty())
+            {
+                children.remove(token);
+            }
+            else
+            {
+                children.put(token, updated);
+            }
+
+            return new Node(m_exactHandlers, m_wildcardHandlers,
+                (children.isEmpty()) ? null : children);
+        }
+
+        boolean isEmpty()
+        {
+            return (0 == m_exactHandlers.length) && (0 == m_wildcardHandlers.length)
+                && (null == m_childNodes);
+        }
+    }
+}
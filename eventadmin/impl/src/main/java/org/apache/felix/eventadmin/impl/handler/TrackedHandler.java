@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.osgi.framework.*;
+import org.osgi.service.event.EventConstants;
+
+/**
+ * An <tt>EventHandler</tt> service reference as seen by the
+ * <tt>EventHandlerTracker</tt>. The topics and the event filter of the handler
+ * are read from the service properties once, when the handler is registered or
+ * modified, hence the filter is not parsed again for each event.
+ *
+ * @see org.apache.felix.eventadmin.impl.handler.EventHandlerTracker
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TrackedHandler
+{
+    // The service reference of the event handler
+    private final ServiceReference m_ref;
+
+    // The topics of the handler or null in case it does not provide any
+    private final String[] m_topics;
+
+    // The event filter of the handler or null in case it is invalid
+    private final Filter m_filter;
+
+    // The reason why the event filter is invalid or null in case it is valid
+    private final InvalidSyntaxException m_filterException;
+
+    /**
+     * The constructor of the handler. The properties of the service reference
+     * are read and the event filter is created with the given factory.
+     *
+     * @param ref The service reference of the event handler
+     * @param filters The factory for <tt>Filter</tt> objects
+     */
+    public TrackedHandler(final ServiceReference ref, final Filters filters)
+    {
+        m_ref = ref;
+
+        m_topics = toStrings(ref.getProperty(EventConstants.EVENT_TOPIC));
+
+        Filter filter = null;
+        InvalidSyntaxException filterException = null;
+        try
+        {
+            final Object value = ref.getProperty(EventConstants.EVENT_FILTER);
+
+            if ((null != value) && !(value instanceof String))
+            {
+                throw new InvalidSyntaxException("EVENT_FILTER is not a string",
+                    value.toString());
+            }
+
+            filter = filters.createFilter((String) value);
+        }
+        catch (InvalidSyntaxException e)
+        {
+            filterException = e;
+        }
+        m_filter = filter;
+        m_filterException = filterException;
+    }
+
+    /**
+     * Returns the service reference of the event handler.
+     *
+     * @return The service reference of the event handler
+     */
+    public ServiceReference getReference()
+    {
+        return m_ref;
+    }
+
+    /**
+     * Returns the topics of the event handler.
+     *
+     * @return The topics of the event handler or <tt>null</tt> in case it does not
+     *      provide the <tt>EVENT_TOPIC</tt> property
+     */
+    public String[] getTopics()
+    {
+        return m_topics;
+    }
+
+    /**
+     * Returns the event filter of the event handler.
+     *
+     * @return The event filter of the event handler, the TRUE_FILTER in case it
+     *      does not provide one, or <tt>null</tt> in case it is invalid
+     */
+    public Filter getFilter()
+    {
+        return m_filter;
+    }
+
+    /**
+     * Returns the reason why the event filter of the event handler is invalid.
+     *
+     * @return The <tt>InvalidSyntaxException</tt> thrown while creating the
+     *      event filter or <tt>null</tt> in case the event filter is valid
+     */
+    public InvalidSyntaxException getFilterException()
+    {
+        return m_filterException;
+    }
+
+    /*
+     * Convert the given topic property into an array of strings. Returns null
+     * in case the property is not set.
+     */
+    private static String[] toStrings(final Object value)
+    {
+        if (null == value)
+        {
+            return null;
+        }
+
+        if (value instanceof String)
+        {
+            return new String[] {(String) value};
+        }
+
+        if (value instanceof String[])
+        {
+            return (String[]) value;
+        }
+
+        final List result = new ArrayList();
+
+        if (value instanceof Collection)
+        {
+            for (Iterator iter = ((Collection) value).iterator(); iter.hasNext();)
+            {
+                final Object topic = iter.next();
+
+                if (topic instanceof String)
+                {
+                    result.add(topic);
+                }
+            }
+        }
+
+        return (String[]) result.toArray(new String[result.size()]);
+    }
+}
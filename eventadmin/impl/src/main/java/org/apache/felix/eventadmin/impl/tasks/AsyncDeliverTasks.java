@@ -21,14 +21,49 @@ package org.apache.felix.eventadmin.impl.tasks;
 import java.util.*;
 
 import org.apache.felix.eventadmin.impl.dispatch.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.util.LatencyHistogram;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
 
 /**
  * This class does the actual work of the asynchronous event dispatch.
+ * <p>
+ * Each event handler has its own queue of events. A queue is delivered by a
+ * thread of the pool while it is not empty hence, events are delivered to a
+ * handler in the order they have been posted while different handlers receive
+ * their events in parallel. A queue can be bounded, in which case the overflow
+ * policy determines whether posting threads are blocked while the queue of a
+ * handler is full (i.e., backpressure) or events are dropped. Threads that are
+ * delivering events are never blocked as handlers posting events could block
+ * each other otherwise.
+ * <p>
+ * Batch handlers receive consecutive events of the same topic taken from their
+ * queue in batch events, see <tt>BatchEvents</tt>.
+ * <p>
+ * Additionally, the depth of the queues, the number of delivered and dropped
+ * events, and the latency between posting and delivering events are recorded.
+ * A warning containing these statistics is logged when a queue is full.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class AsyncDeliverTasks implements DeliverTask
 {
+    /** Block the posting thread while the queue of a handler is full. */
+    public static final String OVERFLOW_BLOCK = "block";
+
+    /** Drop the posted event while the queue of a handler is full. */
+    public static final String OVERFLOW_DROP = "drop";
+
+    /** Drop the oldest event of the queue of a handler while it is full. */
+    public static final String OVERFLOW_DROP_OLDEST = "dropoldest";
+
+    /** The max number of events delivered before a queue is rescheduled. */
+    private static final int EVENTS_PER_RUN = 64;
+
+    /** The min time in milliseconds between two overflow warnings. */
+    private static final long WARNING_INTERVAL = 10000;
+
     /** The thread pool to use to spin-off new threads. */
     private final DefaultThreadPool m_pool;
 
@@ -38,8 +73,35 @@ public class AsyncDeliverTasks implements DeliverTask
      */
     private final DeliverTask m_deliver_task;
 
-    /** A map of running threads currently delivering async events. */
-    private final Map m_running_threads = new HashMap();
+    /** The queues of the handlers by service reference. */
+    private final Map m_queues = new HashMap();
+
+    /** The number of queues that triggers purging idle queues. */
+    private int m_purgeSize = 16;
+
+    /** Marks the threads currently delivering the events of a queue. */
+    private final ThreadLocal m_delivering = new ThreadLocal();
+
+    /** The latencies between posting and delivering events. */
+    private final LatencyHistogram m_latencies = new LatencyHistogram();
+
+    /** The lock for the statistics not held by the queues. */
+    private final Object m_statisticsLock = new Object();
+
+    /** The number of dropped events. */
+    private long m_droppedCount = 0;
+
+    /** The time of the last overflow warning. */
+    private long m_lastWarning = 0;
+
+    /** The max number of events per queue, 0 = unbounded. */
+    private volatile int m_queueSize;
+
+    /** The overflow policy of bounded queues. */
+    private volatile String m_overflow;
+
+    /** Whether the delivery has been stopped. */
+    private volatile boolean m_stopped = false;
 
     /**
      * The constructor of the class that will use the asynchronous.
@@ -48,15 +110,60 @@ public class AsyncDeliverTasks implements DeliverTask
      *      dispatching threads in case of timeout or that the asynchronous event
      *      dispatching thread is used to send a synchronous event
      * @param deliverTask The deliver tasks for dispatching the event.
+     * @param queueSize The max number of events per handler, 0 = unbounded
+     * @param overflow The overflow policy in case a queue is full
      */
-    public AsyncDeliverTasks(final DefaultThreadPool pool, final DeliverTask deliverTask)
+    public AsyncDeliverTasks(final DefaultThreadPool pool, final DeliverTask deliverTask,
+        final int queueSize, final String overflow)
     {
         m_pool = pool;
         m_deliver_task = deliverTask;
+        update(queueSize, overflow);
     }
 
     /**
-     * This does not block an unrelated thread used to send a synchronous event.
+     * Update the queue size and the overflow policy. The recorded latencies are
+     * cleared.
+     *
+     * @param queueSize The max number of events per handler, 0 = unbounded
+     * @param overflow The overflow policy in case a queue is full
+     */
+    public void update(final int queueSize, final String overflow)
+    {
+        m_queueSize = (queueSize > 0) ? queueSize : 0;
+        m_overflow = (OVERFLOW_DROP.equals(overflow) || OVERFLOW_DROP_OLDEST.equals(overflow))
+            ? overflow : OVERFLOW_BLOCK;
+        m_latencies.clear();
+    }
+
+    /**
+     * Stop blocking posting threads. Events posted subsequently are queued
+     * regardless of the queue size.
+     */
+    public void stop()
+    {
+        m_stopped = true;
+
+        final HandlerQueue[] queues;
+
+        synchronized ( m_queues )
+        {
+            queues = (HandlerQueue[]) m_queues.values().toArray(
+                new HandlerQueue[m_queues.size()]);
+        }
+
+        for(int i = 0; i < queues.length; i++)
+        {
+            synchronized ( queues[i] )
+            {
+                queues[i].notifyAll();
+            }
+        }
+    }
+
+    /**
+     * This does not block an unrelated thread used to send a synchronous event
+     * unless the queue of a handler is full and the overflow policy is to block.
      *
      * @param tasks The event handler dispatch tasks to execute
      *
@@ -64,67 +171,524 @@ public class AsyncDeliverTasks implements DeliverTask
      */
     public void execute(final HandlerTask[] tasks)
     {
-        final Thread currentThread = Thread.currentThread();
-        TaskExecuter executer = null;
-        synchronized (m_running_threads )
+        final long time = System.currentTimeMillis();
+
+        for(int i = 0; i < tasks.length; i++)
         {
-            TaskExecuter runningExecutor = (TaskExecuter)m_running_threads.get(currentThread);
-            if ( runningExecutor != null )
+            final ServiceReference ref = tasks[i].getHandlerReference();
+
+            boolean added;
+            do
             {
-                runningExecutor.add(tasks);
+                HandlerQueue queue;
+                synchronized ( m_queues )
+                {
+                    queue = (HandlerQueue) m_queues.get(ref);
+                    if ( queue == null || queue.m_discarded )
+                    {
+                        if ( m_queues.size() >= m_purgeSize )
+                        {
+                            purge();
+                        }
+                        queue = new HandlerQueue(ref);
+                        m_queues.put(ref, queue);
+                    }
+                }
+                // the queue might have been discarded in the meantime
+                added = queue.add(tasks[i], time);
             }
-            else
+            while ( !added );
+        }
+    }
+
+    /**
+     * Discard the idle queues of unregistered handlers. Must be called while
+     * holding the lock of the queues.
+     */
+    private void purge()
+    {
+        for(final Iterator iter = m_queues.values().iterator(); iter.hasNext();)
+        {
+            final HandlerQueue queue = (HandlerQueue) iter.next();
+            synchronized ( queue )
             {
-                executer = new TaskExecuter( tasks, currentThread );
-                m_running_threads.put(currentThread, executer);
+                if ( !queue.m_running && 0 == queue.m_count
+                    && null == queue.m_ref.getBundle() )
+                {
+                    queue.m_discarded = true;
+                    iter.remove();
+                }
             }
         }
-        if ( executer != null )
+        m_purgeSize = Math.max(16, m_queues.size() * 2);
+    }
+
+    /**
+     * Returns the number of events that are queued for all handlers.
+     *
+     * @return The number of queued events
+     */
+    public int getQueueDepth()
+    {
+        final HandlerQueue[] queues;
+
+        synchronized ( m_queues )
         {
-            m_pool.executeTask(executer);
+            queues = (HandlerQueue[]) m_queues.values().toArray(
+                new HandlerQueue[m_queues.size()]);
+        }
+
+        int result = 0;
+        for(int i = 0; i < queues.length; i++)
+        {
+            synchronized ( queues[i] )
+            {
+                result += queues[i].m_count;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of events that are queued for the given handler.
+     *
+     * @param ref The service reference of the handler
+     *
+     * @return The number of queued events
+     */
+    public int getQueueDepth(final ServiceReference ref)
+    {
+        final HandlerQueue queue = getQueue(ref);
+
+        if ( queue == null )
+        {
+            return 0;
+        }
+
+        synchronized ( queue )
+        {
+            return queue.m_count;
+        }
+    }
+
+    /**
+     * Returns the number of events that have been delivered to the given handler
+     * since it has been registered.
+     *
+     * @param ref The service reference of the handler
+     *
+     * @return The number of delivered events
+     */
+    public long getDeliveredCount(final ServiceReference ref)
+    {
+        final HandlerQueue queue = getQueue(ref);
+
+        if ( queue == null )
+        {
+            return 0;
+        }
+
+        synchronized ( queue )
+        {
+            return queue.m_delivered;
         }
     }
 
-    private final class TaskExecuter implements Runnable
+    /**
+     * Returns the number of events that have been dropped for all handlers.
+     *
+     * @return The number of dropped events
+     */
+    public long getDroppedCount()
     {
-        private final List m_tasks = new LinkedList();
+        synchronized ( m_statisticsLock )
+        {
+            return m_droppedCount;
+        }
+    }
 
-        private final Object m_key;
+    /**
+     * Returns the latency between posting and delivering events below or at
+     * which the given percentage of events have been delivered since the last
+     * update.
+     *
+     * @param percentile The percentile from 0 to 100
+     *
+     * @return The latency of the percentile in milliseconds
+     */
+    public long getLatencyPercentile(final int percentile)
+    {
+        return m_latencies.getPercentile(percentile);
+    }
 
-        public TaskExecuter(final HandlerTask[] tasks, final Object key)
+    /**
+     * Returns the queue of the given handler or null in case there is none.
+     */
+    private HandlerQueue getQueue(final ServiceReference ref)
+    {
+        synchronized ( m_queues )
         {
-            m_key = key;
-            m_tasks.add(tasks);
+            return (HandlerQueue) m_queues.get(ref);
+        }
+    }
+
+    /**
+     * Returns whether the current thread is delivering the events of a queue.
+     */
+    private boolean isDelivering()
+    {
+        return m_delivering.get() != null;
+    }
+
+    /**
+     * Log a warning about a full queue unless a warning has been logged
+     * recently.
+     */
+    private void overflow(final HandlerQueue queue, final int dropped, final String action)
+    {
+        final long now = System.currentTimeMillis();
+        final long droppedCount;
+        synchronized ( m_statisticsLock )
+        {
+            m_droppedCount += dropped;
+            if ( now - m_lastWarning < WARNING_INTERVAL )
+            {
+                return;
+            }
+            m_lastWarning = now;
+            droppedCount = m_droppedCount;
+        }
+
+        final long delivered;
+        synchronized ( queue )
+        {
+            delivered = queue.m_delivered;
+        }
+
+        LogWrapper.getLogger().log(queue.m_ref, LogWrapper.LOG_WARNING,
+            "Event queue of EventHandler [" + queue.m_ref + " | Bundle("
+            + queue.m_ref.getBundle() + ")] is full (" + m_queueSize
+            + " events) - " + action + " [delivered=" + delivered
+            + ", queued=" + getQueueDepth() + ", dropped=" + droppedCount
+            + ", latency p50=" + getLatencyPercentile(50)
+            + "ms p90=" + getLatencyPercentile(90)
+            + "ms p99=" + getLatencyPercentile(99) + "ms]");
+    }
+
+    /**
+     * The queue of the events of a handler. The events are held in a ring buffer
+     * that grows on demand. Access is guarded by the queue itself.
+     */
+    private final class HandlerQueue implements Runnable
+    {
+        private final ServiceReference m_ref;
+
+        private HandlerTask[] m_tasks = new HandlerTask[16];
+
+        private long[] m_times = new long[16];
+
+        private int m_head = 0;
+
+        private int m_count = 0;
+
+        private int m_waiters = 0;
+
+        private long m_delivered = 0;
+
+        /** The batch of tasks currently delivered, only used by the running thread. */
+        private final List m_batch = new ArrayList();
+
+        /** The times the tasks of the current batch have been posted. */
+        private long[] m_batchTimes = new long[16];
+
+        /** Whether the running thread waits for the batch to fill up. */
+        private boolean m_batchWaiting = false;
+
+        /** Whether a thread of the pool is delivering the events. */
+        private boolean m_running = false;
+
+        /** Whether the queue has been discarded as its handler is gone. */
+        private volatile boolean m_discarded = false;
+
+        public HandlerQueue(final ServiceReference ref)
+        {
+            m_ref = ref;
+        }
+
+        /**
+         * Add the task to the queue unless the queue has been discarded.
+         */
+        public boolean add(final HandlerTask task, final long time)
+        {
+            int dropped = 0;
+            String action = null;
+            boolean enqueue = true;
+            boolean schedule = false;
+
+            synchronized ( this )
+            {
+                if ( m_discarded )
+                {
+                    return false;
+                }
+
+                final int queueSize = m_queueSize;
+                if ( queueSize > 0 && m_count >= queueSize && !m_stopped )
+                {
+                    final String overflow = m_overflow;
+                    if ( OVERFLOW_DROP.equals(overflow) )
+                    {
+                        dropped = 1;
+                        enqueue = false;
+                        action = "dropping posted events";
+                    }
+                    else if ( OVERFLOW_DROP_OLDEST.equals(overflow) )
+                    {
+                        poll();
+                        dropped = 1;
+                        action = "dropping oldest events";
+                    }
+                    else if ( !isDelivering() )
+                    {
+                        action = "blocking posting threads";
+                        m_waiters++;
+                        try
+                        {
+                            while ( m_count >= m_queueSize && m_queueSize > 0
+                                && !m_stopped && !m_discarded )
+                            {
+                                wait();
+                            }
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // queue the event anyway
+                            Thread.currentThread().interrupt();
+                        }
+                        finally
+                        {
+                            m_waiters--;
+                        }
+                        if ( m_discarded )
+                        {
+                            return false;
+                        }
+                    }
+                }
+
+                if ( enqueue )
+                {
+                    offer(task, time);
+                    if ( !m_running )
+                    {
+                        m_running = true;
+                        schedule = true;
+                    }
+                }
+            }
+
+            if ( action != null )
+            {
+                overflow(this, dropped, action);
+            }
+            if ( schedule )
+            {
+                m_pool.executeTask(this);
+            }
+            return true;
         }
 
         public void run()
         {
-            boolean running;
-            do
+            // read once per run as the service properties might change
+            final int batchSize = BatchEvents.getBatchSize(m_ref);
+            final long batchLatency = BatchEvents.getBatchLatency(m_ref);
+            boolean reschedule = false;
+            int count = 0;
+            m_delivering.set(this);
+            try
+            {
+                while ( true )
+                {
+                    synchronized ( this )
+                    {
+                        m_delivered += m_batch.size();
+                        m_batch.clear();
+                        if ( 0 == m_count )
+                        {
+                            m_running = false;
+                            // drop the queue once the handler is unregistered
+                            m_discarded = (null == m_ref.getBundle());
+                            break;
+                        }
+                        if ( count >= EVENTS_PER_RUN )
+                        {
+                            // give other queues a chance
+                            reschedule = true;
+                            break;
+                        }
+                        collect(batchSize > 1 ? batchSize : 1, batchLatency);
+                    }
+
+                    try
+                    {
+                        m_deliver_task.execute(new HandlerTask[] {createTask()});
+                    }
+                    catch (Throwable t)
+                    {
+                        LogWrapper.getLogger().log(m_ref, LogWrapper.LOG_WARNING,
+                            "Exception during event dispatch [" + m_ref + "]", t);
+                    }
+                    final long now = System.currentTimeMillis();
+                    for(int i = 0; i < m_batch.size(); i++)
+                    {
+                        m_latencies.record(now - m_batchTimes[i]);
+                    }
+                    count += m_batch.size();
+                }
+            }
+            finally
+            {
+                m_delivering.set(null);
+            }
+
+            if ( m_discarded )
             {
-                HandlerTask[] tasks = null;
-                synchronized ( m_tasks )
+                synchronized ( m_queues )
                 {
-                    tasks = (HandlerTask[]) m_tasks.remove(0);
+                    if ( m_queues.get(m_ref) == this )
+                    {
+                        m_queues.remove(m_ref);
+                    }
                 }
-                m_deliver_task.execute(tasks);
-                synchronized ( m_running_threads )
+            }
+            if ( reschedule )
+            {
+                m_pool.executeTask(this);
+            }
+        }
+
+        /**
+         * Move the next batch of consecutive tasks of the same topic to the
+         * current batch. In case the queue runs empty, wait for more tasks until
+         * the batch latency has passed since the first task has been posted.
+         * Must be called while holding the lock and the buffer must not be empty.
+         */
+        private void collect(final int batchSize, final long batchLatency)
+        {
+            String topic = null;
+            while ( m_batch.size() < batchSize )
+            {
+                if ( 0 == m_count )
                 {
-                    running = m_tasks.size() > 0;
-                    if ( !running )
+                    final long remaining = (batchLatency <= 0 || m_stopped) ? 0
+                        : m_batchTimes[0] + batchLatency - System.currentTimeMillis();
+                    if ( remaining <= 0 )
+                    {
+                        break;
+                    }
+                    m_batchWaiting = true;
+                    try
+                    {
+                        wait(remaining);
+                    }
+                    catch (InterruptedException e)
                     {
-                        m_running_threads.remove(m_key);
+                        Thread.currentThread().interrupt();
+                        break;
                     }
+                    finally
+                    {
+                        m_batchWaiting = false;
+                    }
+                    continue;
+                }
+
+                final String next = m_tasks[m_head].getEvent().getTopic();
+                if ( topic == null )
+                {
+                    topic = next;
+                }
+                else if ( !topic.equals(next) )
+                {
+                    break;
+                }
+
+                if ( m_batch.size() == m_batchTimes.length )
+                {
+                    final long[] times = new long[m_batchTimes.length * 2];
+                    System.arraycopy(m_batchTimes, 0, times, 0, m_batchTimes.length);
+                    m_batchTimes = times;
+                }
+                m_batchTimes[m_batch.size()] = m_times[m_head];
+                m_batch.add(poll());
+            }
+        }
+
+        /**
+         * Create the task delivering the current batch. A single task is
+         * delivered as is.
+         */
+        private HandlerTask createTask()
+        {
+            final HandlerTask first = (HandlerTask) m_batch.get(0);
+            if ( 1 == m_batch.size() )
+            {
+                return first;
+            }
+
+            final Event[] events = new Event[m_batch.size()];
+            for(int i = 0; i < events.length; i++)
+            {
+                events[i] = ((HandlerTask) m_batch.get(i)).getEvent();
+            }
+            return first.createBatchTask(events);
+        }
+
+        /**
+         * Add the task to the end of the ring buffer. Must be called while
+         * holding the lock.
+         */
+        private void offer(final HandlerTask task, final long time)
+        {
+            if ( m_count == m_tasks.length )
+            {
+                final HandlerTask[] tasks = new HandlerTask[m_tasks.length * 2];
+                final long[] times = new long[m_times.length * 2];
+                for(int i = 0; i < m_count; i++)
+                {
+                    tasks[i] = m_tasks[(m_head + i) % m_tasks.length];
+                    times[i] = m_times[(m_head + i) % m_times.length];
                 }
-            } while ( running );
+                m_tasks = tasks;
+                m_times = times;
+                m_head = 0;
+            }
+            final int tail = (m_head + m_count) % m_tasks.length;
+            m_tasks[tail] = task;
+            m_times[tail] = time;
+            m_count++;
+            if ( m_batchWaiting )
+            {
+                notifyAll();
+            }
         }
 
-        public void add(final HandlerTask[] tasks)
+        /**
+         * Remove the task from the head of the ring buffer. Must be called while
+         * holding the lock and the buffer must not be empty.
+         */
+        private HandlerTask poll()
         {
-            synchronized ( m_tasks )
+            final HandlerTask task = m_tasks[m_head];
+            m_tasks[m_head] = null;
+            m_head = (m_head + 1) % m_tasks.length;
+            m_count--;
+            if ( m_waiters > 0 )
             {
-                m_tasks.add(tasks);
+                notifyAll();
             }
+            return task;
         }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+
+/**
+ * The contract of batch handlers. An <tt>EventHandler</tt> service registered
+ * with the <tt>org.apache.felix.eventadmin.BatchSize</tt> property set to a value
+ * greater than 0 is a batch handler. Instead of the events themselves, a batch
+ * handler receives batch events whose <tt>org.apache.felix.eventadmin.Events</tt>
+ * property holds an array of the events in the order they have been delivered.
+ * A batch event has the same topic as its events.
+ * <p>
+ * Consecutive posted events of the same topic are delivered in one batch event of
+ * at most <tt>BatchSize</tt> events. In case the optional
+ * <tt>org.apache.felix.eventadmin.BatchLatency</tt> property is set, a batch is
+ * delivered once it is full or its first event has been posted that many
+ * milliseconds ago, whatever comes first. Otherwise, the events queued when the
+ * batch is delivered make up the batch. Sent events are delivered immediately in
+ * a batch event of their own. The timeout applies to each batch event.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class BatchEvents
+{
+    /** The service property of the max number of events per batch. */
+    public static final String BATCH_SIZE = "org.apache.felix.eventadmin.BatchSize";
+
+    /** The service property of the max latency of a batch in milliseconds. */
+    public static final String BATCH_LATENCY = "org.apache.felix.eventadmin.BatchLatency";
+
+    /** The property of a batch event that holds its events. */
+    public static final String EVENTS = "org.apache.felix.eventadmin.Events";
+
+    /**
+     * Returns the max number of events per batch of the given handler.
+     *
+     * @param ref The service reference of the handler
+     *
+     * @return The max number of events per batch or 0 in case the handler is not
+     *      a batch handler
+     */
+    public static int getBatchSize(final ServiceReference ref)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, getLongProperty(ref, BATCH_SIZE));
+    }
+
+    /**
+     * Returns the max latency of a batch of the given handler.
+     *
+     * @param ref The service reference of the handler
+     *
+     * @return The max latency of a batch in milliseconds or 0 in case batches are
+     *      not held back
+     */
+    public static long getBatchLatency(final ServiceReference ref)
+    {
+        return getLongProperty(ref, BATCH_LATENCY);
+    }
+
+    /**
+     * Create a batch event holding the given events. The events must all have
+     * the same topic.
+     *
+     * @param events The events of the batch
+     *
+     * @return The batch event
+     */
+    public static Event createBatchEvent(final Event[] events)
+    {
+        final Dictionary properties = new Hashtable();
+
+        properties.put(EVENTS, events);
+
+        return new Event(events[0].getTopic(), properties);
+    }
+
+    /*
+     * Returns the value of the given service property as a positive long or 0 in
+     * case it is not set or erroneous.
+     */
+    private static long getLongProperty(final ServiceReference ref, final String key)
+    {
+        final Object value = ref.getProperty(key);
+
+        long result = 0;
+
+        if (value instanceof Number)
+        {
+            result = ((Number) value).longValue();
+        }
+        else if (null != value)
+        {
+            try
+            {
+                result = Long.parseLong(value.toString().trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // not a batch handler
+            }
+        }
+
+        return (result > 0) ? result : 0;
+    }
+}
@@ -18,6 +18,9 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+
 /**
  * A task that will deliver its event to its <tt>EventHandler</tt> when executed
  * or blacklist the handler, respectively.
@@ -31,6 +34,22 @@ public interface HandlerTask
      */
     String getHandlerClassName();
 
+    /**
+     * Return the service reference of the handler
+     */
+    ServiceReference getHandlerReference();
+
+    /**
+     * Return the event to deliver
+     */
+    Event getEvent();
+
+    /**
+     * Create a task that delivers the given events to the handler in one batch
+     * event. The events must all have the same topic.
+     */
+    HandlerTask createBatchTask(Event[] events);
+
     /**
      * Deliver the event to the handler.
      */
@@ -40,9 +59,4 @@ public interface HandlerTask
      * Blacklist the handler.
      */
     void blackListHandler();
-
-    /**
-     * Is the delivery finished
-     */
-    boolean finished();
 }
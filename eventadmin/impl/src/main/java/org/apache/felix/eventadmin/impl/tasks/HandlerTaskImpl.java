@@ -40,8 +40,8 @@ public class HandlerTaskImpl implements HandlerTask
     // Used to blacklist the service or get the service object for the reference
     private final BlacklistingHandlerTasks m_handlerTasks;
 
-    // Is this handler finished
-    private volatile boolean m_finished = false;
+    // Is the event a batch event
+    private final boolean m_batch;
 
     /**
      * Construct a delivery task for the given service and event.
@@ -53,12 +53,25 @@ public class HandlerTaskImpl implements HandlerTask
      */
     public HandlerTaskImpl(final ServiceReference eventHandlerRef,
         final Event event, final BlacklistingHandlerTasks handlerTasks)
+    {
+        this(eventHandlerRef, event, handlerTasks, false);
+    }
+
+    /*
+     * Construct a delivery task for the given service and event that might be a
+     * batch event already.
+     */
+    private HandlerTaskImpl(final ServiceReference eventHandlerRef,
+        final Event event, final BlacklistingHandlerTasks handlerTasks,
+        final boolean batch)
     {
         m_eventHandlerRef = eventHandlerRef;
 
         m_event = event;
 
         m_handlerTasks = handlerTasks;
+
+        m_batch = batch;
     }
 
     /**
@@ -73,6 +86,31 @@ public class HandlerTaskImpl implements HandlerTask
         }
     }
 
+    /**
+     * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#getHandlerReference()
+     */
+    public ServiceReference getHandlerReference()
+    {
+        return m_eventHandlerRef;
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#getEvent()
+     */
+    public Event getEvent()
+    {
+        return m_event;
+    }
+
+    /**
+     * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#createBatchTask(org.osgi.service.event.Event[])
+     */
+    public HandlerTask createBatchTask(final Event[] events)
+    {
+        return new HandlerTaskImpl(m_eventHandlerRef,
+            BatchEvents.createBatchEvent(events), m_handlerTasks, true);
+    }
+
     /**
      * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#execute()
      */
@@ -84,7 +122,9 @@ public class HandlerTaskImpl implements HandlerTask
 
         try
         {
-            handler.handleEvent(m_event);
+            // Batch handlers receive single events in a batch of their own
+            handler.handleEvent((m_batch || 0 == BatchEvents.getBatchSize(m_eventHandlerRef))
+                ? m_event : BatchEvents.createBatchEvent(new Event[] {m_event}));
         } catch (Exception e)
         {
             // The spec says that we must catch exceptions and log them:
@@ -95,7 +135,6 @@ public class HandlerTaskImpl implements HandlerTask
                     + m_eventHandlerRef + " | Bundle("
                     + m_eventHandlerRef.getBundle() + ")]", e);
         }
-        m_finished = true;
         m_handlerTasks.ungetEventHandler(handler, m_eventHandlerRef);
     }
 
@@ -107,12 +146,4 @@ public class HandlerTaskImpl implements HandlerTask
         m_handlerTasks.blackList(m_eventHandlerRef);
     }
 
-    /**
-     * @see org.apache.felix.eventadmin.impl.tasks.HandlerTask#finished()
-     */
-    public boolean finished()
-    {
-        return m_finished;
-    }
-
 }
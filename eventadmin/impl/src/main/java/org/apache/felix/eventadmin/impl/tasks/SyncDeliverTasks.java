@@ -18,44 +18,55 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import org.apache.felix.eventadmin.impl.dispatch.DefaultThreadPool;
-
-import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
-
 /**
  * This class does the actual work of the synchronous event delivery.
  *
- * This is the heart of the event delivery. If an event is delivered
- * without timeout handling, the event is directly delivered using
- * the calling thread.
- * If timeout handling is enabled, a new thread is taken from the
- * thread pool and this thread is used to deliver the event.
- * The calling thread is blocked until either the deliver is finished
- * or the timeout occurs.
+ * This is the heart of the event delivery. Events are always delivered using
+ * the calling thread. If timeout handling is enabled, a timeout is scheduled
+ * with a timer wheel shared by all threads before the event handler is called
+ * and cancelled once it returns. In case the event handler does not return in
+ * time, the timer thread blacklists it, hence it will not receive events
+ * anymore.
  * <p><tt>
- * Note that in case of a timeout while a task is disabled the thread
- * is released and we spin-off a new thread that resumes the disabled
- * task hence, this is the only place were we break the semantics of
- * the synchronous delivery. While the only one to notice this is the
- * timed-out handler - it is the fault of this handler too (i.e., it
- * blocked the dispatch for to long) but since it will not receive
- * events anymore it will not notice this semantic difference except
- * that it might not see events it already sent before.
- * </tt></pre>
+ * Note that the calling thread still waits until the event handler returns
+ * and delivers the event to the remaining handlers afterwards. Hence, a
+ * hanging event handler keeps its sender until it returns - it is blacklisted
+ * nevertheless, so it does not block any further senders. Handing the call
+ * over to another thread, so the sender could continue, would cost two
+ * context switches per handler and event.
+ * </tt></p>
  *
  * If during an event delivery a new event should be delivered from
- * within the event handler, the timeout handler is stopped for the
+ * within the event handler, the timeout of the handler is paused for the
  * delivery time of the inner event!
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class SyncDeliverTasks implements DeliverTask
 {
-    /** The thread pool used to spin-off new threads. */
-    final DefaultThreadPool m_pool;
+    /** Blacklists the event handlers whose timeout expired. */
+    private static final TimeoutWheel.Owner BLACKLIST = new TimeoutWheel.Owner()
+    {
+        public void expired(final HandlerTask task)
+        {
+            task.blackListHandler();
+        }
+    };
+
+    /** The timer wheel detecting event handlers that exceed the timeout. */
+    private final TimeoutWheel m_wheel = new TimeoutWheel();
 
     /** The timeout for event handlers, 0 = disabled. */
-    long m_timeout;
+    private volatile long m_timeout;
+
+    /** The timeouts of the handlers the current thread is delivering to. */
+    private final ThreadLocal m_timeouts = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            return new TimeoutStack();
+        }
+    };
 
     private static interface Matcher
     {
@@ -108,15 +119,23 @@ public class SyncDeliverTasks implements DeliverTask
 
     /**
      * Construct a new sync deliver tasks.
-     * @param pool The thread pool used to spin-off new threads.
      * @param timeout The timeout for an event handler, 0 = disabled
+     * @param ignoreTimeout The event handlers that are called without a timeout
      */
-    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout, final String[] ignoreTimeout)
+    public SyncDeliverTasks(final long timeout, final String[] ignoreTimeout)
     {
-        m_pool = pool;
         update(timeout, ignoreTimeout);
     }
 
+    /**
+     * Stop the timer thread. Event handlers are not blacklisted due to a
+     * timeout anymore.
+     */
+    public void stop()
+    {
+        m_wheel.close();
+    }
+
     public void update(final long timeout, final String[] ignoreTimeout) {
         m_timeout = timeout;
         if ( ignoreTimeout == null || ignoreTimeout.length == 0 )
@@ -184,8 +203,8 @@ public class SyncDeliverTasks implements DeliverTask
     }
 
     /**
-     * This blocks an unrelated thread used to send a synchronous event until the
-     * event is send (or a timeout occurs).
+     * This blocks the thread used to send a synchronous event until the event is
+     * delivered to all handlers.
      *
      * @param tasks The event handler dispatch tasks to execute
      *
@@ -193,104 +212,92 @@ public class SyncDeliverTasks implements DeliverTask
      */
     public void execute(final HandlerTask[] tasks)
     {
-        final Thread sleepingThread = Thread.currentThread();
-        SyncThread syncThread = sleepingThread instanceof SyncThread ? (SyncThread)sleepingThread : null;
-        final Rendezvous cascadingBarrier = new Rendezvous();
-        // check if this is a cascaded event sending
-        if ( syncThread != null )
-        {
-            // wake up outer thread
-            if ( syncThread.isTopMostHandler() )
-            {
-                syncThread.getTimerBarrier().waitForRendezvous();
-            }
-            syncThread.innerEventHandlingStart();
-        }
+        // check if this is a cascaded event sending and pause the timeout of
+        // the outer handler
+        final TimeoutStack timeouts = (TimeoutStack) m_timeouts.get();
+        final TimeoutWheel.Timeout outer = timeouts.peek();
+        final boolean paused = (outer != null) && m_wheel.pause(outer);
 
-        for(int i=0;i<tasks.length;i++)
+        try
         {
-            final HandlerTask task = tasks[i];
-
-            if ( !useTimeout(task) )
-            {
-                // no timeout, we can directly execute
-                task.execute();
-            }
-            else
+            for(int i=0;i<tasks.length;i++)
             {
-                final Rendezvous startBarrier = new Rendezvous();
-                final Rendezvous timerBarrier = new Rendezvous();
-                m_pool.executeTask(new Runnable()
-                {
-                    public void run()
-                    {
-                        final SyncThread myThread = (SyncThread)Thread.currentThread();
-                        myThread.init(timerBarrier, cascadingBarrier);
-                        try
-                        {
-                            // notify the outer thread to start the timer
-                            startBarrier.waitForRendezvous();
-                            // execute the task
-                            task.execute();
-                            // stop the timer
-                            timerBarrier.waitForRendezvous();
-                        }
-                        catch (IllegalStateException ise)
-                        {
-                            // this can happen on shutdown, so we ignore it
-                        }
-                        finally
-                        {
-                            myThread.cleanup();
-                        }
-                    }
-                });
-                // we wait for the inner thread to start
-                startBarrier.waitForRendezvous();
+                final HandlerTask task = tasks[i];
 
-                // timeout handling
-                boolean finished;
-                long sleepTime = m_timeout;
-                do {
-                    finished = true;
-                    // we sleep for the sleep time
-                    // if someone wakes us up it's the inner task who either
-                    // has finished or a cascading event
-                    long startTime = System.currentTimeMillis();
+                if ( !useTimeout(task) )
+                {
+                    // no timeout, we can directly execute
+                    task.execute();
+                }
+                else
+                {
+                    final TimeoutWheel.Timeout timeout = timeouts.push();
+                    m_wheel.schedule(timeout, task, m_timeout);
                     try
                     {
-                        timerBarrier.waitAttemptForRendezvous(sleepTime);
-                        // if this occurs no timeout occured or we have a cascaded event
-                        if ( !task.finished() )
-                        {
-                            // adjust remaining sleep time
-                            sleepTime = m_timeout - (System.currentTimeMillis() - startTime);
-                            cascadingBarrier.waitForRendezvous();
-                            finished = task.finished();
-                        }
+                        task.execute();
                     }
-                    catch (TimeoutException ie)
+                    finally
                     {
-                        // if we timed out, we have to blacklist the handler
-                        task.blackListHandler();
+                        // the handler is blacklisted already if this expired
+                        m_wheel.cancel(timeout);
+                        timeouts.pop();
                     }
                 }
-                while ( !finished );
-
             }
         }
-        // wake up outer thread again if cascaded
+        finally
+        {
+            // continue the timeout of the outer handler
+            if ( paused )
+            {
+                m_wheel.resume(outer);
+            }
+        }
+    }
 
-        if ( syncThread != null )
+    /**
+     * The timeouts of the handlers a thread is delivering to, the innermost
+     * last. The timeouts are reused, so no objects are created per delivery.
+     */
+    private static final class TimeoutStack
+    {
+        private TimeoutWheel.Timeout[] m_timeouts = new TimeoutWheel.Timeout[4];
+
+        private int m_size = 0;
+
+        /**
+         * Returns the timeout of the innermost handler or null.
+         */
+        TimeoutWheel.Timeout peek()
         {
-            syncThread.innerEventHandlingStopped();
-            if ( syncThread.isTopMostHandler() )
+            return (0 == m_size) ? null : m_timeouts[m_size - 1];
+        }
+
+        /**
+         * Returns an idle timeout for the next inner handler.
+         */
+        TimeoutWheel.Timeout push()
+        {
+            if ( m_size == m_timeouts.length )
             {
-                if ( !syncThread.getTimerBarrier().isTimedOut() ) {
-                    syncThread.getCascadingBarrier().waitForRendezvous();
-                }
+                final TimeoutWheel.Timeout[] timeouts = new TimeoutWheel.Timeout[m_size * 2];
+                System.arraycopy(m_timeouts, 0, timeouts, 0, m_size);
+                m_timeouts = timeouts;
+            }
+            if ( null == m_timeouts[m_size] )
+            {
+                m_timeouts[m_size] = new TimeoutWheel.Timeout(BLACKLIST);
             }
+            return m_timeouts[m_size++];
         }
 
+        /**
+         * Release the timeout of the innermost handler.
+         */
+        void pop()
+        {
+            m_size--;
+        }
     }
 }
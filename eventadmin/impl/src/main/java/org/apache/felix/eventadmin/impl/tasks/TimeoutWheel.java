@@ -0,0 +1,359 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+
+/**
+ * A timer wheel that detects event handlers that exceed their timeout. A single
+ * timer thread advances the wheel every tick and notifies the owners of expired
+ * timeouts. Each slot of the wheel holds a linked list of the timeouts that
+ * expire in a tick mapped to that slot, hence, scheduling and cancelling a
+ * timeout takes constant time. The timeouts are owned by the delivering threads
+ * and reused for each delivery, so no objects are created per delivery.
+ * <p>
+ * The timer thread is started when the first timeout is scheduled and waits
+ * without ticking while no timeouts are scheduled.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TimeoutWheel
+{
+    /** The length of a tick in milliseconds. */
+    private static final long TICK = 10;
+
+    /** The number of slots of the wheel, a power of two. */
+    private static final int SLOTS = 512;
+
+    // The internal lock for this object used instead synchronized(this)
+    private final Object m_lock = new Object();
+
+    // The heads of the linked lists of timeouts per slot
+    private final Timeout[] m_slots = new Timeout[SLOTS];
+
+    // The time of tick 0
+    private final long m_start = System.currentTimeMillis();
+
+    // The last tick processed by the timer thread
+    private long m_tick = 0;
+
+    // The number of scheduled timeouts
+    private int m_size = 0;
+
+    // The expired timeouts and their handlers, only used by the timer thread
+    private Timeout[] m_expired = new Timeout[16];
+
+    private HandlerTask[] m_expiredTasks = new HandlerTask[16];
+
+    private Thread m_thread = null;
+
+    private boolean m_closed = false;
+
+    /**
+     * Schedule the timeout for delivering the given task to expire after the
+     * given time unless it is cancelled or paused before.
+     *
+     * @param timeout The timeout to schedule
+     * @param task The task to deliver
+     * @param millis The time in milliseconds until the timeout expires
+     */
+    public void schedule(final Timeout timeout, final HandlerTask task, final long millis)
+    {
+        synchronized ( m_lock )
+        {
+            timeout.m_task = task;
+            schedule(timeout, millis);
+        }
+    }
+
+    /*
+     * Schedule the timeout. Must be called while holding the lock.
+     */
+    private void schedule(final Timeout timeout, final long millis)
+    {
+        final long now = System.currentTimeMillis();
+
+        if ( 0 == m_size )
+        {
+            // the timer thread skips empty ticks
+            m_tick = Math.max(m_tick, (now - m_start) / TICK);
+        }
+
+        // round up, so a timeout never expires early
+        timeout.m_deadline = now + millis;
+        timeout.m_tick = Math.max(m_tick + 1, (timeout.m_deadline - m_start + TICK - 1) / TICK);
+        timeout.m_state = Timeout.SCHEDULED;
+
+        final int slot = (int) (timeout.m_tick & (SLOTS - 1));
+        timeout.m_prev = null;
+        timeout.m_next = m_slots[slot];
+        if ( timeout.m_next != null )
+        {
+            timeout.m_next.m_prev = timeout;
+        }
+        m_slots[slot] = timeout;
+
+        if ( 0 == m_size++ )
+        {
+            if ( m_thread == null && !m_closed )
+            {
+                m_thread = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        tick();
+                    }
+                }, "EventAdminTimeout");
+                m_thread.setDaemon(true);
+                m_thread.start();
+            }
+            m_lock.notifyAll();
+        }
+    }
+
+    /**
+     * Cancel the timeout. Note that the owner may still be notified in case the
+     * timeout expired right before.
+     *
+     * @param timeout The timeout to cancel
+     */
+    public void cancel(final Timeout timeout)
+    {
+        synchronized ( m_lock )
+        {
+            if ( Timeout.SCHEDULED == timeout.m_state )
+            {
+                unlink(timeout);
+            }
+            timeout.m_state = Timeout.IDLE;
+            timeout.m_task = null;
+        }
+    }
+
+    /**
+     * Pause the timeout. The remaining time is kept and the timeout does not
+     * expire until it is resumed.
+     *
+     * @param timeout The timeout to pause
+     *
+     * @return <tt>true</tt> in case the timeout was scheduled and is paused now
+     */
+    public boolean pause(final Timeout timeout)
+    {
+        synchronized ( m_lock )
+        {
+            if ( Timeout.SCHEDULED == timeout.m_state )
+            {
+                unlink(timeout);
+                timeout.m_deadline -= System.currentTimeMillis();
+                timeout.m_state = Timeout.PAUSED;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Resume the paused timeout with the time remaining when it was paused.
+     *
+     * @param timeout The timeout to resume
+     */
+    public void resume(final Timeout timeout)
+    {
+        synchronized ( m_lock )
+        {
+            if ( Timeout.PAUSED == timeout.m_state )
+            {
+                schedule(timeout, Math.max(0, timeout.m_deadline));
+            }
+        }
+    }
+
+    /**
+     * Stop the timer thread. Scheduled timeouts do not expire anymore.
+     */
+    public void close()
+    {
+        synchronized ( m_lock )
+        {
+            m_closed = true;
+            m_lock.notifyAll();
+        }
+    }
+
+    /*
+     * Remove the timeout from its slot. Must be called while holding the lock.
+     */
+    private void unlink(final Timeout timeout)
+    {
+        if ( timeout.m_prev == null )
+        {
+            m_slots[(int) (timeout.m_tick & (SLOTS - 1))] = timeout.m_next;
+        }
+        else
+        {
+            timeout.m_prev.m_next = timeout.m_next;
+        }
+        if ( timeout.m_next != null )
+        {
+            timeout.m_next.m_prev = timeout.m_prev;
+        }
+        timeout.m_prev = null;
+        timeout.m_next = null;
+        m_size--;
+    }
+
+    /*
+     * The loop of the timer thread.
+     */
+    private void tick()
+    {
+        while ( true )
+        {
+            int expired = 0;
+
+            synchronized ( m_lock )
+            {
+                if ( m_closed )
+                {
+                    return;
+                }
+
+                final long elapsed = System.currentTimeMillis() - m_start;
+                final long target = elapsed / TICK;
+                try
+                {
+                    if ( 0 == m_size )
+                    {
+                        m_lock.wait();
+                        continue;
+                    }
+
+                    if ( m_tick >= target )
+                    {
+                        m_lock.wait(TICK - elapsed % TICK);
+                        continue;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                // Process all ticks that have passed. As the wheel is only
+                // this far behind while timeouts are scheduled, this is a
+                // few ticks at most.
+                while ( m_tick < target )
+                {
+                    m_tick++;
+                    final int slot = (int) (m_tick & (SLOTS - 1));
+                    Timeout timeout = m_slots[slot];
+                    while ( timeout != null )
+                    {
+                        final Timeout next = timeout.m_next;
+                        if ( timeout.m_tick <= m_tick )
+                        {
+                            unlink(timeout);
+                            timeout.m_state = Timeout.EXPIRED;
+                            if ( expired == m_expired.length )
+                            {
+                                final Timeout[] timeouts = new Timeout[expired * 2];
+                                System.arraycopy(m_expired, 0, timeouts, 0, expired);
+                                m_expired = timeouts;
+                                final HandlerTask[] tasks = new HandlerTask[expired * 2];
+                                System.arraycopy(m_expiredTasks, 0, tasks, 0, expired);
+                                m_expiredTasks = tasks;
+                            }
+                            m_expired[expired] = timeout;
+                            m_expiredTasks[expired++] = timeout.m_task;
+                        }
+                        timeout = next;
+                    }
+                }
+            }
+
+            // notify outside of the lock as the owners blacklist and log
+            for(int i = 0; i < expired; i++)
+            {
+                try
+                {
+                    m_expired[i].m_owner.expired(m_expiredTasks[i]);
+                }
+                catch (Throwable t)
+                {
+                    LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                        "Unable to handle timeout of EventHandler", t);
+                }
+                m_expired[i] = null;
+                m_expiredTasks[i] = null;
+            }
+        }
+    }
+
+    /**
+     * The owner of a timeout, which is notified when the timeout expires.
+     */
+    public static interface Owner
+    {
+        /**
+         * Called by the timer thread once the timeout for delivering the given
+         * task expired.
+         *
+         * @param task The task that was not delivered in time
+         */
+        void expired(HandlerTask task);
+    }
+
+    /**
+     * The timeout of a handler task. Timeouts are owned by a thread and reused.
+     */
+    public static final class Timeout
+    {
+        static final int IDLE = 0;
+        static final int SCHEDULED = 1;
+        static final int PAUSED = 2;
+        static final int EXPIRED = 3;
+
+        private final Owner m_owner;
+
+        // The following fields are guarded by the lock of the wheel
+        private HandlerTask m_task;
+
+        // The time the timeout expires or the remaining time while paused
+        private long m_deadline;
+
+        private long m_tick;
+
+        private int m_state = IDLE;
+
+        private Timeout m_prev;
+
+        private Timeout m_next;
+
+        /**
+         * Create a timeout.
+         *
+         * @param owner The owner notified when the timeout expires
+         */
+        public Timeout(final Owner owner)
+        {
+            m_owner = owner;
+        }
+    }
+}
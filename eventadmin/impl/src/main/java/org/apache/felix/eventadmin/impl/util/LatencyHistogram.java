@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.util;
+
+/**
+ * A histogram of latencies in milliseconds that can be used to determine latency
+ * percentiles. Latencies are counted in buckets whose bounds are powers of two
+ * hence, recording a latency does not allocate and a percentile is accurate up to
+ * a factor of two. This class is thread safe.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class LatencyHistogram
+{
+    // The internal lock for this object used instead synchronized(this)
+    private final Object m_lock = new Object();
+
+    // The number of latencies per bucket. Bucket 0 counts latencies of 0 ms and
+    // bucket i counts latencies from 2^(i-1) ms up to (2^i - 1) ms.
+    private final long[] m_buckets = new long[64];
+
+    // The total number of latencies
+    private long m_count = 0;
+
+    // The highest latency
+    private long m_max = 0;
+
+    /**
+     * Record the given latency.
+     *
+     * @param latency The latency in milliseconds
+     */
+    public void record(final long latency)
+    {
+        final long value = (latency < 0) ? 0 : latency;
+
+        int bucket = 0;
+
+        while ((bucket < 63) && ((value >> bucket) > 0))
+        {
+            bucket++;
+        }
+
+        synchronized(m_lock)
+        {
+            m_buckets[bucket]++;
+
+            m_count++;
+
+            if (value > m_max)
+            {
+                m_max = value;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return The number of recorded latencies
+     */
+    public long getCount()
+    {
+        synchronized(m_lock)
+        {
+            return m_count;
+        }
+    }
+
+    /**
+     * Returns the latency below or at which the given percentage of the recorded
+     * latencies are. The result is the upper bound of the bucket of the
+     * percentile but never more than the highest recorded latency.
+     *
+     * @param percentile The percentile from 0 to 100
+     *
+     * @return The latency of the percentile in milliseconds or 0 in case no
+     *      latencies have been recorded
+     */
+    public long getPercentile(final int percentile)
+    {
+        synchronized(m_lock)
+        {
+            if (0 == m_count)
+            {
+                return 0;
+            }
+
+            // The rank of the percentile rounded up but at least 1
+            final long rank = Math.max(1, (m_count * percentile + 99) / 100);
+
+            long count = 0;
+
+            for (int i = 0; i < m_buckets.length; i++)
+            {
+                count += m_buckets[i];
+
+                if (count >= rank)
+                {
+                    return Math.min(m_max, (0 == i) ? 0 : (1L << i) - 1);
+                }
+            }
+
+            return m_max;
+        }
+    }
+
+    /**
+     * Remove all recorded latencies.
+     */
+    public void clear()
+    {
+        synchronized(m_lock)
+        {
+            for (int i = 0; i < m_buckets.length; i++)
+            {
+                m_buckets[i] = 0;
+            }
+
+            m_count = 0;
+
+            m_max = 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class EventHandlerTrackerTest extends TestCase
+{
+    private EventHandlerTracker m_tracker;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // The tracker only uses the context when it is opened
+        final BundleContext context = (BundleContext) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] {BundleContext.class},
+            new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method,
+                    final Object[] args)
+                {
+                    return null;
+                }
+            });
+
+        m_tracker = new EventHandlerTracker(context, TopicTrieTest.FILTERS, true);
+    }
+
+    public void testRegisterModifyUnregister()
+    {
+        final MockServiceReference ref = new MockServiceReference(new String[] {"a/*"});
+
+        fire(ServiceEvent.REGISTERED, ref);
+        assertEquals(1, m_tracker.getHandlers("a/b").length);
+        assertSame(ref, m_tracker.getHandlers("a/b")[0].getReference());
+
+        // Registering the same reference again does not add it twice
+        fire(ServiceEvent.REGISTERED, ref);
+        assertEquals(1, m_tracker.getHandlers("a/b").length);
+
+        ref.setTopics(new String[] {"c"});
+        fire(ServiceEvent.MODIFIED, ref);
+        assertEquals(0, m_tracker.getHandlers("a/b").length);
+        assertEquals(1, m_tracker.getHandlers("c").length);
+
+        fire(ServiceEvent.UNREGISTERING, ref);
+        assertEquals(0, m_tracker.getHandlers("c").length);
+
+        // Unknown references are ignored
+        fire(ServiceEvent.UNREGISTERING, ref);
+        assertEquals(0, m_tracker.getHandlers("c").length);
+    }
+
+    public void testManyHandlers()
+    {
+        final MockServiceReference[] refs = new MockServiceReference[1000];
+        for (int i = 0; i < refs.length; i++)
+        {
+            refs[i] = new MockServiceReference(new String[] {"topic/" + (i % 10)});
+            fire(ServiceEvent.REGISTERED, refs[i]);
+        }
+        assertEquals(100, m_tracker.getHandlers("topic/3").length);
+
+        for (int i = 0; i < refs.length; i += 2)
+        {
+            fire(ServiceEvent.UNREGISTERING, refs[i]);
+        }
+        assertEquals(100, m_tracker.getHandlers("topic/3").length);
+        assertEquals(0, m_tracker.getHandlers("topic/4").length);
+    }
+
+    private void fire(final int type, final MockServiceReference ref)
+    {
+        m_tracker.serviceChanged(new ServiceEvent(type, ref));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.Hashtable;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.EventConstants;
+
+/**
+ * A service reference of an event handler with modifiable properties.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class MockServiceReference implements ServiceReference
+{
+    private final Hashtable m_properties = new Hashtable();
+
+    /**
+     * Create a reference of a handler for the given topics.
+     *
+     * @param topics The topics of the handler or null
+     */
+    public MockServiceReference(final String[] topics)
+    {
+        setTopics(topics);
+    }
+
+    /**
+     * Change the topics of the handler.
+     *
+     * @param topics The topics of the handler or null
+     */
+    public void setTopics(final String[] topics)
+    {
+        if ( null == topics )
+        {
+            m_properties.remove(EventConstants.EVENT_TOPIC);
+        }
+        else
+        {
+            m_properties.put(EventConstants.EVENT_TOPIC, topics);
+        }
+    }
+
+    /**
+     * Change a property of the handler.
+     *
+     * @param key The key of the property
+     * @param value The value of the property or null to remove it
+     */
+    public void setProperty(final String key, final Object value)
+    {
+        if ( null == value )
+        {
+            m_properties.remove(key);
+        }
+        else
+        {
+            m_properties.put(key, value);
+        }
+    }
+
+    public Object getProperty(final String key)
+    {
+        return m_properties.get(key);
+    }
+
+    public String[] getPropertyKeys()
+    {
+        return (String[]) m_properties.keySet().toArray(new String[m_properties.size()]);
+    }
+
+    public Bundle getBundle()
+    {
+        return null;
+    }
+
+    public Bundle[] getUsingBundles()
+    {
+        return null;
+    }
+
+    public boolean isAssignableTo(final Bundle bundle, final String className)
+    {
+        return true;
+    }
+
+    public int compareTo(final Object reference)
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Filter;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TopicTrieTest extends TestCase
+{
+    /** A factory that accepts all events. */
+    static final Filters FILTERS = new Filters()
+    {
+        public Filter createFilter(final String filter)
+        {
+            return TRUE_FILTER;
+        }
+    };
+
+    public void testExactTopic()
+    {
+        final TrackedHandler handler = createHandler(new String[] {"a/b"});
+        final TopicTrie trie = new TopicTrie(true).add(handler);
+
+        assertHandlers(new TrackedHandler[] {handler}, trie.getHandlers("a/b"));
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("a"));
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("a/b/c"));
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("a/bc"));
+    }
+
+    public void testWildcardTopic()
+    {
+        final TrackedHandler handler = createHandler(new String[] {"a/*"});
+        final TopicTrie trie = new TopicTrie(true).add(handler);
+
+        assertHandlers(new TrackedHandler[] {handler}, trie.getHandlers("a/b"));
+        assertHandlers(new TrackedHandler[] {handler}, trie.getHandlers("a/b/c"));
+        // The wildcard does not match the prefix itself
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("a"));
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("ab/c"));
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("b/a"));
+    }
+
+    public void testRootWildcardTopic()
+    {
+        final TrackedHandler handler = createHandler(new String[] {"*"});
+        final TopicTrie trie = new TopicTrie(true).add(handler);
+
+        assertHandlers(new TrackedHandler[] {handler}, trie.getHandlers("a"));
+        assertHandlers(new TrackedHandler[] {handler}, trie.getHandlers("a/b/c"));
+    }
+
+    public void testHandlerWithoutTopic()
+    {
+        final TrackedHandler handler = createHandler(null);
+
+        assertHandlers(new TrackedHandler[0],
+            new TopicTrie(true).add(handler).getHandlers("a"));
+        assertHandlers(new TrackedHandler[] {handler},
+            new TopicTrie(false).add(handler).getHandlers("a"));
+    }
+
+    public void testHandlersAreReturnedOnce()
+    {
+        final TrackedHandler handler1 = createHandler(
+            new String[] {"*", "a/*", "a/b/*", "a/b/c", "a/b/c"});
+        final TrackedHandler handler2 = createHandler(new String[] {"a/b/*"});
+        final TopicTrie trie = new TopicTrie(true).add(handler1).add(handler2);
+
+        assertHandlers(new TrackedHandler[] {handler1, handler2},
+            trie.getHandlers("a/b/c"));
+        assertHandlers(new TrackedHandler[] {handler1}, trie.getHandlers("a/c"));
+    }
+
+    public void testAddAndRemove()
+    {
+        final TrackedHandler handler1 = createHandler(new String[] {"a/*", "a/b"});
+        final TrackedHandler handler2 = createHandler(new String[] {"a/b", "c"});
+
+        final TopicTrie empty = new TopicTrie(true);
+        final TopicTrie trie1 = empty.add(handler1);
+        final TopicTrie trie2 = trie1.add(handler2);
+
+        assertSame(trie2, trie2.add(handler1));
+        assertHandlers(new TrackedHandler[] {handler1, handler2}, trie2.getHandlers("a/b"));
+
+        final TopicTrie trie3 = trie2.remove(handler1);
+        assertHandlers(new TrackedHandler[] {handler2}, trie3.getHandlers("a/b"));
+        assertHandlers(new TrackedHandler[0], trie3.getHandlers("a/c"));
+        assertHandlers(new TrackedHandler[] {handler2}, trie3.getHandlers("c"));
+        assertSame(trie3, trie3.remove(handler1));
+
+        // Previous tries are not modified
+        assertHandlers(new TrackedHandler[] {handler1}, trie1.getHandlers("a/b"));
+        assertHandlers(new TrackedHandler[] {handler1, handler2}, trie2.getHandlers("a/b"));
+        assertHandlers(new TrackedHandler[0], empty.getHandlers("a/b"));
+
+        final TopicTrie trie4 = trie3.remove(handler2);
+        assertHandlers(new TrackedHandler[0], trie4.getHandlers("a/b"));
+        assertHandlers(new TrackedHandler[0], trie4.getHandlers("c"));
+    }
+
+    public void testRemoveHandlerWithoutTopic()
+    {
+        final TrackedHandler handler = createHandler(null);
+        final TopicTrie trie = new TopicTrie(false).add(handler).remove(handler);
+
+        assertHandlers(new TrackedHandler[0], trie.getHandlers("a"));
+    }
+
+    static TrackedHandler createHandler(final String[] topics)
+    {
+        return new TrackedHandler(new MockServiceReference(topics), FILTERS);
+    }
+
+    static void assertHandlers(final TrackedHandler[] expected,
+        final TrackedHandler[] actual)
+    {
+        final List expectedList = Arrays.asList(expected);
+        final List actualList = Arrays.asList(actual);
+        assertEquals(expectedList.size(), actualList.size());
+        assertTrue(actualList.containsAll(expectedList));
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.eventadmin.impl.dispatch.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.handler.MockServiceReference;
+import org.osgi.service.event.Event;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class AsyncDeliverTasksTest extends TestCase
+{
+    /** The property holding the name of a test event. */
+    private static final String NAME = "name";
+
+    private final List m_delivered = new ArrayList();
+
+    private final Object m_gate = new Object();
+
+    private boolean m_gateEntered = false;
+
+    private boolean m_gateOpen = false;
+
+    private DefaultThreadPool m_pool;
+
+    private AsyncDeliverTasks m_tasks;
+
+    private MockServiceReference m_ref;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_pool = new DefaultThreadPool(2);
+        m_ref = new MockServiceReference(new String[] {"*"});
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if ( m_tasks != null )
+        {
+            m_tasks.stop();
+        }
+        openGate();
+        m_pool.close();
+        super.tearDown();
+    }
+
+    public void testEventsDeliveredInOrder() throws Exception
+    {
+        create(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        final List expected = new ArrayList();
+        for(int i = 0; i < 200; i++)
+        {
+            post("a", "e" + i, null);
+            expected.add("e" + i);
+        }
+
+        assertEquals(expected, waitFor(200));
+        assertEquals(0, m_tasks.getDroppedCount());
+    }
+
+    public void testDropPostedEvents() throws Exception
+    {
+        create(2, AsyncDeliverTasks.OVERFLOW_DROP);
+        postGate();
+        post("a", "e1", null);
+        post("a", "e2", null);
+        post("a", "e3", null);
+        post("a", "e4", null);
+
+        assertEquals(2, m_tasks.getQueueDepth());
+        assertEquals(2, m_tasks.getQueueDepth(m_ref));
+        assertEquals(2, m_tasks.getDroppedCount());
+
+        openGate();
+        assertEquals(Arrays.asList(new String[] {"gate", "e1", "e2"}), waitFor(3));
+    }
+
+    public void testDropOldestEvents() throws Exception
+    {
+        create(2, AsyncDeliverTasks.OVERFLOW_DROP_OLDEST);
+        postGate();
+        post("a", "e1", null);
+        post("a", "e2", null);
+        post("a", "e3", null);
+        post("a", "e4", null);
+
+        assertEquals(2, m_tasks.getQueueDepth(m_ref));
+        assertEquals(2, m_tasks.getDroppedCount());
+
+        openGate();
+        assertEquals(Arrays.asList(new String[] {"gate", "e3", "e4"}), waitFor(3));
+    }
+
+    public void testFullQueueBlocksPostingThread() throws Exception
+    {
+        create(1, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        postGate();
+        post("a", "e1", null);
+        final Thread poster = postInThread("a", "e2");
+
+        poster.join(200);
+        assertTrue(poster.isAlive());
+        assertEquals(1, m_tasks.getQueueDepth(m_ref));
+
+        openGate();
+        poster.join(5000);
+        assertFalse(poster.isAlive());
+        assertEquals(Arrays.asList(new String[] {"gate", "e1", "e2"}), waitFor(3));
+        assertEquals(0, m_tasks.getDroppedCount());
+    }
+
+    public void testStopReleasesPostingThread() throws Exception
+    {
+        create(1, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        postGate();
+        post("a", "e1", null);
+        final Thread poster = postInThread("a", "e2");
+
+        poster.join(200);
+        assertTrue(poster.isAlive());
+
+        m_tasks.stop();
+        poster.join(5000);
+        assertFalse(poster.isAlive());
+        assertEquals(2, m_tasks.getQueueDepth(m_ref));
+    }
+
+    public void testDeliveringThreadNotBlocked() throws Exception
+    {
+        create(1, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        post("a", "outer", new Runnable()
+        {
+            public void run()
+            {
+                // the queue is full after the first event
+                post("a", "e1", null);
+                post("a", "e2", null);
+            }
+        });
+
+        assertEquals(Arrays.asList(new String[] {"outer", "e1", "e2"}), waitFor(3));
+        assertEquals(0, m_tasks.getDroppedCount());
+    }
+
+    public void testBatchesEndAtSizeAndTopic() throws Exception
+    {
+        m_ref.setProperty(BatchEvents.BATCH_SIZE, new Integer(3));
+        create(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        postGate();
+        post("a", "a1", null);
+        post("a", "a2", null);
+        post("a", "a3", null);
+        post("a", "a4", null);
+        post("b", "b1", null);
+        post("a", "a5", null);
+
+        openGate();
+        assertEquals(Arrays.asList(new String[] {"gate", "a1,a2,a3", "a4", "b1", "a5"}),
+            waitFor(5));
+    }
+
+    public void testBatchLatencyHoldsBackBatch() throws Exception
+    {
+        m_ref.setProperty(BatchEvents.BATCH_SIZE, "10");
+        m_ref.setProperty(BatchEvents.BATCH_LATENCY, "300");
+        create(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+
+        final long start = System.currentTimeMillis();
+        post("a", "a1", null);
+        Thread.sleep(50);
+        post("a", "a2", null);
+
+        assertEquals(Arrays.asList(new String[] {"a1,a2"}), waitFor(1));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    public void testFullBatchNotHeldBack() throws Exception
+    {
+        m_ref.setProperty(BatchEvents.BATCH_SIZE, "2");
+        m_ref.setProperty(BatchEvents.BATCH_LATENCY, "10000");
+        create(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+
+        final long start = System.currentTimeMillis();
+        post("a", "a1", null);
+        post("a", "a2", null);
+
+        assertEquals(Arrays.asList(new String[] {"a1,a2"}), waitFor(1));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    public void testOtherTopicEndsHeldBackBatch() throws Exception
+    {
+        m_ref.setProperty(BatchEvents.BATCH_SIZE, "10");
+        m_ref.setProperty(BatchEvents.BATCH_LATENCY, "10000");
+        create(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+
+        final long start = System.currentTimeMillis();
+        post("a", "a1", null);
+        post("b", "b1", null);
+
+        assertEquals(Arrays.asList(new String[] {"a1"}), waitFor(1));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        // stopping delivers the held back batch immediately
+        m_tasks.stop();
+        assertEquals(Arrays.asList(new String[] {"a1", "b1"}), waitFor(2));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    public void testLatencyRecorded() throws Exception
+    {
+        create(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        post("a", "e1", MockHandlerTask.sleep(50));
+        waitFor(1);
+
+        // the latency is recorded after the event has been delivered
+        final long end = System.currentTimeMillis() + 5000;
+        while ( 0 == m_tasks.getLatencyPercentile(100)
+            && System.currentTimeMillis() < end )
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(m_tasks.getLatencyPercentile(50) >= 50);
+
+        m_tasks.update(0, AsyncDeliverTasks.OVERFLOW_BLOCK);
+        assertEquals(0, m_tasks.getLatencyPercentile(50));
+    }
+
+    /**
+     * Create the deliver tasks recording the delivered events.
+     */
+    private void create(final int queueSize, final String overflow)
+    {
+        m_tasks = new AsyncDeliverTasks(m_pool, new DeliverTask()
+        {
+            public void execute(final HandlerTask[] tasks)
+            {
+                for(int i = 0; i < tasks.length; i++)
+                {
+                    tasks[i].execute();
+                    record(tasks[i].getEvent());
+                }
+            }
+        }, queueSize, overflow);
+    }
+
+    /**
+     * Post an event of the given topic and name to the handler.
+     */
+    private void post(final String topic, final String name, final Runnable action)
+    {
+        final Dictionary properties = new Hashtable();
+        properties.put(NAME, name);
+        m_tasks.execute(new HandlerTask[] {new MockHandlerTask("test.Handler", m_ref,
+            new Event(topic, properties), action)});
+    }
+
+    /**
+     * Post an event in a new thread.
+     */
+    private Thread postInThread(final String topic, final String name)
+    {
+        final Thread thread = new Thread()
+        {
+            public void run()
+            {
+                post(topic, name, null);
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Post an event whose delivery blocks until the gate is opened and wait
+     * until it is being delivered, i.e., it has been removed from the queue.
+     */
+    private void postGate() throws InterruptedException
+    {
+        post("a", "gate", new Runnable()
+        {
+            public void run()
+            {
+                synchronized ( m_gate )
+                {
+                    m_gateEntered = true;
+                    m_gate.notifyAll();
+                    while ( !m_gateOpen )
+                    {
+                        try
+                        {
+                            m_gate.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+
+        synchronized ( m_gate )
+        {
+            final long end = System.currentTimeMillis() + 5000;
+            while ( !m_gateEntered && System.currentTimeMillis() < end )
+            {
+                m_gate.wait(100);
+            }
+            assertTrue(m_gateEntered);
+        }
+    }
+
+    private void openGate()
+    {
+        synchronized ( m_gate )
+        {
+            m_gateOpen = true;
+            m_gate.notifyAll();
+        }
+    }
+
+    /**
+     * Record the names of the delivered event or of the events of a batch.
+     */
+    private void record(final Event event)
+    {
+        final Event[] events = (Event[]) event.getProperty(BatchEvents.EVENTS);
+        final StringBuffer buffer = new StringBuffer();
+        if ( null == events )
+        {
+            buffer.append(event.getProperty(NAME));
+        }
+        else
+        {
+            for(int i = 0; i < events.length; i++)
+            {
+                buffer.append((i > 0) ? "," : "").append(events[i].getProperty(NAME));
+            }
+        }
+
+        synchronized ( m_delivered )
+        {
+            m_delivered.add(buffer.toString());
+            m_delivered.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the given number of events or batches have been delivered.
+     *
+     * @return The names of the delivered events
+     */
+    private List waitFor(final int count) throws InterruptedException
+    {
+        synchronized ( m_delivered )
+        {
+            final long end = System.currentTimeMillis() + 5000;
+            while ( m_delivered.size() < count && System.currentTimeMillis() < end )
+            {
+                m_delivered.wait(100);
+            }
+            return new ArrayList(m_delivered);
+        }
+    }
+}
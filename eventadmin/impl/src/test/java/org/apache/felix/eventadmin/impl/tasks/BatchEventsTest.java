@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.Dictionary;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.eventadmin.impl.handler.MockServiceReference;
+import org.osgi.service.event.Event;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class BatchEventsTest extends TestCase
+{
+    public void testBatchSize()
+    {
+        final MockServiceReference ref = new MockServiceReference(new String[] {"*"});
+        assertEquals(0, BatchEvents.getBatchSize(ref));
+
+        ref.setProperty(BatchEvents.BATCH_SIZE, new Integer(5));
+        assertEquals(5, BatchEvents.getBatchSize(ref));
+
+        ref.setProperty(BatchEvents.BATCH_SIZE, " 7 ");
+        assertEquals(7, BatchEvents.getBatchSize(ref));
+
+        ref.setProperty(BatchEvents.BATCH_SIZE, new Long(Long.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, BatchEvents.getBatchSize(ref));
+
+        ref.setProperty(BatchEvents.BATCH_SIZE, new Integer(-1));
+        assertEquals(0, BatchEvents.getBatchSize(ref));
+
+        ref.setProperty(BatchEvents.BATCH_SIZE, "many");
+        assertEquals(0, BatchEvents.getBatchSize(ref));
+    }
+
+    public void testBatchLatency()
+    {
+        final MockServiceReference ref = new MockServiceReference(new String[] {"*"});
+        assertEquals(0, BatchEvents.getBatchLatency(ref));
+
+        ref.setProperty(BatchEvents.BATCH_LATENCY, new Long(250));
+        assertEquals(250, BatchEvents.getBatchLatency(ref));
+
+        ref.setProperty(BatchEvents.BATCH_LATENCY, "0");
+        assertEquals(0, BatchEvents.getBatchLatency(ref));
+
+        ref.setProperty(BatchEvents.BATCH_LATENCY, "1.5");
+        assertEquals(0, BatchEvents.getBatchLatency(ref));
+    }
+
+    public void testCreateBatchEvent()
+    {
+        final Event[] events = new Event[] {
+            new Event("a/b", (Dictionary) null), new Event("a/b", (Dictionary) null)};
+
+        final Event batch = BatchEvents.createBatchEvent(events);
+
+        assertEquals("a/b", batch.getTopic());
+        assertSame(events, batch.getProperty(BatchEvents.EVENTS));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+
+/**
+ * A handler task that runs an action instead of calling an event handler and
+ * records how it was delivered.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class MockHandlerTask implements HandlerTask
+{
+    private final String m_className;
+
+    private final ServiceReference m_ref;
+
+    private final Event m_event;
+
+    private final Runnable m_action;
+
+    private volatile int m_executed = 0;
+
+    private volatile Thread m_thread;
+
+    private volatile boolean m_blacklisted = false;
+
+    /**
+     * Create a task without a handler reference and event.
+     *
+     * @param action The action run when the task is executed or null
+     */
+    public MockHandlerTask(final Runnable action)
+    {
+        this("test.Handler", null, null, action);
+    }
+
+    /**
+     * Create a task.
+     *
+     * @param className The class name of the handler
+     * @param ref The service reference of the handler or null
+     * @param event The event to deliver or null
+     * @param action The action run when the task is executed or null
+     */
+    public MockHandlerTask(final String className, final ServiceReference ref,
+        final Event event, final Runnable action)
+    {
+        m_className = className;
+        m_ref = ref;
+        m_event = event;
+        m_action = action;
+    }
+
+    public String getHandlerClassName()
+    {
+        return m_className;
+    }
+
+    public ServiceReference getHandlerReference()
+    {
+        return m_ref;
+    }
+
+    public Event getEvent()
+    {
+        return m_event;
+    }
+
+    public HandlerTask createBatchTask(final Event[] events)
+    {
+        return new MockHandlerTask(m_className, m_ref,
+            BatchEvents.createBatchEvent(events), m_action);
+    }
+
+    public void execute()
+    {
+        m_thread = Thread.currentThread();
+        if ( m_action != null )
+        {
+            m_action.run();
+        }
+        m_executed++;
+    }
+
+    public void blackListHandler()
+    {
+        m_blacklisted = true;
+    }
+
+    /**
+     * Returns how often the task was executed.
+     */
+    public int getExecuted()
+    {
+        return m_executed;
+    }
+
+    /**
+     * Returns the thread that executed the task last.
+     */
+    public Thread getThread()
+    {
+        return m_thread;
+    }
+
+    /**
+     * Returns whether the handler was blacklisted.
+     */
+    public boolean isBlacklisted()
+    {
+        return m_blacklisted;
+    }
+
+    /**
+     * Create an action that sleeps for the given time.
+     *
+     * @param millis The time to sleep in milliseconds
+     */
+    public static Runnable sleep(final long millis)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(millis);
+                }
+                catch (InterruptedException e)
+                {
+                    // ignore
+                }
+            }
+        };
+    }
+}
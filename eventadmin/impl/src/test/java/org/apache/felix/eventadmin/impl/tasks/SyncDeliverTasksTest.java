@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class SyncDeliverTasksTest extends TestCase
+{
+    private SyncDeliverTasks m_tasks;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_tasks = new SyncDeliverTasks(200, null);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_tasks.stop();
+        super.tearDown();
+    }
+
+    public void testHandlerBlacklistedOnTimeout() throws Exception
+    {
+        final MockHandlerTask slow = new MockHandlerTask(MockHandlerTask.sleep(400));
+        final MockHandlerTask next = new MockHandlerTask(null);
+
+        m_tasks.execute(new HandlerTask[] {slow, next});
+
+        // the sender waits for the handler, which is blacklisted meanwhile
+        assertTrue(slow.isBlacklisted());
+        assertEquals(1, slow.getExecuted());
+        assertEquals(1, next.getExecuted());
+        assertFalse(next.isBlacklisted());
+    }
+
+    public void testTimelyHandlerNotBlacklisted() throws Exception
+    {
+        final MockHandlerTask task = new MockHandlerTask(MockHandlerTask.sleep(20));
+
+        m_tasks.execute(new HandlerTask[] {task});
+
+        assertEquals(1, task.getExecuted());
+        assertFalse(task.isBlacklisted());
+    }
+
+    public void testDeliveredByCaller() throws Exception
+    {
+        final MockHandlerTask[] tasks = new MockHandlerTask[5];
+        for(int i = 0; i < tasks.length; i++)
+        {
+            tasks[i] = new MockHandlerTask(null);
+        }
+
+        m_tasks.execute(tasks);
+
+        for(int i = 0; i < tasks.length; i++)
+        {
+            assertSame(Thread.currentThread(), tasks[i].getThread());
+            assertFalse(tasks[i].isBlacklisted());
+        }
+    }
+
+    public void testTimeoutReusedAfterExpiry() throws Exception
+    {
+        final MockHandlerTask slow = new MockHandlerTask(MockHandlerTask.sleep(400));
+        final MockHandlerTask fast = new MockHandlerTask(MockHandlerTask.sleep(20));
+
+        m_tasks.execute(new HandlerTask[] {slow});
+        m_tasks.execute(new HandlerTask[] {fast});
+        // wait for a late notification of the expired timeout
+        Thread.sleep(300);
+
+        assertTrue(slow.isBlacklisted());
+        assertFalse(fast.isBlacklisted());
+    }
+
+    public void testNestedSendPausesTimeout() throws Exception
+    {
+        final MockHandlerTask inner1 = new MockHandlerTask(MockHandlerTask.sleep(150));
+        final MockHandlerTask inner2 = new MockHandlerTask(MockHandlerTask.sleep(150));
+        final MockHandlerTask outer = new MockHandlerTask(new Runnable()
+        {
+            public void run()
+            {
+                // takes longer than the timeout in total
+                m_tasks.execute(new HandlerTask[] {inner1, inner2});
+                MockHandlerTask.sleep(50).run();
+            }
+        });
+
+        m_tasks.execute(new HandlerTask[] {outer});
+
+        assertEquals(1, outer.getExecuted());
+        assertEquals(1, inner1.getExecuted());
+        assertEquals(1, inner2.getExecuted());
+        assertFalse(outer.isBlacklisted());
+        assertFalse(inner1.isBlacklisted());
+        assertFalse(inner2.isBlacklisted());
+    }
+
+    public void testIgnoredHandlerDeliveredByCaller() throws Exception
+    {
+        m_tasks.update(200, new String[] {"test."});
+        final MockHandlerTask task = new MockHandlerTask(MockHandlerTask.sleep(300));
+
+        m_tasks.execute(new HandlerTask[] {task});
+
+        assertSame(Thread.currentThread(), task.getThread());
+        assertFalse(task.isBlacklisted());
+    }
+}
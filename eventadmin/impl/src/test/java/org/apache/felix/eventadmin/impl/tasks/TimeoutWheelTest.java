@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TimeoutWheelTest extends TestCase
+{
+    private TimeoutWheel m_wheel;
+
+    private Recorder m_owner;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_wheel = new TimeoutWheel();
+        m_owner = new Recorder();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_wheel.close();
+        super.tearDown();
+    }
+
+    public void testExpiry() throws Exception
+    {
+        final HandlerTask task = new MockHandlerTask(null);
+        final TimeoutWheel.Timeout timeout = new TimeoutWheel.Timeout(m_owner);
+
+        final long start = System.currentTimeMillis();
+        m_wheel.schedule(timeout, task, 50);
+
+        assertTrue(m_owner.waitFor(1, 2000));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertSame(task, m_owner.getTask(0));
+    }
+
+    public void testCancel() throws Exception
+    {
+        final TimeoutWheel.Timeout timeout = new TimeoutWheel.Timeout(m_owner);
+
+        m_wheel.schedule(timeout, new MockHandlerTask(null), 50);
+        m_wheel.cancel(timeout);
+
+        assertFalse(m_owner.waitFor(1, 200));
+        // a cancelled timeout can not be paused
+        assertFalse(m_wheel.pause(timeout));
+    }
+
+    public void testReuse() throws Exception
+    {
+        final TimeoutWheel.Timeout timeout = new TimeoutWheel.Timeout(m_owner);
+        final HandlerTask task = new MockHandlerTask(null);
+
+        for(int i = 0; i < 3; i++)
+        {
+            m_wheel.schedule(timeout, new MockHandlerTask(null), 20);
+            m_wheel.cancel(timeout);
+        }
+        m_wheel.schedule(timeout, task, 20);
+
+        assertTrue(m_owner.waitFor(1, 2000));
+        assertFalse(m_owner.waitFor(2, 100));
+        assertSame(task, m_owner.getTask(0));
+    }
+
+    public void testPauseAndResume() throws Exception
+    {
+        final TimeoutWheel.Timeout timeout = new TimeoutWheel.Timeout(m_owner);
+
+        m_wheel.schedule(timeout, new MockHandlerTask(null), 100);
+        assertTrue(m_wheel.pause(timeout));
+        // pausing twice has no effect
+        assertFalse(m_wheel.pause(timeout));
+
+        assertFalse(m_owner.waitFor(1, 250));
+
+        final long start = System.currentTimeMillis();
+        m_wheel.resume(timeout);
+        assertTrue(m_owner.waitFor(1, 2000));
+        // the remaining time is kept
+        assertTrue(System.currentTimeMillis() - start >= 80);
+    }
+
+    public void testNestedTimeouts() throws Exception
+    {
+        final HandlerTask outerTask = new MockHandlerTask(null);
+        final HandlerTask innerTask = new MockHandlerTask(null);
+        final TimeoutWheel.Timeout outer = new TimeoutWheel.Timeout(m_owner);
+        final TimeoutWheel.Timeout inner = new TimeoutWheel.Timeout(m_owner);
+
+        // the outer handler sends an event to an inner handler that times out
+        m_wheel.schedule(outer, outerTask, 150);
+        assertTrue(m_wheel.pause(outer));
+        m_wheel.schedule(inner, innerTask, 50);
+
+        assertTrue(m_owner.waitFor(1, 2000));
+        assertFalse(m_owner.waitFor(2, 250));
+        assertSame(innerTask, m_owner.getTask(0));
+
+        m_wheel.resume(outer);
+        assertTrue(m_owner.waitFor(2, 2000));
+        assertSame(outerTask, m_owner.getTask(1));
+    }
+
+    public void testManyTimeouts() throws Exception
+    {
+        final TimeoutWheel.Timeout[] timeouts = new TimeoutWheel.Timeout[200];
+        for(int i = 0; i < timeouts.length; i++)
+        {
+            timeouts[i] = new TimeoutWheel.Timeout(m_owner);
+            m_wheel.schedule(timeouts[i], new MockHandlerTask(null), 20 + i);
+        }
+        for(int i = 0; i < timeouts.length; i += 2)
+        {
+            m_wheel.cancel(timeouts[i]);
+        }
+
+        assertTrue(m_owner.waitFor(timeouts.length / 2, 5000));
+        assertFalse(m_owner.waitFor(timeouts.length / 2 + 1, 200));
+    }
+
+    public void testClose() throws Exception
+    {
+        final TimeoutWheel.Timeout timeout = new TimeoutWheel.Timeout(m_owner);
+
+        m_wheel.schedule(timeout, new MockHandlerTask(null), 50);
+        m_wheel.close();
+
+        assertFalse(m_owner.waitFor(1, 200));
+    }
+
+    /**
+     * Records the tasks of expired timeouts.
+     */
+    private static final class Recorder implements TimeoutWheel.Owner
+    {
+        private final List m_tasks = new ArrayList();
+
+        public synchronized void expired(final HandlerTask task)
+        {
+            m_tasks.add(task);
+            notifyAll();
+        }
+
+        public synchronized HandlerTask getTask(final int index)
+        {
+            return (HandlerTask) m_tasks.get(index);
+        }
+
+        /**
+         * Wait until the given number of timeouts expired.
+         *
+         * @return <tt>true</tt> in case they expired in time
+         */
+        public synchronized boolean waitFor(final int count, final long millis)
+            throws InterruptedException
+        {
+            final long end = System.currentTimeMillis() + millis;
+            long remaining = millis;
+            while ( m_tasks.size() < count && remaining > 0 )
+            {
+                wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+            return m_tasks.size() >= count;
+        }
+    }
+}
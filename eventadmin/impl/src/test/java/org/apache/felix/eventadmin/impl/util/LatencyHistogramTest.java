@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class LatencyHistogramTest extends TestCase
+{
+    public void testEmpty()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    public void testBucketBounds()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(4);
+        histogram.record(1000);
+
+        assertEquals(6, histogram.getCount());
+        // each bucket reports its upper bound
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(0, histogram.getPercentile(16));
+        assertEquals(1, histogram.getPercentile(17));
+        assertEquals(1, histogram.getPercentile(33));
+        assertEquals(3, histogram.getPercentile(34));
+        assertEquals(3, histogram.getPercentile(66));
+        assertEquals(7, histogram.getPercentile(67));
+        assertEquals(7, histogram.getPercentile(83));
+        // but never more than the highest latency
+        assertEquals(1000, histogram.getPercentile(84));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    public void testPercentiles()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++)
+        {
+            histogram.record(i);
+        }
+
+        assertEquals(1, histogram.getPercentile(1));
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(63, histogram.getPercentile(63));
+        assertEquals(100, histogram.getPercentile(64));
+        assertEquals(100, histogram.getPercentile(99));
+    }
+
+    public void testExtremeLatencies()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(100));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    public void testClear()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.clear();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+
+        histogram.record(2);
+        assertEquals(2, histogram.getPercentile(100));
+    }
+}
@@ -1148,6 +1148,7 @@ class BundleImpl implements Bundle
             Long.toString(getBundleId()) + "." + Integer.toString(revision),
             headerMap,
             m_archive.getRevision(revision).getContent(),
+            m_archive.getRevision(revision).getManifestCacheFile(),
             getFramework().getBundleStreamHandler(),
             getFramework().getBootPackages(),
             getFramework().getBootPackageWildcards());
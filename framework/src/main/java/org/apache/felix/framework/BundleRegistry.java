@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.osgi.framework.Bundle;
+
+/**
+ * An immutable snapshot of the installed bundles and of the uninstalled
+ * bundles that have not been refreshed yet. Installed bundles are indexed
+ * by location and, together with the uninstalled bundles, by identifier in
+ * an open addressing hash table of primitive longs, so looking up a bundle
+ * does neither lock nor allocate. Modifications return a new snapshot,
+ * which the framework publishes in a volatile field while holding the
+ * global lock.
+**/
+class BundleRegistry
+{
+    public static final BundleRegistry EMPTY = new BundleRegistry(
+        new Bundle[0], new long[0], new HashMap<String, BundleImpl>(0),
+        new BundleImpl[0], new long[0]);
+
+    // Marks an empty slot of the hash table; bundle identifiers are never
+    // negative.
+    private static final long FREE = -1;
+
+    // Installed bundles and their identifiers in ascending identifier order.
+    private final Bundle[] m_bundles;
+    private final long[] m_ids;
+    private final Map<String, BundleImpl> m_locations;
+    // Uninstalled bundles and their identifiers in uninstall order.
+    private final BundleImpl[] m_uninstalled;
+    private final long[] m_uninstalledIds;
+    // Hash table of installed and uninstalled bundles by identifier.
+    private final long[] m_keys;
+    private final BundleImpl[] m_values;
+
+    private BundleRegistry(
+        Bundle[] bundles, long[] ids,
+        Map<String, BundleImpl> locations,
+        BundleImpl[] uninstalled, long[] uninstalledIds)
+    {
+        m_bundles = bundles;
+        m_ids = ids;
+        m_locations = locations;
+        m_uninstalled = uninstalled;
+        m_uninstalledIds = uninstalledIds;
+
+        // Keep the load factor at or below one half.
+        int capacity = 2;
+        while (capacity < (ids.length + uninstalledIds.length) * 2)
+        {
+            capacity <<= 1;
+        }
+        m_keys = new long[capacity];
+        m_values = new BundleImpl[capacity];
+        for (int i = 0; i < capacity; i++)
+        {
+            m_keys[i] = FREE;
+        }
+        // Add installed bundles last, so they take precedence.
+        for (int i = 0; i < uninstalledIds.length; i++)
+        {
+            put(uninstalledIds[i], uninstalled[i]);
+        }
+        for (int i = 0; i < ids.length; i++)
+        {
+            put(ids[i], (BundleImpl) bundles[i]);
+        }
+    }
+
+    /**
+     * Returns the installed or uninstalled bundle with the specified
+     * identifier.
+     * @param id the identifier of the bundle.
+     * @return the bundle or <tt>null</tt> if there is no such bundle.
+    **/
+    public BundleImpl getBundle(long id)
+    {
+        int mask = m_keys.length - 1;
+        for (int i = hash(id) & mask; m_keys[i] != FREE; i = (i + 1) & mask)
+        {
+            if (m_keys[i] == id)
+            {
+                return m_values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the installed bundle with the specified location.
+     * @param location the location of the bundle.
+     * @return the bundle or <tt>null</tt> if there is no such bundle.
+    **/
+    public BundleImpl getBundle(String location)
+    {
+        return m_locations.get(location);
+    }
+
+    /**
+     * Returns the installed bundles in ascending identifier order. The
+     * returned array is shared and must not be modified.
+     * @return the installed bundles.
+    **/
+    public Bundle[] getBundles()
+    {
+        return m_bundles;
+    }
+
+    /**
+     * Returns the uninstalled bundles that have not been refreshed yet. The
+     * returned array is shared and must not be modified.
+     * @return the uninstalled bundles.
+    **/
+    public BundleImpl[] getUninstalledBundles()
+    {
+        return m_uninstalled;
+    }
+
+    /**
+     * Returns a snapshot which additionally contains the specified installed
+     * bundle.
+     * @param location the location of the bundle.
+     * @param bundle the bundle to add.
+     * @return the new snapshot.
+    **/
+    public BundleRegistry addBundle(String location, BundleImpl bundle)
+    {
+        long id = bundle.getBundleId();
+        int idx = 0;
+        while ((idx < m_ids.length) && (m_ids[idx] < id))
+        {
+            idx++;
+        }
+        Bundle[] bundles = new Bundle[m_bundles.length + 1];
+        long[] ids = new long[m_ids.length + 1];
+        System.arraycopy(m_bundles, 0, bundles, 0, idx);
+        System.arraycopy(m_ids, 0, ids, 0, idx);
+        bundles[idx] = bundle;
+        ids[idx] = id;
+        System.arraycopy(m_bundles, idx, bundles, idx + 1, m_bundles.length - idx);
+        System.arraycopy(m_ids, idx, ids, idx + 1, m_ids.length - idx);
+
+        Map<String, BundleImpl> locations = new HashMap<String, BundleImpl>(m_locations);
+        locations.put(location, bundle);
+
+        return new BundleRegistry(
+            bundles, ids, locations, m_uninstalled, m_uninstalledIds);
+    }
+
+    /**
+     * Returns a snapshot which no longer contains the specified installed
+     * bundle.
+     * @param location the location of the bundle.
+     * @param bundle the bundle to remove.
+     * @return the new snapshot.
+    **/
+    public BundleRegistry removeBundle(String location, BundleImpl bundle)
+    {
+        int idx = indexOf(m_bundles, bundle);
+        Bundle[] bundles = m_bundles;
+        long[] ids = m_ids;
+        if (idx >= 0)
+        {
+            bundles = new Bundle[m_bundles.length - 1];
+            ids = new long[m_ids.length - 1];
+            System.arraycopy(m_bundles, 0, bundles, 0, idx);
+            System.arraycopy(m_ids, 0, ids, 0, idx);
+            System.arraycopy(m_bundles, idx + 1, bundles, idx, bundles.length - idx);
+            System.arraycopy(m_ids, idx + 1, ids, idx, ids.length - idx);
+        }
+
+        Map<String, BundleImpl> locations = new HashMap<String, BundleImpl>(m_locations);
+        locations.remove(location);
+
+        return new BundleRegistry(
+            bundles, ids, locations, m_uninstalled, m_uninstalledIds);
+    }
+
+    /**
+     * Returns a snapshot which additionally contains the specified
+     * uninstalled bundle.
+     * @param bundle the uninstalled bundle.
+     * @return the new snapshot or this snapshot if it already contains
+     *         the uninstalled bundle.
+    **/
+    public BundleRegistry addUninstalledBundle(BundleImpl bundle)
+    {
+        if (indexOf(m_uninstalled, bundle) >= 0)
+        {
+            return this;
+        }
+        BundleImpl[] uninstalled = new BundleImpl[m_uninstalled.length + 1];
+        long[] uninstalledIds = new long[m_uninstalledIds.length + 1];
+        System.arraycopy(m_uninstalled, 0, uninstalled, 0, m_uninstalled.length);
+        System.arraycopy(m_uninstalledIds, 0, uninstalledIds, 0, m_uninstalledIds.length);
+        uninstalled[m_uninstalled.length] = bundle;
+        uninstalledIds[m_uninstalledIds.length] = bundle.getBundleId();
+
+        return new BundleRegistry(
+            m_bundles, m_ids, m_locations, uninstalled, uninstalledIds);
+    }
+
+    /**
+     * Returns a snapshot which no longer contains the specified uninstalled
+     * bundle.
+     * @param bundle the uninstalled bundle.
+     * @return the new snapshot or this snapshot if it does not contain the
+     *         uninstalled bundle.
+    **/
+    public BundleRegistry removeUninstalledBundle(BundleImpl bundle)
+    {
+        int idx = indexOf(m_uninstalled, bundle);
+        if (idx < 0)
+        {
+            return this;
+        }
+        BundleImpl[] uninstalled = new BundleImpl[m_uninstalled.length - 1];
+        long[] uninstalledIds = new long[m_uninstalledIds.length - 1];
+        System.arraycopy(m_uninstalled, 0, uninstalled, 0, idx);
+        System.arraycopy(m_uninstalledIds, 0, uninstalledIds, 0, idx);
+        System.arraycopy(m_uninstalled, idx + 1, uninstalled, idx, uninstalled.length - idx);
+        System.arraycopy(m_uninstalledIds, idx + 1, uninstalledIds, idx, uninstalledIds.length - idx);
+
+        return new BundleRegistry(
+            m_bundles, m_ids, m_locations, uninstalled, uninstalledIds);
+    }
+
+    private void put(long id, BundleImpl bundle)
+    {
+        int mask = m_keys.length - 1;
+        int i = hash(id) & mask;
+        while ((m_keys[i] != FREE) && (m_keys[i] != id))
+        {
+            i = (i + 1) & mask;
+        }
+        m_keys[i] = id;
+        m_values[i] = bundle;
+    }
+
+    private static int hash(long id)
+    {
+        // Identifiers are mostly consecutive, so they spread evenly
+        // without further mixing.
+        return (int) (id ^ (id >>> 32));
+    }
+
+    private static int indexOf(Object[] array, Object o)
+    {
+        for (int i = 0; i < array.length; i++)
+        {
+            if (array[i] == o)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -32,6 +32,7 @@ import org.apache.felix.framework.capabilityset.Attribute;
 import org.apache.felix.framework.capabilityset.Capability;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.Directive;
+import org.apache.felix.framework.capabilityset.FilterCache;
 import org.apache.felix.framework.resolver.Module;
 import org.apache.felix.framework.capabilityset.Requirement;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -39,6 +40,7 @@ import org.apache.felix.framework.resolver.Wire;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.resolver.ResolveException;
 import org.apache.felix.framework.resolver.Resolver;
+import org.apache.felix.framework.resolver.Resolver.ResolverState;
 import org.apache.felix.framework.resolver.ResolverImpl;
 import org.apache.felix.framework.util.EventDispatcher;
 import org.apache.felix.framework.util.FelixConstants;
@@ -95,6 +97,20 @@ public class Felix extends BundleImpl implements Framework
     // MODULE FACTORY.
     private final FelixResolverState m_resolverState;
     private final FelixResolver m_felixResolver;
+    // Maximum number of threads used to resolve a batch of bundles.
+    private final int m_resolverParallelism;
+    // Maximum number of candidate permutations per resolve, or 0 for no limit.
+    private final int m_resolverPermutationLimit;
+    // Maximum number of bundles of the same start level started concurrently.
+    private final int m_startLevelParallelism;
+    // Time in milliseconds to wait for a bundle to start, or 0 for no limit.
+    private final long m_startLevelTimeout;
+    // Number of threads delivering asynchronous events.
+    private final int m_eventThreads;
+    // Time in milliseconds after which a slow listener is blacklisted, or 0.
+    private final long m_eventTimeout;
+    // Persistent resolution cache, if enabled.
+    private final ResolutionCache m_resolutionCache;
 
     // Lock object used to determine if an individual bundle
     // lock or the global lock can be acquired.
@@ -116,17 +132,11 @@ public class Felix extends BundleImpl implements Framework
     // be acquired before locks with lower priority.
     private final Object[] m_installRequestLock_Priority1 = new Object[0];
 
-    // Contains two maps, one mapping a String bundle location to a bundle
-    // and the other mapping a Long bundle identifier to a bundle.
+    // Snapshot of the installed bundles, indexed by location and identifier,
+    // and of the uninstalled bundles before a refresh occurs.
     // CONCURRENCY: Access guarded by the global lock for writes,
     // but no lock for reads since it is copy on write.
-    private volatile Map[] m_installedBundles;
-    private static final int LOCATION_MAP_IDX = 0;
-    private static final int IDENTIFIER_MAP_IDX = 1;
-    // An array of uninstalled bundles before a refresh occurs.
-    // CONCURRENCY: Access guarded by the global lock for writes,
-    // but no lock for reads since it is copy on write.
-    private volatile List<BundleImpl> m_uninstalledBundles;
+    private volatile BundleRegistry m_bundleRegistry = BundleRegistry.EMPTY;
 
     // Framework's active start level.
     private volatile int m_activeStartLevel = FelixConstants.FRAMEWORK_INACTIVE_STARTLEVEL;
@@ -332,6 +342,20 @@ public class Felix extends BundleImpl implements Framework
         {
             // Ignore and just use the default logging level.
         }
+        try
+        {
+            String value = (String) m_configMutableMap.get(FelixConstants.LOG_BUFFER_SIZE_PROP);
+            if (value != null)
+            {
+                m_logger.setAsynchronous(
+                    Integer.parseInt(value.trim()),
+                    (String) m_configMutableMap.get(FelixConstants.LOG_BUFFER_OVERFLOW_PROP));
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just log on the caller's thread.
+        }
 
         // Initialize framework properties.
         initializeFrameworkProperties();
@@ -361,8 +385,38 @@ public class Felix extends BundleImpl implements Framework
         // Create a resolver and its state.
         m_resolverState = new FelixResolverState(
             m_logger, (String) m_configMap.get(Constants.FRAMEWORK_EXECUTIONENVIRONMENT));
+
+        // Read the resolver parallelism property, which defaults to
+        // resolving sequentially.
+        m_resolverParallelism = Math.max(1,
+            getIntProperty(m_configMap, FelixConstants.RESOLVER_PARALLELISM_PROP, 1));
+
+        // Read the resolver permutation limit property, which defaults to
+        // trying all candidate permutations.
+        m_resolverPermutationLimit = Math.max(0,
+            getIntProperty(m_configMap, FelixConstants.RESOLVER_PERMUTATION_LIMIT_PROP, 0));
+
         m_felixResolver = new FelixResolver(
-            new ResolverImpl(m_logger), m_resolverState);
+            new ResolverImpl(m_logger, m_resolverPermutationLimit), m_resolverState);
+
+        // Read the start level parallelism and timeout properties, which
+        // default to starting bundles one at a time without a timeout.
+        m_startLevelParallelism = Math.max(1,
+            getIntProperty(m_configMap, FelixConstants.STARTLEVEL_PARALLELISM_PROP, 1));
+        m_startLevelTimeout = Math.max(0,
+            getLongProperty(m_configMap, FelixConstants.STARTLEVEL_TIMEOUT_PROP, 0));
+
+        // Read the asynchronous event delivery properties, which default to
+        // a single delivery thread without a timeout.
+        m_eventThreads = Math.max(1,
+            getIntProperty(m_configMap, FelixConstants.EVENT_THREADS_PROP, 1));
+        m_eventTimeout = Math.max(0,
+            getLongProperty(m_configMap, FelixConstants.EVENT_TIMEOUT_PROP, 0));
+
+        // Create the persistent resolution cache, if enabled.
+        String cacheStr = (String) m_configMap.get(FelixConstants.RESOLVER_CACHE_PROP);
+        m_resolutionCache = ((cacheStr != null) && cacheStr.equalsIgnoreCase("true"))
+            ? new ResolutionCache(m_logger, m_resolverState) : null;
 
         // Create the extension manager, which we will use as the module
         // definition for creating the system bundle module.
@@ -379,6 +433,57 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Returns the value of the specified configuration property as an
+     * integer.
+     * @param configMap the configuration properties.
+     * @param name the name of the property.
+     * @param defaultValue the value to use if the property is not set or
+     *        is not a valid integer.
+     * @return the value of the property or the default value.
+    **/
+    static int getIntProperty(Map configMap, String name, int defaultValue)
+    {
+        String value = (String) configMap.get(name);
+        if (value != null)
+        {
+            try
+            {
+                return Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and just use the default value.
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value of the specified configuration property as a long.
+     * @param configMap the configuration properties.
+     * @param name the name of the property.
+     * @param defaultValue the value to use if the property is not set or
+     *        is not a valid long.
+     * @return the value of the property or the default value.
+    **/
+    static long getLongProperty(Map configMap, String name, long defaultValue)
+    {
+        String value = (String) configMap.get(name);
+        if (value != null)
+        {
+            try
+            {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and just use the default value.
+            }
+        }
+        return defaultValue;
+    }
+
     Logger getLogger()
     {
         return m_logger;
@@ -389,6 +494,51 @@ public class Felix extends BundleImpl implements Framework
         return m_configMap;
     }
 
+    ResolutionCache getResolutionCache()
+    {
+        return m_resolutionCache;
+    }
+
+    /**
+     * Returns the number of lookups answered by the negative lookup caches
+     * of the modules of the installed bundles.
+     * @return the sum of the hit counts of the negative lookup caches.
+    **/
+    long getNegativeLookupHitCount()
+    {
+        return getNegativeLookupCount(true);
+    }
+
+    /**
+     * Returns the number of lookups that missed the negative lookup caches
+     * of the modules of the installed bundles.
+     * @return the sum of the miss counts of the negative lookup caches.
+    **/
+    long getNegativeLookupMissCount()
+    {
+        return getNegativeLookupCount(false);
+    }
+
+    private long getNegativeLookupCount(boolean hits)
+    {
+        long count = 0;
+        Bundle[] bundles = getBundles();
+        for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+        {
+            List<Module> modules = ((BundleImpl) bundles[i]).getModules();
+            for (int j = 0; j < modules.size(); j++)
+            {
+                NegativeLookupCache cache = (modules.get(j) instanceof ModuleImpl)
+                    ? ((ModuleImpl) modules.get(j)).getNegativeLookupCache() : null;
+                if (cache != null)
+                {
+                    count += (hits) ? cache.getHitCount() : cache.getMissCount();
+                }
+            }
+        }
+        return count;
+    }
+
     FelixResolver getResolver()
     {
         return m_felixResolver;
@@ -575,7 +725,8 @@ public class Felix extends BundleImpl implements Framework
                 m_activatorList = (m_activatorList == null) ? new ArrayList() : new ArrayList(m_activatorList);
 
                 // Initialize event dispatcher.
-                m_dispatcher = EventDispatcher.start(m_logger);
+                m_dispatcher = EventDispatcher.start(
+                    m_logger, m_eventThreads, m_eventTimeout);
 
                 // Create the bundle cache, if necessary, so that we can reload any
                 // installed bundles.
@@ -613,17 +764,9 @@ public class Felix extends BundleImpl implements Framework
                     }
                 }
 
-                // Initialize installed bundle data structures.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(1),
-                    new TreeMap<Long, BundleImpl>()
-                };
-                m_uninstalledBundles = new ArrayList<BundleImpl>(0);
-
-                // Add the system bundle to the set of installed bundles.
-                maps[LOCATION_MAP_IDX].put(_getLocation(), this);
-                maps[IDENTIFIER_MAP_IDX].put(new Long(0), this);
-                m_installedBundles = maps;
+                // Initialize installed bundle data structures and add the
+                // system bundle to the set of installed bundles.
+                m_bundleRegistry = BundleRegistry.EMPTY.addBundle(_getLocation(), this);
 
                 // Manually resolve the system bundle, which will cause its
                 // state to be set to RESOLVED.
@@ -710,6 +853,23 @@ public class Felix extends BundleImpl implements Framework
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
+                // Now that all cached bundles are installed, load the wires
+                // of the previous resolution if it is still applicable.
+                if (m_resolutionCache != null)
+                {
+                    try
+                    {
+                        m_resolutionCache.load(
+                            m_cache.getSystemBundleDataFile("resolution.cache"),
+                            getCurrentModules(), getResolutionEnvironment());
+                    }
+                    catch (Exception ex)
+                    {
+                        m_logger.log(Logger.LOG_WARNING,
+                            "Unable to load cached resolution.", ex);
+                    }
+                }
+
                 // Create service registry.
                 m_registry = new ServiceRegistry(m_logger, new ServiceRegistryCallbacks() {
                     public void serviceChanged(ServiceEvent event, Dictionary oldProps)
@@ -1094,109 +1254,314 @@ public class Felix extends BundleImpl implements Framework
                     continue;
                 }
 
-                // Lock the current bundle.
-                try
+                // If enabled, start all bundles of the same start level
+                // concurrently and wait for them before moving on to the
+                // next start level.
+                if (!lowering && (m_startLevelParallelism > 1))
                 {
-                    acquireBundleLock(impl,
-                        Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                        | Bundle.STARTING | Bundle.STOPPING);
-                }
-                catch (IllegalStateException ex)
-                {
-                    // Ignore if the bundle has been uninstalled.
-                    if (impl.getState() != Bundle.UNINSTALLED)
+                    int level = impl.getStartLevel(getInitialBundleStartLevel());
+                    List<BundleImpl> group = new ArrayList<BundleImpl>();
+                    while ((i < bundles.length) && (((BundleImpl) bundles[i])
+                        .getStartLevel(getInitialBundleStartLevel()) == level))
                     {
-                        fireFrameworkEvent(FrameworkEvent.ERROR, impl, ex);
-                        m_logger.log(impl,
-                            Logger.LOG_ERROR,
-                            "Error locking " + impl._getLocation(), ex);
+                        group.add((BundleImpl) bundles[i]);
+                        bundles[i++] = null;
                     }
+                    i--;
+                    resolveStartLevelGroup(group);
+                    setStartLevelStates(group);
                     continue;
                 }
 
-                try
-                {
-                    // Start the bundle if necessary.
-                    if (((impl.getPersistentState() == Bundle.ACTIVE)
-                        || (impl.getPersistentState() == Bundle.STARTING))
-                        && (impl.getStartLevel(getInitialBundleStartLevel())
-                            <= m_targetStartLevel))
-                    {
-                        // Count up the active start level.
+                setStartLevelState(impl);
+
+                // Hint to GC to collect bundle; not sure why this
+                // is necessary, but it appears to help.
+                bundles[i] = null;
+            }
+
+            m_activeStartLevel = m_targetStartLevel;
+        }
+
+        if (getState() == Bundle.ACTIVE)
+        {
+            fireFrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, this, null);
+        }
+    }
+
+    /**
+     * Starts or stops the specified bundle as required by the target
+     * start level, reporting any failure as a framework event.
+     * @param impl The bundle to start or stop.
+    **/
+    private void setStartLevelState(BundleImpl impl)
+    {
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(impl,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Ignore if the bundle has been uninstalled.
+            if (impl.getState() != Bundle.UNINSTALLED)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, impl, ex);
+                m_logger.log(impl,
+                    Logger.LOG_ERROR,
+                    "Error locking " + impl._getLocation(), ex);
+            }
+            return;
+        }
+
+        try
+        {
+            // Start the bundle if necessary.
+            if (((impl.getPersistentState() == Bundle.ACTIVE)
+                || (impl.getPersistentState() == Bundle.STARTING))
+                && (impl.getStartLevel(getInitialBundleStartLevel())
+                    <= m_targetStartLevel))
+            {
+                // Count up the active start level.
 // TODO: STARTLEVEL - This isn't entirely accurate since a bundle's start
 //       level is written synchronously, if someone were to change a bundle's
 //       start level in the middle of a framework start level change then you
 //       could potentially see the active start level jump around. We really
 //       need to snapshot the existing bundle start levels too.
-                        if (m_activeStartLevel != impl.getStartLevel(getInitialBundleStartLevel()))
-                        {
-                            m_activeStartLevel = impl.getStartLevel(getInitialBundleStartLevel());
-                        }
+                if (m_activeStartLevel != impl.getStartLevel(getInitialBundleStartLevel()))
+                {
+                    m_activeStartLevel = impl.getStartLevel(getInitialBundleStartLevel());
+                }
 
-                        try
-                        {
+                try
+                {
 // TODO: LAZY - Not sure if this is the best way...
-                            int options = Bundle.START_TRANSIENT;
-                            options = (impl.getPersistentState() == Bundle.STARTING)
-                                ? options | Bundle.START_ACTIVATION_POLICY
-                                : options;
-                            startBundle(impl, options);
-                        }
-                        catch (Throwable th)
-                        {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
-                            m_logger.log(impl,
-                                Logger.LOG_ERROR,
-                                "Error starting " + impl._getLocation(), th);
-                        }
-                    }
-                    // Stop the bundle if necessary.
-                    else if (((impl.getState() == Bundle.ACTIVE)
-                        || (impl.getState() == Bundle.STARTING))
-                        && (impl.getStartLevel(getInitialBundleStartLevel())
-                            > m_targetStartLevel))
-                    {
-                        // Count down the active start level.
+                    int options = Bundle.START_TRANSIENT;
+                    options = (impl.getPersistentState() == Bundle.STARTING)
+                        ? options | Bundle.START_ACTIVATION_POLICY
+                        : options;
+                    startBundle(impl, options);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
+                    m_logger.log(impl,
+                        Logger.LOG_ERROR,
+                        "Error starting " + impl._getLocation(), th);
+                }
+            }
+            // Stop the bundle if necessary.
+            else if (((impl.getState() == Bundle.ACTIVE)
+                || (impl.getState() == Bundle.STARTING))
+                && (impl.getStartLevel(getInitialBundleStartLevel())
+                    > m_targetStartLevel))
+            {
+                // Count down the active start level.
 // TODO: STARTLEVEL - This isn't entirely accurate since a bundle's start
 //       level is written synchronously, if someone were to change a bundle's
 //       start level in the middle of a framework start level change then you
 //       could potentially see the active start level jump around. We really
 //       need to snapshot the existing bundle start levels too.
-                        if (m_activeStartLevel != impl.getStartLevel(getInitialBundleStartLevel()))
+                if (m_activeStartLevel != impl.getStartLevel(getInitialBundleStartLevel()))
+                {
+                    m_activeStartLevel = impl.getStartLevel(getInitialBundleStartLevel());
+                }
+
+                try
+                {
+                    stopBundle(impl, false);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
+                    m_logger.log(impl,
+                        Logger.LOG_ERROR,
+                        "Error stopping " + impl._getLocation(), th);
+                }
+            }
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(impl);
+        }
+    }
+
+    /**
+     * Resolves the unresolved bundles of the specified start level group
+     * that are going to be started. This happens on the calling thread
+     * before the bundles are started concurrently, because a worker thread
+     * resolving its bundle while holding the bundle lock interrupts any
+     * other worker waiting for the global lock to resolve its own bundle,
+     * which would make that bundle fail to start depending on thread timing.
+     * Resolve failures are ignored here, since they are reported when the
+     * bundle is started.
+     * @param group The bundles to resolve.
+    **/
+    private void resolveStartLevelGroup(List<BundleImpl> group)
+    {
+        // The start level thread does not hold any bundle locks, so this
+        // only fails if the framework is shutting down.
+        if (!acquireGlobalLock())
+        {
+            return;
+        }
+
+        try
+        {
+            for (BundleImpl impl : group)
+            {
+                if ((impl.getState() == Bundle.INSTALLED)
+                    && !Util.isFragment(impl.getCurrentModule())
+                    && ((impl.getPersistentState() == Bundle.ACTIVE)
+                        || (impl.getPersistentState() == Bundle.STARTING))
+                    && (impl.getStartLevel(getInitialBundleStartLevel())
+                        <= m_targetStartLevel))
+                {
+                    try
+                    {
+                        resolveBundle(impl);
+                    }
+                    catch (BundleException ex)
+                    {
+                        // Ignore and report it when starting the bundle.
+                    }
+                }
+            }
+        }
+        finally
+        {
+            releaseGlobalLock();
+        }
+    }
+
+    /**
+     * Starts or stops the specified bundles of the same start level
+     * concurrently, using at most the configured number of threads, and
+     * waits until all of them are processed. Failures are reported per
+     * bundle as framework events. If a bundle takes longer than the
+     * configured timeout, this is reported as a framework warning and
+     * the bundle is no longer waited for, so that processing can move
+     * on to the next start level. Note that such a bundle keeps starting
+     * on its worker thread and holds its bundle lock until its activator
+     * returns, so bundles of the next start level may become active
+     * before it and any operation on it blocks until then.
+     * @param group The bundles to start or stop.
+    **/
+    private void setStartLevelStates(List<BundleImpl> group)
+    {
+        final List<StartLevelTask> pending = new ArrayList<StartLevelTask>();
+        List<StartLevelTask> tasks = new ArrayList<StartLevelTask>();
+        for (BundleImpl impl : group)
+        {
+            StartLevelTask task = new StartLevelTask(impl);
+            pending.add(task);
+            tasks.add(task);
+        }
+
+        Runnable worker = new Runnable() {
+            public void run()
+            {
+                while (true)
+                {
+                    StartLevelTask task;
+                    synchronized (pending)
+                    {
+                        if (pending.isEmpty())
+                        {
+                            return;
+                        }
+                        task = pending.remove(0);
+                        task.m_startTime = System.currentTimeMillis();
+                    }
+                    try
+                    {
+                        setStartLevelState(task.m_bundle);
+                    }
+                    finally
+                    {
+                        synchronized (pending)
                         {
-                            m_activeStartLevel = impl.getStartLevel(getInitialBundleStartLevel());
+                            task.m_done = true;
+                            pending.notifyAll();
                         }
+                    }
+                }
+            }
+        };
 
-                        try
+        int threadCount = Math.min(m_startLevelParallelism, tasks.size());
+        for (int i = 0; i < threadCount; i++)
+        {
+            startStartLevelThread(worker);
+        }
+
+        synchronized (pending)
+        {
+            while (true)
+            {
+                long now = System.currentTimeMillis();
+                long wait = 0;
+                boolean finished = true;
+                for (StartLevelTask task : tasks)
+                {
+                    if (task.m_done || task.m_timedOut)
+                    {
+                        continue;
+                    }
+                    else if ((m_startLevelTimeout > 0) && (task.m_startTime > 0))
+                    {
+                        long remaining = task.m_startTime + m_startLevelTimeout - now;
+                        if (remaining <= 0)
                         {
-                            stopBundle(impl, false);
+                            // Stop waiting for the bundle and start another
+                            // thread to replace the one that is blocked.
+                            task.m_timedOut = true;
+                            String msg = "Timed out after " + m_startLevelTimeout
+                                + " ms waiting for " + task.m_bundle._getLocation()
+                                + " to start.";
+                            fireFrameworkEvent(FrameworkEvent.WARNING, task.m_bundle,
+                                new BundleException(msg));
+                            m_logger.log(task.m_bundle, Logger.LOG_WARNING, msg);
+                            if (!pending.isEmpty())
+                            {
+                                startStartLevelThread(worker);
+                            }
                         }
-                        catch (Throwable th)
+                        else
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
-                            m_logger.log(impl,
-                                Logger.LOG_ERROR,
-                                "Error stopping " + impl._getLocation(), th);
+                            wait = (wait == 0) ? remaining : Math.min(wait, remaining);
+                            finished = false;
                         }
                     }
+                    else
+                    {
+                        finished = false;
+                    }
                 }
-                finally
+                if (finished)
                 {
-                    // Always release bundle lock.
-                    releaseBundleLock(impl);
+                    break;
+                }
+                try
+                {
+                    pending.wait(wait);
+                }
+                catch (InterruptedException ex)
+                {
+                    // Ignore and just keep waiting.
                 }
-                // Hint to GC to collect bundle; not sure why this
-                // is necessary, but it appears to help.
-                bundles[i] = null;
             }
-
-            m_activeStartLevel = m_targetStartLevel;
         }
+    }
 
-        if (getState() == Bundle.ACTIVE)
-        {
-            fireFrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, this, null);
-        }
+    private void startStartLevelThread(Runnable worker)
+    {
+        Thread thread = new Thread(worker, "FelixStartLevel-Worker");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
@@ -2315,19 +2680,15 @@ public class Felix extends BundleImpl implements Framework
             try
             {
                 // Use a copy-on-write approach to remove the bundle
-                // from the installed maps.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                    new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                };
-                target = (BundleImpl) maps[LOCATION_MAP_IDX].remove(bundle._getLocation());
-                maps[IDENTIFIER_MAP_IDX].remove(new Long(target.getBundleId()));
-                m_installedBundles = maps;
+                // from the installed bundles.
+                target = m_bundleRegistry.getBundle(bundle._getLocation());
 
                 // Put the uninstalled bundle into the uninstalled
                 // list for subsequent refreshing.
                 if (target != null)
                 {
+                    m_bundleRegistry = m_bundleRegistry.removeBundle(bundle._getLocation(), target);
+
                     // Set the bundle's persistent state to uninstalled.
                     bundle.setPersistentStateUninstalled();
 
@@ -2598,14 +2959,8 @@ public class Felix extends BundleImpl implements Framework
             try
             {
                 // Use a copy-on-write approach to add the bundle
-                // to the installed maps.
-                Map[] maps = new Map[] {
-                    new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
-                    new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
-                };
-                maps[LOCATION_MAP_IDX].put(location, bundle);
-                maps[IDENTIFIER_MAP_IDX].put(new Long(bundle.getBundleId()), bundle);
-                m_installedBundles = maps;
+                // to the installed bundles.
+                m_bundleRegistry = m_bundleRegistry.addBundle(location, bundle);
             }
             finally
             {
@@ -2652,7 +3007,7 @@ public class Felix extends BundleImpl implements Framework
     **/
     Bundle getBundle(String location)
     {
-        return (Bundle) m_installedBundles[LOCATION_MAP_IDX].get(location);
+        return m_bundleRegistry.getBundle(location);
     }
 
     /**
@@ -2665,25 +3020,7 @@ public class Felix extends BundleImpl implements Framework
     **/
     Bundle getBundle(long id)
     {
-        BundleImpl bundle = (BundleImpl)
-            m_installedBundles[IDENTIFIER_MAP_IDX].get(new Long(id));
-        if (bundle != null)
-        {
-            return bundle;
-        }
-
-        List<BundleImpl> uninstalledBundles = m_uninstalledBundles;
-        for (int i = 0;
-            (uninstalledBundles != null) && (i < uninstalledBundles.size());
-            i++)
-        {
-            if (uninstalledBundles.get(i).getBundleId() == id)
-            {
-                return uninstalledBundles.get(i);
-            }
-        }
-
-        return null;
+        return m_bundleRegistry.getBundle(id);
     }
 
     /**
@@ -2695,12 +3032,13 @@ public class Felix extends BundleImpl implements Framework
     **/
     Bundle[] getBundles()
     {
-        Map bundles = m_installedBundles[IDENTIFIER_MAP_IDX];
-        if (bundles.isEmpty())
+        Bundle[] bundles = m_bundleRegistry.getBundles();
+        if (bundles.length == 0)
         {
             return null;
         }
-        return (Bundle[]) bundles.values().toArray(new Bundle[bundles.size()]);
+        // Return a copy, since callers may modify the array.
+        return (Bundle[]) bundles.clone();
     }
 
     void addBundleListener(Bundle bundle, BundleListener l)
@@ -2904,7 +3242,7 @@ public class Felix extends BundleImpl implements Framework
         {
             try
             {
-                filter = SimpleFilter.parse(expr);
+                filter = FilterCache.parse(expr);
             }
             catch (Exception ex)
             {
@@ -3191,16 +3529,15 @@ public class Felix extends BundleImpl implements Framework
             try
             {
                 // First get exported packages from uninstalled bundles.
-                for (int bundleIdx = 0;
-                    (m_uninstalledBundles != null) && (bundleIdx < m_uninstalledBundles.size());
-                    bundleIdx++)
+                BundleImpl[] uninstalledBundles = m_bundleRegistry.getUninstalledBundles();
+                for (int bundleIdx = 0; bundleIdx < uninstalledBundles.length; bundleIdx++)
                 {
-                    BundleImpl bundle = m_uninstalledBundles.get(bundleIdx);
+                    BundleImpl bundle = uninstalledBundles[bundleIdx];
                     getExportedPackages(bundle, list);
                 }
 
                 // Now get exported packages from installed bundles.
-                Bundle[] bundles = getBundles();
+                Bundle[] bundles = m_bundleRegistry.getBundles();
                 for (int bundleIdx = 0; bundleIdx < bundles.length; bundleIdx++)
                 {
                     BundleImpl bundle = (BundleImpl) bundles[bundleIdx];
@@ -3356,10 +3693,10 @@ public class Felix extends BundleImpl implements Framework
                 List list = new ArrayList();
 
                 // Add all unresolved bundles to the list.
-                Iterator iter = m_installedBundles[LOCATION_MAP_IDX].values().iterator();
-                while (iter.hasNext())
+                Bundle[] bundles = m_bundleRegistry.getBundles();
+                for (int i = 0; i < bundles.length; i++)
                 {
-                    BundleImpl bundle = (BundleImpl) iter.next();
+                    BundleImpl bundle = (BundleImpl) bundles[i];
                     if (bundle.getState() == Bundle.INSTALLED)
                     {
                         list.add(bundle);
@@ -3376,20 +3713,47 @@ public class Felix extends BundleImpl implements Framework
             // Now resolve each target bundle.
             boolean result = true;
 
-            // If there are targets, then resolve each one.
-            for (int i = 0; (targets != null) && (i < targets.length); i++)
+            // If parallel resolving is enabled and there are several
+            // targets, then resolve them as a batch, otherwise resolve
+            // each one in turn.
+            if ((m_resolverParallelism > 1) && (targets != null) && (targets.length > 1))
             {
-                try
+                List<Module> modules = new ArrayList<Module>(targets.length);
+                for (int i = 0; i < targets.length; i++)
                 {
-                    resolveBundle((BundleImpl) targets[i]);
+                    modules.add(((BundleImpl) targets[i]).getCurrentModule());
                 }
-                catch (BundleException ex)
+                Map<Module, ResolveException> failures =
+                    m_felixResolver.resolve(modules, m_resolverParallelism);
+                for (int i = 0; i < targets.length; i++)
                 {
-                    result = false;
-                    m_logger.log(targets[i],
-                        Logger.LOG_WARNING,
-                        "Unable to resolve bundle " + targets[i].getBundleId(),
-                        ex);
+                    ResolveException ex = failures.get(modules.get(i));
+                    if (ex != null)
+                    {
+                        result = false;
+                        m_logger.log(targets[i],
+                            Logger.LOG_WARNING,
+                            "Unable to resolve bundle " + targets[i].getBundleId(),
+                            createBundleException(ex));
+                    }
+                }
+            }
+            else
+            {
+                for (int i = 0; (targets != null) && (i < targets.length); i++)
+                {
+                    try
+                    {
+                        resolveBundle((BundleImpl) targets[i]);
+                    }
+                    catch (BundleException ex)
+                    {
+                        result = false;
+                        m_logger.log(targets[i],
+                            Logger.LOG_WARNING,
+                            "Unable to resolve bundle " + targets[i].getBundleId(),
+                            ex);
+                    }
                 }
             }
 
@@ -3410,17 +3774,22 @@ public class Felix extends BundleImpl implements Framework
         }
         catch (ResolveException ex)
         {
-            if (ex.getModule() != null)
-            {
-                Bundle b = ((ModuleImpl) ex.getModule()).getBundle();
-                throw new BundleException(
-                    "Unresolved constraint in bundle "
-                    + b + ": " + ex.getMessage());
-            }
-            else
-            {
-                throw new BundleException(ex.getMessage());
-            }
+            throw createBundleException(ex);
+        }
+    }
+
+    private static BundleException createBundleException(ResolveException ex)
+    {
+        if (ex.getModule() != null)
+        {
+            Bundle b = ((ModuleImpl) ex.getModule()).getBundle();
+            return new BundleException(
+                "Unresolved constraint in bundle "
+                + b + ": " + ex.getMessage());
+        }
+        else
+        {
+            return new BundleException(ex.getMessage());
         }
     }
 
@@ -3448,18 +3817,17 @@ public class Felix extends BundleImpl implements Framework
             List list = new ArrayList();
 
             // First add all uninstalled bundles.
-            for (int i = 0;
-                (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
-                i++)
+            BundleImpl[] uninstalledBundles = m_bundleRegistry.getUninstalledBundles();
+            for (int i = 0; i < uninstalledBundles.length; i++)
             {
-                list.add(m_uninstalledBundles.get(i));
+                list.add(uninstalledBundles[i]);
             }
 
             // Then add all updated bundles.
-            Iterator iter = m_installedBundles[LOCATION_MAP_IDX].values().iterator();
-            while (iter.hasNext())
+            Bundle[] bundles = m_bundleRegistry.getBundles();
+            for (int i = 0; i < bundles.length; i++)
             {
-                BundleImpl bundle = (BundleImpl) iter.next();
+                BundleImpl bundle = (BundleImpl) bundles[i];
                 if (bundle.isRemovalPending())
                 {
                     list.add(bundle);
@@ -3833,6 +4201,33 @@ public class Felix extends BundleImpl implements Framework
     // Private utility methods.
     //
 
+    /**
+     * Returns the current modules of all installed bundles, including the
+     * system bundle.
+    **/
+    private List<Module> getCurrentModules()
+    {
+        List<Module> modules = new ArrayList<Module>();
+        Bundle[] bundles = getBundles();
+        for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+        {
+            modules.add(((BundleImpl) bundles[i]).getCurrentModule());
+        }
+        return modules;
+    }
+
+    /**
+     * Returns a description of the environment bundles are resolved
+     * against, so cached resolutions are not reused when it changes.
+    **/
+    private String getResolutionEnvironment()
+    {
+        return m_configMap.get(Constants.FRAMEWORK_EXECUTIONENVIRONMENT)
+            + "," + m_configMap.get(FelixConstants.FRAMEWORK_OS_NAME)
+            + "," + m_configMap.get(FelixConstants.FRAMEWORK_OS_VERSION)
+            + "," + m_configMap.get(FelixConstants.FRAMEWORK_PROCESSOR);
+    }
+
     /**
      * Generated the next valid bundle identifier.
     **/
@@ -3946,6 +4341,16 @@ public class Felix extends BundleImpl implements Framework
             m_resolverState = resolverState;
         }
 
+        /**
+         * Returns a counter that changes whenever modules are added, removed
+         * or resolved, which invalidates failed class and resource lookups.
+         * @return the wiring count.
+        **/
+        public int getWiringCount()
+        {
+            return m_resolverState.getWiringCount();
+        }
+
         public void resolve(Module rootModule) throws ResolveException
         {
             // Although there is a race condition to check the bundle state
@@ -3991,7 +4396,7 @@ public class Felix extends BundleImpl implements Framework
                             try
                             {
                                 // Resolve the module.
-                                wireMap = m_resolver.resolve(m_resolverState, newRootModule);
+                                wireMap = resolve(m_resolver, m_resolverState, newRootModule);
 
                                 // Mark all modules as resolved.
                                 markResolvedModules(wireMap);
@@ -4027,6 +4432,336 @@ public class Felix extends BundleImpl implements Framework
             }
         }
 
+        /**
+         * Resolves the specified root modules as a batch. The modules are
+         * partitioned into groups that do not share any unresolved modules
+         * in the transitive closure of their requirement candidates. Since
+         * such groups cannot influence each other's resolution, they are
+         * resolved concurrently using up to the specified number of
+         * threads. Resolved modules are marked and their events fired once
+         * all groups are done.
+         * @param rootModules the modules to resolve.
+         * @param parallelism the maximum number of resolver threads.
+         * @return a map of the root modules that could not be resolved to
+         *         the reason why; the map is empty if all were resolved.
+        **/
+        public Map<Module, ResolveException> resolve(
+            List<Module> rootModules, int parallelism)
+        {
+            final Map<Module, ResolveException> failures =
+                new HashMap<Module, ResolveException>();
+
+            // Acquire global lock.
+            boolean locked = acquireGlobalLock();
+            if (!locked)
+            {
+                for (Module rootModule : rootModules)
+                {
+                    failures.put(rootModule, new ResolveException(
+                        "Unable to acquire global lock for resolve.", rootModule, null));
+                }
+                return failures;
+            }
+
+            final Map<Module, List<Wire>> wireMap = new HashMap<Module, List<Wire>>();
+            try
+            {
+                // Find the hosts of fragments and check singletons first,
+                // since this modifies the resolver state.
+                List<Module[]> roots = new ArrayList<Module[]>();
+                for (Module rootModule : rootModules)
+                {
+                    if (rootModule.isResolved()
+                        || ((BundleImpl) rootModule.getBundle()).isExtension())
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        Module newRootModule = m_resolverState.findHost(rootModule);
+                        if (!Util.isFragment(newRootModule))
+                        {
+                            m_resolverState.checkSingleton(newRootModule);
+                            roots.add(new Module[] { rootModule, newRootModule });
+                        }
+                    }
+                    catch (ResolveException ex)
+                    {
+                        failures.put(rootModule, ex);
+                    }
+                }
+
+                final List<List<Module[]>> groups = partitionRoots(roots);
+                int threadCount = Math.min(parallelism, groups.size());
+                if (threadCount <= 1)
+                {
+                    for (List<Module[]> group : groups)
+                    {
+                        resolveGroup(m_resolver, m_resolverState, group, wireMap, failures);
+                    }
+                }
+                else
+                {
+                    // Each thread uses its own resolver, since resolvers keep
+                    // state during a resolve, and synchronizes its access to
+                    // the shared resolver state.
+                    final ResolverState state = new SynchronizedResolverState(m_resolverState);
+                    final int[] nextGroup = new int[1];
+                    Thread[] threads = new Thread[threadCount];
+                    for (int i = 0; i < threads.length; i++)
+                    {
+                        threads[i] = new Thread("FelixResolver-" + i) {
+                            public void run()
+                            {
+                                Resolver resolver =
+                                    new ResolverImpl(m_logger, m_resolverPermutationLimit);
+                                while (true)
+                                {
+                                    List<Module[]> group;
+                                    synchronized (nextGroup)
+                                    {
+                                        if (nextGroup[0] >= groups.size())
+                                        {
+                                            return;
+                                        }
+                                        group = groups.get(nextGroup[0]++);
+                                    }
+                                    resolveGroup(resolver, state, group, wireMap, failures);
+                                }
+                            }
+                        };
+                        threads[i].setDaemon(true);
+                        threads[i].start();
+                    }
+                    for (int i = 0; i < threads.length; i++)
+                    {
+                        boolean interrupted = false;
+                        while (threads[i].isAlive())
+                        {
+                            try
+                            {
+                                threads[i].join();
+                            }
+                            catch (InterruptedException ex)
+                            {
+                                // We must not release the global lock while
+                                // resolver threads are still running.
+                                interrupted = true;
+                            }
+                        }
+                        if (interrupted)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+
+                // Update the state of the resolved bundles.
+                markResolvedBundles(wireMap);
+            }
+            finally
+            {
+                // Always release the global lock.
+                releaseGlobalLock();
+            }
+
+            fireResolvedEvents(wireMap);
+
+            return failures;
+        }
+
+        /**
+         * Resolves the specified module using the wires cached from a
+         * previous run, if available, or the specified resolver otherwise.
+         * The wires chosen by the resolver are checked against the cache,
+         * which is discarded if its wires are no longer consistent with them.
+        **/
+        private Map<Module, List<Wire>> resolve(
+            Resolver resolver, ResolverState state, Module rootModule)
+            throws ResolveException
+        {
+            if (m_resolutionCache != null)
+            {
+                Map<Module, List<Wire>> wireMap = m_resolutionCache.getWires(rootModule);
+                if (wireMap != null)
+                {
+                    return wireMap;
+                }
+            }
+            Map<Module, List<Wire>> wireMap = resolver.resolve(state, rootModule);
+            if (m_resolutionCache != null)
+            {
+                m_resolutionCache.resolved(wireMap);
+            }
+            return wireMap;
+        }
+
+        /**
+         * Resolves a group of root modules, in order, with the specified
+         * resolver and marks the resulting modules as resolved, so subsequent
+         * roots in the group see them as resolved. The results are added to
+         * the specified maps, which are shared among resolver threads.
+         * @param roots pairs of the original root module and the module to
+         *        actually resolve, which differ for fragments.
+        **/
+        private void resolveGroup(
+            Resolver resolver, ResolverState state, List<Module[]> roots,
+            Map<Module, List<Wire>> wireMap, Map<Module, ResolveException> failures)
+        {
+            for (Module[] root : roots)
+            {
+                Module rootModule = root[0];
+                Module newRootModule = root[1];
+                try
+                {
+                    boolean repeat;
+                    do
+                    {
+                        repeat = false;
+                        if (newRootModule.isResolved())
+                        {
+                            break;
+                        }
+                        try
+                        {
+                            // Resolve the module.
+                            Map<Module, List<Wire>> result =
+                                resolve(resolver, state, newRootModule);
+
+                            // Mark all modules as resolved.
+                            markWiredModules(result);
+                            synchronized (wireMap)
+                            {
+                                wireMap.putAll(result);
+                            }
+                        }
+                        catch (ResolveException ex)
+                        {
+                            if ((ex.getRequirement() != null)
+                                && (ex.getRequirement() instanceof FragmentRequirement)
+                                && (rootModule !=
+                                    ((FragmentRequirement) ex.getRequirement()).getFragment()))
+                            {
+                                synchronized (m_resolverState)
+                                {
+                                    m_resolverState.detachFragment(
+                                        newRootModule,
+                                        ((FragmentRequirement) ex.getRequirement()).getFragment());
+                                }
+                                repeat = true;
+                            }
+                            else
+                            {
+                                throw ex;
+                            }
+                        }
+                    }
+                    while (repeat);
+                }
+                catch (ResolveException ex)
+                {
+                    synchronized (failures)
+                    {
+                        failures.put(rootModule, ex);
+                    }
+                }
+                catch (Throwable th)
+                {
+                    m_logger.log(rootModule.getBundle(),
+                        Logger.LOG_ERROR, "Unexpected error during resolve.", th);
+                    synchronized (failures)
+                    {
+                        failures.put(rootModule,
+                            new ResolveException(th.toString(), rootModule, null));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Partitions the specified root modules into groups, such that the
+         * unresolved modules reachable from the requirement candidates of the
+         * roots of one group are disjoint from those of any other group.
+         * @param roots pairs of the original root module and the module to
+         *        actually resolve.
+         * @return the groups in the order of their first root.
+        **/
+        private List<List<Module[]>> partitionRoots(List<Module[]> roots)
+        {
+            // Maps each visited unresolved module to the index of the first
+            // root that reached it, and each root to the root it was merged
+            // with, as a union-find structure.
+            Map<Module, Integer> visited = new HashMap<Module, Integer>();
+            int[] parents = new int[roots.size()];
+            for (int rootIdx = 0; rootIdx < roots.size(); rootIdx++)
+            {
+                parents[rootIdx] = rootIdx;
+                List<Module> queue = new ArrayList<Module>();
+                queue.add(roots.get(rootIdx)[1]);
+                while (!queue.isEmpty())
+                {
+                    Module module = queue.remove(queue.size() - 1);
+                    Integer owner = visited.get(module);
+                    if (owner != null)
+                    {
+                        // Already reached by this or an earlier root, whose
+                        // walk covered everything reachable from here.
+                        union(parents, owner.intValue(), rootIdx);
+                        continue;
+                    }
+                    visited.put(module, new Integer(rootIdx));
+
+                    List<Requirement> reqs = module.getRequirements();
+                    for (int reqIdx = 0; (reqs != null) && (reqIdx < reqs.size()); reqIdx++)
+                    {
+                        Set<Capability> candidates =
+                            m_resolverState.getCandidates(module, reqs.get(reqIdx), true);
+                        for (Capability cap : candidates)
+                        {
+                            if (!cap.getModule().isResolved())
+                            {
+                                queue.add(cap.getModule());
+                            }
+                        }
+                    }
+                }
+            }
+
+            Map<Integer, List<Module[]>> groups = new LinkedHashMap<Integer, List<Module[]>>();
+            for (int rootIdx = 0; rootIdx < roots.size(); rootIdx++)
+            {
+                Integer group = new Integer(find(parents, rootIdx));
+                List<Module[]> list = groups.get(group);
+                if (list == null)
+                {
+                    list = new ArrayList<Module[]>();
+                    groups.put(group, list);
+                }
+                list.add(roots.get(rootIdx));
+            }
+            return new ArrayList<List<Module[]>>(groups.values());
+        }
+
+        private int find(int[] parents, int idx)
+        {
+            while (parents[idx] != idx)
+            {
+                idx = parents[idx] = parents[parents[idx]];
+            }
+            return idx;
+        }
+
+        private void union(int[] parents, int idx1, int idx2)
+        {
+            int root1 = find(parents, idx1);
+            int root2 = find(parents, idx2);
+            if (root1 != root2)
+            {
+                // Keep the earlier root as representative.
+                parents[Math.max(root1, root2)] = Math.min(root1, root2);
+            }
+        }
+
         public Wire resolve(Module module, String pkgName) throws ResolveException
         {
             Wire candidateWire = null;
@@ -4158,6 +4893,17 @@ public class Felix extends BundleImpl implements Framework
         }
 
         private void markResolvedModules(Map<Module, List<Wire>> wireMap)
+        {
+            markWiredModules(wireMap);
+            markResolvedBundles(wireMap);
+        }
+
+        /**
+         * Sets the wires of the resolved modules and updates the resolver
+         * state. This does not acquire any bundle locks, so it may be called
+         * by resolver threads other than the one holding the global lock.
+        **/
+        private void markWiredModules(Map<Module, List<Wire>> wireMap)
         {
             if (wireMap != null)
             {
@@ -4185,8 +4931,6 @@ public class Felix extends BundleImpl implements Framework
                     for (int i = 0; (fragments != null) && (i < fragments.size()); i++)
                     {
                         ((ModuleImpl) fragments.get(i)).setResolved();
-                        // Update the state of the module's bundle to resolved as well.
-                        markBundleResolved(fragments.get(i));
                         m_logger.log(((ModuleImpl) fragments.get(i)).getBundle(),
                             Logger.LOG_DEBUG,
                             "FRAGMENT WIRE: " + fragments.get(i) + " -> hosted by -> " + module);
@@ -4194,7 +4938,25 @@ public class Felix extends BundleImpl implements Framework
                     // Update the resolver state to show the module as resolved.
                     ((ModuleImpl) module).setResolved();
                     m_resolverState.moduleResolved(module);
-                    // Update the state of the module's bundle to resolved as well.
+                }
+            }
+        }
+
+        private void markResolvedBundles(Map<Module, List<Wire>> wireMap)
+        {
+            if (wireMap != null)
+            {
+                Iterator<Module> iter = wireMap.keySet().iterator();
+                // Iterate over the map to update the state of the resolved
+                // modules' bundles to resolved as well.
+                while (iter.hasNext())
+                {
+                    Module module = iter.next();
+                    List<Module> fragments = ((ModuleImpl) module).getFragments();
+                    for (int i = 0; (fragments != null) && (i < fragments.size()); i++)
+                    {
+                        markBundleResolved(fragments.get(i));
+                    }
                     markBundleResolved(module);
                 }
             }
@@ -4264,6 +5026,40 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Resolver state wrapper used by concurrent resolver threads, which
+     * serializes access to the shared resolver state since it may be
+     * updated by other resolver threads while they are resolving.
+    **/
+    private static class SynchronizedResolverState implements ResolverState
+    {
+        private final FelixResolverState m_state;
+
+        SynchronizedResolverState(FelixResolverState state)
+        {
+            m_state = state;
+        }
+
+        public Set<Capability> getCandidates(
+            Module module, Requirement req, boolean obeyMandatory)
+        {
+            synchronized (m_state)
+            {
+                return m_state.getCandidates(module, req, obeyMandatory);
+            }
+        }
+
+        public void checkExecutionEnvironment(Module module) throws ResolveException
+        {
+            m_state.checkExecutionEnvironment(module);
+        }
+
+        public void checkNativeLibraries(Module module) throws ResolveException
+        {
+            m_state.checkNativeLibraries(module);
+        }
+    }
+
     class SystemBundleActivator implements BundleActivator, Runnable
     {
         public void start(BundleContext context) throws Exception
@@ -4347,20 +5143,35 @@ public class Felix extends BundleImpl implements Framework
             }
 
             // Delete uninstalled bundles.
-            for (int i = 0;
-                (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
-                i++)
+            BundleImpl[] uninstalledBundles = m_bundleRegistry.getUninstalledBundles();
+            for (int i = 0; i < uninstalledBundles.length; i++)
             {
                 try
                 {
-                    m_uninstalledBundles.get(i).closeAndDelete();
+                    uninstalledBundles[i].closeAndDelete();
                 }
                 catch (Exception ex)
                 {
-                    m_logger.log(m_uninstalledBundles.get(i),
+                    m_logger.log(uninstalledBundles[i],
                         Logger.LOG_ERROR,
                         "Unable to remove "
-                        + m_uninstalledBundles.get(i)._getLocation(), ex);
+                        + uninstalledBundles[i]._getLocation(), ex);
+                }
+            }
+
+            // Save the wires of the resolved bundles to avoid resolving
+            // them again on the next start.
+            if (m_resolutionCache != null)
+            {
+                try
+                {
+                    m_resolutionCache.save(
+                        m_cache.getSystemBundleDataFile("resolution.cache"),
+                        getCurrentModules(), getResolutionEnvironment());
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(Logger.LOG_WARNING, "Unable to save resolution.", ex);
                 }
             }
 
@@ -4399,6 +5210,10 @@ public class Felix extends BundleImpl implements Framework
                 m_extensionManager.removeExtensions(Felix.this);
             }
 
+            // Make sure buffered log records of the shutdown are logged
+            // before anyone is told it is complete.
+            m_logger.flush();
+
             // Set the framework state to resolved.
             acquireBundleLock(Felix.this, Bundle.STOPPING);
             try
@@ -4514,6 +5329,21 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    // Holds the state of a bundle being started or stopped concurrently
+    // as part of a start level change.
+    private static class StartLevelTask
+    {
+        final BundleImpl m_bundle;
+        long m_startTime = 0;
+        boolean m_done = false;
+        boolean m_timedOut = false;
+
+        StartLevelTask(BundleImpl bundle)
+        {
+            m_bundle = bundle;
+        }
+    }
+
     // Compares bundles by start level either ascending or
     // descending depending on whether the start level is being
     // lowered or raised. Within a start level sort by bundle ID.
@@ -4572,22 +5402,9 @@ public class Felix extends BundleImpl implements Framework
         }
         try
         {
-            // Verify that the bundle is not already in the array.
-            for (int i = 0;
-                (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
-                i++)
-            {
-                if (m_uninstalledBundles.get(i) == bundle)
-                {
-                    return;
-                }
-            }
-
             // Use a copy-on-write approach to add the bundle
-            // to the uninstalled list.
-            List<BundleImpl> uninstalledBundles = new ArrayList(m_uninstalledBundles);
-            uninstalledBundles.add(bundle);
-            m_uninstalledBundles = uninstalledBundles;
+            // to the uninstalled list, unless it is already in it.
+            m_bundleRegistry = m_bundleRegistry.addUninstalledBundle(bundle);
         }
         finally
         {
@@ -4607,16 +5424,9 @@ public class Felix extends BundleImpl implements Framework
         }
         try
         {
-            if (m_uninstalledBundles == null)
-            {
-                return;
-            }
-
             // Use a copy-on-write approach to remove the bundle
             // from the uninstalled list.
-            List<BundleImpl> uninstalledBundles = new ArrayList(m_uninstalledBundles);
-            uninstalledBundles.remove(bundle);
-            m_uninstalledBundles = uninstalledBundles;
+            m_bundleRegistry = m_bundleRegistry.removeUninstalledBundle(bundle);
         }
         finally
         {
@@ -58,6 +58,11 @@ public class FelixResolverState implements Resolver.ResolverState
     private final String m_fwkExecEnvStr;
     // Parsed framework environments
     private final Set<String> m_fwkExecEnvSet;
+    // Incremented whenever modules are added or removed.
+    private volatile int m_modCount = 0;
+    // Incremented whenever modules are added, removed or resolved, which
+    // invalidates the negative lookup caches of modules.
+    private volatile int m_wiringCount = 0;
 
     public FelixResolverState(Logger logger, String fwkExecEnvStr)
     {
@@ -70,19 +75,31 @@ public class FelixResolverState implements Resolver.ResolverState
 
         List<String> indices = new ArrayList<String>();
         indices.add(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE);
-        m_capSets.put(Capability.MODULE_NAMESPACE, new CapabilitySet(indices, true));
+        List<String> rangeIndices = new ArrayList<String>();
+        rangeIndices.add(Constants.BUNDLE_VERSION_ATTRIBUTE);
+        m_capSets.put(Capability.MODULE_NAMESPACE,
+            new CapabilitySet(indices, rangeIndices, true));
 
         indices = new ArrayList<String>();
         indices.add(Capability.PACKAGE_ATTR);
-        m_capSets.put(Capability.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
+        rangeIndices = new ArrayList<String>();
+        rangeIndices.add(Capability.VERSION_ATTR);
+        m_capSets.put(Capability.PACKAGE_NAMESPACE,
+            new CapabilitySet(indices, rangeIndices, true));
 
         indices = new ArrayList<String>();
         indices.add(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE);
-        m_capSets.put(Capability.HOST_NAMESPACE,  new CapabilitySet(indices, true));
+        rangeIndices = new ArrayList<String>();
+        rangeIndices.add(Constants.BUNDLE_VERSION_ATTRIBUTE);
+        m_capSets.put(Capability.HOST_NAMESPACE,
+            new CapabilitySet(indices, rangeIndices, true));
     }
 
     public synchronized void addModule(Module module)
     {
+        m_modCount++;
+        m_wiringCount++;
+
         if (isSingleton(module))
         {
             // Find the currently selected singleton, which is either the
@@ -133,6 +150,9 @@ public class FelixResolverState implements Resolver.ResolverState
 
     public synchronized void removeModule(Module module)
     {
+        m_wiringCount++;
+        m_modCount++;
+
         // If this module is a singleton, then remove it from the
         // singleton map.
         List<Module> modules = m_singletons.get(module.getSymbolicName());
@@ -679,10 +699,34 @@ public class FelixResolverState implements Resolver.ResolverState
         // to update the resolved capability map.
         List<Capability> caps = module.getCapabilities();
         addCapabilities(caps);
+        m_modCount++;
+        m_wiringCount++;
+    }
+
+    /**
+     * Returns a counter that changes whenever modules are added or removed,
+     * which allows detecting whether the resolver state changed.
+     * @return the modification count.
+    **/
+    int getModificationCount()
+    {
+        return m_modCount;
+    }
+
+    /**
+     * Returns a counter that changes whenever modules are added, removed or
+     * resolved, which allows detecting whether failed lookups may now succeed.
+     * @return the wiring count.
+    **/
+    int getWiringCount()
+    {
+        return m_wiringCount;
     }
 
     public synchronized void moduleResolved(Module module)
     {
+        m_wiringCount++;
+
         if (module.isResolved())
         {
             // Loop through the module's package wires and determine if any
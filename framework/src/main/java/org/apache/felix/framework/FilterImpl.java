@@ -26,6 +26,7 @@ import org.apache.felix.framework.capabilityset.Attribute;
 import org.apache.felix.framework.capabilityset.Capability;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.Directive;
+import org.apache.felix.framework.capabilityset.FilterCache;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.Module;
 import org.apache.felix.framework.util.StringMap;
@@ -41,7 +42,7 @@ public class FilterImpl implements Filter
     {
         try
         {
-            m_filter = SimpleFilter.parse(filterStr);
+            m_filter = FilterCache.parse(filterStr);
         }
         catch (Throwable th)
         {
@@ -40,6 +40,15 @@ import org.osgi.framework.*;
  * instead of printing to standard out. The class uses reflection to invoking
  * the log service's method to avoid a dependency on the log interface.
  * </p>
+ * <p>
+ * Optionally, log records are put into a bounded ring buffer instead of
+ * being logged on the caller's thread. A background thread then takes the
+ * buffered records in batches and logs them to the log service or standard
+ * out. If the buffer is full, the overflow policy either drops the new
+ * record, drops the oldest buffered record or logs the new record on the
+ * caller's thread. Dropped records are counted per log level and reported
+ * as a warning once the buffer drains.
+ * </p>
 **/
 public class Logger implements ServiceListener
 {
@@ -56,6 +65,27 @@ public class Logger implements ServiceListener
     private ServiceReference m_logRef = null;
     private Object[] m_logger = null;
 
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_DROP_OLDEST = "dropoldest";
+    public static final String OVERFLOW_CALLER = "caller";
+
+    private static final int BATCH_SIZE = 64;
+    private static final long IDLE_TIMEOUT = 5000;
+
+    // Asynchronous logging state.
+    // CONCURRENCY: Access guarded by the buffer lock, except for reading
+    // whether records are logged asynchronously.
+    private final Object m_bufferLock = new Object();
+    private volatile boolean m_asynchronous = false;
+    private Object[] m_buffer = null;
+    private int m_bufferHead = 0;
+    private int m_bufferCount = 0;
+    private String m_overflowPolicy = OVERFLOW_DROP;
+    private Thread m_drainThread = null;
+    private boolean m_draining = false;
+    private final long[] m_droppedCounts = new long[LOG_DEBUG + 1];
+    private long m_unreportedDrops = 0;
+
     public Logger()
     {
     }
@@ -70,6 +100,102 @@ public class Logger implements ServiceListener
         return m_logLevel;
     }
 
+    /**
+     * Configures whether records are logged asynchronously. Records already
+     * in the buffer are logged before switching to synchronous logging.
+     * @param bufferSize the maximum number of buffered records or zero to
+     *        log records on the caller's thread.
+     * @param overflowPolicy one of <tt>OVERFLOW_DROP</tt>,
+     *        <tt>OVERFLOW_DROP_OLDEST</tt> or <tt>OVERFLOW_CALLER</tt>.
+    **/
+    public final void setAsynchronous(int bufferSize, String overflowPolicy)
+    {
+        synchronized (m_bufferLock)
+        {
+            if (!OVERFLOW_DROP_OLDEST.equals(overflowPolicy)
+                && !OVERFLOW_CALLER.equals(overflowPolicy))
+            {
+                overflowPolicy = OVERFLOW_DROP;
+            }
+            m_overflowPolicy = overflowPolicy;
+
+            if ((bufferSize > 0) && ((m_buffer == null) || (m_buffer.length != bufferSize)))
+            {
+                // Keep the most recent buffered records.
+                Object[] buffer = new Object[bufferSize];
+                int skip = Math.max(0, m_bufferCount - bufferSize);
+                for (int i = skip; i < m_bufferCount; i++)
+                {
+                    buffer[i - skip] = m_buffer[(m_bufferHead + i) % m_buffer.length];
+                }
+                m_unreportedDrops += skip;
+                m_bufferHead = 0;
+                m_bufferCount -= skip;
+                m_buffer = buffer;
+            }
+            m_asynchronous = (bufferSize > 0);
+        }
+        if (bufferSize <= 0)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the number of records that were dropped since the buffer
+     * was full.
+     * @return the number of dropped records.
+    **/
+    public final long getDroppedCount()
+    {
+        synchronized (m_bufferLock)
+        {
+            long count = 0;
+            for (int i = 0; i < m_droppedCounts.length; i++)
+            {
+                count += m_droppedCounts[i];
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of records of the specified log level that were
+     * dropped since the buffer was full.
+     * @param level the log level.
+     * @return the number of dropped records of the log level.
+    **/
+    public final long getDroppedCount(int level)
+    {
+        synchronized (m_bufferLock)
+        {
+            return m_droppedCounts[((level > 0) && (level <= LOG_DEBUG)) ? level : 0];
+        }
+    }
+
+    /**
+     * Waits until all buffered records are logged.
+    **/
+    public final void flush()
+    {
+        synchronized (m_bufferLock)
+        {
+            while (((m_bufferCount > 0) || m_draining)
+                && (m_drainThread != null) && (m_drainThread != Thread.currentThread()))
+            {
+                try
+                {
+                    m_bufferLock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     protected void setSystemBundleContext(BundleContext context)
     {
         // TODO: Find a way to log to a log service inside the framework.
@@ -153,26 +279,102 @@ public class Logger implements ServiceListener
     private void _log(
         Bundle bundle, ServiceReference sr, int level,
         String msg, Throwable throwable)
+    {
+        if (m_logLevel >= level)
+        {
+            if (!m_asynchronous || !enqueue(bundle, sr, level, msg, throwable))
+            {
+                dispatch(bundle, sr, level, msg, throwable);
+            }
+        }
+    }
+
+    private void dispatch(
+        Bundle bundle, ServiceReference sr, int level,
+        String msg, Throwable throwable)
     {
         // Save our own copy just in case it changes. We could try to do
         // more conservative locking here, but let's be optimistic.
         Object[] logger = m_logger;
 
-        if (m_logLevel >= level)
+        // Use the log service if available.
+        if (logger != null)
         {
-            // Use the log service if available.
-            if (logger != null)
+            _logReflectively(logger, sr, level, msg, throwable);
+        }
+        // Otherwise, default logging action.
+        else
+        {
+            doLog(bundle, sr, level, msg, throwable);
+        }
+    }
+
+    /**
+     * Puts a record into the ring buffer and makes sure the background
+     * thread is draining it.
+     * @return <tt>false</tt> if the record must be logged on the caller's
+     *         thread instead.
+    **/
+    private boolean enqueue(
+        Bundle bundle, ServiceReference sr, int level,
+        String msg, Throwable throwable)
+    {
+        synchronized (m_bufferLock)
+        {
+            // Records logged while draining, such as by a log service
+            // calling back into the framework, are logged directly.
+            if (!m_asynchronous || (m_drainThread == Thread.currentThread()))
             {
-                _logReflectively(logger, sr, level, msg, throwable);
+                return false;
             }
-            // Otherwise, default logging action.
-            else
+
+            Object[] buffer = m_buffer;
+
+            if (m_bufferCount == buffer.length)
             {
-                doLog(bundle, sr, level, msg, throwable);
+                if (OVERFLOW_CALLER.equals(m_overflowPolicy))
+                {
+                    return false;
+                }
+                else if (OVERFLOW_DROP_OLDEST.equals(m_overflowPolicy))
+                {
+                    countDrop(((LogRecord) buffer[m_bufferHead]).m_level);
+                    buffer[m_bufferHead] = null;
+                    m_bufferHead = (m_bufferHead + 1) % buffer.length;
+                    m_bufferCount--;
+                }
+                else
+                {
+                    countDrop(level);
+                    return true;
+                }
             }
+
+            buffer[(m_bufferHead + m_bufferCount) % buffer.length] =
+                new LogRecord(bundle, sr, level, msg, throwable);
+            m_bufferCount++;
+
+            if (m_drainThread == null)
+            {
+                m_drainThread = new Thread(new Drainer(), "FelixLogger");
+                m_drainThread.setDaemon(true);
+                m_drainThread.start();
+            }
+            else if (m_bufferCount == 1)
+            {
+                m_bufferLock.notifyAll();
+            }
+            return true;
         }
     }
 
+    // Must be called while holding the buffer lock.
+    private void countDrop(int level)
+    {
+        m_droppedCounts[((level > 0) && (level <= LOG_DEBUG)) ? level : 0]++;
+        m_unreportedDrops++;
+    }
+
     private void _logReflectively(
         Object[] logger, ServiceReference sr, int level, String msg, Throwable throwable)
     {
@@ -311,4 +513,97 @@ public class Logger implements ServiceListener
             }
         }
     }
-}
\ No newline at end of file
+
+    private static class LogRecord
+    {
+        private final Bundle m_bundle;
+        private final ServiceReference m_sr;
+        private final int m_level;
+        private final String m_msg;
+        private final Throwable m_throwable;
+
+        LogRecord(Bundle bundle, ServiceReference sr, int level,
+            String msg, Throwable throwable)
+        {
+            m_bundle = bundle;
+            m_sr = sr;
+            m_level = level;
+            m_msg = msg;
+            m_throwable = throwable;
+        }
+    }
+
+    /**
+     * Takes buffered records in batches and logs them. The thread ends
+     * once the buffer stays empty for a while and is started again by the
+     * next buffered record.
+    **/
+    private class Drainer implements Runnable
+    {
+        public void run()
+        {
+            LogRecord[] batch = new LogRecord[BATCH_SIZE];
+            while (true)
+            {
+                int count;
+                long drops;
+                synchronized (m_bufferLock)
+                {
+                    m_draining = false;
+                    if (m_bufferCount == 0)
+                    {
+                        // Wake up threads waiting for the buffer to drain.
+                        m_bufferLock.notifyAll();
+                        try
+                        {
+                            m_bufferLock.wait(IDLE_TIMEOUT);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // Check the buffer and end if it is empty.
+                        }
+                        if (m_bufferCount == 0)
+                        {
+                            m_drainThread = null;
+                            m_bufferLock.notifyAll();
+                            return;
+                        }
+                    }
+
+                    Object[] buffer = m_buffer;
+                    count = Math.min(m_bufferCount, BATCH_SIZE);
+                    for (int i = 0; i < count; i++)
+                    {
+                        batch[i] = (LogRecord) buffer[m_bufferHead];
+                        buffer[m_bufferHead] = null;
+                        m_bufferHead = (m_bufferHead + 1) % buffer.length;
+                    }
+                    m_bufferCount -= count;
+                    drops = m_unreportedDrops;
+                    m_unreportedDrops = 0;
+                    m_draining = true;
+                }
+
+                if (drops > 0)
+                {
+                    dispatch(null, null, LOG_WARNING,
+                        "Dropped " + drops + " log records, since the log buffer was full.",
+                        null);
+                }
+                for (int i = 0; i < count; i++)
+                {
+                    LogRecord r = batch[i];
+                    batch[i] = null;
+                    try
+                    {
+                        dispatch(r.m_bundle, r.m_sr, r.m_level, r.m_msg, r.m_throwable);
+                    }
+                    catch (Throwable t)
+                    {
+                        System.err.println("Logger: " + t);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -18,14 +18,19 @@
  */
 package org.apache.felix.framework;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -61,6 +66,7 @@ import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.CapabilityImpl;
+import org.apache.felix.framework.util.manifestparser.ManifestCache;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.apache.felix.framework.util.manifestparser.R4Library;
 import org.apache.felix.framework.util.manifestparser.RequirementImpl;
@@ -100,15 +106,19 @@ public class ModuleImpl implements Module
 
     private List<Module> m_fragments = null;
     private List<Wire> m_wires = null;
+    // Immutable map from package names to the wires that may provide them,
+    // rebuilt whenever the wires change.
+    private volatile Map<String, Wire[]> m_wiresByPackage =
+        Collections.<String, Wire[]>emptyMap();
     private List<Module> m_dependentHosts = new ArrayList<Module>(0);
     private List<Module> m_dependentImporters = new ArrayList<Module>(0);
     private List<Module> m_dependentRequirers = new ArrayList<Module>(0);
     private volatile boolean m_isResolved = false;
 
-    private Content[] m_contentPath;
+    private volatile Content[] m_contentPath;
     private Content[] m_fragmentContents = null;
-    private ModuleClassLoader m_classLoader;
-    private boolean m_isActivationTriggered = false;
+    private volatile ModuleClassLoader m_classLoader;
+    private volatile boolean m_isActivationTriggered = false;
     private ProtectionDomain m_protectionDomain = null;
     private static SecureAction m_secureAction = new SecureAction();
 
@@ -146,6 +156,9 @@ public class ModuleImpl implements Module
     // Boolean flag to enable/disable implicit boot delegation.
     private final boolean m_implicitBootDelegation;
 
+    // Cache of failed dynamic import and boot delegation lookups, if enabled.
+    private final NegativeLookupCache m_negativeLookupCache;
+
     // Re-usable security manager for accessing class context.
     private static SecurityManagerEx m_sm = new SecurityManagerEx();
 
@@ -155,9 +168,32 @@ public class ModuleImpl implements Module
     // Thread local to keep track of deferred activation.
     private static final ThreadLocal m_deferredActivation = new ThreadLocal();
 
+    // Default maximum number of failed lookups cached per module.
+    private static final int NEGATIVE_LOOKUP_CACHE_SIZE_DEFAULT = 1000;
+
     // Flag indicating whether we are on an old JVM or not.
     private volatile static boolean m_isPreJava5 = false;
 
+    // The method registering class loaders as parallel capable on Java 7
+    // and later; the module class loaders call it from their static
+    // initializers, since it registers the calling class.
+    private static final Method m_registerAsParallelCapable;
+
+    static
+    {
+        Method registerAsParallelCapable = null;
+        try
+        {
+            registerAsParallelCapable = m_secureAction.getDeclaredMethod(
+                ClassLoader.class, "registerAsParallelCapable", null);
+        }
+        catch (Throwable ex)
+        {
+            // Not supported on this platform.
+        }
+        m_registerAsParallelCapable = registerAsParallelCapable;
+    }
+
     static ThreadLocal<Boolean> m_jarUrl = new ThreadLocal<Boolean>() {
         @Override
         protected Boolean initialValue() {
@@ -201,13 +237,14 @@ public class ModuleImpl implements Module
         m_activationExcludes = null;
         m_activationIncludes = null;
         m_implicitBootDelegation = false;
+        m_negativeLookupCache = null;
         m_bootClassLoader = m_defBootClassLoader;
     }
 
     public ModuleImpl(
         Logger logger, Map configMap, FelixResolver resolver,
         Bundle bundle, String id, Map headerMap, Content content,
-        URLStreamHandler streamHandler, String[] bootPkgs,
+        File manifestCacheFile, URLStreamHandler streamHandler, String[] bootPkgs,
         boolean[] bootPkgWildcards)
         throws BundleException
     {
@@ -222,6 +259,23 @@ public class ModuleImpl implements Module
         m_bootPkgs = bootPkgs;
         m_bootPkgWildcards = bootPkgWildcards;
 
+        int negativeLookupCacheSize = NEGATIVE_LOOKUP_CACHE_SIZE_DEFAULT;
+        try
+        {
+            String value = (String) m_configMap.get(
+                FelixConstants.NEGATIVE_LOOKUP_CACHE_SIZE_PROP);
+            if (value != null)
+            {
+                negativeLookupCacheSize = Integer.parseInt(value.trim());
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just use the default.
+        }
+        m_negativeLookupCache = (negativeLookupCacheSize > 0)
+            ? new NegativeLookupCache(negativeLookupCacheSize) : null;
+
         m_implicitBootDelegation =
             (m_configMap.get(FelixConstants.IMPLICIT_BOOT_DELEGATION_PROP) == null)
             || Boolean.valueOf(
@@ -240,7 +294,7 @@ public class ModuleImpl implements Module
         }
         m_bootClassLoader = bootLoader;
 
-        ManifestParser mp = new ManifestParser(m_logger, m_configMap, this, m_headerMap);
+        ManifestParser mp = parseManifest(manifestCacheFile);
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -262,6 +316,92 @@ public class ModuleImpl implements Module
         m_isExtension = mp.isExtension();
     }
 
+    /**
+     * Returns the parsed manifest metadata of this module, which is read
+     * from the specified cache file if it holds the metadata for the current
+     * headers. Otherwise, the manifest is parsed and the cache file is
+     * written for the next time the module is created.
+     * @param cacheFile the cache file or <tt>null</tt> if there is none.
+     * @return the parsed manifest metadata.
+     * @throws BundleException if the manifest is invalid.
+    **/
+    private ManifestParser parseManifest(File cacheFile) throws BundleException
+    {
+        if (cacheFile == null)
+        {
+            return new ManifestParser(m_logger, m_configMap, this, m_headerMap);
+        }
+
+        InputStream is = null;
+        try
+        {
+            is = m_secureAction.getFileInputStream(cacheFile);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                bytes.write(buf, 0, n);
+            }
+            ManifestParser mp = ManifestCache.read(
+                bytes.toByteArray(), m_logger, m_configMap, this, m_headerMap);
+            if (mp != null)
+            {
+                return mp;
+            }
+        }
+        catch (FileNotFoundException ex)
+        {
+            // The manifest was not cached yet.
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG,
+                "Ignoring corrupt manifest cache: " + cacheFile, ex);
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+
+        ManifestParser mp = new ManifestParser(m_logger, m_configMap, this, m_headerMap);
+
+        OutputStream os = null;
+        try
+        {
+            byte[] bytes = ManifestCache.write(mp, m_headerMap);
+            os = m_secureAction.getFileOutputStream(cacheFile);
+            os.write(bytes);
+            os.close();
+            os = null;
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG,
+                "Unable to cache manifest: " + cacheFile, ex);
+            try
+            {
+                if (os != null)
+                {
+                    os.close();
+                    m_secureAction.deleteFile(cacheFile);
+                }
+            }
+            catch (IOException ex2)
+            {
+                // Not much we can do.
+            }
+        }
+
+        return mp;
+    }
+
     //
     // Metadata access methods.
     //
@@ -466,6 +606,11 @@ public class ModuleImpl implements Module
         return m_id;
     }
 
+    NegativeLookupCache getNegativeLookupCache()
+    {
+        return m_negativeLookupCache;
+    }
+
     public synchronized List<Wire> getWires()
     {
         return m_wires;
@@ -489,6 +634,11 @@ public class ModuleImpl implements Module
         }
 
         m_wires = wires;
+        m_wiresByPackage = createWiresByPackage(wires);
+        if (m_negativeLookupCache != null)
+        {
+            m_negativeLookupCache.clear();
+        }
 
         // Add ourself as a dependent to the new wires' modules.
         for (int i = 0; (m_wires != null) && (i < m_wires.size()); i++)
@@ -504,6 +654,54 @@ public class ModuleImpl implements Module
         }
     }
 
+    private static Map<String, Wire[]> createWiresByPackage(List<Wire> wires)
+    {
+        if ((wires == null) || wires.isEmpty())
+        {
+            return Collections.<String, Wire[]>emptyMap();
+        }
+
+        // Keep the wires of each package in the order of the wire list,
+        // since that is the order in which they have to be searched.
+        Map<String, List<Wire>> lists = new HashMap<String, List<Wire>>();
+        for (int i = 0; i < wires.size(); i++)
+        {
+            Wire wire = wires.get(i);
+            if (wire instanceof WireModuleImpl)
+            {
+                List<String> pkgs = ((WireModuleImpl) wire).getPackages();
+                for (int pkgIdx = 0; pkgIdx < pkgs.size(); pkgIdx++)
+                {
+                    addWire(lists, pkgs.get(pkgIdx), wire);
+                }
+            }
+            else if (wire.getCapability().getNamespace().equals(Capability.PACKAGE_NAMESPACE))
+            {
+                addWire(lists, (String) wire.getCapability()
+                    .getAttribute(Capability.PACKAGE_ATTR).getValue(), wire);
+            }
+        }
+
+        Map<String, Wire[]> wiresByPackage = new HashMap<String, Wire[]>(lists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Wire>> entry : lists.entrySet())
+        {
+            wiresByPackage.put(entry.getKey(),
+                entry.getValue().toArray(new Wire[entry.getValue().size()]));
+        }
+        return wiresByPackage;
+    }
+
+    private static void addWire(Map<String, List<Wire>> lists, String pkgName, Wire wire)
+    {
+        List<Wire> list = lists.get(pkgName);
+        if (list == null)
+        {
+            list = new ArrayList<Wire>(1);
+            lists.put(pkgName, list);
+        }
+        list.add(wire);
+    }
+
     public boolean isResolved()
     {
         return m_isResolved;
@@ -523,7 +721,13 @@ public class ModuleImpl implements Module
         return m_content;
     }
 
-    private synchronized Content[] getContentPath()
+    private Content[] getContentPath()
+    {
+        Content[] contentPath = m_contentPath;
+        return (contentPath != null) ? contentPath : initializeContentPathOnce();
+    }
+
+    private synchronized Content[] initializeContentPathOnce()
     {
         if (m_contentPath == null)
         {
@@ -691,27 +895,55 @@ public class ModuleImpl implements Module
                 // property to the parent class loader.
                 if (shouldBootDelegate(pkgName))
                 {
-                    try
+                    // Skip lookups that are known to fail.
+                    char type = (isClass)
+                        ? NegativeLookupCache.BOOT_DELEGATION_CLASS
+                        : NegativeLookupCache.BOOT_DELEGATION_RESOURCE;
+                    int wiringCount = m_resolver.getWiringCount();
+                    if ((m_negativeLookupCache != null)
+                        && m_negativeLookupCache.contains(type, name, wiringCount))
                     {
-                        // Get the appropriate class loader for delegation.
-                        ClassLoader bdcl = getBootDelegationClassLoader();
-                        result = (isClass)
-                            ? (Object) bdcl.loadClass(name)
-                            : (Object) bdcl.getResource(name);
-                        // If this is a java.* package, then always terminate the
-                        // search; otherwise, continue to look locally if not found.
-                        if (pkgName.startsWith("java.") || (result != null))
+                        if (pkgName.startsWith("java."))
                         {
-                            return result;
+                            if (isClass)
+                            {
+                                throw new ClassNotFoundException(name);
+                            }
+                            return null;
                         }
                     }
-                    catch (ClassNotFoundException ex)
+                    else
                     {
-                        // If this is a java.* package, then always terminate the
-                        // search; otherwise, continue to look locally if not found.
-                        if (pkgName.startsWith("java."))
+                        try
+                        {
+                            // Get the appropriate class loader for delegation.
+                            ClassLoader bdcl = getBootDelegationClassLoader();
+                            result = (isClass)
+                                ? (Object) bdcl.loadClass(name)
+                                : (Object) bdcl.getResource(name);
+                            if ((result == null) && (m_negativeLookupCache != null))
+                            {
+                                m_negativeLookupCache.add(type, name, wiringCount);
+                            }
+                            // If this is a java.* package, then always terminate the
+                            // search; otherwise, continue to look locally if not found.
+                            if (pkgName.startsWith("java.") || (result != null))
+                            {
+                                return result;
+                            }
+                        }
+                        catch (ClassNotFoundException ex)
                         {
-                            throw ex;
+                            if (m_negativeLookupCache != null)
+                            {
+                                m_negativeLookupCache.add(type, name, wiringCount);
+                            }
+                            // If this is a java.* package, then always terminate the
+                            // search; otherwise, continue to look locally if not found.
+                            if (pkgName.startsWith("java."))
+                            {
+                                throw ex;
+                            }
                         }
                     }
                 }
@@ -719,7 +951,7 @@ public class ModuleImpl implements Module
                 // Look in the module's imports. Note that the search may
                 // be aborted if this method throws an exception, otherwise
                 // it continues if a null is returned.
-                result = searchImports(name, isClass);
+                result = searchImports(name, pkgName, isClass);
 
                 // If not found, try the module's own class path.
                 if (result == null)
@@ -907,15 +1139,15 @@ public class ModuleImpl implements Module
 
         // Note that the search may be aborted if this method throws an
         // exception, otherwise it continues if a null is returned.
-        List<Wire> wires = getWires();
-        for (int i = 0; (wires != null) && (i < wires.size()); i++)
+        Wire[] wires = m_wiresByPackage.get(pkgName);
+        for (int i = 0; (wires != null) && (i < wires.length); i++)
         {
-            if (wires.get(i) instanceof WireImpl)
+            if (wires[i] instanceof WireImpl)
             {
                 try
                 {
                     // If we find the class or resource, then return it.
-                    urls = wires.get(i).getResources(name);
+                    urls = wires[i].getResources(name);
                 }
                 catch (ResourceNotFoundException ex)
                 {
@@ -933,14 +1165,14 @@ public class ModuleImpl implements Module
         // See whether we can get the resource from the required bundles and
         // regardless of whether or not this is the case continue to the next
         // step potentially passing on the result of this search (if any).
-        for (int i = 0; (wires != null) && (i < wires.size()); i++)
+        for (int i = 0; (wires != null) && (i < wires.length); i++)
         {
-            if (wires.get(i) instanceof WireModuleImpl)
+            if (wires[i] instanceof WireModuleImpl)
             {
                 try
                 {
                     // If we find the class or resource, then add it.
-                    urls = wires.get(i).getResources(name);
+                    urls = wires[i].getResources(name);
                 }
                 catch (ResourceNotFoundException ex)
                 {
@@ -1159,6 +1391,12 @@ public class ModuleImpl implements Module
 
     public synchronized void attachFragments(List<Module> fragments) throws Exception
     {
+        // Fragments may add dynamic imports.
+        if (m_negativeLookupCache != null)
+        {
+            m_negativeLookupCache.clear();
+        }
+
         // Remove module from old fragment dependencies.
         // We will generally only remove module fragment
         // dependencies when we are uninstalling the module.
@@ -1310,7 +1548,13 @@ public class ModuleImpl implements Module
         return m_id;
     }
 
-    private synchronized ModuleClassLoader getClassLoader()
+    private ModuleClassLoader getClassLoader()
+    {
+        ModuleClassLoader classLoader = m_classLoader;
+        return (classLoader != null) ? classLoader : createClassLoader();
+    }
+
+    private synchronized ModuleClassLoader createClassLoader()
     {
         if (m_classLoader == null)
         {
@@ -1390,17 +1634,18 @@ public class ModuleImpl implements Module
         return parent;
     }
 
-    private Object searchImports(String name, boolean isClass)
+    private Object searchImports(String name, String pkgName, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
-        // We delegate to the module's wires to find the class or resource.
-        List<Wire> wires = getWires();
-        for (int i = 0; (wires != null) && (i < wires.size()); i++)
+        // We delegate to the module's wires for the package to find the
+        // class or resource.
+        Wire[] wires = m_wiresByPackage.get(pkgName);
+        for (int i = 0; (wires != null) && (i < wires.length); i++)
         {
             // If we find the class or resource, then return it.
             Object result = (isClass)
-                ? (Object) wires.get(i).getClass(name)
-                : (Object) wires.get(i).getResource(name);
+                ? (Object) wires[i].getClass(name)
+                : (Object) wires[i].getResource(name);
             if (result != null)
             {
                 return result;
@@ -1417,14 +1662,27 @@ public class ModuleImpl implements Module
         // At this point, the module's imports were searched and so was the
         // the module's content. Now we make an attempt to load the
         // class/resource via a dynamic import, if possible.
+        // Packages that could not be dynamically imported are not tried
+        // again until the wiring changes.
         Wire wire = null;
-        try
+        int wiringCount = m_resolver.getWiringCount();
+        if ((m_negativeLookupCache == null)
+            || !m_negativeLookupCache.contains(
+                NegativeLookupCache.DYNAMIC_IMPORT, pkgName, wiringCount))
         {
-            wire = m_resolver.resolve(this, pkgName);
-        }
-        catch (ResolveException ex)
-        {
-            // Ignore this since it is likely normal.
+            try
+            {
+                wire = m_resolver.resolve(this, pkgName);
+            }
+            catch (ResolveException ex)
+            {
+                // Ignore this since it is likely normal.
+            }
+            if ((wire == null) && (m_negativeLookupCache != null))
+            {
+                m_negativeLookupCache.add(
+                    NegativeLookupCache.DYNAMIC_IMPORT, pkgName, wiringCount);
+            }
         }
 
         // If the dynamic import was successful, then this initial
@@ -1442,7 +1700,7 @@ public class ModuleImpl implements Module
 
         // If implicit boot delegation is enabled, then try to guess whether
         // we should boot delegate.
-        if (m_implicitBootDelegation)
+        if (m_implicitBootDelegation && !isMissingFromParent(name, isClass))
         {
             // At this point, the class/resource could not be found by the bundle's
             // static or dynamic imports, nor its own content. Before we throw
@@ -1568,6 +1826,49 @@ public class ModuleImpl implements Module
         return null;
     }
 
+    /**
+     * Implicit boot delegation can only succeed if the class loader of the
+     * framework has the class or resource, so this checks that first to avoid
+     * walking the call stack for lookups that fail anyway.
+    **/
+    private boolean isMissingFromParent(String name, boolean isClass)
+    {
+        ClassLoader parent = this.getClass().getClassLoader();
+        if ((m_negativeLookupCache == null) || (parent == null))
+        {
+            return false;
+        }
+
+        char type = (isClass)
+            ? NegativeLookupCache.PARENT_CLASS : NegativeLookupCache.PARENT_RESOURCE;
+        int wiringCount = m_resolver.getWiringCount();
+        if (m_negativeLookupCache.contains(type, name, wiringCount))
+        {
+            return true;
+        }
+
+        boolean missing;
+        try
+        {
+            missing = (isClass)
+                ? (parent.loadClass(name) == null)
+                : (parent.getResource(name) == null);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            missing = true;
+        }
+        catch (NoClassDefFoundError ex)
+        {
+            missing = true;
+        }
+        if (missing)
+        {
+            m_negativeLookupCache.add(type, name, wiringCount);
+        }
+        return missing;
+    }
+
     private boolean isClassNotLoadedFromBundle(Class clazz)
     {
         // If this is an inner class, try to get the enclosing class
@@ -1703,11 +2004,27 @@ public class ModuleImpl implements Module
         m_dexFileClassLoadClass = dexFileClassLoadClass;
     }
 
-    public class ModuleClassLoaderJava5 extends ModuleClassLoader
+    public static class ModuleClassLoaderJava5 extends ModuleClassLoader
     {
-        public ModuleClassLoaderJava5(ClassLoader parent)
+        static
         {
-            super(parent);
+            // Must be invoked from this class to register it.
+            if (m_registerAsParallelCapable != null)
+            {
+                try
+                {
+                    m_registerAsParallelCapable.invoke(null, (Object[]) null);
+                }
+                catch (Throwable ex)
+                {
+                    // Ignore and load classes sequentially.
+                }
+            }
+        }
+
+        public ModuleClassLoaderJava5(ModuleImpl module, ClassLoader parent)
+        {
+            super(module, parent);
         }
 
         public Enumeration getResources(String name)
@@ -1716,7 +2033,7 @@ public class ModuleImpl implements Module
             try
             {
                 m_jarUrl.set(true);
-                return ModuleImpl.this.getResourcesByDelegation(name);
+                return m_module.getResourcesByDelegation(name);
             }
             finally
             {
@@ -1726,20 +2043,48 @@ public class ModuleImpl implements Module
 
         protected Enumeration findResources(String name)
         {
-            return getResourcesLocal(name);
+            return m_module.getResourcesLocal(name);
+        }
+
+        protected Class defineClass(String name, ByteBuffer buffer)
+        {
+            return defineClass(name, buffer, m_module.m_protectionDomain);
         }
     }
 
-    public class ModuleClassLoader extends SecureClassLoader implements BundleReference
+    public static class ModuleClassLoader extends SecureClassLoader implements BundleReference
     {
+        static
+        {
+            // Must be invoked from this class to register it, before any
+            // subclass can be registered.
+            if (m_registerAsParallelCapable != null)
+            {
+                try
+                {
+                    m_registerAsParallelCapable.invoke(null, (Object[]) null);
+                }
+                catch (Throwable ex)
+                {
+                    // Ignore and load classes sequentially.
+                }
+            }
+        }
+
+        final ModuleImpl m_module;
         private final Map m_jarContentToDexFile;
         private Object[][] m_cachedLibs = new Object[0][];
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
 
-        public ModuleClassLoader(ClassLoader parent)
+        // Locks of the classes being defined, so that different classes can
+        // be defined concurrently.
+        private final Map m_classLocks = new HashMap();
+
+        public ModuleClassLoader(ModuleImpl module, ClassLoader parent)
         {
             super(parent);
+            m_module = module;
             if (m_dexFileClassLoadClass != null)
             {
                 m_jarContentToDexFile = new HashMap();
@@ -1752,25 +2097,22 @@ public class ModuleImpl implements Module
 
         public Bundle getBundle()
         {
-            return ModuleImpl.this.getBundle();
+            return m_module.getBundle();
         }
 
         protected Class loadClass(String name, boolean resolve)
             throws ClassNotFoundException
         {
-            Class clazz = null;
-
-            // Make sure the class was not already loaded.
-            synchronized (this)
-            {
-                clazz = findLoadedClass(name);
-            }
+            // Make sure the class was not already loaded. No lock is held
+            // while delegating, so that loading classes through cyclic
+            // imports cannot deadlock.
+            Class clazz = findLoadedClass(name);
 
             if (clazz == null)
             {
                 try
                 {
-                    clazz = (Class) findClassOrResourceByDelegation(name, true);
+                    clazz = (Class) m_module.findClassOrResourceByDelegation(name, true);
                 }
                 catch (ResourceNotFoundException ex)
                 {
@@ -1781,9 +2123,9 @@ public class ModuleImpl implements Module
                 {
                     ClassNotFoundException ex = cnfe;
                     String msg = name;
-                    if (m_logger.getLogLevel() >= Logger.LOG_DEBUG)
+                    if (m_module.m_logger.getLogLevel() >= Logger.LOG_DEBUG)
                     {
-                        msg = diagnoseClassLoadError(m_resolver, ModuleImpl.this, name);
+                        msg = diagnoseClassLoadError(m_module.m_resolver, m_module, name);
                         ex = (msg != null)
                             ? new ClassNotFoundException(msg, cnfe)
                             : ex;
@@ -1810,124 +2152,153 @@ public class ModuleImpl implements Module
                 String actual = name.replace('.', '/') + ".class";
 
                 byte[] bytes = null;
+                ByteBuffer buffer = null;
 
-                // Check the module class path.
-                Content[] contentPath = getContentPath();
+                // Check the module class path, preferring to define classes
+                // straight from memory-mapped JAR files.
+                Content[] contentPath = m_module.getContentPath();
                 Content content = null;
                 for (int i = 0;
-                    (bytes == null) &&
+                    (bytes == null) && (buffer == null) &&
                     (i < contentPath.length); i++)
                 {
-                    bytes = contentPath[i].getEntryAsBytes(actual);
+                    if (contentPath[i] instanceof JarContent)
+                    {
+                        buffer = ((JarContent) contentPath[i]).getEntryAsByteBuffer(actual);
+                    }
+                    if (buffer == null)
+                    {
+                        bytes = contentPath[i].getEntryAsBytes(actual);
+                    }
                     content = contentPath[i];
                 }
 
-                if (bytes != null)
+                if ((bytes != null) || (buffer != null))
                 {
                     // Get package name.
                     String pkgName = Util.getClassPackage(name);
 
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
+                    // the lock for this class name and make sure than no
                     // other thread has defined this class in the meantime.
-                    synchronized (this)
+                    ClassLock lock = lockClass(name);
+                    try
                     {
-                        clazz = findLoadedClass(name);
-
-                        if (clazz == null)
+                        synchronized (lock)
                         {
-                            int activationPolicy = 
-                                ((BundleImpl) getBundle()).isDeclaredActivationPolicyUsed()
-                                ? ((BundleImpl) getBundle()).getCurrentModule().getDeclaredActivationPolicy()
-                                : Module.EAGER_ACTIVATION;
-
-                            // If the module is using deferred activation, then if
-                            // we load this class from this module we need to activate
-                            // the module before returning the class. We will short
-                            // circuit the trigger matching if the trigger is already
-                            // tripped.
-                            boolean isTriggerClass = m_isActivationTriggered
-                                ? false : isActivationTrigger(pkgName);
-                            if (!m_isActivationTriggered
-                                && isTriggerClass
-                                && (activationPolicy == Module.LAZY_ACTIVATION)
-                                && (getBundle().getState() == Bundle.STARTING))
+                            clazz = findLoadedClass(name);
+
+                            if (clazz == null)
                             {
-                                List deferredList = (List) m_deferredActivation.get();
-                                if (deferredList == null)
+                                int activationPolicy = 
+                                    ((BundleImpl) getBundle()).isDeclaredActivationPolicyUsed()
+                                    ? ((BundleImpl) getBundle()).getCurrentModule().getDeclaredActivationPolicy()
+                                    : Module.EAGER_ACTIVATION;
+
+                                // If the module is using deferred activation, then if
+                                // we load this class from this module we need to activate
+                                // the module before returning the class. We will short
+                                // circuit the trigger matching if the trigger is already
+                                // tripped.
+                                boolean isTriggerClass = m_module.m_isActivationTriggered
+                                    ? false : m_module.isActivationTrigger(pkgName);
+                                if (!m_module.m_isActivationTriggered
+                                    && isTriggerClass
+                                    && (activationPolicy == Module.LAZY_ACTIVATION)
+                                    && (getBundle().getState() == Bundle.STARTING))
+                                {
+                                    List deferredList = (List) m_deferredActivation.get();
+                                    if (deferredList == null)
+                                    {
+                                        deferredList = new ArrayList();
+                                        m_deferredActivation.set(deferredList);
+                                    }
+                                    deferredList.add(new Object[] { name, getBundle() });
+                                }
+                                // We need to try to define a Package object for the class
+                                // before we call defineClass() if we haven't already
+                                // created it.
+                                if (pkgName.length() > 0)
                                 {
-                                    deferredList = new ArrayList();
-                                    m_deferredActivation.set(deferredList);
+                                    if (getPackage(pkgName) == null)
+                                    {
+                                        try
+                                        {
+                                            Object[] params = definePackage(pkgName);
+                                            if (params != null)
+                                            {
+                                                definePackage(
+                                                    pkgName,
+                                                    (String) params[0],
+                                                    (String) params[1],
+                                                    (String) params[2],
+                                                    (String) params[3],
+                                                    (String) params[4],
+                                                    (String) params[5],
+                                                    null);
+                                            }
+                                            else
+                                            {
+                                                definePackage(pkgName, null, null,
+                                                    null, null, null, null, null);
+                                            }
+                                        }
+                                        catch (IllegalArgumentException ex)
+                                        {
+                                            // Another thread defining a class of the
+                                            // same package got there first.
+                                        }
+                                    }
                                 }
-                                deferredList.add(new Object[] { name, getBundle() });
-                            }
-                            // We need to try to define a Package object for the class
-                            // before we call defineClass() if we haven't already
-                            // created it.
-                            if (pkgName.length() > 0)
-                            {
-                                if (getPackage(pkgName) == null)
+
+                                // If we can load the class from a dex file do so
+                                if (content instanceof JarContent)
                                 {
-                                    Object[] params = definePackage(pkgName);
-                                    if (params != null)
+                                    try
                                     {
-                                        definePackage(
-                                            pkgName,
-                                            (String) params[0],
-                                            (String) params[1],
-                                            (String) params[2],
-                                            (String) params[3],
-                                            (String) params[4],
-                                            (String) params[5],
-                                            null);
+                                        clazz = getDexFileClass((JarContent) content, name, this);
                                     }
-                                    else
+                                    catch (Exception ex)
                                     {
-                                        definePackage(pkgName, null, null,
-                                            null, null, null, null, null);
+                                        // Looks like we can't
                                     }
                                 }
-                            }
 
-                            // If we can load the class from a dex file do so
-                            if (content instanceof JarContent)
-                            {
-                                try
+                                if ((clazz == null) && (buffer != null))
                                 {
-                                    clazz = getDexFileClass((JarContent) content, name, this);
+                                    clazz = defineClass(name, buffer);
                                 }
-                                catch (Exception ex)
+                                else if (clazz == null)
                                 {
-                                    // Looks like we can't
+                                    // If we have a security context, then use it to
+                                    // define the class with it for security purposes,
+                                    // otherwise define the class without a protection domain.
+                                    if (m_module.m_protectionDomain != null)
+                                    {
+                                        clazz = defineClass(name, bytes, 0, bytes.length,
+                                            m_module.m_protectionDomain);
+                                    }
+                                    else
+                                    {
+                                        clazz = defineClass(name, bytes, 0, bytes.length);
+                                    }
                                 }
-                            }
 
-                            if (clazz == null)
-                            {
-                                // If we have a security context, then use it to
-                                // define the class with it for security purposes,
-                                // otherwise define the class without a protection domain.
-                                if (m_protectionDomain != null)
-                                {
-                                    clazz = defineClass(name, bytes, 0, bytes.length,
-                                        m_protectionDomain);
-                                }
-                                else
+                                // At this point if we have a trigger class, then the deferred
+                                // activation trigger has tripped.
+                                if (!m_module.m_isActivationTriggered && isTriggerClass && (clazz != null))
                                 {
-                                    clazz = defineClass(name, bytes, 0, bytes.length);
+                                    m_module.m_isActivationTriggered = true;
                                 }
                             }
-
-                            // At this point if we have a trigger class, then the deferred
-                            // activation trigger has tripped.
-                            if (!m_isActivationTriggered && isTriggerClass && (clazz != null))
-                            {
-                                m_isActivationTriggered = true;
-                            }
                         }
                     }
+                    finally
+                    {
+                        unlockClass(name, lock);
+                    }
 
-                    // Perform deferred activation without holding the class loader lock,
+                    // Perform deferred activation without holding the class lock,
                     // if the class we are returning is the instigating class.
                     List deferredList = (List) m_deferredActivation.get();
                     if ((deferredList != null)
@@ -1954,14 +2325,54 @@ public class ModuleImpl implements Module
             return clazz;
         }
 
+        private ClassLock lockClass(String name)
+        {
+            synchronized (m_classLocks)
+            {
+                ClassLock lock = (ClassLock) m_classLocks.get(name);
+                if (lock == null)
+                {
+                    lock = new ClassLock();
+                    m_classLocks.put(name, lock);
+                }
+                lock.m_users++;
+                return lock;
+            }
+        }
+
+        private void unlockClass(String name, ClassLock lock)
+        {
+            synchronized (m_classLocks)
+            {
+                if (--lock.m_users == 0)
+                {
+                    m_classLocks.remove(name);
+                }
+            }
+        }
+
+        /**
+         * Defines a class from a buffer. This implementation copies the buffer
+         * into an array, while the Java 5 class loader defines the class from
+         * the buffer directly.
+        **/
+        protected Class defineClass(String name, ByteBuffer buffer)
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return (m_module.m_protectionDomain != null)
+                ? defineClass(name, bytes, 0, bytes.length, m_module.m_protectionDomain)
+                : defineClass(name, bytes, 0, bytes.length);
+        }
+
         private Object[] definePackage(String pkgName)
         {
-            String spectitle = (String) m_headerMap.get("Specification-Title");
-            String specversion = (String) m_headerMap.get("Specification-Version");
-            String specvendor = (String) m_headerMap.get("Specification-Vendor");
-            String impltitle = (String) m_headerMap.get("Implementation-Title");
-            String implversion = (String) m_headerMap.get("Implementation-Version");
-            String implvendor = (String) m_headerMap.get("Implementation-Vendor");
+            String spectitle = (String) m_module.m_headerMap.get("Specification-Title");
+            String specversion = (String) m_module.m_headerMap.get("Specification-Version");
+            String specvendor = (String) m_module.m_headerMap.get("Specification-Vendor");
+            String impltitle = (String) m_module.m_headerMap.get("Implementation-Title");
+            String implversion = (String) m_module.m_headerMap.get("Implementation-Version");
+            String implvendor = (String) m_module.m_headerMap.get("Implementation-Vendor");
             if ((spectitle != null)
                 || (specversion != null)
                 || (specvendor != null)
@@ -2026,7 +2437,7 @@ public class ModuleImpl implements Module
             try
             {
                 m_jarUrl.set(true);
-                return ModuleImpl.this.getResourceByDelegation(name);
+                return m_module.getResourceByDelegation(name);
             }
             finally
             {
@@ -2036,7 +2447,7 @@ public class ModuleImpl implements Module
 
         protected URL findResource(String name)
         {
-            return getResourceLocal(name);
+            return m_module.getResourceLocal(name);
         }
 
         // The findResources() method should only look at the module itself, but
@@ -2050,7 +2461,7 @@ public class ModuleImpl implements Module
             try
             {
                 m_jarUrl.set(true);
-                return getResourcesByDelegation(name);
+                return m_module.getResourcesByDelegation(name);
             }
             finally
             {
@@ -2085,21 +2496,21 @@ public class ModuleImpl implements Module
                 // native library.
                 if (result == null)
                 {
-                    List<R4Library> libs = getNativeLibraries();
+                    List<R4Library> libs = m_module.getNativeLibraries();
                     for (int libIdx = 0; (libs != null) && (libIdx < libs.size()); libIdx++)
                     {
-                        if (libs.get(libIdx).match(m_configMap, name))
+                        if (libs.get(libIdx).match(m_module.m_configMap, name))
                         {
                             // Search bundle content first for native library.
-                            result = getContent().getEntryAsNativeLibrary(
+                            result = m_module.getContent().getEntryAsNativeLibrary(
                                 libs.get(libIdx).getEntryName());
                             // If not found, then search fragments in order.
                             for (int i = 0;
-                                (result == null) && (m_fragmentContents != null)
-                                    && (i < m_fragmentContents.length);
+                                (result == null) && (m_module.m_fragmentContents != null)
+                                    && (i < m_module.m_fragmentContents.length);
                                 i++)
                             {
-                                result = m_fragmentContents[i].getEntryAsNativeLibrary(
+                                result = m_module.m_fragmentContents[i].getEntryAsNativeLibrary(
                                     libs.get(libIdx).getEntryName());
                             }
                         }
@@ -2121,7 +2532,7 @@ public class ModuleImpl implements Module
 
         public String toString()
         {
-            return ModuleImpl.this.toString();
+            return m_module.toString();
         }
     }
 
@@ -2433,4 +2844,10 @@ public class ModuleImpl implements Module
             return m_fragmentReq.toString();
         }
     }
-}
\ No newline at end of file
+
+    private static class ClassLock
+    {
+        // Number of threads holding or waiting for the lock.
+        public int m_users = 0;
+    }
+}
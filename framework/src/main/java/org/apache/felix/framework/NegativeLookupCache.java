@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A bounded cache of the failed lookups of a module, such as packages that
+ * cannot be dynamically imported or classes that the boot delegation class
+ * loader does not have. Failed lookups are only valid as long as the wiring
+ * of the framework does not change, so the cache is cleared whenever the
+ * wiring count of the resolver state differs from the one of the cached
+ * lookups. Once the cache is full, it is cleared to start over.
+ * <p>
+ * Each cache counts its own hits and misses while holding its own lock,
+ * so lookups of different modules do not contend; the framework sums the
+ * counters of its modules when they are read.
+**/
+public class NegativeLookupCache
+{
+    public static final char DYNAMIC_IMPORT = 'D';
+    public static final char BOOT_DELEGATION_CLASS = 'B';
+    public static final char BOOT_DELEGATION_RESOURCE = 'b';
+    public static final char PARENT_CLASS = 'P';
+    public static final char PARENT_RESOURCE = 'p';
+
+    private final int m_maxSize;
+    private final Set<String> m_keys = new HashSet<String>();
+    private int m_wiringCount = 0;
+    private long m_hitCount = 0;
+    private long m_missCount = 0;
+
+    public NegativeLookupCache(int maxSize)
+    {
+        m_maxSize = maxSize;
+    }
+
+    /**
+     * Checks whether a lookup is known to fail.
+     * @param type the type of the lookup.
+     * @param name the name of the package, class or resource looked up.
+     * @param wiringCount the current wiring count of the resolver state.
+     * @return <tt>true</tt> if the lookup failed before, <tt>false</tt> otherwise.
+    **/
+    public synchronized boolean contains(char type, String name, int wiringCount)
+    {
+        if (m_wiringCount != wiringCount)
+        {
+            m_keys.clear();
+            m_wiringCount = wiringCount;
+        }
+        boolean hit = !m_keys.isEmpty() && m_keys.contains(type + name);
+        if (hit)
+        {
+            m_hitCount++;
+        }
+        else
+        {
+            m_missCount++;
+        }
+        return hit;
+    }
+
+    /**
+     * Records a failed lookup.
+     * @param type the type of the lookup.
+     * @param name the name of the package, class or resource looked up.
+     * @param wiringCount the wiring count of the resolver state read before
+     *        the lookup was attempted.
+    **/
+    public synchronized void add(char type, String name, int wiringCount)
+    {
+        if (m_wiringCount != wiringCount)
+        {
+            // Ignore lookups that raced with a wiring change.
+            if (wiringCount < m_wiringCount)
+            {
+                return;
+            }
+            m_keys.clear();
+            m_wiringCount = wiringCount;
+        }
+        if (m_keys.size() >= m_maxSize)
+        {
+            m_keys.clear();
+        }
+        m_keys.add(type + name);
+    }
+
+    public synchronized void clear()
+    {
+        m_keys.clear();
+    }
+
+    /**
+     * Returns the number of lookups that were answered by this cache.
+     * @return the number of cache hits.
+    **/
+    public synchronized long getHitCount()
+    {
+        return m_hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that were not in this cache and had to
+     * be performed.
+     * @return the number of cache misses.
+    **/
+    public synchronized long getMissCount()
+    {
+        return m_missCount;
+    }
+}
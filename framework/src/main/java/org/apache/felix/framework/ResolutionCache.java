@@ -0,0 +1,544 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.felix.framework.capabilityset.Attribute;
+import org.apache.felix.framework.capabilityset.Capability;
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.capabilityset.Requirement;
+import org.apache.felix.framework.resolver.Module;
+import org.apache.felix.framework.resolver.Wire;
+import org.apache.felix.framework.resolver.WireImpl;
+import org.apache.felix.framework.resolver.WireModuleImpl;
+import org.apache.felix.framework.util.Util;
+
+/**
+ * Persists the wires of resolved modules in the bundle cache, so they can
+ * be reused instead of running the resolver again after a restart. The
+ * cached wires are only used if the fingerprint of the installed modules,
+ * which covers each module's identifier and manifest headers as well as
+ * the system bundle's capabilities, is the same as when they were saved.
+ * Once the set of modules changes or cached wires no longer match their
+ * modules, the cache is discarded. Fragments, hosts with fragments and
+ * modules that were not resolved before are not cached; resolving them
+ * falls back to the resolver without discarding the cached wires of the
+ * other modules, as long as the resolver wires cached modules the same
+ * way and does not wire modules that cached wires depend on. Otherwise,
+ * cached wires could no longer be consistent with the new wires.
+**/
+class ResolutionCache
+{
+    private static final int FORMAT_VERSION = 1;
+    private static final byte PACKAGE_WIRE = 0;
+    private static final byte MODULE_WIRE = 1;
+
+    private final Logger m_logger;
+    private final FelixResolverState m_resolverState;
+    // Maps module identifier to cached wires; null if the cache is invalid.
+    private Map<String, List<CachedWire>> m_wireMap = null;
+    // Maps module identifier to module for the modules the cache is valid for.
+    private Map<String, Module> m_modules = null;
+    // Identifiers of the exporters of the cached wires.
+    private Set<String> m_exporterIds = null;
+    // The resolver state modification count the cache is valid for.
+    private int m_modCount;
+    // Number of resolutions that used or could not use the cached wires.
+    private int m_hitCount = 0;
+    private int m_missCount = 0;
+
+    ResolutionCache(Logger logger, FelixResolverState resolverState)
+    {
+        m_logger = logger;
+        m_resolverState = resolverState;
+    }
+
+    /**
+     * Loads the cached wires from the specified file, if the file was saved
+     * for the specified modules.
+     * @param file the file to read.
+     * @param modules the currently installed modules.
+     * @param env the resolver environment, such as the execution environment.
+    **/
+    synchronized void load(File file, List<Module> modules, String env)
+    {
+        m_wireMap = null;
+        m_modules = null;
+        m_exporterIds = null;
+
+        InputStream is = null;
+        try
+        {
+            is = Felix.m_secureAction.getFileInputStream(file);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            if ((in.readInt() != FORMAT_VERSION)
+                || !in.readUTF().equals(getFingerprint(modules, env)))
+            {
+                m_logger.log(Logger.LOG_DEBUG,
+                    "Installed bundles changed, ignoring cached resolution.");
+                return;
+            }
+
+            Map<String, List<CachedWire>> wireMap = new HashMap<String, List<CachedWire>>();
+            Set<String> exporterIds = new HashSet<String>();
+            int moduleCount = in.readInt();
+            for (int i = 0; i < moduleCount; i++)
+            {
+                String moduleId = in.readUTF();
+                int wireCount = in.readInt();
+                List<CachedWire> wires = new ArrayList<CachedWire>(wireCount);
+                for (int j = 0; j < wireCount; j++)
+                {
+                    CachedWire wire = new CachedWire();
+                    wire.m_type = in.readByte();
+                    wire.m_reqIdx = in.readInt();
+                    wire.m_exporterId = in.readUTF();
+                    wire.m_capIdx = in.readInt();
+                    if (wire.m_type == MODULE_WIRE)
+                    {
+                        int pkgCount = in.readInt();
+                        wire.m_packages = new ArrayList<String>(pkgCount);
+                        for (int k = 0; k < pkgCount; k++)
+                        {
+                            wire.m_packages.add(in.readUTF());
+                        }
+                    }
+                    wires.add(wire);
+                    exporterIds.add(wire.m_exporterId);
+                }
+                wireMap.put(moduleId, wires);
+            }
+
+            m_modules = new HashMap<String, Module>();
+            for (Module module : modules)
+            {
+                m_modules.put(module.getId(), module);
+            }
+            m_wireMap = wireMap;
+            m_exporterIds = exporterIds;
+            m_modCount = m_resolverState.getModificationCount();
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because there is no cached resolution yet.
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to load cached resolution.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (IOException ex)
+            {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Saves the wires of the specified modules to the specified file.
+     * @param file the file to write.
+     * @param modules the currently installed modules.
+     * @param env the resolver environment, such as the execution environment.
+    **/
+    void save(File file, List<Module> modules, String env)
+    {
+        OutputStream os = null;
+        try
+        {
+            List<Module> resolved = new ArrayList<Module>();
+            for (Module module : modules)
+            {
+                if (isCacheable(module) && module.isResolved())
+                {
+                    resolved.add(module);
+                }
+            }
+
+            os = Felix.m_secureAction.getFileOutputStream(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(getFingerprint(modules, env));
+            out.writeInt(resolved.size());
+            for (Module module : resolved)
+            {
+                List<Wire> wires = new ArrayList<Wire>();
+                for (Wire wire : module.getWires())
+                {
+                    // Skip dynamically imported wires, which are not
+                    // part of the resolution.
+                    if (indexOf(module.getRequirements(), wire.getRequirement()) >= 0)
+                    {
+                        wires.add(wire);
+                    }
+                }
+
+                out.writeUTF(module.getId());
+                out.writeInt(wires.size());
+                for (Wire wire : wires)
+                {
+                    out.writeByte((wire instanceof WireModuleImpl) ? MODULE_WIRE : PACKAGE_WIRE);
+                    out.writeInt(indexOf(module.getRequirements(), wire.getRequirement()));
+                    out.writeUTF(wire.getExporter().getId());
+                    out.writeInt(indexOf(wire.getExporter().getCapabilities(), wire.getCapability()));
+                    if (wire instanceof WireModuleImpl)
+                    {
+                        List<String> pkgs = ((WireModuleImpl) wire).getPackages();
+                        out.writeInt(pkgs.size());
+                        for (String pkg : pkgs)
+                        {
+                            out.writeUTF(pkg);
+                        }
+                    }
+                }
+            }
+            out.flush();
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to save resolution.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (os != null) os.close();
+            }
+            catch (IOException ex)
+            {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Returns the cached wires for the specified module and all unresolved
+     * modules it is wired to, if all of them are cached and still valid.
+     * If one of the modules is not cached, the resolver must be used for
+     * this module only; if a cached wire is no longer valid, the whole
+     * cache is discarded.
+     * @param rootModule the module to resolve.
+     * @return the wire map for the modules to resolve or <tt>null</tt> if
+     *         the resolver must be used.
+    **/
+    synchronized Map<Module, List<Wire>> getWires(Module rootModule)
+    {
+        if ((m_wireMap != null)
+            && (m_modCount != m_resolverState.getModificationCount()))
+        {
+            invalidate();
+        }
+        if (m_wireMap == null)
+        {
+            return null;
+        }
+
+        Map<Module, List<Wire>> wireMap = new HashMap<Module, List<Wire>>();
+        List<Module> queue = new ArrayList<Module>();
+        queue.add(rootModule);
+        while (!queue.isEmpty())
+        {
+            Module module = queue.remove(queue.size() - 1);
+            if (module.isResolved() || wireMap.containsKey(module))
+            {
+                continue;
+            }
+
+            if (m_modules.get(module.getId()) != module)
+            {
+                invalidate();
+                return null;
+            }
+
+            // Modules without cached wires are resolved by the resolver,
+            // which uses the wiring of the already resolved modules.
+            List<CachedWire> cachedWires = m_wireMap.get(module.getId());
+            if ((cachedWires == null) || !isCacheable(module))
+            {
+                m_missCount++;
+                return null;
+            }
+
+            List<Wire> wires = new ArrayList<Wire>(cachedWires.size());
+            for (CachedWire cachedWire : cachedWires)
+            {
+                Wire wire = cachedWire.toWire(module);
+                if (wire == null)
+                {
+                    invalidate();
+                    return null;
+                }
+                wires.add(wire);
+                if (!wire.getExporter().isResolved())
+                {
+                    queue.add(wire.getExporter());
+                }
+            }
+            wireMap.put(module, wires);
+        }
+        m_hitCount++;
+        return wireMap;
+    }
+
+    /**
+     * Checks the wires the resolver chose for modules that could not be
+     * resolved from the cache. The cached wires are only consistent with
+     * the wiring of the previous run, so the cache is discarded if the
+     * resolver wired a cached module differently or wired a module that
+     * is not cached but is the exporter of cached wires.
+     * @param wireMap the wires chosen by the resolver.
+    **/
+    synchronized void resolved(Map<Module, List<Wire>> wireMap)
+    {
+        if (m_wireMap == null)
+        {
+            return;
+        }
+
+        for (Entry<Module, List<Wire>> entry : wireMap.entrySet())
+        {
+            Module module = entry.getKey();
+            List<CachedWire> cachedWires = m_wireMap.get(module.getId());
+            if ((cachedWires == null)
+                ? m_exporterIds.contains(module.getId())
+                : !getWireKeys(cachedWires).equals(getWireKeys(module, entry.getValue())))
+            {
+                invalidate();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Discards the cached wires.
+    **/
+    synchronized void invalidate()
+    {
+        if (m_wireMap != null)
+        {
+            m_logger.log(Logger.LOG_DEBUG, "Discarding cached resolution.");
+        }
+        m_wireMap = null;
+        m_modules = null;
+        m_exporterIds = null;
+    }
+
+    /**
+     * Returns whether cached wires are available.
+     * @return <tt>true</tt> if the cache is loaded and was not discarded.
+    **/
+    synchronized boolean isValid()
+    {
+        return (m_wireMap != null);
+    }
+
+    /**
+     * Returns the number of resolutions that used the cached wires.
+     * @return the hit count.
+    **/
+    synchronized int getHitCount()
+    {
+        return m_hitCount;
+    }
+
+    /**
+     * Returns the number of resolutions that fell back to the resolver,
+     * because a module was not cached, while the cache stayed valid.
+     * @return the miss count.
+    **/
+    synchronized int getMissCount()
+    {
+        return m_missCount;
+    }
+
+    private Module getModule(String id)
+    {
+        return m_modules.get(id);
+    }
+
+    private static Set<String> getWireKeys(List<CachedWire> wires)
+    {
+        Set<String> keys = new HashSet<String>();
+        for (CachedWire wire : wires)
+        {
+            keys.add(getWireKey(wire.m_type, wire.m_reqIdx, wire.m_exporterId,
+                wire.m_capIdx, wire.m_packages));
+        }
+        return keys;
+    }
+
+    private static Set<String> getWireKeys(Module module, List<Wire> wires)
+    {
+        Set<String> keys = new HashSet<String>();
+        for (Wire wire : wires)
+        {
+            keys.add(getWireKey(
+                (wire instanceof WireModuleImpl) ? MODULE_WIRE : PACKAGE_WIRE,
+                indexOf(module.getRequirements(), wire.getRequirement()),
+                wire.getExporter().getId(),
+                indexOf(wire.getExporter().getCapabilities(), wire.getCapability()),
+                (wire instanceof WireModuleImpl) ? ((WireModuleImpl) wire).getPackages() : null));
+        }
+        return keys;
+    }
+
+    private static String getWireKey(
+        byte type, int reqIdx, String exporterId, int capIdx, List<String> pkgs)
+    {
+        return type + ":" + reqIdx + ":" + exporterId + ":" + capIdx
+            + ((pkgs == null) ? "" : ":" + new TreeSet<String>(pkgs));
+    }
+
+    private static boolean isCacheable(Module module)
+    {
+        List<Module> fragments = ((ModuleImpl) module).getFragments();
+        return !Util.isFragment(module) && ((fragments == null) || fragments.isEmpty());
+    }
+
+    private static int indexOf(List list, Object o)
+    {
+        for (int i = 0; (list != null) && (i < list.size()); i++)
+        {
+            if (list.get(i) == o)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getFingerprint(List<Module> modules, String env) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        update(digest, env);
+        Map<String, Module> sorted = new TreeMap<String, Module>();
+        for (Module module : modules)
+        {
+            sorted.put(module.getId(), module);
+        }
+        for (Module module : sorted.values())
+        {
+            update(digest, module.getId());
+            Map headers = new TreeMap(module.getHeaders());
+            for (Iterator it = headers.entrySet().iterator(); it.hasNext(); )
+            {
+                Entry entry = (Entry) it.next();
+                update(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+            // The system bundle exports depend on the configuration and
+            // extension bundles, rather than its headers.
+            if (((ModuleImpl) module).getBundle().getBundleId() == 0)
+            {
+                List<Capability> caps = module.getCapabilities();
+                for (int i = 0; (caps != null) && (i < caps.size()); i++)
+                {
+                    update(digest, caps.get(i).getNamespace());
+                    for (Attribute attr : caps.get(i).getAttributes())
+                    {
+                        update(digest, attr.getName());
+                        // Compare array values, such as the symbolic name,
+                        // by content rather than by identity.
+                        Object value = attr.getValue();
+                        update(digest, (value instanceof Object[])
+                            ? Arrays.asList((Object[]) value) : value);
+                    }
+                }
+            }
+        }
+
+        byte[] bytes = digest.digest();
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest digest, Object o) throws Exception
+    {
+        digest.update(String.valueOf(o).getBytes("UTF-8"));
+        digest.update((byte) 0);
+    }
+
+    private class CachedWire
+    {
+        byte m_type;
+        int m_reqIdx;
+        String m_exporterId;
+        int m_capIdx;
+        List<String> m_packages;
+
+        /**
+         * Recreates the wire for the specified importer, if its requirement
+         * still exists and is still satisfied by the exporter's capability.
+         * @return the wire or <tt>null</tt> if it is no longer valid.
+        **/
+        Wire toWire(Module importer)
+        {
+            Module exporter = getModule(m_exporterId);
+            List<Requirement> reqs = importer.getRequirements();
+            List<Capability> caps = (exporter == null) ? null : exporter.getCapabilities();
+            if ((exporter == null)
+                || (reqs == null) || (m_reqIdx < 0) || (m_reqIdx >= reqs.size())
+                || (caps == null) || (m_capIdx < 0) || (m_capIdx >= caps.size()))
+            {
+                return null;
+            }
+
+            Requirement req = reqs.get(m_reqIdx);
+            Capability cap = caps.get(m_capIdx);
+            if (!req.getNamespace().equals(cap.getNamespace())
+                || !CapabilitySet.matches(cap, req.getFilter()))
+            {
+                return null;
+            }
+
+            return (m_type == MODULE_WIRE)
+                ? new WireModuleImpl(importer, req, exporter, cap, m_packages)
+                : (Wire) new WireImpl(importer, req, exporter, cap);
+        }
+    }
+}
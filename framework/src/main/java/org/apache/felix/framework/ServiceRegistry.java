@@ -33,15 +33,20 @@ public class ServiceRegistry
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
     private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
-    // Capability set for all service registrations.
-    private final CapabilitySet m_regCapSet;
-
-    // Maps registration to thread to keep track when a
-    // registration is in use, which will cause other
-    // threads to wait.
-    private final Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private final Map m_inUseMap = new HashMap();
+    // Copy-on-write snapshot of all registered service references; it is
+    // only modified while holding the registry lock and is replaced rather
+    // than mutated, so lookups can read it without locking.
+    private volatile Capability[] m_regCaps = new Capability[0];
+    // Copy-on-write snapshot mapping object class name to an array of
+    // service references registered under that class; same rules apply.
+    private volatile Map m_regCapsByClass = new HashMap();
+
+    // Lock stripes guarding the usage counts of service registrations; a
+    // registration always maps to the same stripe, so getting and ungetting
+    // unrelated services does not serialize on a global lock.
+    private final UsageStripe[] m_stripes = new UsageStripe[STRIPE_COUNT];
+    // The number of lock stripes, a power of two.
+    private static final int STRIPE_COUNT = 32;
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -53,10 +58,10 @@ public class ServiceRegistry
     {
         m_logger = logger;
         m_callbacks = callbacks;
-
-        List indices = new ArrayList();
-        indices.add(Constants.OBJECTCLASS);
-        m_regCapSet = new CapabilitySet(indices, false);
+        for (int i = 0; i < m_stripes.length; i++)
+        {
+            m_stripes[i] = new UsageStripe();
+        }
     }
 
     public ServiceReference[] getRegisteredServices(Bundle bundle)
@@ -98,7 +103,7 @@ public class ServiceRegistry
             // Get the bundles current registered services.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
             m_regsMap.put(bundle, addServiceRegistration(regs, reg));
-            m_regCapSet.addCapability((Capability) reg.getReference());
+            addCapability((Capability) reg.getReference(), classNames);
         }
 
         // Notify callback objects about registered service.
@@ -118,7 +123,7 @@ public class ServiceRegistry
         synchronized (this)
         {
             // Note that we don't lock the service registration here using
-            // the m_lockedRegsMap because we want to allow bundles to get
+            // its usage stripe because we want to allow bundles to get
             // the service during the unregistration process. However, since
             // we do remove the registration from the service registry, no
             // new bundles will be able to look up the service.
@@ -126,7 +131,8 @@ public class ServiceRegistry
             // Now remove the registered service.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
             m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
-            m_regCapSet.removeCapability((Capability) reg.getReference());
+            removeCapability((Capability) reg.getReference(),
+                (String[]) reg.getReference().getProperty(Constants.OBJECTCLASS));
         }
 
         // Notify callback objects about unregistering service.
@@ -137,7 +143,7 @@ public class ServiceRegistry
         }
 
         // Now forcibly unget the service object for all stubborn clients.
-        synchronized (this)
+        synchronized (getStripe((ServiceRegistrationImpl) reg))
         {
             Bundle[] clients = getUsingBundles(reg.getReference());
             for (int i = 0; (clients != null) && (i < clients.length); i++)
@@ -186,46 +192,71 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized List getServiceReferences(String className, SimpleFilter filter)
+    /**
+     * Returns the service references matching the specified class name and
+     * filter. This method does not acquire the registry lock; it evaluates
+     * the filter against the current copy-on-write snapshot of registered
+     * services, narrowed down by object class whenever the class name is
+     * given or the filter requires an exact object class.
+     * @param className the object class to match or <tt>null</tt>.
+     * @param filter the filter to match or <tt>null</tt>.
+     * @return a new mutable list of matching service references.
+    **/
+    public List getServiceReferences(String className, SimpleFilter filter)
     {
-        if ((className == null) && (filter == null))
+        if ((className == null) && (filter != null))
         {
-            // Return all services.
-            filter = new SimpleFilter(Constants.OBJECTCLASS, "*", SimpleFilter.PRESENT);
+            className = getRequiredObjectClass(filter);
         }
-        else if ((className != null) && (filter == null))
+
+        Capability[] caps = (className == null)
+            ? m_regCaps
+            : (Capability[]) m_regCapsByClass.get(className);
+
+        if (caps == null)
         {
-            // Return services matching the class name.
-            filter = new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ);
+            return new ArrayList(0);
         }
-        else if ((className != null) && (filter != null))
+
+        List matches = new ArrayList(caps.length);
+        for (int i = 0; i < caps.length; i++)
         {
-            // Return services matching the class name and filter.
-            List filters = new ArrayList(2);
-            filters.add(new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ));
-            filters.add(filter);
-            filter = new SimpleFilter(null, filters, SimpleFilter.AND);
+            if ((filter == null) || CapabilitySet.matches(caps[i], filter))
+            {
+                matches.add(caps[i]);
+            }
         }
-        // else just use the specified filter.
-
-        Set<Capability> matches = m_regCapSet.match(filter, false);
-
-        return new ArrayList(matches);
+        return matches;
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        if (usages != null)
+        // Usage counts are kept per registration, so all stripes have to be
+        // searched; this is only needed rarely, unlike getting services.
+        List refs = null;
+        for (int i = 0; i < m_stripes.length; i++)
         {
-            ServiceReference[] refs = new ServiceReference[usages.length];
-            for (int i = 0; i < refs.length; i++)
+            synchronized (m_stripes[i])
             {
-                refs[i] = usages[i].m_ref;
+                for (Iterator it = m_stripes[i].m_usages.values().iterator(); it.hasNext(); )
+                {
+                    UsageCount[] usages = (UsageCount[]) it.next();
+                    for (int j = 0; j < usages.length; j++)
+                    {
+                        if (usages[j].m_bundle == bundle)
+                        {
+                            if (refs == null)
+                            {
+                                refs = new ArrayList();
+                            }
+                            refs.add(usages[j].m_ref);
+                        }
+                    }
+                }
             }
-            return refs;
         }
-        return null;
+        return (refs == null)
+            ? null : (ServiceReference[]) refs.toArray(new ServiceReference[refs.size()]);
     }
 
     public Object getService(Bundle bundle, ServiceReference ref)
@@ -236,12 +267,13 @@ public class ServiceRegistry
         // Get the service registration.
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+        UsageStripe stripe = getStripe(reg);
 
-        synchronized (this)
+        synchronized (stripe)
         {
             // First make sure that no existing operation is currently
             // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            for (Object o = stripe.m_lockedRegs.get(reg); (o != null); o = stripe.m_lockedRegs.get(reg))
             {
                 // We don't allow cycles when we call out to the service factory.
                 if (o.equals(Thread.currentThread()))
@@ -253,47 +285,51 @@ public class ServiceRegistry
                 // Otherwise, wait for it to be freed.
                 try
                 {
-                    wait();
+                    stripe.wait();
                 }
                 catch (InterruptedException ex)
                 {
                 }
             }
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
-
             // Make sure the service registration is still valid.
-            if (reg.isValid())
+            if (!reg.isValid())
             {
-                // Get the usage count, if any.
-                usage = getUsageCount(bundle, ref);
+                return null;
+            }
 
-                // If we don't have a usage count, then create one and
-                // since the spec says we increment usage count before
-                // actually getting the service object.
-                if (usage == null)
-                {
-                    usage = addUsageCount(bundle, ref);
-                }
+            // Get the usage count, if any.
+            usage = getUsageCount(stripe, bundle, reg);
+
+            // If we don't have a usage count, then create one and
+            // since the spec says we increment usage count before
+            // actually getting the service object.
+            if (usage == null)
+            {
+                usage = addUsageCount(stripe, bundle, reg);
+            }
 
-                // Increment the usage count and grab the already retrieved
-                // service object, if one exists.
-                usage.m_count++;
-                svcObj = usage.m_svcObj;
+            // Increment the usage count and grab the already retrieved
+            // service object, if one exists.
+            usage.m_count++;
+            svcObj = usage.m_svcObj;
+            if (svcObj != null)
+            {
+                // The service object is cached, so there is no need to
+                // lock the registration.
+                return svcObj;
             }
+
+            // Lock the service registration.
+            stripe.m_lockedRegs.put(reg, Thread.currentThread());
         }
 
-        // If we have a usage count, but no service object, then we haven't
-        // cached the service object yet, so we need to create one now without
-        // holding the lock, since we will potentially call out to a service
-        // factory.
+        // We haven't cached the service object yet, so we need to create
+        // one now without holding the lock, since we will potentially call
+        // out to a service factory.
         try
         {
-            if ((usage != null) && (svcObj == null))
-            {
-                svcObj = reg.getService(bundle);
-            }
+            svcObj = reg.getService(bundle);
         }
         finally
         {
@@ -301,21 +337,21 @@ public class ServiceRegistry
             // cache it in the usage count. If not, we should flush the usage
             // count. Either way, we need to unlock the service registration
             // so that any threads waiting for it can continue.
-            synchronized (this)
+            synchronized (stripe)
             {
                 // Before caching the service object, double check to see if
                 // the registration is still valid, since it may have been
                 // unregistered while we didn't hold the lock.
                 if (!reg.isValid() || (svcObj == null))
                 {
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(stripe, bundle, reg);
                 }
                 else
                 {
                     usage.m_svcObj = svcObj;
                 }
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                stripe.m_lockedRegs.remove(reg);
+                stripe.notifyAll();
             }
         }
 
@@ -327,12 +363,13 @@ public class ServiceRegistry
         UsageCount usage = null;
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+        UsageStripe stripe = getStripe(reg);
 
-        synchronized (this)
+        synchronized (stripe)
         {
             // First make sure that no existing operation is currently
             // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            for (Object o = stripe.m_lockedRegs.get(reg); (o != null); o = stripe.m_lockedRegs.get(reg))
             {
                 // We don't allow cycles when we call out to the service factory.
                 if (o.equals(Thread.currentThread()))
@@ -344,7 +381,7 @@ public class ServiceRegistry
                 // Otherwise, wait for it to be freed.
                 try
                 {
-                    wait();
+                    stripe.wait();
                 }
                 catch (InterruptedException ex)
                 {
@@ -352,28 +389,36 @@ public class ServiceRegistry
             }
 
             // Get the usage count.
-            usage = getUsageCount(bundle, ref);
+            usage = getUsageCount(stripe, bundle, reg);
             // If there is no cached services, then just return immediately.
             if (usage == null)
             {
                 return false;
             }
 
+            // If the usage count does not go to zero, there is no need to
+            // call out to the service factory, so just decrement it.
+            if (usage.m_count > 1)
+            {
+                usage.m_count--;
+                if (!reg.isValid())
+                {
+                    usage.m_svcObj = null;
+                    flushUsageCount(stripe, bundle, reg);
+                }
+                return true;
+            }
+
             // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+            stripe.m_lockedRegs.put(reg, Thread.currentThread());
         }
 
-        // If usage count will go to zero, then unget the service
-        // from the registration; we do this outside the lock
-        // since this might call out to the service factory.
+        // The usage count will go to zero, so unget the service from the
+        // registration; we do this outside the lock since this might call
+        // out to the service factory.
         try
         {
-            if (usage.m_count == 1)
-            {
-                // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getRegistration().ungetService(bundle, usage.m_svcObj);
-            }
+            reg.ungetService(bundle, usage.m_svcObj);
         }
         finally
         {
@@ -381,7 +426,7 @@ public class ServiceRegistry
             // the registration became invalid while we were not holding the
             // lock. Either way, unlock the service registration so that any
             // threads waiting for it can continue.
-            synchronized (this)
+            synchronized (stripe)
             {
                 // Decrement usage count, which spec says should happen after
                 // ungetting the service object.
@@ -392,13 +437,13 @@ public class ServiceRegistry
                 if (!reg.isValid() || (usage.m_count <= 0))
                 {
                     usage.m_svcObj = null;
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(stripe, bundle, reg);
                 }
 
                 // Release the registration lock so any waiting threads can
                 // continue.
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                stripe.m_lockedRegs.remove(reg);
+                stripe.notifyAll();
             }
         }
 
@@ -413,13 +458,8 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = (UsageCount[]) m_inUseMap.get(bundle);
-        }
-
-        if (usages == null)
+        ServiceReference[] refs = getServicesInUse(bundle);
+        if (refs == null)
         {
             return;
         }
@@ -431,44 +471,35 @@ public class ServiceRegistry
 
         // Remove each service object from the
         // service cache.
-        for (int i = 0; i < usages.length; i++)
+        for (int i = 0; i < refs.length; i++)
         {
             // Keep ungetting until all usage count is zero.
-            while (ungetService(bundle, usages[i].m_ref))
+            while (ungetService(bundle, refs[i]))
             {
                 // Empty loop body.
             }
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
-    {        
-        Bundle[] bundles = null;
-        for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+    public Bundle[] getUsingBundles(ServiceReference ref)
+    {
+        ServiceRegistrationImpl reg =
+            ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+        UsageStripe stripe = getStripe(reg);
+        synchronized (stripe)
         {
-            Map.Entry entry = (Map.Entry) iter.next();
-            Bundle bundle = (Bundle) entry.getKey();
-            UsageCount[] usages = (UsageCount[]) entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            UsageCount[] usages = (UsageCount[]) stripe.m_usages.get(reg);
+            if (usages == null)
             {
-                if (usages[useIdx].m_ref.equals(ref))
-                {
-                    // Add the bundle to the array to be returned.
-                    if (bundles == null)
-                    {
-                        bundles = new Bundle[] { bundle };
-                    }
-                    else
-                    {
-                        Bundle[] nbs = new Bundle[bundles.length + 1];
-                        System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-                        nbs[bundles.length] = bundle;
-                        bundles = nbs;
-                    }
-                }
+                return null;
             }
+            Bundle[] bundles = new Bundle[usages.length];
+            for (int i = 0; i < usages.length; i++)
+            {
+                bundles[i] = usages[i].m_bundle;
+            }
+            return bundles;
         }
-        return bundles;
     }
 
     void servicePropertiesModified(ServiceRegistration reg, Dictionary oldProps)
@@ -485,6 +516,119 @@ public class ServiceRegistry
         return m_logger;
     }
 
+    /**
+     * Returns the object class an exact-match filter requires, i.e., the
+     * filter is either <tt>(objectClass=x)</tt> or a conjunction containing
+     * that term directly.
+     * @param filter the filter to inspect.
+     * @return the required object class or <tt>null</tt> if there is none.
+    **/
+    private static String getRequiredObjectClass(SimpleFilter filter)
+    {
+        if (filter.getOperation() == SimpleFilter.EQ)
+        {
+            return Constants.OBJECTCLASS.equalsIgnoreCase(filter.getName())
+                ? (String) filter.getValue() : null;
+        }
+        else if (filter.getOperation() == SimpleFilter.AND)
+        {
+            List filters = (List) filter.getValue();
+            for (int i = 0; i < filters.size(); i++)
+            {
+                SimpleFilter sf = (SimpleFilter) filters.get(i);
+                if ((sf.getOperation() == SimpleFilter.EQ)
+                    && Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName()))
+                {
+                    return (String) sf.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Publishes new lookup snapshots containing the specified service
+     * reference. Must be called while holding the registry lock.
+     * @param cap the service reference to add.
+     * @param classNames the object classes of the service.
+    **/
+    private void addCapability(Capability cap, String[] classNames)
+    {
+        Map byClass = new HashMap(m_regCapsByClass);
+        for (int i = 0; i < classNames.length; i++)
+        {
+            byClass.put(classNames[i],
+                addCapability((Capability[]) byClass.get(classNames[i]), cap));
+        }
+        m_regCapsByClass = byClass;
+        m_regCaps = addCapability(m_regCaps, cap);
+    }
+
+    private static Capability[] addCapability(Capability[] caps, Capability cap)
+    {
+        if (caps == null)
+        {
+            return new Capability[] { cap };
+        }
+        for (int i = 0; i < caps.length; i++)
+        {
+            if (caps[i] == cap)
+            {
+                return caps;
+            }
+        }
+        Capability[] newCaps = new Capability[caps.length + 1];
+        System.arraycopy(caps, 0, newCaps, 0, caps.length);
+        newCaps[caps.length] = cap;
+        return newCaps;
+    }
+
+    /**
+     * Publishes new lookup snapshots without the specified service
+     * reference. Must be called while holding the registry lock.
+     * @param cap the service reference to remove.
+     * @param classNames the object classes of the service.
+    **/
+    private void removeCapability(Capability cap, String[] classNames)
+    {
+        Map byClass = new HashMap(m_regCapsByClass);
+        for (int i = 0; (classNames != null) && (i < classNames.length); i++)
+        {
+            Capability[] caps = removeCapability(
+                (Capability[]) byClass.get(classNames[i]), cap);
+            if (caps == null)
+            {
+                byClass.remove(classNames[i]);
+            }
+            else
+            {
+                byClass.put(classNames[i], caps);
+            }
+        }
+        m_regCapsByClass = byClass;
+        Capability[] caps = removeCapability(m_regCaps, cap);
+        m_regCaps = (caps == null) ? new Capability[0] : caps;
+    }
+
+    private static Capability[] removeCapability(Capability[] caps, Capability cap)
+    {
+        for (int i = 0; (caps != null) && (i < caps.length); i++)
+        {
+            if (caps[i] == cap)
+            {
+                if (caps.length == 1)
+                {
+                    return null;
+                }
+                Capability[] newCaps = new Capability[caps.length - 1];
+                System.arraycopy(caps, 0, newCaps, 0, i);
+                System.arraycopy(caps, i + 1, newCaps, i, newCaps.length - i);
+                return newCaps;
+            }
+        }
+        return caps;
+    }
+
     private static ServiceRegistration[] addServiceRegistration(
         ServiceRegistration[] regs, ServiceRegistration reg)
     {
@@ -531,19 +675,33 @@ public class ServiceRegistry
         return regs;
     }
 
+    /**
+     * Returns the lock stripe of the specified service registration.
+     * @param reg The service registration.
+     * @return The lock stripe guarding the usage counts of the registration.
+    **/
+    private UsageStripe getStripe(ServiceRegistrationImpl reg)
+    {
+        int hash = System.identityHashCode(reg);
+        return m_stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
     /**
      * Utility method to retrieve the specified bundle's usage count for the
-     * specified service reference.
-     * @param bundle The bundle whose usage counts are being searched.
-     * @param ref The service reference to find in the bundle's usage counts.
+     * specified service registration. Must be called while holding the lock
+     * of the stripe.
+     * @param stripe The lock stripe of the registration.
+     * @param bundle The bundle whose usage count is being searched.
+     * @param reg The service registration to find the usage count for.
      * @return The associated usage count or null if not found.
     **/
-    private UsageCount getUsageCount(Bundle bundle, ServiceReference ref)
+    private static UsageCount getUsageCount(
+        UsageStripe stripe, Bundle bundle, ServiceRegistrationImpl reg)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = (UsageCount[]) stripe.m_usages.get(reg);
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
-            if (usages[i].m_ref.equals(ref))
+            if (usages[i].m_bundle == bundle)
             {
                 return usages[i];
             }
@@ -552,21 +710,24 @@ public class ServiceRegistry
     }
 
     /**
-     * Utility method to update the specified bundle's usage count array to
-     * include the specified service. This method should only be called
-     * to add a usage count for a previously unreferenced service. If the
-     * service already has a usage count, then the existing usage count
-     * counter simply needs to be incremented.
+     * Utility method to update the specified registration's usage count
+     * array to include the specified bundle. This method should only be
+     * called to add a usage count for a previously unreferenced service. If
+     * the service already has a usage count, then the existing usage count
+     * counter simply needs to be incremented. Must be called while holding
+     * the lock of the stripe.
+     * @param stripe The lock stripe of the registration.
      * @param bundle The bundle acquiring the service.
-     * @param ref The service reference of the acquired service.
-     * @param svcObj The service object of the acquired service.
+     * @param reg The service registration of the acquired service.
     **/
-    private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
+    private static UsageCount addUsageCount(
+        UsageStripe stripe, Bundle bundle, ServiceRegistrationImpl reg)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = (UsageCount[]) stripe.m_usages.get(reg);
 
         UsageCount usage = new UsageCount();
-        usage.m_ref = ref;
+        usage.m_bundle = bundle;
+        usage.m_ref = reg.getReference();
 
         if (usages == null)
         {
@@ -580,29 +741,31 @@ public class ServiceRegistry
             usages = newUsages;
         }
 
-        m_inUseMap.put(bundle, usages);
+        stripe.m_usages.put(reg, usages);
 
         return usage;
     }
 
     /**
      * Utility method to flush the specified bundle's usage count for the
-     * specified service reference. This should be called to completely
-     * remove the associated usage count object for the specified service
-     * reference. If the goal is to simply decrement the usage, then get
-     * the usage count and decrement its counter. This method will also
-     * remove the specified bundle from the "in use" map if it has no more
-     * usage counts after removing the usage count for the specified service
-     * reference.
+     * specified service registration. This should be called to completely
+     * remove the associated usage count object for the specified bundle.
+     * If the goal is to simply decrement the usage, then get the usage
+     * count and decrement its counter. This method will also remove the
+     * registration from the usage map of the stripe if it has no more
+     * usage counts after removing the usage count for the specified bundle.
+     * Must be called while holding the lock of the stripe.
+     * @param stripe The lock stripe of the registration.
      * @param bundle The bundle whose usage count should be removed.
-     * @param ref The service reference whose usage count should be removed.
+     * @param reg The service registration whose usage count should be removed.
     **/
-    private void flushUsageCount(Bundle bundle, ServiceReference ref)
+    private static void flushUsageCount(
+        UsageStripe stripe, Bundle bundle, ServiceRegistrationImpl reg)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = (UsageCount[]) stripe.m_usages.get(reg);
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
-            if (usages[i].m_ref.equals(ref))
+            if (usages[i].m_bundle == bundle)
             {
                 // If this is the only usage, then point to empty list.
                 if ((usages.length - 1) == 0)
@@ -621,16 +784,17 @@ public class ServiceRegistry
                     }
                     usages = newUsages;
                 }
+                break;
             }
         }
 
         if (usages != null)
         {
-            m_inUseMap.put(bundle, usages);
+            stripe.m_usages.put(reg, usages);
         }
         else
         {
-            m_inUseMap.remove(bundle);
+            stripe.m_usages.remove(reg);
         }
     }
 
@@ -768,10 +932,21 @@ public class ServiceRegistry
     private static class UsageCount
     {
         public int m_count = 0;
+        public Bundle m_bundle = null;
         public ServiceReference m_ref = null;
         public Object m_svcObj = null;
     }
 
+    private static class UsageStripe
+    {
+        // Maps registration to thread to keep track when a
+        // registration is in use, which will cause other
+        // threads to wait.
+        public final Map m_lockedRegs = new HashMap();
+        // Maps registration to an array of usage counts, one per bundle.
+        public final Map m_usages = new HashMap();
+    }
+
     public interface ServiceRegistryCallbacks
     {
         void serviceChanged(ServiceEvent event, Dictionary oldProps);
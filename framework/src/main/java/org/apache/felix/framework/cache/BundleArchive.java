@@ -83,6 +83,10 @@ public class BundleArchive
 
     private final Logger m_logger;
     private final Map m_configMap;
+    // The content index of the bundle cache if it deduplicates content.
+    private final ContentIndex m_contentIndex;
+    // The open JAR files of the bundle cache if JAR files are opened on access.
+    private final JarFileHandle.Pool m_pool;
     private long m_id = -1;
     private final File m_archiveRootDir;
     private String m_originalLocation = null;
@@ -103,6 +107,8 @@ public class BundleArchive
     {
         m_logger = null;
         m_configMap = null;
+        m_contentIndex = null;
+        m_pool = null;
         m_archiveRootDir = null;
     }
 
@@ -125,9 +131,18 @@ public class BundleArchive
     **/
     public BundleArchive(Logger logger, Map configMap, File archiveRootDir, long id,
         String location, InputStream is) throws Exception
+    {
+        this(logger, configMap, null, null, archiveRootDir, id, location, is);
+    }
+
+    BundleArchive(Logger logger, Map configMap, ContentIndex contentIndex,
+        JarFileHandle.Pool pool, File archiveRootDir, long id, String location,
+        InputStream is) throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
+        m_contentIndex = contentIndex;
+        m_pool = pool;
         m_archiveRootDir = archiveRootDir;
         m_id = id;
         if (m_id <= 0)
@@ -158,9 +173,17 @@ public class BundleArchive
     **/
     public BundleArchive(Logger logger, Map configMap, File archiveRootDir)
         throws Exception
+    {
+        this(logger, configMap, null, null, archiveRootDir);
+    }
+
+    BundleArchive(Logger logger, Map configMap, ContentIndex contentIndex,
+        JarFileHandle.Pool pool, File archiveRootDir) throws Exception
     {
         m_logger = logger;
         m_configMap = configMap;
+        m_contentIndex = contentIndex;
+        m_pool = pool;
         m_archiveRootDir = archiveRootDir;
 
         // Add a revision for each one that already exists in the file
@@ -778,9 +801,23 @@ public class BundleArchive
         close();
         if (!BundleCache.deleteDirectoryTree(m_archiveRootDir))
         {
-            m_logger.log(
-                Logger.LOG_ERROR,
-                "Unable to delete archive directory - " + m_archiveRootDir);
+            // Files may remain, e.g., on Windows if a deduplicated JAR file
+            // is still open through a link of another bundle. Move them out
+            // of the way, so the partially deleted archive is not reloaded
+            // as an installed bundle, and try again on the next start.
+            if (BundleCache.markDeleted(m_archiveRootDir))
+            {
+                m_logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to delete archive directory now, deferring - "
+                        + m_archiveRootDir);
+            }
+            else
+            {
+                m_logger.log(
+                    Logger.LOG_ERROR,
+                    "Unable to delete archive directory - " + m_archiveRootDir);
+            }
         }
     }
 
@@ -930,26 +967,26 @@ public class BundleArchive
                 // flag set to true.
                 if (BundleCache.getSecureAction().isFileDirectory(file))
                 {
-                    result = new DirectoryRevision(m_logger, m_configMap,
+                    result = new DirectoryRevision(m_logger, m_configMap, m_pool,
                         revisionRootDir, location);
                 }
                 else
                 {
-                    result = new JarRevision(m_logger, m_configMap, revisionRootDir,
-                        location, true);
+                    result = new JarRevision(m_logger, m_configMap, m_contentIndex,
+                        m_pool, revisionRootDir, location, true, null);
                 }
             }
             else if (location.startsWith(INPUTSTREAM_PROTOCOL))
             {
                 // Assume all input streams point to JAR files.
-                result = new JarRevision(m_logger, m_configMap, revisionRootDir,
-                    location, false, is);
+                result = new JarRevision(m_logger, m_configMap, m_contentIndex,
+                    m_pool, revisionRootDir, location, false, is);
             }
             else
             {
                 // Anything else is assumed to be a URL to a JAR file.
-                result = new JarRevision(m_logger, m_configMap, revisionRootDir,
-                    location, false);
+                result = new JarRevision(m_logger, m_configMap, m_contentIndex,
+                    m_pool, revisionRootDir, location, false, null);
             }
         }
         catch (Exception ex)
@@ -56,6 +56,34 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.mmap</tt> - Determines whether bundle JAR files
+ *       are memory-mapped and indexed so that their entries, such as class
+ *       files, are read without going through a <tt>JarFile</tt>; the default
+ *       value is <tt>false</tt>. Mapped files may stay open until they are
+ *       garbage collected.
+ *   </li>
+ *   <li><tt>felix.cache.manifest</tt> - Determines whether the metadata
+ *       parsed from the manifest of each bundle revision is stored in the
+ *       revision's directory, so that the manifest does not have to be parsed
+ *       again after a restart; the default value is <tt>true</tt>.
+ *   </li>
+ *   <li><tt>felix.cache.lazy</tt> - Determines whether bundle JAR files
+ *       are only opened when their content is accessed, rather than when
+ *       their bundle archives are created; the default value is
+ *       <tt>false</tt>. Manifest headers are then read from a copy in the
+ *       revision's directory.
+ *   </li>
+ *   <li><tt>felix.cache.maxopenjars</tt> - Sets the maximum number of JAR
+ *       files that are kept open while not in use if
+ *       <tt>felix.cache.lazy</tt> is enabled; the default value is 256. The
+ *       least recently used JAR files are closed first.
+ *   </li>
+ *   <li><tt>felix.cache.dedup</tt> - Determines whether bundle JAR files
+ *       with the same content are only stored once, by hard linking them to
+ *       the copy already in the cache; the default value is <tt>false</tt>.
+ *       This requires a file system supporting hard links and Java 7 or
+ *       later, otherwise JAR files are copied as usual.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -66,21 +94,33 @@ public class BundleCache
 {
     public static final String CACHE_BUFSIZE_PROP = "felix.cache.bufsize";
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
+    public static final String CACHE_MMAP_PROP = "felix.cache.mmap";
+    public static final String CACHE_MANIFEST_PROP = "felix.cache.manifest";
+    public static final String CACHE_LAZY_PROP = "felix.cache.lazy";
+    public static final String CACHE_MAX_OPEN_JARS_PROP = "felix.cache.maxopenjars";
+    public static final String CACHE_DEDUP_PROP = "felix.cache.dedup";
 
     protected static transient int BUFSIZE = 4096;
     protected static transient final String CACHE_DIR_NAME = "felix-cache";
     protected static transient final String CACHE_ROOTDIR_DEFAULT = ".";
     protected static transient final String BUNDLE_DIR_PREFIX = "bundle";
+    protected static transient final String DELETED_DIR_PREFIX = "deleted";
 
     private static final SecureAction m_secureAction = new SecureAction();
 
     private final Logger m_logger;
     private final Map m_configMap;
+    // Index of the cached JAR files if content is deduplicated.
+    private final ContentIndex m_contentIndex;
+    // JAR files opened on access if the cache is lazy.
+    private final JarFileHandle.Pool m_pool;
 
     public BundleCache(Logger logger, Map configMap)
     {
         m_logger = logger;
         m_configMap = configMap;
+        m_contentIndex = isDeduplicating(configMap) ? new ContentIndex() : null;
+        m_pool = isLazy(configMap) ? new JarFileHandle.Pool(getMaxOpen(configMap)) : null;
     }
 
     /* package */ static SecureAction getSecureAction()
@@ -130,6 +170,13 @@ public class BundleCache
         File[] children = getSecureAction().listDirectory(cacheDir);
         for (int i = 0; (children != null) && (i < children.length); i++)
         {
+            // Remove the remains of archives that could not be deleted.
+            if (children[i].getName().startsWith(DELETED_DIR_PREFIX))
+            {
+                deleteDirectoryTree(children[i]);
+                continue;
+            }
+
             // Ignore directories that aren't bundle directories or
             // is the system bundle directory.
             if (children[i].getName().startsWith(BUNDLE_DIR_PREFIX) &&
@@ -138,7 +185,8 @@ public class BundleCache
                 // Recreate the bundle archive.
                 try
                 {
-                    archiveList.add(new BundleArchive(m_logger, m_configMap, children[i]));
+                    archiveList.add(new BundleArchive(
+                        m_logger, m_configMap, m_contentIndex, m_pool, children[i]));
                 }
                 catch (Exception ex)
                 {
@@ -167,7 +215,8 @@ public class BundleCache
         {
             // Create the archive and add it to the list of archives.
             BundleArchive ba =
-                new BundleArchive(m_logger, m_configMap, archiveRootDir, id, location, is);
+                new BundleArchive(m_logger, m_configMap, m_contentIndex, m_pool,
+                    archiveRootDir, id, location, is);
             return ba;
         }
         catch (Exception ex)
@@ -224,6 +273,38 @@ public class BundleCache
         return new File(sbDir, fileName);
     }
 
+    /* package */ static boolean isLazy(Map configMap)
+    {
+        String lazy = (configMap == null)
+            ? null : (String) configMap.get(CACHE_LAZY_PROP);
+        return (lazy != null) && lazy.equalsIgnoreCase("true");
+    }
+
+    private static int getMaxOpen(Map configMap)
+    {
+        // Get maximum number of open JAR files value.
+        try
+        {
+            String sMaxOpen = (String) configMap.get(CACHE_MAX_OPEN_JARS_PROP);
+            if (sMaxOpen != null)
+            {
+                return Integer.parseInt(sMaxOpen);
+            }
+        }
+        catch (NumberFormatException ne)
+        {
+            // Use the default value.
+        }
+        return JarFileHandle.MAX_OPEN_DEFAULT;
+    }
+
+    /* package */ static boolean isDeduplicating(Map configMap)
+    {
+        String dedup = (configMap == null)
+            ? null : (String) configMap.get(CACHE_DEDUP_PROP);
+        return (dedup != null) && dedup.equalsIgnoreCase("true");
+    }
+
     //
     // Static file-related utility methods.
     //
@@ -272,6 +353,21 @@ public class BundleCache
         return true;
     }
 
+    /**
+     * Renames the remains of an archive directory that could not be deleted,
+     * so they are no longer taken for an archive and are deleted when the
+     * archives are read the next time.
+     * @param archiveRootDir the archive directory.
+     * @return <tt>true</tt> if the directory was renamed.
+    **/
+    static boolean markDeleted(File archiveRootDir)
+    {
+        File deletedDir = new File(archiveRootDir.getParentFile(),
+            DELETED_DIR_PREFIX + archiveRootDir.getName()
+                + "." + System.currentTimeMillis());
+        return getSecureAction().renameFile(archiveRootDir, deletedDir);
+    }
+
     //
     // Private methods.
     //
@@ -42,6 +42,8 @@ import org.apache.felix.framework.resolver.Content;
 **/
 public abstract class BundleRevision
 {
+    private static final String MANIFEST_CACHE_FILE = "manifest.bin";
+
     private final Logger m_logger;
     private final Map m_configMap;
     private final File m_revisionRootDir;
@@ -107,6 +109,24 @@ public abstract class BundleRevision
         return m_revisionRootDir;
     }
 
+    /**
+     * <p>
+     * Returns the file in which the parsed manifest metadata of this
+     * revision is cached.
+     * </p>
+     * @return the manifest cache file for this revision or <tt>null</tt> if
+     *         manifest metadata is not cached.
+    **/
+    public File getManifestCacheFile()
+    {
+        String s = (String) m_configMap.get(BundleCache.CACHE_MANIFEST_PROP);
+        if ((s != null) && !Boolean.valueOf(s.trim()).booleanValue())
+        {
+            return null;
+        }
+        return new File(m_revisionRootDir, MANIFEST_CACHE_FILE);
+    }
+
     /**
      * <p>
      * Returns the location string this revision.
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the bundle JAR files of a bundle cache by content hash, used to
+ * deduplicate JAR files with the same content. Each bundle cache has its
+ * own index, since JAR files can only be linked within one cache.
+**/
+class ContentIndex
+{
+    // Maps content hashes to the lists of cached JAR files with that content.
+    private final Map m_index = new HashMap();
+
+    /**
+     * Returns the JAR files with the specified content hash that still exist.
+     * @param hash the content hash.
+     * @return a copy of the list of JAR files, which may be empty.
+    **/
+    public synchronized List getFiles(String hash)
+    {
+        List files = (List) m_index.get(hash);
+        if (files == null)
+        {
+            return new ArrayList();
+        }
+        // Forget files of revisions that were deleted in the meantime.
+        for (Iterator it = files.iterator(); it.hasNext(); )
+        {
+            if (!BundleCache.getSecureAction().fileExists((File) it.next()))
+            {
+                it.remove();
+            }
+        }
+        if (files.isEmpty())
+        {
+            m_index.remove(hash);
+        }
+        return new ArrayList(files);
+    }
+
+    /**
+     * Adds a JAR file with the specified content hash.
+     * @param hash the content hash.
+     * @param file the JAR file.
+    **/
+    public synchronized void add(String hash, File file)
+    {
+        List files = (List) m_index.get(hash);
+        if (files == null)
+        {
+            files = new ArrayList();
+            m_index.put(hash, files);
+        }
+        if (!files.contains(file))
+        {
+            files.add(file);
+        }
+    }
+
+    /**
+     * Removes a JAR file with the specified content hash, once its revision
+     * is closed.
+     * @param hash the content hash.
+     * @param file the JAR file.
+    **/
+    public synchronized void remove(String hash, File file)
+    {
+        List files = (List) m_index.get(hash);
+        if ((files != null) && files.remove(file) && files.isEmpty())
+        {
+            m_index.remove(hash);
+        }
+    }
+}
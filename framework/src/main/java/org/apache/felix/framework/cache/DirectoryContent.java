@@ -36,6 +36,8 @@ public class DirectoryContent implements Content
 
     private final Logger m_logger;
     private final Map m_configMap;
+    // The open JAR files of the bundle cache if JAR files are opened on access.
+    private final JarFileHandle.Pool m_pool;
     private final Object m_revisionLock;
     private final File m_rootDir;
     private final File m_dir;
@@ -43,9 +45,16 @@ public class DirectoryContent implements Content
 
     public DirectoryContent(Logger logger, Map configMap, Object revisionLock,
         File rootDir, File dir)
+    {
+        this(logger, configMap, null, revisionLock, rootDir, dir);
+    }
+
+    DirectoryContent(Logger logger, Map configMap, JarFileHandle.Pool pool,
+        Object revisionLock, File rootDir, File dir)
     {
         m_logger = logger;
         m_configMap = configMap;
+        m_pool = pool;
         m_revisionLock = revisionLock;
         m_rootDir = rootDir;
         m_dir = dir;
@@ -157,7 +166,8 @@ public class DirectoryContent implements Content
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new DirectoryContent(m_logger, m_configMap, m_revisionLock, m_rootDir, m_dir);
+            return new DirectoryContent(
+                m_logger, m_configMap, m_pool, m_revisionLock, m_rootDir, m_dir);
         }
 
         // Remove any leading slash, since all bundle class path
@@ -173,7 +183,8 @@ public class DirectoryContent implements Content
         File file = new File(m_dir, entryName);
         if (BundleCache.getSecureAction().isFileDirectory(file))
         {
-            return new DirectoryContent(m_logger, m_configMap, m_revisionLock, m_rootDir, file);
+            return new DirectoryContent(
+                m_logger, m_configMap, m_pool, m_revisionLock, m_rootDir, file);
         }
         else if (BundleCache.getSecureAction().fileExists(file)
             && entryName.endsWith(".jar"))
@@ -194,7 +205,8 @@ public class DirectoryContent implements Content
                     }
                 }
             }
-            return new JarContent(m_logger, m_configMap, m_revisionLock, extractDir, file, null);
+            return new JarContent(m_logger, m_configMap, m_pool, m_revisionLock,
+                extractDir, file, null);
         }
 
         // The entry could not be found, so return null.
@@ -38,11 +38,21 @@ import org.apache.felix.framework.resolver.Content;
 class DirectoryRevision extends BundleRevision
 {
     private final File m_refDir;
+    // The open JAR files of the bundle cache if JAR files are opened on access.
+    private final JarFileHandle.Pool m_pool;
 
     public DirectoryRevision(
         Logger logger, Map configMap, File revisionRootDir, String location) throws Exception
+    {
+        this(logger, configMap, null, revisionRootDir, location);
+    }
+
+    DirectoryRevision(
+        Logger logger, Map configMap, JarFileHandle.Pool pool,
+        File revisionRootDir, String location) throws Exception
     {
         super(logger, configMap, revisionRootDir, location);
+        m_pool = pool;
         m_refDir = new File(location.substring(
             location.indexOf(BundleArchive.FILE_PROTOCOL)
                 + BundleArchive.FILE_PROTOCOL.length()));
@@ -96,7 +106,8 @@ class DirectoryRevision extends BundleRevision
 
     public synchronized Content getContent() throws Exception
     {
-        return new DirectoryContent(getLogger(), getConfig(), this, getRevisionRootDir(), m_refDir);
+        return new DirectoryContent(
+            getLogger(), getConfig(), m_pool, this, getRevisionRootDir(), m_refDir);
     }
 
     protected void close() throws Exception
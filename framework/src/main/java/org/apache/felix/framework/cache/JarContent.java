@@ -25,8 +25,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.zip.ZipEntry;
@@ -48,20 +52,41 @@ public class JarContent implements Content
     private final Object m_revisionLock;
     private final File m_rootDir;
     private final File m_file;
-    private final JarFileX m_jarFile;
+    private final JarFileHandle m_jarFile;
     private final boolean m_isJarFileOwner;
+    // The open JAR files of the bundle cache if JAR files are opened on access.
+    private final JarFileHandle.Pool m_pool;
+    // Index of the memory-mapped JAR file, if enabled.
+    private final JarIndex m_index;
     private Map m_nativeLibMap;
 
     public JarContent(Logger logger, Map configMap, Object revisionLock, File rootDir,
         File file, JarFileX jarFile)
+    {
+        this(logger, configMap, null, revisionLock, rootDir, file, jarFile);
+    }
+
+    JarContent(Logger logger, Map configMap, JarFileHandle.Pool pool,
+        Object revisionLock, File rootDir, File file, JarFileX jarFile)
+    {
+        this(logger, configMap, pool, revisionLock, rootDir, file,
+            (jarFile == null) ? null : new JarFileHandle(file, jarFile),
+            openJarIndex(logger, configMap, file));
+    }
+
+    private JarContent(Logger logger, Map configMap, JarFileHandle.Pool pool,
+        Object revisionLock, File rootDir, File file, JarFileHandle jarFile,
+        JarIndex index)
     {
         m_logger = logger;
         m_configMap = configMap;
+        m_pool = pool;
         m_revisionLock = revisionLock;
         m_rootDir = rootDir;
         m_file = file;
-        m_jarFile = (jarFile == null) ? openJarFile(m_file) : jarFile;
+        m_jarFile = (jarFile == null) ? openJarFile(m_pool, m_file) : jarFile;
         m_isJarFileOwner = (jarFile == null);
+        m_index = index;
     }
 
     protected void finalize()
@@ -90,41 +115,88 @@ public class JarContent implements Content
     {
         try
         {
-            ZipEntry ze = m_jarFile.getEntry(name);
-            return ze != null;
+            JarFileX jarFile = m_jarFile.acquire();
+            try
+            {
+                ZipEntry ze = jarFile.getEntry(name);
+                return ze != null;
+            }
+            finally
+            {
+                m_jarFile.release();
+            }
         }
         catch (Exception ex)
         {
             return false;
         }
-        finally
-        {
-        }
     }
 
     public Enumeration getEntries()
     {
-        // Wrap entries enumeration to filter non-matching entries.
-        Enumeration e = new EntriesEnumeration(m_jarFile.entries());
+        JarFileX jarFile;
+        try
+        {
+            jarFile = m_jarFile.acquire();
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "JarContent: Unable to open JAR file.", ex);
+            return null;
+        }
 
-        // Spec says to return null if there are no entries.
-        return (e.hasMoreElements()) ? e : null;
+        try
+        {
+            // Wrap entries enumeration to filter non-matching entries.
+            Enumeration e = new EntriesEnumeration(jarFile.entries());
+
+            // If the JAR file is only open while in use, the entries have
+            // to be read before it is released.
+            if (m_jarFile.isOpenedOnAccess())
+            {
+                List names = new ArrayList();
+                while (e.hasMoreElements())
+                {
+                    names.add(e.nextElement());
+                }
+                e = Collections.enumeration(names);
+            }
+
+            // Spec says to return null if there are no entries.
+            return (e.hasMoreElements()) ? e : null;
+        }
+        finally
+        {
+            m_jarFile.release();
+        }
     }
 
     public byte[] getEntryAsBytes(String name) throws IllegalStateException
     {
+        // Read the entry from the mapped JAR file, if possible.
+        if (m_index != null)
+        {
+            try
+            {
+                return m_index.getEntryAsBytes(name);
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "JarContent: Unable to read mapped bytes, using JAR file.", ex);
+            }
+        }
+
         // Get the embedded resource.
         InputStream is = null;
         ByteArrayOutputStream baos = null;
 
         try
         {
-            ZipEntry ze = m_jarFile.getEntry(name);
-            if (ze == null)
-            {
-                return null;
-            }
-            is = m_jarFile.getInputStream(ze);
+            is = m_jarFile.getInputStream(name);
             if (is == null)
             {
                 return null;
@@ -165,6 +237,32 @@ public class JarContent implements Content
         }
     }
 
+    /**
+     * Returns a read-only buffer holding the specified entry without copying
+     * it, which is only possible for uncompressed entries if the JAR file is
+     * memory-mapped.
+     * @param name the name of the entry.
+     * @return the content of the entry or <tt>null</tt> if the entry does not
+     *         exist or cannot be returned as a buffer.
+    **/
+    public ByteBuffer getEntryAsByteBuffer(String name)
+    {
+        if (m_index != null)
+        {
+            try
+            {
+                return m_index.getEntryAsByteBuffer(name);
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "JarContent: Unable to read mapped bytes, using JAR file.", ex);
+            }
+        }
+        return null;
+    }
+
     public InputStream getEntryAsStream(String name)
         throws IllegalStateException, IOException
     {
@@ -173,16 +271,7 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_jarFile.getEntry(name);
-            if (ze == null)
-            {
-                return null;
-            }
-            is = m_jarFile.getInputStream(ze);
-            if (is == null)
-            {
-                return null;
-            }
+            is = m_jarFile.getInputStream(name);
         }
         catch (Exception ex)
         {
@@ -211,8 +300,8 @@ public class JarContent implements Content
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new JarContent(m_logger, m_configMap, m_revisionLock,
-                m_rootDir, m_file, m_jarFile);
+            return new JarContent(m_logger, m_configMap, m_pool, m_revisionLock,
+                m_rootDir, m_file, m_jarFile, m_index);
         }
 
         // Remove any leading slash.
@@ -229,7 +318,7 @@ public class JarContent implements Content
         // Determine if the entry is an emdedded JAR file or
         // directory in the bundle JAR file. Ignore any entries
         // that do not exist per the spec.
-        ZipEntry ze = m_jarFile.getEntry(entryName);
+        ZipEntry ze = getEntry(entryName);
         if ((ze != null) && ze.isDirectory())
         {
             File extractDir = new File(embedDir, entryName);
@@ -274,7 +363,7 @@ public class JarContent implements Content
                 }
             }
             return new JarContent(
-                m_logger, m_configMap, m_revisionLock,
+                m_logger, m_configMap, m_pool, m_revisionLock,
                 extractJar.getParentFile(), extractJar, null);
         }
 
@@ -298,7 +387,7 @@ public class JarContent implements Content
 
         // The entry name must refer to a file type, since it is
         // a native library, not a directory.
-        ZipEntry ze = m_jarFile.getEntry(entryName);
+        ZipEntry ze = getEntry(entryName);
         if ((ze != null) && !ze.isDirectory())
         {
             // Extracting the embedded native library file impacts all other
@@ -336,13 +425,12 @@ public class JarContent implements Content
 
                         try
                         {
-                            is = new BufferedInputStream(
-                                m_jarFile.getInputStream(ze),
-                                BundleCache.BUFSIZE);
+                            is = m_jarFile.getInputStream(entryName);
                             if (is == null)
                             {
                                 throw new IOException("No input stream: " + entryName);
                             }
+                            is = new BufferedInputStream(is, BundleCache.BUFSIZE);
 
                             // Create the file.
                             BundleCache.copyStreamToFile(is, libFile);
@@ -441,7 +529,7 @@ public class JarContent implements Content
             try
             {
                 // Make sure class path entry is a JAR file.
-                ZipEntry ze = m_jarFile.getEntry(jarPath);
+                ZipEntry ze = getEntry(jarPath);
                 if (ze == null)
                 {
                     return;
@@ -463,11 +551,12 @@ public class JarContent implements Content
                     }
 
                     // Extract embedded JAR into its directory.
-                    is = new BufferedInputStream(m_jarFile.getInputStream(ze), BundleCache.BUFSIZE);
+                    is = m_jarFile.getInputStream(jarPath);
                     if (is == null)
                     {
                         throw new IOException("No input stream: " + jarPath);
                     }
+                    is = new BufferedInputStream(is, BundleCache.BUFSIZE);
                     // Copy the file.
                     BundleCache.copyStreamToFile(is, jarFile);
                 }
@@ -479,11 +568,40 @@ public class JarContent implements Content
         }
     }
 
-    private static JarFileX openJarFile(File file) throws RuntimeException
+    private ZipEntry getEntry(String name)
+    {
+        try
+        {
+            JarFileX jarFile = m_jarFile.acquire();
+            try
+            {
+                return jarFile.getEntry(name);
+            }
+            finally
+            {
+                m_jarFile.release();
+            }
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "JarContent: Unable to open JAR file.", ex);
+            return null;
+        }
+    }
+
+    private static JarFileHandle openJarFile(JarFileHandle.Pool pool, File file)
+        throws RuntimeException
     {
+        if (pool != null)
+        {
+            return new JarFileHandle(file, pool);
+        }
         try
         {
-            return BundleCache.getSecureAction().openJAR(file, false);
+            return new JarFileHandle(
+                file, BundleCache.getSecureAction().openJAR(file, false));
         }
         catch (IOException ex)
         {
@@ -492,6 +610,26 @@ public class JarContent implements Content
         }
     }
 
+    private static JarIndex openJarIndex(Logger logger, Map configMap, File file)
+    {
+        String mmap = (configMap == null)
+            ? null : (String) configMap.get(BundleCache.CACHE_MMAP_PROP);
+        if ((mmap != null) && mmap.equalsIgnoreCase("true"))
+        {
+            try
+            {
+                return JarIndex.open(file);
+            }
+            catch (Exception ex)
+            {
+                logger.log(
+                    Logger.LOG_WARNING,
+                    "JarContent: Unable to map JAR file, using JAR file instead.", ex);
+            }
+        }
+        return null;
+    }
+
     private static class EntriesEnumeration implements Enumeration
     {
         private final Enumeration m_enumeration;
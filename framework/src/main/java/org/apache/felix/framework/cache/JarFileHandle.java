@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import org.apache.felix.framework.util.JarFileX;
+
+/**
+ * A handle to a JAR file that is either kept open or only opened when it
+ * is accessed. JAR files that are opened on access are kept in a least
+ * recently used list shared by all handles of a bundle cache; once the list
+ * holds more than the maximum number of open JAR files, the least recently
+ * used JAR files that are not in use are closed again. This way, the number of open JAR
+ * files depends on the bundles actually in use rather than on the number
+ * of installed bundles. Each <tt>acquire()</tt> must be followed by a
+ * <tt>release()</tt>; streams returned by <tt>getInputStream()</tt> keep
+ * the JAR file in use until they are closed.
+**/
+class JarFileHandle
+{
+    public static final int MAX_OPEN_DEFAULT = 256;
+
+    private final File m_file;
+    // The JAR file if it is kept open, otherwise null.
+    private final JarFileX m_keptJarFile;
+    // The open JAR files list if the JAR file is opened on access; also
+    // guards the JAR file and use count.
+    private final Pool m_pool;
+    private JarFileX m_jarFile = null;
+    private int m_users = 0;
+    private boolean m_closed = false;
+
+    /**
+     * Creates a handle for a JAR file that is kept open.
+     * @param file the JAR file.
+     * @param jarFile the open JAR file.
+    **/
+    public JarFileHandle(File file, JarFileX jarFile)
+    {
+        m_file = file;
+        m_keptJarFile = jarFile;
+        m_pool = null;
+    }
+
+    /**
+     * Creates a handle for a JAR file that is opened when it is accessed.
+     * @param file the JAR file.
+     * @param pool the open JAR files of the bundle cache.
+    **/
+    public JarFileHandle(File file, Pool pool)
+    {
+        m_file = file;
+        m_keptJarFile = null;
+        m_pool = pool;
+    }
+
+    public boolean isOpenedOnAccess()
+    {
+        return (m_keptJarFile == null);
+    }
+
+    /**
+     * Returns the open JAR file, opening it if necessary. The JAR file
+     * stays open at least until <tt>release()</tt> is called.
+     * @return the open JAR file.
+     * @throws IOException if the JAR file cannot be opened or the handle
+     *         was closed.
+    **/
+    public JarFileX acquire() throws IOException
+    {
+        if (m_keptJarFile != null)
+        {
+            return m_keptJarFile;
+        }
+
+        synchronized (m_pool)
+        {
+            if (m_closed)
+            {
+                throw new IOException("JAR file already closed: " + m_file);
+            }
+            if (m_jarFile != null)
+            {
+                m_users++;
+                // Mark the handle as most recently used.
+                m_pool.m_openHandles.get(this);
+                return m_jarFile;
+            }
+        }
+
+        // Open the JAR file outside of the lock, since this may take a while.
+        JarFileX jarFile = BundleCache.getSecureAction().openJAR(m_file, false);
+        JarFileX result = null;
+        List evicted = null;
+        synchronized (m_pool)
+        {
+            if (!m_closed)
+            {
+                if (m_jarFile == null)
+                {
+                    m_jarFile = jarFile;
+                    jarFile = null;
+                    m_pool.m_openHandles.put(this, this);
+                }
+                m_users++;
+                result = m_jarFile;
+                evicted = m_pool.evict();
+            }
+        }
+        if (jarFile != null)
+        {
+            // Either the handle was closed or another thread opened the
+            // JAR file concurrently.
+            jarFile.close();
+        }
+        closeAll(evicted);
+
+        if (result == null)
+        {
+            throw new IOException("JAR file already closed: " + m_file);
+        }
+        return result;
+    }
+
+    /**
+     * Releases the JAR file acquired by <tt>acquire()</tt>.
+    **/
+    public void release()
+    {
+        if (m_keptJarFile != null)
+        {
+            return;
+        }
+
+        List evicted = null;
+        JarFileX closed = null;
+        synchronized (m_pool)
+        {
+            m_users--;
+            if (m_closed && (m_users == 0))
+            {
+                closed = m_jarFile;
+                m_jarFile = null;
+            }
+            else
+            {
+                evicted = m_pool.evict();
+            }
+        }
+        closeQuietly(closed);
+        closeAll(evicted);
+    }
+
+    /**
+     * Returns a stream for the specified entry, which keeps the JAR file
+     * in use until the stream is closed.
+     * @param name the name of the entry.
+     * @return a stream for the entry or <tt>null</tt> if there is no such
+     *         entry.
+     * @throws IOException if the JAR file cannot be opened or read.
+    **/
+    public InputStream getInputStream(String name) throws IOException
+    {
+        JarFileX jarFile = acquire();
+        boolean release = true;
+        try
+        {
+            ZipEntry ze = jarFile.getEntry(name);
+            InputStream is = (ze == null) ? null : jarFile.getInputStream(ze);
+            if ((is != null) && isOpenedOnAccess())
+            {
+                is = new ReleasingInputStream(is);
+                release = false;
+            }
+            return is;
+        }
+        finally
+        {
+            if (release)
+            {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Closes the JAR file; if it is opened on access and still in use, it
+     * is closed once it is released.
+    **/
+    public void close() throws IOException
+    {
+        if (m_keptJarFile != null)
+        {
+            m_keptJarFile.close();
+            return;
+        }
+
+        JarFileX closed = null;
+        synchronized (m_pool)
+        {
+            m_closed = true;
+            m_pool.m_openHandles.remove(this);
+            if (m_users == 0)
+            {
+                closed = m_jarFile;
+                m_jarFile = null;
+            }
+        }
+        if (closed != null)
+        {
+            closed.close();
+        }
+    }
+
+    private static void closeAll(List jarFiles)
+    {
+        for (int i = 0; (jarFiles != null) && (i < jarFiles.size()); i++)
+        {
+            closeQuietly((JarFileX) jarFiles.get(i));
+        }
+    }
+
+    private static void closeQuietly(JarFileX jarFile)
+    {
+        try
+        {
+            if (jarFile != null) jarFile.close();
+        }
+        catch (IOException ex)
+        {
+            // Not much we can do.
+        }
+    }
+
+    /**
+     * The JAR files of a bundle cache that are opened on access, in least
+     * recently used order.
+    **/
+    static class Pool
+    {
+        // Handles with an open JAR file in least recently used order.
+        private final LinkedHashMap m_openHandles = new LinkedHashMap(16, 0.75f, true);
+        private int m_maxOpen;
+
+        /**
+         * Creates an empty list of open JAR files.
+         * @param maxOpen the maximum number of open JAR files.
+        **/
+        public Pool(int maxOpen)
+        {
+            m_maxOpen = maxOpen;
+        }
+
+        /**
+         * Sets the maximum number of JAR files opened on access that are
+         * kept open while they are not in use.
+         * @param maxOpen the maximum number of open JAR files.
+        **/
+        public void setMaxOpen(int maxOpen)
+        {
+            List evicted;
+            synchronized (this)
+            {
+                m_maxOpen = maxOpen;
+                evicted = evict();
+            }
+            closeAll(evicted);
+        }
+
+        /**
+         * Returns the number of JAR files opened on access that are open.
+         * @return the number of open JAR files.
+        **/
+        public synchronized int getOpenCount()
+        {
+            return m_openHandles.size();
+        }
+
+        // Must be called while holding the lock.
+        private List evict()
+        {
+            List evicted = null;
+            int excess = m_openHandles.size() - m_maxOpen;
+            for (Iterator it = m_openHandles.keySet().iterator();
+                (excess > 0) && it.hasNext(); )
+            {
+                JarFileHandle handle = (JarFileHandle) it.next();
+                if (handle.m_users == 0)
+                {
+                    it.remove();
+                    evicted = (evicted == null) ? new ArrayList() : evicted;
+                    evicted.add(handle.m_jarFile);
+                    handle.m_jarFile = null;
+                    excess--;
+                }
+            }
+            return evicted;
+        }
+    }
+
+    private class ReleasingInputStream extends FilterInputStream
+    {
+        private boolean m_released = false;
+
+        public ReleasingInputStream(InputStream is)
+        {
+            super(is);
+        }
+
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                releaseOnce();
+            }
+        }
+
+        protected void finalize()
+        {
+            releaseOnce();
+        }
+
+        private void releaseOnce()
+        {
+            synchronized (this)
+            {
+                if (m_released)
+                {
+                    return;
+                }
+                m_released = true;
+            }
+            release();
+        }
+    }
+}
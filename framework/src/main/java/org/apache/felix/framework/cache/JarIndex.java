@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An index of the central directory of a JAR file that is mapped into
+ * memory, which allows entries to be read without going through a
+ * <tt>JarFile</tt>. Stored entries are served directly from the mapped
+ * buffer, while deflated entries are inflated into arrays of their exact
+ * size. ZIP64 archives and signed JAR files are not indexed, since signed
+ * entries must be verified by the <tt>JarFile</tt>.
+**/
+class JarIndex
+{
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EOCD_LEN = 22;
+    private static final int CEN_LEN = 46;
+    private static final int LOC_LEN = 30;
+    private static final int MAX_COMMENT_LEN = 0xFFFF;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final ByteBuffer m_buffer;
+    private final Map m_entries;
+
+    private JarIndex(ByteBuffer buffer, Map entries)
+    {
+        m_buffer = buffer;
+        m_entries = entries;
+    }
+
+    /**
+     * Maps the specified JAR file into memory and indexes its central
+     * directory.
+     * @param file the JAR file to index.
+     * @return the index or <tt>null</tt> if the JAR file cannot be indexed.
+     * @throws IOException if the JAR file cannot be read.
+    **/
+    public static JarIndex open(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if ((size < EOCD_LEN) || (size > Integer.MAX_VALUE))
+            {
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer mapped =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            Map entries = readCentralDirectory(mapped);
+            return (entries == null) ? null : new JarIndex(mapped, entries);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns a read-only buffer holding the content of the specified entry
+     * if it is stored uncompressed, without copying it.
+     * @param name the name of the entry.
+     * @return the content of the entry or <tt>null</tt> if the entry does not
+     *         exist or is compressed.
+    **/
+    public ByteBuffer getEntryAsByteBuffer(String name) throws IOException
+    {
+        Entry entry = (Entry) m_entries.get(name);
+        if ((entry == null) || (entry.m_method != STORED))
+        {
+            return null;
+        }
+        return slice(getDataOffset(entry), entry.m_size);
+    }
+
+    /**
+     * Returns the content of the specified entry.
+     * @param name the name of the entry.
+     * @return the content of the entry or <tt>null</tt> if the entry does not
+     *         exist.
+     * @throws IOException if the entry is corrupt or uses an unsupported
+     *         compression method.
+    **/
+    public byte[] getEntryAsBytes(String name) throws IOException
+    {
+        Entry entry = (Entry) m_entries.get(name);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        int offset = getDataOffset(entry);
+        byte[] bytes = new byte[entry.m_size];
+        if (entry.m_method == STORED)
+        {
+            slice(offset, entry.m_size).get(bytes);
+        }
+        else if (entry.m_method == DEFLATED)
+        {
+            // The inflater requires an extra dummy byte when reading raw
+            // deflated data.
+            byte[] input = new byte[entry.m_compressedSize + 1];
+            slice(offset, entry.m_compressedSize).get(input, 0, entry.m_compressedSize);
+            Inflater inflater = new Inflater(true);
+            try
+            {
+                inflater.setInput(input);
+                int n = 0;
+                while ((n < bytes.length) && !inflater.finished())
+                {
+                    int count = inflater.inflate(bytes, n, bytes.length - n);
+                    if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                    {
+                        break;
+                    }
+                    n += count;
+                }
+                if (n != bytes.length)
+                {
+                    throw new IOException("Truncated JAR entry: " + name);
+                }
+            }
+            catch (DataFormatException ex)
+            {
+                throw new IOException("Corrupt JAR entry " + name + ": " + ex.getMessage());
+            }
+            finally
+            {
+                inflater.end();
+            }
+        }
+        else
+        {
+            throw new IOException("Unsupported compression method for " + name);
+        }
+        return bytes;
+    }
+
+    private ByteBuffer slice(int offset, int length)
+    {
+        ByteBuffer buffer = m_buffer.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    private int getDataOffset(Entry entry) throws IOException
+    {
+        // The local header may have a different extra field than the
+        // central directory, so its length has to be read from the header.
+        int loc = entry.m_localOffset;
+        if ((loc + LOC_LEN > m_buffer.limit()) || (m_buffer.getInt(loc) != LOC_SIG))
+        {
+            throw new IOException("Invalid local header offset: " + loc);
+        }
+        int offset = loc + LOC_LEN
+            + getUnsignedShort(m_buffer, loc + 26) + getUnsignedShort(m_buffer, loc + 28);
+        if (offset + entry.m_compressedSize > m_buffer.limit())
+        {
+            throw new IOException("Invalid entry data offset: " + offset);
+        }
+        return offset;
+    }
+
+    private static Map readCentralDirectory(ByteBuffer buffer)
+        throws UnsupportedEncodingException
+    {
+        // Find the end of central directory record, which may be followed
+        // by an archive comment.
+        int eocd = -1;
+        int min = Math.max(0, buffer.limit() - EOCD_LEN - MAX_COMMENT_LEN);
+        for (int i = buffer.limit() - EOCD_LEN; i >= min; i--)
+        {
+            if (buffer.getInt(i) == EOCD_SIG)
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+        {
+            return null;
+        }
+
+        int count = getUnsignedShort(buffer, eocd + 10);
+        long cenOffset = buffer.getInt(eocd + 16) & 0xFFFFFFFFL;
+        // ZIP64 archives mark these fields as overflowed.
+        if ((count == 0xFFFF) || (cenOffset == 0xFFFFFFFFL) || (cenOffset >= eocd))
+        {
+            return null;
+        }
+
+        Map entries = new HashMap(count * 4 / 3 + 1);
+        int pos = (int) cenOffset;
+        for (int i = 0; i < count; i++)
+        {
+            if ((pos + CEN_LEN > eocd) || (buffer.getInt(pos) != CEN_SIG))
+            {
+                return null;
+            }
+            int flags = getUnsignedShort(buffer, pos + 8);
+            int method = getUnsignedShort(buffer, pos + 10);
+            long compressedSize = buffer.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLen = getUnsignedShort(buffer, pos + 28);
+            int extraLen = getUnsignedShort(buffer, pos + 30);
+            int commentLen = getUnsignedShort(buffer, pos + 32);
+            long localOffset = buffer.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLen];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + CEN_LEN);
+            nameBuffer.get(nameBytes);
+            String name = new String(nameBytes, "UTF-8");
+
+            // Leave encrypted and signed JAR files to the JarFile.
+            if (((flags & 1) != 0) || isSignatureFile(name))
+            {
+                return null;
+            }
+            if ((compressedSize >= Integer.MAX_VALUE) || (size >= Integer.MAX_VALUE)
+                || (localOffset >= cenOffset))
+            {
+                return null;
+            }
+
+            // Keep the first of duplicate entries.
+            if (!entries.containsKey(name))
+            {
+                entries.put(name, new Entry(
+                    method, (int) compressedSize, (int) size, (int) localOffset));
+            }
+
+            pos += CEN_LEN + nameLen + extraLen + commentLen;
+        }
+        return entries;
+    }
+
+    // The JarFile matches signature files regardless of case.
+    private static boolean isSignatureFile(String name)
+    {
+        return name.regionMatches(true, 0, "META-INF/", 0, 9)
+            && name.regionMatches(true, name.length() - 3, ".SF", 0, 3);
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int index)
+    {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static class Entry
+    {
+        public final int m_method;
+        public final int m_compressedSize;
+        public final int m_size;
+        public final int m_localOffset;
+
+        public Entry(int method, int compressedSize, int size, int localOffset)
+        {
+            m_method = method;
+            m_compressedSize = compressedSize;
+            m_size = size;
+            m_localOffset = localOffset;
+        }
+    }
+}
@@ -18,12 +18,22 @@
  */
 package org.apache.felix.framework.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.jar.Manifest;
 
@@ -41,30 +51,87 @@ import org.apache.felix.framework.resolver.Content;
  * file system, but it is possible to mark the JAR as 'by reference', which
  * will result in the bundle JAR be used 'in place' and not being copied. In
  * either case, some of the contents may be extracted into the revision
- * directory, such as embedded JAR files and native libraries.
+ * directory, such as embedded JAR files and native libraries. If the bundle
+ * cache is lazy, the JAR file is not kept open; its manifest is read from a
+ * copy in the revision's directory and its content is only opened when it
+ * is accessed.
+ * </p>
+ * <p>
+ * If the bundle cache deduplicates content, the JAR file is hashed while it
+ * is copied. If a JAR file with the same content is already in the cache,
+ * the copy is replaced by a hard link to it, so identical JAR files only
+ * take up space once; since each revision has its own link, the JAR file is
+ * removed together with the last revision linking to it. Only JAR files in
+ * the same bundle cache are linked.
  * </p>
 **/
 class JarRevision extends BundleRevision
 {
     private static final transient String BUNDLE_JAR_FILE = "bundle.jar";
+    private static final transient String MANIFEST_FILE = "bundle.mf";
+    private static final transient String CONTENT_HASH_FILE = "bundle.hash";
+
+    // Files.createLink() and File.toPath(), if available.
+    private static final Method m_createLink;
+    private static final Method m_toPath;
+
+    static
+    {
+        Method createLink = null;
+        Method toPath = null;
+        try
+        {
+            Class pathClass = Class.forName("java.nio.file.Path");
+            createLink = BundleCache.getSecureAction().getMethod(
+                Class.forName("java.nio.file.Files"), "createLink",
+                new Class[] { pathClass, pathClass });
+            toPath = BundleCache.getSecureAction().getMethod(
+                File.class, "toPath", (Class[]) null);
+        }
+        catch (Throwable ex)
+        {
+            // Hard links are not supported before Java 7.
+            createLink = null;
+            toPath = null;
+        }
+        m_createLink = createLink;
+        m_toPath = toPath;
+    }
 
     private File m_bundleFile = null;
     private final JarFileX m_jarFile;
+    // The content index of the bundle cache if it deduplicates content.
+    private final ContentIndex m_contentIndex;
+    // The open JAR files of the bundle cache if JAR files are opened on access.
+    private final JarFileHandle.Pool m_pool;
+    // The content hash of the JAR file if it is in the content index.
+    private String m_contentHash = null;
 
     public JarRevision(
         Logger logger, Map configMap, File revisionRootDir,
         String location, boolean byReference)
         throws Exception
     {
-        this(logger, configMap, revisionRootDir, location, byReference, null);
+        this(logger, configMap, null, null, revisionRootDir, location, byReference, null);
     }
 
     public JarRevision(
         Logger logger, Map configMap, File revisionRootDir, String location,
         boolean byReference, InputStream is)
         throws Exception
+    {
+        this(logger, configMap, null, null, revisionRootDir, location, byReference, is);
+    }
+
+    JarRevision(
+        Logger logger, Map configMap, ContentIndex contentIndex,
+        JarFileHandle.Pool pool, File revisionRootDir, String location,
+        boolean byReference, InputStream is)
+        throws Exception
     {
         super(logger, configMap, revisionRootDir, location);
+        m_contentIndex = contentIndex;
+        m_pool = pool;
 
         if (byReference)
         {
@@ -80,30 +147,40 @@ class JarRevision extends BundleRevision
         // Save and process the bundle JAR.
         initialize(byReference, is);
 
-        // Open shared copy of the JAR file.
+        // Index the content of a reloaded revision, so it can be shared.
+        if (!byReference && (is == null) && (m_contentIndex != null))
+        {
+            indexContent();
+        }
+
+        // Open shared copy of the JAR file, unless it is only opened
+        // when its content is accessed.
         JarFileX jarFile = null;
-        try
+        if (m_pool == null)
         {
-            // Open bundle JAR file.
-            jarFile = BundleCache.getSecureAction().openJAR(m_bundleFile, false);
-            // Error if no jar file.
-            if (jarFile == null)
+            try
             {
-                throw new IOException("No JAR file found.");
+                // Open bundle JAR file.
+                jarFile = BundleCache.getSecureAction().openJAR(m_bundleFile, false);
+                // Error if no jar file.
+                if (jarFile == null)
+                {
+                    throw new IOException("No JAR file found.");
+                }
+            }
+            catch (Exception ex)
+            {
+                if (jarFile != null) jarFile.close();
+                throw ex;
             }
-            m_jarFile = jarFile;
-        }
-        catch (Exception ex)
-        {
-            if (jarFile != null) jarFile.close();
-            throw ex;
         }
+        m_jarFile = jarFile;
     }
 
     public Map getManifestHeader() throws Exception
     {
         // Get the embedded resource.
-        Manifest mf = m_jarFile.getManifest();
+        Manifest mf = (m_jarFile == null) ? getCachedManifest() : m_jarFile.getManifest();
         // Use an empty map if there is no manifest.
         Map headers = (mf == null) ? new HashMap() : mf.getMainAttributes();
         // Create a case insensitive map of manifest attributes.
@@ -112,19 +189,241 @@ class JarRevision extends BundleRevision
 
     public synchronized Content getContent() throws Exception
     {
-        return new JarContent(getLogger(), getConfig(), this, getRevisionRootDir(),
-            m_bundleFile, m_jarFile);
+        return new JarContent(getLogger(), getConfig(), m_pool, this,
+            getRevisionRootDir(), m_bundleFile, m_jarFile);
     }
 
     protected void close() throws Exception
     {
-        m_jarFile.close();
+        if (m_contentHash != null)
+        {
+            m_contentIndex.remove(m_contentHash, m_bundleFile);
+        }
+        if (m_jarFile != null)
+        {
+            m_jarFile.close();
+        }
     }
 
     //
     // Private methods.
     //
 
+    /**
+     * Returns the manifest of the bundle JAR file from its copy in the
+     * revision directory. If there is no copy or the JAR file changed since
+     * the copy was made, the manifest is read from the JAR file and copied.
+     * @return the manifest or <tt>null</tt> if the JAR file has none.
+     * @throws Exception if the JAR file cannot be read.
+    **/
+    private Manifest getCachedManifest() throws Exception
+    {
+        File mfFile = new File(getRevisionRootDir(), MANIFEST_FILE);
+        long lastModified = m_bundleFile.lastModified();
+        long length = m_bundleFile.length();
+
+        InputStream is = null;
+        try
+        {
+            is = BundleCache.getSecureAction().getFileInputStream(mfFile);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            if ((in.readLong() == lastModified) && (in.readLong() == length))
+            {
+                return in.readBoolean() ? new Manifest(in) : null;
+            }
+        }
+        catch (FileNotFoundException ex)
+        {
+            // The manifest was not copied yet.
+        }
+        catch (IOException ex)
+        {
+            getLogger().log(Logger.LOG_DEBUG,
+                "Ignoring corrupt manifest copy: " + mfFile, ex);
+        }
+        finally
+        {
+            if (is != null) is.close();
+        }
+
+        Manifest mf;
+        JarFileX jarFile = BundleCache.getSecureAction().openJAR(m_bundleFile, false);
+        try
+        {
+            mf = jarFile.getManifest();
+        }
+        finally
+        {
+            jarFile.close();
+        }
+
+        // Write the copy to a temporary file first, so a partially written
+        // copy is never mistaken for a complete one.
+        File tmpFile = new File(getRevisionRootDir(), MANIFEST_FILE + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = BundleCache.getSecureAction().getFileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeLong(lastModified);
+            out.writeLong(length);
+            out.writeBoolean(mf != null);
+            if (mf != null)
+            {
+                // Only the main attributes are needed.
+                Manifest main = new Manifest();
+                main.getMainAttributes().putAll(mf.getMainAttributes());
+                main.write(out);
+            }
+            out.flush();
+            os.close();
+            os = null;
+            BundleCache.getSecureAction().deleteFile(mfFile);
+            if (!BundleCache.getSecureAction().renameFile(tmpFile, mfFile))
+            {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        }
+        catch (IOException ex)
+        {
+            getLogger().log(Logger.LOG_DEBUG,
+                "Unable to copy manifest: " + mfFile, ex);
+            try
+            {
+                if (os != null) os.close();
+            }
+            catch (IOException ex2)
+            {
+                // Not much we can do.
+            }
+            BundleCache.getSecureAction().deleteFile(tmpFile);
+        }
+
+        return mf;
+    }
+
+    /**
+     * Copies the bundle JAR file from the specified stream, hashing it at
+     * the same time, and replaces the copy with a hard link to a cached JAR
+     * file with the same content if there is one.
+     * @param is the stream to copy.
+     * @throws Exception if the JAR file cannot be copied.
+    **/
+    private void copyAndDeduplicate(InputStream is) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        File tmpFile = new File(getRevisionRootDir(), BUNDLE_JAR_FILE + ".tmp");
+        BundleCache.copyStreamToFile(new DigestInputStream(is, digest), tmpFile);
+        String hash = toHex(digest.digest());
+
+        // Link to the first cached JAR file with the same content that
+        // still exists; the length is compared as a sanity check.
+        boolean linked = false;
+        List files = m_contentIndex.getFiles(hash);
+        for (int i = 0; !linked && (i < files.size()); i++)
+        {
+            File file = (File) files.get(i);
+            linked = (file.length() == tmpFile.length()) && createLink(m_bundleFile, file);
+        }
+
+        if (linked)
+        {
+            BundleCache.getSecureAction().deleteFile(tmpFile);
+        }
+        else if (!BundleCache.getSecureAction().renameFile(tmpFile, m_bundleFile))
+        {
+            throw new IOException("Unable to rename " + tmpFile);
+        }
+
+        // Record the hash, so the content can be indexed after a restart.
+        OutputStream os = null;
+        try
+        {
+            os = BundleCache.getSecureAction().getFileOutputStream(
+                new File(getRevisionRootDir(), CONTENT_HASH_FILE));
+            os.write(hash.getBytes("US-ASCII"));
+        }
+        finally
+        {
+            if (os != null) os.close();
+        }
+        m_contentIndex.add(hash, m_bundleFile);
+        m_contentHash = hash;
+    }
+
+    private void indexContent()
+    {
+        InputStream is = null;
+        try
+        {
+            is = BundleCache.getSecureAction().getFileInputStream(
+                new File(getRevisionRootDir(), CONTENT_HASH_FILE));
+            byte[] bytes = new byte[40];
+            int n = 0;
+            for (int count = 0; (count >= 0) && (n < bytes.length);
+                count = is.read(bytes, n, bytes.length - n))
+            {
+                n += count;
+            }
+            String hash = new String(bytes, 0, n, "US-ASCII");
+            m_contentIndex.add(hash, m_bundleFile);
+            m_contentHash = hash;
+        }
+        catch (FileNotFoundException ex)
+        {
+            // The revision was installed without deduplication.
+        }
+        catch (IOException ex)
+        {
+            getLogger().log(Logger.LOG_DEBUG,
+                "Unable to read content hash of " + m_bundleFile, ex);
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    private boolean createLink(File link, File existing)
+    {
+        if (m_createLink == null)
+        {
+            return false;
+        }
+        try
+        {
+            m_createLink.invoke(null, new Object[] {
+                m_toPath.invoke(link, (Object[]) null),
+                m_toPath.invoke(existing, (Object[]) null) });
+            return true;
+        }
+        catch (Exception ex)
+        {
+            // The file system may not support hard links.
+            getLogger().log(Logger.LOG_DEBUG,
+                "Unable to link " + link + " to " + existing, ex);
+            return false;
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
     private void initialize(boolean byReference, InputStream is)
         throws Exception
     {
@@ -167,7 +466,14 @@ class JarRevision extends BundleRevision
                     }
 
                     // Save the bundle jar file.
-                    BundleCache.copyStreamToFile(is, m_bundleFile);
+                    if (m_contentIndex != null)
+                    {
+                        copyAndDeduplicate(is);
+                    }
+                    else
+                    {
+                        BundleCache.copyStreamToFile(is, m_bundleFile);
+                    }
                 }
             }
         }
@@ -32,14 +32,32 @@ import java.util.Set;
 import java.util.TreeMap;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
+import org.osgi.framework.Version;
 
 public class CapabilitySet
 {
     private final Map<String, Map<Object, Set<Capability>>> m_indices;
+    private final Map<String, RangeIndex> m_rangeIndices;
     private final Set<Capability> m_capList = new HashSet<Capability>();
     private final static SecureAction m_secureAction = new SecureAction();
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
+    {
+        this(indexProps, null, caseSensitive);
+    }
+
+    /**
+     * Creates a capability set with exact value indices for the specified
+     * properties and sorted range indices for the specified version
+     * properties. Range indices are used to evaluate <tt>&gt;=</tt>,
+     * <tt>&lt;=</tt> and <tt>=</tt> comparisons on version attributes
+     * without scanning all capabilities.
+     * @param indexProps the properties to index by exact value.
+     * @param rangeIndexProps the version properties to index by range.
+     * @param caseSensitive whether property names are case sensitive.
+    **/
+    public CapabilitySet(
+        List<String> indexProps, List<String> rangeIndexProps, boolean caseSensitive)
     {
         m_indices = (caseSensitive)
             ? new TreeMap<String, Map<Object, Set<Capability>>>()
@@ -48,12 +66,29 @@ public class CapabilitySet
         {
             m_indices.put(indexProps.get(i), new HashMap<Object, Set<Capability>>());
         }
+        m_rangeIndices = (caseSensitive)
+            ? new TreeMap<String, RangeIndex>()
+            : new TreeMap<String, RangeIndex>(new StringComparator(false));
+        for (int i = 0; (rangeIndexProps != null) && (i < rangeIndexProps.size()); i++)
+        {
+            m_rangeIndices.put(rangeIndexProps.get(i), new RangeIndex());
+        }
     }
 
     public void addCapability(Capability cap)
     {
         m_capList.add(cap);
 
+        // Range index capability.
+        for (Entry<String, RangeIndex> entry : m_rangeIndices.entrySet())
+        {
+            Attribute capAttr = cap.getAttribute(entry.getKey());
+            if (capAttr != null)
+            {
+                entry.getValue().add(cap, capAttr.getValue());
+            }
+        }
+
         // Index capability.
         for (Entry<String, Map<Object, Set<Capability>>> entry : m_indices.entrySet())
         {
@@ -100,6 +135,15 @@ public class CapabilitySet
     {
         if (m_capList.remove(cap))
         {
+            for (Entry<String, RangeIndex> entry : m_rangeIndices.entrySet())
+            {
+                Attribute capAttr = cap.getAttribute(entry.getKey());
+                if (capAttr != null)
+                {
+                    entry.getValue().remove(cap, capAttr.getValue());
+                }
+            }
+
             for (Entry<String, Map<Object, Set<Capability>>> entry : m_indices.entrySet())
             {
                 Attribute capAttr = cap.getAttribute(entry.getKey());
@@ -161,12 +205,21 @@ public class CapabilitySet
             // Evaluate each subfilter against the remaining capabilities.
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
+            // remaining capabilities. Subfilters that can be answered
+            // from an index are evaluated first, since they narrow down
+            // the candidates without scanning, which leaves less to scan
+            // for the remaining subfilters.
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+            for (int cost = COST_EXACT_INDEX; cost <= COST_SCAN; cost++)
             {
-                matches = match(caps, sfs.get(i));
-                caps = matches;
+                for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+                {
+                    if (getCost(sfs.get(i)) == cost)
+                    {
+                        matches = match(caps, sfs.get(i));
+                        caps = matches;
+                    }
+                }
             }
         }
         else if (sf.getOperation() == SimpleFilter.OR)
@@ -193,6 +246,7 @@ public class CapabilitySet
         else
         {
             Map<Object, Set<Capability>> index = m_indices.get(sf.getName());
+            RangeIndex rangeIndex = m_rangeIndices.get(sf.getName());
             if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
             {
                 Set<Capability> existingCaps = index.get(sf.getValue());
@@ -202,7 +256,12 @@ public class CapabilitySet
                     matches.retainAll(caps);
                 }
             }
-            else
+            // Only use the range index if the remaining capabilities have
+            // not already been narrowed down much, otherwise it is cheaper
+            // to simply scan them.
+            else if ((getCost(sf) != COST_RANGE_INDEX)
+                || ((caps.size() * 4) < m_capList.size())
+                || !rangeIndex.match(caps, sf, matches))
             {
                 for (Iterator<Capability> it = caps.iterator(); it.hasNext(); )
                 {
@@ -211,7 +270,7 @@ public class CapabilitySet
                     if (attr != null)
                     {
                         Object lhs = attr.getValue();
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
+                        if (compare(lhs, sf))
                         {
                             matches.add(cap);
                         }
@@ -223,6 +282,32 @@ public class CapabilitySet
         return matches;
     }
 
+    private static final int COST_EXACT_INDEX = 0;
+    private static final int COST_RANGE_INDEX = 1;
+    private static final int COST_SCAN = 2;
+
+    private int getCost(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (m_indices.containsKey(sf.getName()))
+                {
+                    return COST_EXACT_INDEX;
+                }
+                // Fall through.
+            case SimpleFilter.GTE:
+            case SimpleFilter.LTE:
+                if (m_rangeIndices.containsKey(sf.getName()))
+                {
+                    return COST_RANGE_INDEX;
+                }
+                // Fall through.
+            default:
+                return COST_SCAN;
+        }
+    }
+
     public static boolean matches(Capability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -272,7 +357,7 @@ public class CapabilitySet
             if (attr != null)
             {
                 Object lhs = attr.getValue();
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                matched = compare(lhs, sf);
             }
         }
 
@@ -330,8 +415,10 @@ public class CapabilitySet
 
     private static final Class[] STRING_CLASS = new Class[] { String.class };
 
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    private static boolean compare(Object lhs, SimpleFilter sf)
     {
+        int op = sf.getOperation();
+
         // If this is a PRESENT operation, then just return true immediately
         // since we wouldn't be here if the attribute wasn't present.
         if (op == SimpleFilter.PRESENT)
@@ -352,15 +439,12 @@ public class CapabilitySet
             Object rhs;
             if (op == SimpleFilter.SUBSTRING)
             {
-                rhs = rhsUnknown;
+                rhs = sf.getValue();
             }
             else
             {
-                try
-                {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
-                }
-                catch (Exception ex)
+                rhs = coerceOperand(lhs, sf);
+                if (rhs == SimpleFilter.CoercedValue.FAILED)
                 {
                     return false;
                 }
@@ -386,12 +470,8 @@ public class CapabilitySet
         // Booleans do not implement comparable, so special case them.
         else if (lhs instanceof Boolean)
         {
-            Object rhs;
-            try
-            {
-                rhs = coerceType(lhs, (String) rhsUnknown);
-            }
-            catch (Exception ex)
+            Object rhs = coerceOperand(lhs, sf);
+            if (rhs == SimpleFilter.CoercedValue.FAILED)
             {
                 return false;
             }
@@ -409,21 +489,31 @@ public class CapabilitySet
             }
         }
 
-        // If the LHS is not a comparable or boolean, check if it is an
-        // array. If so, convert it to a list so we can treat it as a
-        // collection.
+        // If LHS is an array or a collection, then call compare() on each
+        // element until a match is found. Arrays are walked in place to
+        // avoid converting them to a list on every comparison.
         if (lhs.getClass().isArray())
         {
+            if (lhs instanceof Object[])
+            {
+                Object[] array = (Object[]) lhs;
+                for (int i = 0; i < array.length; i++)
+                {
+                    if ((array[i] != null) && compare(array[i], sf))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
             lhs = convertArrayToList(lhs);
         }
 
-        // If LHS is a collection, then call compare() on each element
-        // of the collection until a match is found.
         if (lhs instanceof Collection)
         {
             for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                if (compare(iter.next(), sf))
                 {
                     return true;
                 }
@@ -451,24 +541,69 @@ public class CapabilitySet
 //        {
 //            return false;
 //        }
-        Object rhsObj = null;
-        try
-        {
-            rhsObj = coerceType(lhs, (String) rhsUnknown);
-        }
-        catch (Exception ex)
+        Object rhsObj = coerceOperand(lhs, sf);
+        if (rhsObj == SimpleFilter.CoercedValue.FAILED)
         {
             return false;
         }
         return lhs.equals(rhsObj);
     }
 
+    /**
+     * Converts the operand of the specified filter to the type of the
+     * specified attribute value. The result of the conversion, including
+     * a failed conversion, is cached in the filter, so subsequent
+     * evaluations against values of the same type do not have to use
+     * reflection again.
+     * @param lhs the attribute value being compared.
+     * @param sf the filter whose operand should be converted.
+     * @return the converted operand or <tt>CoercedValue.FAILED</tt>.
+    **/
+    private static Object coerceOperand(Object lhs, SimpleFilter sf)
+    {
+        Class type = lhs.getClass();
+        Object rhs = sf.getCoercedValue(type);
+        if (rhs == null)
+        {
+            try
+            {
+                rhs = coerceType(lhs, (String) sf.getValue());
+            }
+            catch (Exception ex)
+            {
+                rhs = SimpleFilter.CoercedValue.FAILED;
+            }
+            // Only cache immutable values of well-known types, since we
+            // cannot know whether arbitrary types are safe to share.
+            if ((rhs == SimpleFilter.CoercedValue.FAILED) || isImmutable(type))
+            {
+                sf.setCoercedValue(type, rhs);
+            }
+        }
+        return rhs;
+    }
+
+    private static boolean isImmutable(Class type)
+    {
+        return (type == String.class)
+            || (type == org.osgi.framework.Version.class)
+            || (type == Integer.class)
+            || (type == Long.class)
+            || (type == Short.class)
+            || (type == Byte.class)
+            || (type == Float.class)
+            || (type == Double.class)
+            || (type == Character.class)
+            || (type == Boolean.class)
+            || (type == java.math.BigInteger.class)
+            || (type == java.math.BigDecimal.class);
+    }
+
     private static boolean compareApproximate(Object lhs, Object rhs)
     {
         if (rhs instanceof String)
         {
-            return removeWhitespace((String) lhs)
-                .equalsIgnoreCase(removeWhitespace((String) rhs));
+            return equalsIgnoreCaseAndWhitespace((String) lhs, (String) rhs);
         }
         else if (rhs instanceof Character)
         {
@@ -478,17 +613,37 @@ public class CapabilitySet
         return lhs.equals(rhs);
     }
 
-    private static String removeWhitespace(String s)
+    /**
+     * Compares two strings ignoring case and whitespace without creating
+     * intermediate strings.
+    **/
+    private static boolean equalsIgnoreCaseAndWhitespace(String s1, String s2)
     {
-        StringBuffer sb = new StringBuffer(s.length());
-        for (int i = 0; i < s.length(); i++)
+        int i1 = 0, i2 = 0;
+        int len1 = s1.length(), len2 = s2.length();
+        while (true)
         {
-            if (!Character.isWhitespace(s.charAt(i)))
+            while ((i1 < len1) && Character.isWhitespace(s1.charAt(i1)))
+            {
+                i1++;
+            }
+            while ((i2 < len2) && Character.isWhitespace(s2.charAt(i2)))
+            {
+                i2++;
+            }
+            if ((i1 == len1) || (i2 == len2))
             {
-                sb.append(s.charAt(i));
+                return (i1 == len1) && (i2 == len2);
+            }
+            char c1 = s1.charAt(i1++);
+            char c2 = s2.charAt(i2++);
+            if ((c1 != c2)
+                && (Character.toUpperCase(c1) != Character.toUpperCase(c2))
+                && (Character.toLowerCase(c1) != Character.toLowerCase(c2)))
+            {
+                return false;
             }
         }
-        return sb.toString();
     }
 
     private static Object coerceType(Object lhs, String rhsString) throws Exception
@@ -548,4 +703,121 @@ public class CapabilitySet
         }
         return list;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sorted index of capabilities by a version attribute. Capabilities
+     * whose attribute value is not a single <tt>Version</tt> cannot be
+     * sorted and are kept aside to be compared individually.
+    **/
+    private static class RangeIndex
+    {
+        private final TreeMap<Version, Set<Capability>> m_sorted =
+            new TreeMap<Version, Set<Capability>>();
+        private final Set<Capability> m_unsorted = new HashSet<Capability>();
+
+        void add(Capability cap, Object value)
+        {
+            if (value instanceof Version)
+            {
+                Set<Capability> caps = m_sorted.get(value);
+                if (caps == null)
+                {
+                    caps = new HashSet<Capability>();
+                    m_sorted.put((Version) value, caps);
+                }
+                caps.add(cap);
+            }
+            else
+            {
+                m_unsorted.add(cap);
+            }
+        }
+
+        void remove(Capability cap, Object value)
+        {
+            if (value instanceof Version)
+            {
+                Set<Capability> caps = m_sorted.get(value);
+                if (caps != null)
+                {
+                    caps.remove(cap);
+                    if (caps.isEmpty())
+                    {
+                        m_sorted.remove(value);
+                    }
+                }
+            }
+            else
+            {
+                m_unsorted.remove(cap);
+            }
+        }
+
+        /**
+         * Adds the capabilities from the specified candidates matching the
+         * specified comparison to the specified result set.
+         * @return <tt>false</tt> if the filter operand is not a version, in
+         *         which case the index cannot be used and nothing is added.
+        **/
+        boolean match(Set<Capability> caps, SimpleFilter sf, Set<Capability> matches)
+        {
+            Version version;
+            try
+            {
+                version = new Version((String) sf.getValue());
+            }
+            catch (Exception ex)
+            {
+                return false;
+            }
+
+            Collection<Set<Capability>> ranges;
+            switch (sf.getOperation())
+            {
+                case SimpleFilter.GTE:
+                    ranges = m_sorted.tailMap(version).values();
+                    break;
+                case SimpleFilter.LTE:
+                    ranges = new ArrayList<Set<Capability>>(
+                        m_sorted.headMap(version).values());
+                    if (m_sorted.get(version) != null)
+                    {
+                        ranges.add(m_sorted.get(version));
+                    }
+                    break;
+                default:
+                    ranges = new ArrayList<Set<Capability>>(1);
+                    if (m_sorted.get(version) != null)
+                    {
+                        ranges.add(m_sorted.get(version));
+                    }
+                    break;
+            }
+
+            for (Set<Capability> range : ranges)
+            {
+                for (Capability cap : range)
+                {
+                    if (caps.contains(cap))
+                    {
+                        matches.add(cap);
+                    }
+                }
+            }
+
+            for (Capability cap : m_unsorted)
+            {
+                if (caps.contains(cap))
+                {
+                    Attribute attr = cap.getAttribute(sf.getName());
+                    if ((attr != null) && compare(attr.getValue(), sf))
+                    {
+                        matches.add(cap);
+                    }
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.SecureAction;
+
+/**
+ * A cache of parsed filters shared by all frameworks, since filters for
+ * the same filter string are parsed over and over again by service
+ * trackers and the like. Parsed filters are immutable, so the same
+ * instance can be handed out to all callers. The cache only holds parsed
+ * filters weakly, so filters that are no longer used can be garbage
+ * collected, and it holds at most the maximum number of filters, dropping
+ * the least recently used ones. Filter strings that cannot be parsed are
+ * not cached.
+ * <p>
+ * Since the cache is shared, its maximum size is not a framework
+ * configuration property, but the <tt>felix.filter.cache.size</tt> system
+ * property, which is read once when the cache is first used.
+**/
+public class FilterCache
+{
+    public static final int MAX_SIZE_DEFAULT = 1024;
+
+    // Maps filter strings to weak references of their parsed filters in
+    // least recently used order.
+    // CONCURRENCY: Access guarded by the map.
+    private static final LinkedHashMap m_filters = new LinkedHashMap(16, 0.75f, true);
+    private static final ReferenceQueue m_queue = new ReferenceQueue();
+    private static int m_maxSize = getMaxSizeProperty();
+    private static long m_hitCount = 0;
+    private static long m_missCount = 0;
+
+    /**
+     * Returns the parsed filter for the specified filter string, parsing
+     * it only if it is not cached.
+     * @param filter the filter string.
+     * @return the parsed filter.
+     * @throws IllegalArgumentException if the filter string cannot be parsed.
+    **/
+    public static SimpleFilter parse(String filter)
+    {
+        if (filter == null)
+        {
+            return SimpleFilter.parse(filter);
+        }
+
+        synchronized (m_filters)
+        {
+            purge();
+            FilterReference ref = (FilterReference) m_filters.get(filter);
+            SimpleFilter sf = (ref == null) ? null : (SimpleFilter) ref.get();
+            if (sf != null)
+            {
+                m_hitCount++;
+                return sf;
+            }
+            m_missCount++;
+        }
+
+        // Parse outside of the lock, since this may take a while.
+        SimpleFilter sf = SimpleFilter.parse(filter);
+
+        synchronized (m_filters)
+        {
+            if (m_maxSize > 0)
+            {
+                // Another thread may have cached the same filter string in the
+                // meantime, in which case we simply replace it.
+                m_filters.put(filter, new FilterReference(filter, sf, m_queue));
+                evict();
+            }
+        }
+        return sf;
+    }
+
+    /**
+     * Sets the maximum number of cached filters; zero disables the cache.
+     * This is only meant for testing, since the cache is shared.
+     * @param maxSize the maximum number of cached filters.
+    **/
+    static void setMaxSize(int maxSize)
+    {
+        synchronized (m_filters)
+        {
+            m_maxSize = Math.max(0, maxSize);
+            evict();
+        }
+    }
+
+    /**
+     * Returns the number of cached filters, including ones that were
+     * garbage collected but not yet removed from the cache.
+     * @return the number of cached filters.
+    **/
+    public static int size()
+    {
+        synchronized (m_filters)
+        {
+            purge();
+            return m_filters.size();
+        }
+    }
+
+    public static void clear()
+    {
+        synchronized (m_filters)
+        {
+            m_filters.clear();
+        }
+    }
+
+    /**
+     * Returns the number of filter strings whose parsed filter was cached.
+     * @return the number of cache hits.
+    **/
+    public static long getHitCount()
+    {
+        synchronized (m_filters)
+        {
+            return m_hitCount;
+        }
+    }
+
+    /**
+     * Returns the number of filter strings that had to be parsed.
+     * @return the number of cache misses.
+    **/
+    public static long getMissCount()
+    {
+        synchronized (m_filters)
+        {
+            return m_missCount;
+        }
+    }
+
+    private static int getMaxSizeProperty()
+    {
+        String value = new SecureAction().getSystemProperty(
+            FelixConstants.FILTER_CACHE_SIZE_PROP, null);
+        if (value != null)
+        {
+            try
+            {
+                return Math.max(0, Integer.parseInt(value.trim()));
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and just use the default value.
+            }
+        }
+        return MAX_SIZE_DEFAULT;
+    }
+
+    // Must be called while holding the lock.
+    private static void purge()
+    {
+        FilterReference ref;
+        while ((ref = (FilterReference) m_queue.poll()) != null)
+        {
+            // Only remove the entry if it was not replaced in the meantime.
+            if (m_filters.get(ref.m_filter) == ref)
+            {
+                m_filters.remove(ref.m_filter);
+            }
+        }
+    }
+
+    // Must be called while holding the lock.
+    private static void evict()
+    {
+        int excess = m_filters.size() - m_maxSize;
+        for (Iterator it = m_filters.keySet().iterator(); (excess > 0) && it.hasNext(); excess--)
+        {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static class FilterReference extends WeakReference
+    {
+        private final String m_filter;
+
+        FilterReference(String filter, SimpleFilter sf, ReferenceQueue queue)
+        {
+            super(sf, queue);
+            m_filter = filter;
+        }
+    }
+}
@@ -36,6 +36,9 @@ public class SimpleFilter
     private final String m_name;
     private final Object m_value;
     private final int m_op;
+    // Operand converted to the type of the attribute value it was last
+    // compared against, so repeated evaluations can skip the conversion.
+    private volatile CoercedValue m_coerced;
 
     public SimpleFilter(String attr, Object value, int op)
     {
@@ -59,6 +62,26 @@ public class SimpleFilter
         return m_op;
     }
 
+    /**
+     * Returns the operand of this filter converted to the specified type,
+     * if such a conversion was cached by a previous evaluation.
+     * @param type the type of the attribute value being compared.
+     * @return the cached operand, <tt>CoercedValue.FAILED</tt> if the
+     *         conversion is known to fail, or <tt>null</tt> if there is no
+     *         cached conversion for the type.
+    **/
+    Object getCoercedValue(Class type)
+    {
+        CoercedValue coerced = m_coerced;
+        return ((coerced != null) && (coerced.m_type == type))
+            ? coerced.m_value : null;
+    }
+
+    void setCoercedValue(Class type, Object value)
+    {
+        m_coerced = new CoercedValue(type, value);
+    }
+
     public String toString()
     {
         String s = null;
@@ -541,4 +564,18 @@ loop:   for (int i = 0; i < len; i++)
         }
         return startIdx;
     }
-}
\ No newline at end of file
+
+    static class CoercedValue
+    {
+        static final Object FAILED = new Object();
+
+        final Class m_type;
+        final Object m_value;
+
+        CoercedValue(Class type, Object value)
+        {
+            m_type = type;
+            m_value = value;
+        }
+    }
+}
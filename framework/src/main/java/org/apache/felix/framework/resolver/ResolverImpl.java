@@ -54,10 +54,49 @@ public class ResolverImpl implements Resolver
     // These permutations represent backtracking on previous decisions.
     private final List<Map<Requirement, Set<Capability>>> m_importPermutations =
         new ArrayList<Map<Requirement, Set<Capability>>>();
+    // Maximum number of candidate permutations to try, or 0 for no limit.
+    private final int m_permutationLimit;
+    // Whether package spaces are reused from one permutation to the next.
+    private final boolean m_reusePackageSpaces;
+
+    // Package spaces calculated for the previous permutation, which can be
+    // reused if none of the candidates they depend upon changed.
+    private final Map<Module, Packages> m_prevModulePkgMap = new HashMap<Module, Packages>();
+    // Selected candidates for each module in the previous permutation.
+    private final Map<Module, List<Capability>> m_prevSelections =
+        new HashMap<Module, List<Capability>>();
+    // Modules whose package spaces are reused in the current permutation.
+    private final Set<Module> m_reusedModules = new HashSet<Module>();
+    // Modules whose package spaces were already found to be consistent.
+    private final Set<Module> m_consistentModules = new HashSet<Module>();
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 0);
+    }
+
+    /**
+     * Creates a resolver that gives up after trying the specified number
+     * of candidate permutations for a single resolve.
+     * @param logger the logger to use.
+     * @param permutationLimit the maximum number of permutations or 0 for
+     *        no limit.
+    **/
+    public ResolverImpl(Logger logger, int permutationLimit)
+    {
+        this(logger, permutationLimit, true);
+    }
+
+    /**
+     * Creates a resolver that optionally calculates the package spaces of
+     * all modules from scratch for each candidate permutation, which is
+     * only meant for verifying that reusing them does not change results.
+    **/
+    ResolverImpl(Logger logger, int permutationLimit, boolean reusePackageSpaces)
     {
         m_logger = logger;
+        m_permutationLimit = permutationLimit;
+        m_reusePackageSpaces = reusePackageSpaces;
     }
 
     public Map<Module, List<Wire>> resolve(ResolverState state, Module module)
@@ -77,52 +116,7 @@ public class ResolverImpl implements Resolver
                     state, module, candidateMap, new HashMap<Module, Object>());
                 m_usesPermutations.add(candidateMap);
 
-                ResolveException rethrow = null;
-
-                Map<Capability, Set<Requirement>> capDepSet = new HashMap();
-
-                do
-                {
-                    rethrow = null;
-
-                    modulePkgMap.clear();
-                    capDepSet.clear();
-                    m_packageSourcesCache.clear();
-
-                    candidateMap = (m_usesPermutations.size() > 0)
-                        ? m_usesPermutations.remove(0)
-                        : m_importPermutations.remove(0);
-//dumpCandidateMap(candidateMap);
-
-                    calculatePackageSpaces(
-                        module, candidateMap, modulePkgMap,
-                        capDepSet, new HashMap(), new HashSet());
-//System.out.println("+++ PACKAGE SPACES START +++");
-//dumpModulePkgMap(modulePkgMap);
-//System.out.println("+++ PACKAGE SPACES END +++");
-
-                    try
-                    {
-                        checkPackageSpaceConsistency(
-                            module, candidateMap, modulePkgMap, capDepSet, new HashMap());
-                    }
-                    catch (ResolveException ex)
-                    {
-                        rethrow = ex;
-                        m_logger.log(
-                            module.getBundle(),
-                            Logger.LOG_DEBUG,
-                            "Current candidate permutation failed, will try another if possible.",
-                            ex);
-                    }
-                }
-                while ((rethrow != null)
-                    && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
-
-                if (rethrow != null)
-                {
-                    throw rethrow;
-                }
+                candidateMap = findConsistentPermutation(module, modulePkgMap);
 
                 wireMap =
                     populateWireMap(module, modulePkgMap, wireMap,
@@ -133,6 +127,7 @@ public class ResolverImpl implements Resolver
                 // Always clear the state.
                 m_usesPermutations.clear();
                 m_importPermutations.clear();
+                clearPackageSpaceState();
             }
         }
 
@@ -162,49 +157,7 @@ public class ResolverImpl implements Resolver
                 populateDynamicCandidates(state, module, candidateMap);
                 m_usesPermutations.add(candidateMap);
 
-                ResolveException rethrow = null;
-
-                Map<Capability, Set<Requirement>> capDepSet = new HashMap();
-
-                do
-                {
-                    rethrow = null;
-
-                    modulePkgMap.clear();
-                    capDepSet.clear();
-
-                    candidateMap = (m_usesPermutations.size() > 0)
-                        ? m_usesPermutations.remove(0)
-                        : m_importPermutations.remove(0);
-
-                    calculatePackageSpaces(
-                        module, candidateMap, modulePkgMap,
-                        capDepSet, new HashMap(), new HashSet());
-
-                    try
-                    {
-                        checkPackageSpaceConsistency(
-                            module, candidateMap, modulePkgMap,
-                            capDepSet, new HashMap());
-                    }
-                    catch (ResolveException ex)
-                    {
-                        rethrow = ex;
-                        m_logger.log(
-                            module.getBundle(),
-                            Logger.LOG_DEBUG,
-                            "Current candidate permutation failed, will try another if possible.",
-                            ex);
-                    }
-                }
-                while ((rethrow != null)
-                    && ((m_usesPermutations.size() > 0)
-                        || (m_importPermutations.size() > 0)));
-
-                if (rethrow != null)
-                {
-                    throw rethrow;
-                }
+                candidateMap = findConsistentPermutation(module, modulePkgMap);
 
 //dumpModulePkgMap(modulePkgMap);
                 wireMap = populateDynamicWireMap(
@@ -217,12 +170,263 @@ public class ResolverImpl implements Resolver
                 // Always clear the state.
                 m_usesPermutations.clear();
                 m_importPermutations.clear();
+                clearPackageSpaceState();
             }
         }
 
         return null;
     }
 
+    /**
+     * Tries the pending candidate permutations, in order, until one results
+     * in consistent package spaces for the specified module. Package spaces
+     * calculated for one permutation are reused for the next one for all
+     * modules that do not depend on any requirement whose selected candidate
+     * changed, so only the affected modules are recalculated.
+     * @param module the module being resolved.
+     * @param modulePkgMap the map to populate with the resulting package spaces.
+     * @return the consistent candidate permutation.
+     * @throws ResolveException if no consistent permutation was found or the
+     *         permutation limit was reached.
+    **/
+    private Map<Requirement, Set<Capability>> findConsistentPermutation(
+        Module module, Map<Module, Packages> modulePkgMap)
+    {
+        Map<Requirement, Set<Capability>> candidateMap = null;
+        Map<Capability, Set<Requirement>> capDepSet = new HashMap();
+        ResolveException rethrow = null;
+        int permCount = 0;
+        int reusedCount = 0;
+
+        do
+        {
+            rethrow = null;
+
+            modulePkgMap.clear();
+            capDepSet.clear();
+
+            candidateMap = (m_usesPermutations.size() > 0)
+                ? m_usesPermutations.remove(0)
+                : m_importPermutations.remove(0);
+            permCount++;
+//dumpCandidateMap(candidateMap);
+
+            reusedCount += reusePackageSpaces(candidateMap, modulePkgMap);
+            Set<Module> visited = new HashSet<Module>();
+            calculatePackageSpaces(
+                module, candidateMap, modulePkgMap,
+                capDepSet, new HashMap(), visited);
+            recordPackageSpaces(candidateMap, modulePkgMap, visited);
+//System.out.println("+++ PACKAGE SPACES START +++");
+//dumpModulePkgMap(modulePkgMap);
+//System.out.println("+++ PACKAGE SPACES END +++");
+
+            try
+            {
+                checkPackageSpaceConsistency(
+                    module, candidateMap, modulePkgMap, capDepSet, new HashMap());
+            }
+            catch (ResolveException ex)
+            {
+                rethrow = ex;
+                m_logger.log(
+                    module.getBundle(),
+                    Logger.LOG_DEBUG,
+                    "Current candidate permutation failed, will try another if possible.",
+                    ex);
+            }
+
+            // Give up if we have reached the permutation limit, but only if
+            // there actually are remaining permutations to report.
+            int remaining = m_usesPermutations.size() + m_importPermutations.size();
+            if ((rethrow != null) && (remaining > 0)
+                && (m_permutationLimit > 0) && (permCount >= m_permutationLimit))
+            {
+                rethrow = new ResolveException(
+                    "Unable to resolve " + module + ": gave up after "
+                    + permCount + " candidate permutations with " + remaining
+                    + " remaining [last failure: " + rethrow.getMessage() + "]",
+                    module, rethrow.getRequirement());
+                m_logger.log(
+                    module.getBundle(),
+                    Logger.LOG_WARNING,
+                    "Candidate permutation limit reached, reused package spaces of "
+                    + reusedCount + " modules.",
+                    rethrow);
+                break;
+            }
+        }
+        while ((rethrow != null)
+            && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
+
+        if (rethrow != null)
+        {
+            throw rethrow;
+        }
+
+        if (permCount > 1)
+        {
+            m_logger.log(
+                module.getBundle(),
+                Logger.LOG_DEBUG,
+                "Resolved " + module + " after " + permCount
+                + " candidate permutations, reused package spaces of "
+                + reusedCount + " modules.");
+        }
+
+        return candidateMap;
+    }
+
+    /**
+     * Determines which package spaces of the previous permutation are still
+     * valid for the specified permutation and adds them to the package space
+     * map. The package space of a module only depends on the selected
+     * candidates of the modules it can reach through its selected candidates,
+     * so it is valid if none of these selections changed.
+     * @return the number of reused package spaces.
+    **/
+    private int reusePackageSpaces(
+        Map<Requirement, Set<Capability>> candidateMap,
+        Map<Module, Packages> modulePkgMap)
+    {
+        m_reusedModules.clear();
+        if (!m_reusePackageSpaces)
+        {
+            clearPackageSpaceState();
+            return 0;
+        }
+
+        // First, find the modules whose own selected candidates did not change.
+        Map<Module, List<Capability>> selections = new HashMap<Module, List<Capability>>();
+        for (Entry<Module, List<Capability>> entry : m_prevSelections.entrySet())
+        {
+            List<Capability> selection = getSelection(entry.getKey(), candidateMap);
+            if (selection.equals(entry.getValue()))
+            {
+                m_reusedModules.add(entry.getKey());
+                selections.put(entry.getKey(), selection);
+            }
+        }
+
+        // Then, remove modules depending on modules that cannot be reused
+        // until nothing changes anymore.
+        boolean changed;
+        do
+        {
+            changed = false;
+            for (Iterator<Module> it = m_reusedModules.iterator(); it.hasNext(); )
+            {
+                Module module = it.next();
+                for (Module dep : getDependencies(module, selections.get(module)))
+                {
+                    if (!m_reusedModules.contains(dep))
+                    {
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        while (changed);
+
+        for (Module module : m_reusedModules)
+        {
+            modulePkgMap.put(module, m_prevModulePkgMap.get(module));
+        }
+
+        // Only keep cached results that depend on reused package spaces.
+        m_consistentModules.retainAll(m_reusedModules);
+        for (Iterator<Capability> it = m_packageSourcesCache.keySet().iterator();
+            it.hasNext(); )
+        {
+            if (!m_reusedModules.contains(it.next().getModule()))
+            {
+                it.remove();
+            }
+        }
+
+        return m_reusedModules.size();
+    }
+
+    /**
+     * Records the calculated package spaces and the candidate selections
+     * they are based upon, so they can be reused for the next permutation.
+    **/
+    private void recordPackageSpaces(
+        Map<Requirement, Set<Capability>> candidateMap,
+        Map<Module, Packages> modulePkgMap, Set<Module> visited)
+    {
+        m_prevModulePkgMap.clear();
+        m_prevSelections.clear();
+        for (Entry<Module, Packages> entry : modulePkgMap.entrySet())
+        {
+            Module module = entry.getKey();
+            // Ignore modules for which only the exports were calculated.
+            if (visited.contains(module) || m_reusedModules.contains(module))
+            {
+                m_prevModulePkgMap.put(module, entry.getValue());
+                m_prevSelections.put(module, getSelection(module, candidateMap));
+            }
+        }
+    }
+
+    private void clearPackageSpaceState()
+    {
+        m_prevModulePkgMap.clear();
+        m_prevSelections.clear();
+        m_reusedModules.clear();
+        m_consistentModules.clear();
+        m_packageSourcesCache.clear();
+    }
+
+    /**
+     * Returns the selected candidate of each requirement of the specified
+     * module, or <tt>null</tt> for requirements without candidates.
+    **/
+    private static List<Capability> getSelection(
+        Module module, Map<Requirement, Set<Capability>> candidateMap)
+    {
+        List<Capability> selection = new ArrayList<Capability>();
+        for (Requirement req : module.getRequirements())
+        {
+            Set<Capability> candidates = candidateMap.get(req);
+            selection.add(((candidates == null) || candidates.isEmpty())
+                ? null : candidates.iterator().next());
+        }
+        for (Requirement req : module.getDynamicRequirements())
+        {
+            Set<Capability> candidates = candidateMap.get(req);
+            selection.add(((candidates == null) || candidates.isEmpty())
+                ? null : candidates.iterator().next());
+        }
+        return selection;
+    }
+
+    /**
+     * Returns the modules whose package spaces the package space of the
+     * specified module is calculated from.
+    **/
+    private static List<Module> getDependencies(Module module, List<Capability> selection)
+    {
+        List<Module> deps = new ArrayList<Module>();
+        if (module.isResolved())
+        {
+            for (Wire wire : module.getWires())
+            {
+                deps.add(wire.getExporter());
+            }
+        }
+        for (Capability cap : selection)
+        {
+            if (cap != null)
+            {
+                deps.add(cap.getModule());
+            }
+        }
+        return deps;
+    }
+
     private static Map<Requirement, Set<Capability>> getDynamicImportCandidates(
         ResolverState state, Module module, String pkgName)
     {
@@ -550,6 +754,13 @@ public class ResolverImpl implements Resolver
         }
         cycle.add(module);
 
+        // The package space was reused from the previous permutation, so
+        // it and the package spaces it depends upon are already complete.
+        if (m_reusedModules.contains(module))
+        {
+            return;
+        }
+
         // Create a map of wires or proposed wired depending on whether
         // the module is resolved or not.
         List<Requirement> reqs = new ArrayList();
@@ -875,6 +1086,55 @@ public class ResolverImpl implements Resolver
 
         Packages pkgs = modulePkgMap.get(module);
 
+        // Only check the module itself if its package space is not known
+        // to be consistent from a previous permutation.
+        if (!m_consistentModules.contains(module))
+        {
+            checkModuleConsistency(module, candidateMap, modulePkgMap, pkgs);
+            m_consistentModules.add(module);
+        }
+
+        resultCache.put(module, Boolean.TRUE);
+
+        // Now check the consistency of all modules on which the
+        // current module depends. Keep track of the current number
+        // of permutations so we know if the lower level check was
+        // able to create a permutation or not in the case of failure.
+        int permCount = m_usesPermutations.size() + m_importPermutations.size();
+        for (Entry<String, List<Blame>> entry : pkgs.m_importedPkgs.entrySet())
+        {
+            for (Blame importBlame : entry.getValue())
+            {
+                if (!module.equals(importBlame.m_cap.getModule()))
+                {
+                    try
+                    {
+                        checkPackageSpaceConsistency(
+                            importBlame.m_cap.getModule(), candidateMap, modulePkgMap,
+                            capDepSet, resultCache);
+                    }
+                    catch (ResolveException ex)
+                    {
+                        // If the lower level check didn't create any permutations,
+                        // then we should create an import permutation for the
+                        // requirement with the dependency on the failing module
+                        // to backtrack on our current candidate selection.
+                        if (permCount == (m_usesPermutations.size() + m_importPermutations.size()))
+                        {
+                            Requirement req = importBlame.m_reqs.get(0);
+                            permutate(candidateMap, req, m_importPermutations);
+                        }
+                        throw ex;
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkModuleConsistency(
+        Module module, Map<Requirement, Set<Capability>> candidateMap,
+        Map<Module, Packages> modulePkgMap, Packages pkgs)
+    {
         ResolveException rethrow = null;
         Map<Requirement, Set<Capability>> permutation = null;
         Set<Requirement> mutated = null;
@@ -1091,42 +1351,6 @@ public class ResolverImpl implements Resolver
                 }
             }
         }
-
-        resultCache.put(module, Boolean.TRUE);
-
-        // Now check the consistency of all modules on which the
-        // current module depends. Keep track of the current number
-        // of permutations so we know if the lower level check was
-        // able to create a permutation or not in the case of failure.
-        int permCount = m_usesPermutations.size() + m_importPermutations.size();
-        for (Entry<String, List<Blame>> entry : pkgs.m_importedPkgs.entrySet())
-        {
-            for (Blame importBlame : entry.getValue())
-            {
-                if (!module.equals(importBlame.m_cap.getModule()))
-                {
-                    try
-                    {
-                        checkPackageSpaceConsistency(
-                            importBlame.m_cap.getModule(), candidateMap, modulePkgMap,
-                            capDepSet, resultCache);
-                    }
-                    catch (ResolveException ex)
-                    {
-                        // If the lower level check didn't create any permutations,
-                        // then we should create an import permutation for the
-                        // requirement with the dependency on the failing module
-                        // to backtrack on our current candidate selection.
-                        if (permCount == (m_usesPermutations.size() + m_importPermutations.size()))
-                        {
-                            Requirement req = importBlame.m_reqs.get(0);
-                            permutate(candidateMap, req, m_importPermutations);
-                        }
-                        throw ex;
-                    }
-                }
-            }
-        }
     }
 
     private static void permutate(
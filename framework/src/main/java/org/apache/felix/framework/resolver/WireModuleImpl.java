@@ -75,6 +75,15 @@ public class WireModuleImpl implements Wire
         return m_cap;
     }
 
+    /**
+     * Returns the packages this wire provides access to.
+     * @return the list of package names.
+    **/
+    public List<String> getPackages()
+    {
+        return m_packages;
+    }
+
     /* (non-Javadoc)
      * @see org.apache.felix.framework.searchpolicy.IWire#hasPackage(java.lang.String)
      */
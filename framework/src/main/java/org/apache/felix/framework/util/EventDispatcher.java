@@ -21,17 +21,23 @@ package org.apache.felix.framework.util;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Dictionary;
 import java.util.EventListener;
 import java.util.EventObject;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.apache.felix.framework.InvokeHookCallback;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
+import org.apache.felix.framework.capabilityset.FilterCache;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -70,56 +76,101 @@ public class EventDispatcher
     private Object[] m_bundleListeners = m_emptyList;
     private Object[] m_syncBundleListeners = m_emptyList;
     private Object[] m_serviceListeners = m_emptyList;
-
-    // A single thread is used to deliver events for all dispatchers.
-    private static Thread m_thread = null;
+    // Index of the service listeners by the object classes their filters
+    // require; it is rebuilt whenever the service listeners change.
+    private volatile ServiceListenerIndex m_serviceListenerIndex =
+        new ServiceListenerIndex(m_emptyList, null);
+
+    // Asynchronous events for listeners that take longer than this number
+    // of milliseconds are no longer delivered to them, 0 means no limit.
+    private final long m_timeout;
+    // Maps listeners to their queue of asynchronous events.
+    private final Map m_listenerQueues = new IdentityHashMap();
+    // Asynchronous delivery metrics of this dispatcher, guarded by the
+    // request list lock.
+    private int m_queueDepth = 0;
+    private long m_deliveryCount = 0;
+    private long m_totalLatency = 0;
+    private long m_maxLatency = 0;
+
+    // A bounded pool of threads is used to deliver asynchronous events for
+    // all dispatchers. Events are queued per listener, so every listener
+    // receives its events in order, while different listeners may be
+    // notified concurrently.
     private final static String m_threadLock = new String("thread lock");
     private static int m_references = 0;
     private static volatile boolean m_stopping = false;
-
-    // List of requests.
+    // The number of delivery threads to keep running.
+    private static int m_threadCount = 0;
+    // The number of running delivery threads, excluding the ones blocked
+    // by a timed out listener.
+    private static int m_activeThreads = 0;
+    // Used to name delivery threads.
+    private static int m_threadSeq = 0;
+    // Delivery threads blocked by a timed out listener, which have been
+    // replaced and exit once the listener returns.
+    private static final List m_replacedThreads = new ArrayList();
+
+    // List of listener queues with events to deliver, which also serves as
+    // the lock for all asynchronous delivery state.
     private static final ArrayList m_requestList = new ArrayList();
     // Pooled requests to avoid memory allocation.
     private static final ArrayList m_requestPool = new ArrayList();
+    // Listener queues currently being delivered to with a timeout.
+    private static final ArrayList m_activeQueues = new ArrayList();
 
-    private EventDispatcher(Logger logger)
+    private EventDispatcher(Logger logger, long timeout)
     {
         m_logger = logger;
+        m_timeout = timeout;
     }
 
     public static EventDispatcher start(Logger logger)
     {
-        EventDispatcher eventDispatcher = new EventDispatcher(logger);
+        return start(logger, 1, 0);
+    }
+
+    /**
+     * Creates an event dispatcher and makes sure enough threads are running
+     * to deliver asynchronous events. The threads are shared by all event
+     * dispatchers, so the largest requested number of threads is used.
+     * @param logger The logger to use.
+     * @param threadCount The number of threads delivering asynchronous events.
+     * @param timeout The number of milliseconds after which a listener that
+     *        has not returned from an asynchronous event is blacklisted, or 0
+     *        to wait indefinitely.
+     * @return The event dispatcher.
+    **/
+    public static EventDispatcher start(Logger logger, int threadCount, long timeout)
+    {
+        EventDispatcher eventDispatcher = new EventDispatcher(logger, timeout);
 
         synchronized (m_threadLock)
         {
-            // Start event dispatching thread if necessary.
-            if (m_thread == null || !m_thread.isAlive())
+            synchronized (m_requestList)
             {
-                m_stopping = false;
-
-                m_thread = new Thread(new Runnable() {
-                    public void run()
+                // Let a concurrent shutdown finish first.
+                while (m_stopping)
+                {
+                    try
                     {
-                        try
-                        {
-                            EventDispatcher.run();
-                        }
-                        finally
-                        {
-                            // Ensure we update state even if stopped by external cause
-                            // e.g. an Applet VM forceably killing threads
-                            synchronized (m_threadLock)
-                            {
-                                m_thread = null;
-                                m_stopping = false;
-                                m_references = 0;
-                                m_threadLock.notifyAll();
-                            }
-                        }
+                        m_requestList.wait();
                     }
-                }, "FelixDispatchQueue");
-                m_thread.start();
+                    catch (InterruptedException ex)
+                    {
+                    }
+                }
+
+                // Start event dispatching threads if necessary.
+                if (m_activeThreads == 0)
+                {
+                    m_threadCount = 0;
+                }
+                while (m_threadCount < Math.max(1, threadCount))
+                {
+                    m_threadCount++;
+                    startDeliveryThread();
+                }
             }
 
             // reference counting and flags
@@ -129,6 +180,43 @@ public class EventDispatcher
         return eventDispatcher;
     }
 
+    // Must be called while holding the request list lock.
+    private static void startDeliveryThread()
+    {
+        String name = (m_threadSeq == 0)
+            ? "FelixDispatchQueue" : "FelixDispatchQueue-" + m_threadSeq;
+        m_threadSeq++;
+        m_activeThreads++;
+        Thread thread = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    EventDispatcher.run();
+                }
+                finally
+                {
+                    // Ensure we update state even if stopped by external cause
+                    // e.g. an Applet VM forceably killing threads
+                    synchronized (m_requestList)
+                    {
+                        if (!m_replacedThreads.remove(Thread.currentThread()))
+                        {
+                            m_activeThreads--;
+                        }
+                        if (m_activeThreads == 0)
+                        {
+                            m_threadCount = 0;
+                        }
+                        m_requestList.notifyAll();
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public void setServiceRegistry(ServiceRegistry sr)
     {
         m_serviceRegistry = sr;
@@ -139,7 +227,7 @@ public class EventDispatcher
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
-            if (m_thread == null || m_stopping)
+            if ((m_references == 0) || m_stopping)
             {
                 return;
             }
@@ -154,25 +242,37 @@ public class EventDispatcher
             m_stopping = true;
         }
 
-        // Signal dispatch thread.
+        // Signal dispatch threads and wait for them to exit, except for
+        // threads blocked by timed out listeners.
         synchronized (m_requestList)
         {
-            m_requestList.notify();
-        }
-
-        // Use separate lock for shutdown to prevent any chance of nested lock deadlock
-        synchronized (m_threadLock)
-        {
-            while (m_thread != null)
+            m_requestList.notifyAll();
+            while (m_activeThreads > 0)
             {
                 try
                 {
-                    m_threadLock.wait();
+                    m_requestList.wait();
                 }
                 catch (InterruptedException ex)
                 {
                 }
             }
+            m_stopping = false;
+            m_requestList.notifyAll();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the asynchronous delivery metrics of this
+     * dispatcher.
+     * @return The current metrics.
+    **/
+    public Metrics getMetrics()
+    {
+        synchronized (m_requestList)
+        {
+            return new Metrics(
+                m_queueDepth, m_deliveryCount, m_totalLatency, m_maxLatency);
         }
     }
 
@@ -282,6 +382,8 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_serviceListeners = listeners;
+                m_serviceListenerIndex =
+                    new ServiceListenerIndex(listeners, m_serviceListenerIndex);
             }
         }
         return null;
@@ -354,6 +456,25 @@ public class EventDispatcher
             // If we have the instance, then remove it.
             if (idx >= 0)
             {
+                // Forget about any timeout of the listener, events already
+                // queued for it will still be delivered. The queue of a busy
+                // listener is kept, so events fired after the listener is
+                // added again are not delivered concurrently with or ahead of
+                // the pending ones; it is removed once it has been drained.
+                synchronized (m_requestList)
+                {
+                    ListenerQueue queue = (ListenerQueue) m_listenerQueues.get(l);
+                    if ((queue != null)
+                        && (queue.m_scheduled || (queue.m_requests.size() > 0)))
+                    {
+                        queue.m_blacklisted = false;
+                    }
+                    else
+                    {
+                        m_listenerQueues.remove(l);
+                    }
+                }
+
                 // If this is the last listener, then point to empty list.
                 if ((listeners.length - LISTENER_ARRAY_INCREMENT) == 0)
                 {
@@ -396,6 +517,8 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_serviceListeners = listeners;
+                m_serviceListenerIndex =
+                    new ServiceListenerIndex(listeners, m_serviceListenerIndex);
             }
         }
 
@@ -532,6 +655,8 @@ public class EventDispatcher
                         // The spec says to update the filter in this case.
                         oldFilter = (Filter) listeners[i + LISTENER_FILTER_OFFSET];
                         listeners[i + LISTENER_FILTER_OFFSET] = filter;
+                        m_serviceListenerIndex =
+                            new ServiceListenerIndex(listeners, m_serviceListenerIndex);
                     }
                     return oldFilter;
                 }
@@ -624,12 +749,10 @@ public class EventDispatcher
     public void fireServiceEvent(
         final ServiceEvent event, final Dictionary oldProps, final Framework felix)
     {
-        // Take a snapshot of the listener array.
-        Object[] listeners = null;
-        synchronized (this)
-        {
-            listeners = m_serviceListeners;
-        }
+        // Take a snapshot of the listeners that can possibly match the
+        // event's object classes.
+        Object[] listeners = m_serviceListenerIndex.getListeners(
+            (String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS));
 
         if (m_serviceRegistry != null)
         {
@@ -666,40 +789,65 @@ public class EventDispatcher
     private static void fireEventAsynchronously(
         EventDispatcher dispatcher, int type, Object[] listeners, EventObject event)
     {
-        //TODO: should possibly check this within thread lock, seems to be ok though without
-        // If dispatch thread is stopped, then ignore dispatch request.
-        if (m_stopping || m_thread == null)
-        {
-            return;
-        }
+        long now = System.currentTimeMillis();
 
-        // First get a request from the pool or create one if necessary.
-        Request req = null;
-        synchronized (m_requestPool)
+        // Lock the request list.
+        synchronized (m_requestList)
         {
-            if (m_requestPool.size() > 0)
+            // If dispatch threads are stopped, then ignore dispatch request.
+            if (m_stopping || (m_activeThreads == 0))
             {
-                req = (Request) m_requestPool.remove(0);
+                return;
             }
-            else
+
+            // Queue a request for each listener in the same order in which
+            // listeners are notified synchronously.
+            for (int i = listeners.length - LISTENER_ARRAY_INCREMENT;
+                i >= 0;
+                i -= LISTENER_ARRAY_INCREMENT)
             {
-                req = new Request();
+                EventListener l = (EventListener) listeners[i + LISTENER_OBJECT_OFFSET];
+                ListenerQueue queue = (ListenerQueue) dispatcher.m_listenerQueues.get(l);
+                if (queue == null)
+                {
+                    queue = new ListenerQueue(l);
+                    dispatcher.m_listenerQueues.put(l, queue);
+                }
+                else if (queue.m_blacklisted)
+                {
+                    continue;
+                }
+
+                // First get a request from the pool or create one if necessary.
+                Request req = (m_requestPool.size() > 0)
+                    ? (Request) m_requestPool.remove(m_requestPool.size() - 1)
+                    : new Request();
+
+                // Initialize dispatch request.
+                req.m_dispatcher = dispatcher;
+                req.m_type = type;
+                req.m_bundle = (Bundle) listeners[i + LISTENER_BUNDLE_OFFSET];
+                req.m_listener = l;
+                req.m_event = event;
+                req.m_time = now;
+
+                // Add our request to the listener's queue and schedule the
+                // queue for delivery if it isn't already.
+                queue.m_requests.add(req);
+                dispatcher.m_queueDepth++;
+                if (!queue.m_scheduled)
+                {
+                    queue.m_scheduled = true;
+                    m_requestList.add(queue);
+                }
             }
-        }
 
-        // Initialize dispatch request.
-        req.m_dispatcher = dispatcher;
-        req.m_type = type;
-        req.m_listeners = listeners;
-        req.m_event = event;
+            // Check for timed out listeners in case all dispatch threads
+            // are busy.
+            checkTimeouts();
 
-        // Lock the request list.
-        synchronized (m_requestList)
-        {
-            // Add our request to the list.
-            m_requestList.add(req);
-            // Notify the dispatch thread that there is work to do.
-            m_requestList.notify();
+            // Notify the dispatch threads that there is work to do.
+            m_requestList.notifyAll();
         }
     }
 
@@ -714,38 +862,46 @@ public class EventDispatcher
                 i >= 0;
                 i -= LISTENER_ARRAY_INCREMENT)
             {
-                Bundle bundle = (Bundle) listeners[i + LISTENER_BUNDLE_OFFSET];
-                EventListener l = (EventListener) listeners[i + LISTENER_OBJECT_OFFSET];
-                Filter filter = (Filter) listeners[i + LISTENER_FILTER_OFFSET];
-                Object acc = listeners[i + LISTENER_SECURITY_OFFSET];
-                try
-                {
-                    if (type == Request.FRAMEWORK_EVENT)
-                    {
-                        invokeFrameworkListenerCallback(bundle, l, event);
-                    }
-                    else if (type == Request.BUNDLE_EVENT)
-                    {
-                        invokeBundleListenerCallback(bundle, l, event);
-                    }
-                    else if (type == Request.SERVICE_EVENT)
-                    {
-                        invokeServiceListenerCallback(
-                            bundle, l, filter, acc, event, oldProps);
-                    }
-                }
-                catch (Throwable th)
-                {
-                    if ((type != Request.FRAMEWORK_EVENT)
-                        || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
-                    {
-                        dispatcher.m_logger.log(bundle,
-                            Logger.LOG_ERROR,
-                            "EventDispatcher: Error during dispatch.", th);
-                        dispatcher.fireFrameworkEvent(
-                            new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-                    }
-                }
+                invokeListener(dispatcher, type,
+                    (Bundle) listeners[i + LISTENER_BUNDLE_OFFSET],
+                    (EventListener) listeners[i + LISTENER_OBJECT_OFFSET],
+                    (Filter) listeners[i + LISTENER_FILTER_OFFSET],
+                    listeners[i + LISTENER_SECURITY_OFFSET],
+                    event, oldProps);
+            }
+        }
+    }
+
+    private static void invokeListener(
+        EventDispatcher dispatcher, int type, Bundle bundle, EventListener l,
+        Filter filter, Object acc, EventObject event, Dictionary oldProps)
+    {
+        try
+        {
+            if (type == Request.FRAMEWORK_EVENT)
+            {
+                invokeFrameworkListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.BUNDLE_EVENT)
+            {
+                invokeBundleListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.SERVICE_EVENT)
+            {
+                invokeServiceListenerCallback(
+                    bundle, l, filter, acc, event, oldProps);
+            }
+        }
+        catch (Throwable th)
+        {
+            if ((type != Request.FRAMEWORK_EVENT)
+                || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
+            {
+                dispatcher.m_logger.log(bundle,
+                    Logger.LOG_ERROR,
+                    "EventDispatcher: Error during dispatch.", th);
+                dispatcher.fireFrameworkEvent(
+                    new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
             }
         }
     }
@@ -902,13 +1058,15 @@ public class EventDispatcher
     }
 
     /**
-     * This is the dispatching thread's main loop.
+     * This is the dispatching threads' main loop.
     **/
     private static void run()
     {
-        Request req = null;
         while (true)
         {
+            ListenerQueue queue = null;
+            Request req = null;
+
             // Lock the request list so we can try to get a
             // dispatch request from it.
             synchronized (m_requestList)
@@ -918,10 +1076,11 @@ public class EventDispatcher
                 // dispatcher thread exit the loop and stop.
                 while ((m_requestList.size() == 0) && !m_stopping)
                 {
-                    // Wait until some signals us for work.
+                    // Wait until some signals us for work or until a
+                    // listener being notified may time out.
                     try
                     {
-                        m_requestList.wait();
+                        m_requestList.wait(checkTimeouts());
                     }
                     catch (InterruptedException ex)
                     {
@@ -936,8 +1095,26 @@ public class EventDispatcher
                     return;
                 }
 
-                // Get the dispatch request.
-                req = (Request) m_requestList.remove(0);
+                // Get the next dispatch request of the next listener.
+                queue = (ListenerQueue) m_requestList.remove(0);
+                req = (Request) queue.m_requests.remove(0);
+
+                queue.m_current = req;
+                queue.m_thread = Thread.currentThread();
+                queue.m_deliveryStart = System.currentTimeMillis();
+                EventDispatcher dispatcher = req.m_dispatcher;
+                long latency = queue.m_deliveryStart - req.m_time;
+                dispatcher.m_queueDepth--;
+                dispatcher.m_deliveryCount++;
+                dispatcher.m_totalLatency += latency;
+                dispatcher.m_maxLatency = Math.max(dispatcher.m_maxLatency, latency);
+
+                // Let waiting threads watch for a timeout.
+                if (req.m_dispatcher.m_timeout > 0)
+                {
+                    m_activeQueues.add(queue);
+                    m_requestList.notifyAll();
+                }
             }
 
             // Deliver event outside of synchronized block
@@ -946,19 +1123,115 @@ public class EventDispatcher
             // NOTE: We don't catch any exceptions here, because
             // the invoked method shields us from exceptions by
             // catching Throwables when it invokes callbacks.
-            fireEventImmediately(
-                req.m_dispatcher, req.m_type, req.m_listeners, req.m_event, null);
+            invokeListener(req.m_dispatcher, req.m_type, req.m_bundle,
+                req.m_listener, null, null, req.m_event, null);
 
-            // Put dispatch request in cache.
-            synchronized (m_requestPool)
+            synchronized (m_requestList)
             {
-                req.m_dispatcher = null;
-                req.m_type = -1;
-                req.m_listeners = null;
-                req.m_event = null;
-                m_requestPool.add(req);
+                m_activeQueues.remove(queue);
+                queue.m_current = null;
+                queue.m_thread = null;
+
+                // Blacklist the listener if it took too long, even if no
+                // other thread noticed yet.
+                long duration = System.currentTimeMillis() - queue.m_deliveryStart;
+                if (!queue.m_blacklisted && (req.m_dispatcher.m_timeout > 0)
+                    && (duration > req.m_dispatcher.m_timeout))
+                {
+                    blacklist(queue, req, duration);
+                }
+
+                // Reschedule the listener's queue if it has more requests,
+                // behind the other listeners to deliver events fairly.
+                if (queue.m_requests.size() > 0)
+                {
+                    m_requestList.add(queue);
+                }
+                else
+                {
+                    queue.m_scheduled = false;
+                    if (!queue.m_blacklisted
+                        && (req.m_dispatcher.m_listenerQueues.get(queue.m_listener) == queue))
+                    {
+                        req.m_dispatcher.m_listenerQueues.remove(queue.m_listener);
+                    }
+                }
+
+                // Put dispatch request in cache.
+                recycle(req);
+
+                // Exit if another thread has replaced this one while it
+                // was blocked by the listener.
+                if (m_replacedThreads.contains(Thread.currentThread()))
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Blacklists listeners that are taking longer than the timeout of their
+     * dispatcher and replaces the threads blocked by them. Must be called
+     * while holding the request list lock.
+     * @return The number of milliseconds until the next listener may time
+     *         out or 0 if there is no such listener.
+    **/
+    private static long checkTimeouts()
+    {
+        long wait = 0;
+        long now = System.currentTimeMillis();
+        for (int i = m_activeQueues.size() - 1; i >= 0; i--)
+        {
+            ListenerQueue queue = (ListenerQueue) m_activeQueues.get(i);
+            Request req = queue.m_current;
+            long remaining = queue.m_deliveryStart + req.m_dispatcher.m_timeout - now;
+            if (remaining <= 0)
+            {
+                m_activeQueues.remove(i);
+                blacklist(queue, req, now - queue.m_deliveryStart);
+                m_replacedThreads.add(queue.m_thread);
+                m_activeThreads--;
+                if (!m_stopping)
+                {
+                    startDeliveryThread();
+                }
+            }
+            else
+            {
+                wait = (wait == 0) ? remaining : Math.min(wait, remaining);
             }
         }
+        return wait;
+    }
+
+    // Must be called while holding the request list lock.
+    private static void blacklist(ListenerQueue queue, Request req, long duration)
+    {
+        queue.m_blacklisted = true;
+        req.m_dispatcher.m_logger.log(req.m_bundle, Logger.LOG_WARNING,
+            "EventDispatcher: Listener " + queue.m_listener + " took more than "
+            + req.m_dispatcher.m_timeout + " ms to process an event and will no"
+            + " longer receive asynchronous events.");
+
+        // Discard the listener's pending requests.
+        req.m_dispatcher.m_queueDepth -= queue.m_requests.size();
+        for (int i = 0; i < queue.m_requests.size(); i++)
+        {
+            recycle((Request) queue.m_requests.get(i));
+        }
+        queue.m_requests.clear();
+    }
+
+    // Must be called while holding the request list lock.
+    private static void recycle(Request req)
+    {
+        req.m_dispatcher = null;
+        req.m_type = -1;
+        req.m_bundle = null;
+        req.m_listener = null;
+        req.m_event = null;
+        m_requestPool.add(req);
     }
 
     static class ListenerBundleContextCollectionWrapper implements Collection
@@ -1156,6 +1429,261 @@ public class EventDispatcher
         }
     }
 
+    /**
+     * An immutable snapshot of the service listener array, which indexes
+     * listeners by the object classes required by their filters, so only
+     * listeners that can possibly match a service event are evaluated.
+     * Listeners without a filter or whose filter does not require specific
+     * object classes are evaluated for every event.
+    **/
+    private static class ServiceListenerIndex
+    {
+        private static final String[] NO_CLASSES = new String[0];
+        private static final int[] NO_OFFSETS = new int[0];
+
+        private final Object[] m_listeners;
+        // Maps object class name to ascending listener offsets.
+        private final Map m_offsetsByClass = new HashMap();
+        // Offsets of listeners that must always be evaluated.
+        private final int[] m_unindexed;
+        // Caches the object classes required by each filter.
+        private final Map m_classesByFilter = new IdentityHashMap();
+
+        ServiceListenerIndex(Object[] listeners, ServiceListenerIndex previous)
+        {
+            m_listeners = listeners;
+
+            List unindexed = new ArrayList();
+            Map offsetLists = new HashMap();
+            for (int i = 0; i < listeners.length; i += LISTENER_ARRAY_INCREMENT)
+            {
+                Filter filter = (Filter) listeners[i + LISTENER_FILTER_OFFSET];
+                String[] classes = NO_CLASSES;
+                if (filter != null)
+                {
+                    classes = (previous == null)
+                        ? null : (String[]) previous.m_classesByFilter.get(filter);
+                    if (classes == null)
+                    {
+                        classes = getRequiredObjectClasses(filter);
+                    }
+                    m_classesByFilter.put(filter, classes);
+                }
+
+                if (classes.length == 0)
+                {
+                    unindexed.add(new Integer(i));
+                }
+                for (int j = 0; j < classes.length; j++)
+                {
+                    List offsets = (List) offsetLists.get(classes[j]);
+                    if (offsets == null)
+                    {
+                        offsets = new ArrayList();
+                        offsetLists.put(classes[j], offsets);
+                    }
+                    offsets.add(new Integer(i));
+                }
+            }
+
+            m_unindexed = toArray(unindexed);
+            for (Iterator it = offsetLists.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                m_offsetsByClass.put(entry.getKey(), toArray((List) entry.getValue()));
+            }
+        }
+
+        /**
+         * Returns the listeners that can possibly match a service with the
+         * specified object classes, in registration order.
+         * @param classes The object classes of the service.
+         * @return An array of listeners in the same format as the listener
+         *         arrays of the dispatcher.
+        **/
+        Object[] getListeners(String[] classes)
+        {
+            if (m_offsetsByClass.isEmpty() || (classes == null))
+            {
+                return m_listeners;
+            }
+
+            int[][] matches = new int[classes.length][];
+            int count = m_unindexed.length;
+            for (int i = 0; i < classes.length; i++)
+            {
+                matches[i] = (int[]) m_offsetsByClass.get(classes[i]);
+                matches[i] = (matches[i] == null) ? NO_OFFSETS : matches[i];
+                count += matches[i].length;
+            }
+
+            int[] offsets = new int[count];
+            System.arraycopy(m_unindexed, 0, offsets, 0, m_unindexed.length);
+            count = m_unindexed.length;
+            for (int i = 0; i < matches.length; i++)
+            {
+                System.arraycopy(matches[i], 0, offsets, count, matches[i].length);
+                count += matches[i].length;
+            }
+            // Restore the registration order, which is also the order
+            // in which listeners are notified.
+            if (matches.length > 0)
+            {
+                Arrays.sort(offsets);
+            }
+
+            List result = new ArrayList(offsets.length * LISTENER_ARRAY_INCREMENT);
+            for (int i = 0; i < offsets.length; i++)
+            {
+                // A listener may be indexed under several of the classes.
+                if ((i > 0) && (offsets[i] == offsets[i - 1]))
+                {
+                    continue;
+                }
+                for (int j = 0; j < LISTENER_ARRAY_INCREMENT; j++)
+                {
+                    result.add(m_listeners[offsets[i] + j]);
+                }
+            }
+            return result.toArray();
+        }
+
+        private static int[] toArray(List list)
+        {
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+            {
+                array[i] = ((Integer) list.get(i)).intValue();
+            }
+            return array;
+        }
+
+        /**
+         * Returns the object classes of which a service must have at least one
+         * to match the specified filter, or an empty array if the filter does
+         * not restrict the object classes.
+        **/
+        private static String[] getRequiredObjectClasses(Filter filter)
+        {
+            try
+            {
+                List classes = getRequiredObjectClasses(
+                    FilterCache.parse(filter.toString()));
+                if (classes != null)
+                {
+                    return (String[]) classes.toArray(new String[classes.size()]);
+                }
+            }
+            catch (Exception ex)
+            {
+                // Ignore and just evaluate the filter for every event.
+            }
+            return NO_CLASSES;
+        }
+
+        private static List getRequiredObjectClasses(SimpleFilter sf)
+        {
+            if (sf.getOperation() == SimpleFilter.EQ)
+            {
+                if (Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName()))
+                {
+                    List classes = new ArrayList(1);
+                    classes.add(sf.getValue());
+                    return classes;
+                }
+            }
+            else if (sf.getOperation() == SimpleFilter.AND)
+            {
+                // Any restricting operand is sufficient.
+                List filters = (List) sf.getValue();
+                for (int i = 0; i < filters.size(); i++)
+                {
+                    List classes = getRequiredObjectClasses((SimpleFilter) filters.get(i));
+                    if (classes != null)
+                    {
+                        return classes;
+                    }
+                }
+            }
+            else if (sf.getOperation() == SimpleFilter.OR)
+            {
+                // All operands must be restricting.
+                List classes = new ArrayList();
+                List filters = (List) sf.getValue();
+                for (int i = 0; i < filters.size(); i++)
+                {
+                    List operandClasses =
+                        getRequiredObjectClasses((SimpleFilter) filters.get(i));
+                    if (operandClasses == null)
+                    {
+                        return null;
+                    }
+                    classes.addAll(operandClasses);
+                }
+                return classes;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Snapshot of the asynchronous delivery metrics of a dispatcher.
+    **/
+    public static class Metrics
+    {
+        private final int m_queueDepth;
+        private final long m_deliveryCount;
+        private final long m_totalLatency;
+        private final long m_maxLatency;
+
+        Metrics(int queueDepth, long deliveryCount, long totalLatency, long maxLatency)
+        {
+            m_queueDepth = queueDepth;
+            m_deliveryCount = deliveryCount;
+            m_totalLatency = totalLatency;
+            m_maxLatency = maxLatency;
+        }
+
+        /**
+         * Returns the number of asynchronous events waiting to be delivered
+         * to listeners.
+         * @return The number of queued events.
+        **/
+        public int getQueueDepth()
+        {
+            return m_queueDepth;
+        }
+
+        /**
+         * Returns the number of asynchronous events delivered to listeners.
+         * @return The number of delivered events.
+        **/
+        public long getDeliveryCount()
+        {
+            return m_deliveryCount;
+        }
+
+        /**
+         * Returns the average number of milliseconds asynchronous events
+         * were queued before being delivered to a listener.
+         * @return The average delivery latency.
+        **/
+        public long getAverageDeliveryLatency()
+        {
+            return (m_deliveryCount == 0) ? 0 : m_totalLatency / m_deliveryCount;
+        }
+
+        /**
+         * Returns the maximum number of milliseconds an asynchronous event
+         * was queued before being delivered to a listener.
+         * @return The maximum delivery latency.
+        **/
+        public long getMaxDeliveryLatency()
+        {
+            return m_maxLatency;
+        }
+    }
+
     private static class Request
     {
         public static final int FRAMEWORK_EVENT = 0;
@@ -1164,7 +1692,28 @@ public class EventDispatcher
 
         public EventDispatcher m_dispatcher = null;
         public int m_type = -1;
-        public Object[] m_listeners = null;
+        public Bundle m_bundle = null;
+        public EventListener m_listener = null;
         public EventObject m_event = null;
+        public long m_time = 0;
+    }
+
+    // The asynchronous events pending for a listener.
+    private static class ListenerQueue
+    {
+        public final EventListener m_listener;
+        public final List m_requests = new ArrayList();
+        // Whether the queue is in the request list or being delivered.
+        public boolean m_scheduled = false;
+        public boolean m_blacklisted = false;
+        // The request being delivered, by which thread and since when.
+        public Request m_current = null;
+        public Thread m_thread = null;
+        public long m_deliveryStart = 0;
+
+        public ListenerQueue(EventListener listener)
+        {
+            m_listener = listener;
+        }
     }
 }
@@ -46,13 +46,26 @@ public interface FelixConstants extends org.osgi.framework.Constants
         = "felix.bundlecache.impl";
     public static final String LOG_LEVEL_PROP = "felix.log.level";
     public static final String LOG_LOGGER_PROP = "felix.log.logger";
+    public static final String LOG_BUFFER_SIZE_PROP = "felix.log.buffer.size";
+    public static final String LOG_BUFFER_OVERFLOW_PROP = "felix.log.buffer.overflow";
     public static final String SYSTEMBUNDLE_ACTIVATORS_PROP
         = "felix.systembundle.activators";
     public static final String BUNDLE_STARTLEVEL_PROP
         = "felix.startlevel.bundle";
+    public static final String STARTLEVEL_PARALLELISM_PROP
+        = "felix.startlevel.parallelism";
+    public static final String STARTLEVEL_TIMEOUT_PROP
+        = "felix.startlevel.timeout";
+    public static final String EVENT_THREADS_PROP = "felix.event.threads";
+    public static final String EVENT_TIMEOUT_PROP = "felix.event.timeout";
     public static final String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
     public static final String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
+    public static final String NEGATIVE_LOOKUP_CACHE_SIZE_PROP = "felix.lookup.negative.cache.size";
     public static final String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
+    public static final String RESOLVER_PARALLELISM_PROP = "felix.resolver.parallelism";
+    public static final String RESOLVER_CACHE_PROP = "felix.resolver.cache";
+    public static final String RESOLVER_PERMUTATION_LIMIT_PROP = "felix.resolver.permutation.limit";
+    public static final String FILTER_CACHE_SIZE_PROP = "felix.filter.cache.size";
 
     // Start level-related constants.
     public static final int FRAMEWORK_INACTIVE_STARTLEVEL = 0;
@@ -27,10 +27,31 @@ import java.util.*;
  * map will be converted to a <tt>String</tt> using the
  * <tt>toString()</tt> method, since it is only intended to
  * compare strings.
+ * <p>
+ * The map is a hash table whose entries store the hash code of the
+ * case-folded key, so lookups compare characters only on hash matches
+ * and never create folded copies of the keys. Keys are iterated in
+ * sorted order as defined by <tt>StringComparator</tt>; the sorted order
+ * is computed on the first iteration after the keys have changed, so
+ * filling the map does not pay for sorting. Two keys are
+ * equal ignoring case if their characters are equal ignoring case as
+ * defined by <tt>String.compareToIgnoreCase()</tt>.
 **/
-public class StringMap implements Map
+public class StringMap extends AbstractMap
 {
-    private TreeMap m_map;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private boolean m_caseSensitive;
+    private Entry[] m_table = new Entry[INITIAL_CAPACITY];
+    private int m_size = 0;
+    // Head of the circular list of entries in insertion order.
+    private final Entry m_header = new Entry(null, 0, null);
+    // The entries in key order, or null if the keys changed since sorting.
+    private Entry[] m_sorted = null;
+    // Incremented whenever the keys change, so iterators can fail fast.
+    private int m_modCount = 0;
+    private Set m_entrySet = null;
+    private Set m_keySet = null;
 
     public StringMap()
     {
@@ -39,7 +60,8 @@ public class StringMap implements Map
 
     public StringMap(boolean caseSensitive)
     {
-        m_map = new TreeMap(new StringComparator(caseSensitive));
+        m_caseSensitive = caseSensitive;
+        m_header.m_before = m_header.m_after = m_header;
     }
 
     public StringMap(Map map, boolean caseSensitive)
@@ -50,47 +72,87 @@ public class StringMap implements Map
 
     public boolean isCaseSensitive()
     {
-        return ((StringComparator) m_map.comparator()).isCaseSensitive();
+        return m_caseSensitive;
     }
 
     public void setCaseSensitive(boolean b)
     {
-        if (isCaseSensitive() != b)
+        if (m_caseSensitive != b)
         {
-            TreeMap map = new TreeMap(new StringComparator(b));
-            map.putAll(m_map);
-            m_map = map;
+            // Re-add all entries in key order, since keys equal ignoring
+            // case collapse when switching to case-insensitive keys.
+            Entry[] entries = getSorted();
+            m_caseSensitive = b;
+            clear();
+            for (int i = 0; i < entries.length; i++)
+            {
+                put(entries[i].m_key, entries[i].m_value);
+            }
         }
     }
 
     public int size()
     {
-        return m_map.size();
+        return m_size;
     }
 
     public boolean isEmpty()
     {
-        return m_map.isEmpty();
+        return (m_size == 0);
     }
 
     public boolean containsKey(Object arg0)
     {
-        return m_map.containsKey(arg0);
+        return (getEntry(arg0.toString()) != null);
     }
 
     public boolean containsValue(Object arg0)
     {
-        return m_map.containsValue(arg0);
+        for (Entry e = m_header.m_after; e != m_header; e = e.m_after)
+        {
+            if ((arg0 == null) ? (e.m_value == null) : arg0.equals(e.m_value))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Object get(Object arg0)
     {
-        return m_map.get(arg0);
+        Entry e = getEntry(arg0.toString());
+        return (e == null) ? null : e.m_value;
     }
 
     public Object put(Object key, Object value)
     {
-        return m_map.put(key.toString(), value);
+        String s = key.toString();
+        int hash = hash(s);
+        int idx = hash & (m_table.length - 1);
+        for (Entry e = m_table[idx]; e != null; e = e.m_next)
+        {
+            if ((e.m_hash == hash) && keyEquals(e.m_key, s))
+            {
+                Object old = e.m_value;
+                e.m_value = value;
+                return old;
+            }
+        }
+
+        Entry e = new Entry(s, hash, value);
+        e.m_next = m_table[idx];
+        m_table[idx] = e;
+        e.m_before = m_header.m_before;
+        e.m_after = m_header;
+        m_header.m_before.m_after = e;
+        m_header.m_before = e;
+        m_sorted = null;
+        m_modCount++;
+        if (++m_size > (m_table.length * 3 / 4))
+        {
+            resize();
+        }
+        return null;
     }
 
     public void putAll(Map map)
@@ -104,31 +166,345 @@ public class StringMap implements Map
 
     public Object remove(Object arg0)
     {
-        return m_map.remove(arg0);
+        Entry e = removeEntry(arg0.toString());
+        return (e == null) ? null : e.m_value;
     }
 
     public void clear()
     {
-        m_map.clear();
+        Arrays.fill(m_table, null);
+        m_size = 0;
+        m_header.m_before = m_header.m_after = m_header;
+        m_sorted = null;
+        m_modCount++;
+    }
+
+    public Set entrySet()
+    {
+        if (m_entrySet == null)
+        {
+            m_entrySet = new EntrySet();
+        }
+        return m_entrySet;
     }
 
     public Set keySet()
     {
-        return m_map.keySet();
+        if (m_keySet == null)
+        {
+            m_keySet = new KeySet();
+        }
+        return m_keySet;
+    }
+
+    private Entry getEntry(String key)
+    {
+        int hash = hash(key);
+        for (Entry e = m_table[hash & (m_table.length - 1)]; e != null; e = e.m_next)
+        {
+            if ((e.m_hash == hash) && keyEquals(e.m_key, key))
+            {
+                return e;
+            }
+        }
+        return null;
     }
 
-    public Collection values()
+    private Entry removeEntry(String key)
     {
-        return m_map.values();
+        int hash = hash(key);
+        int idx = hash & (m_table.length - 1);
+        for (Entry e = m_table[idx], prev = null; e != null; prev = e, e = e.m_next)
+        {
+            if ((e.m_hash == hash) && keyEquals(e.m_key, key))
+            {
+                if (prev == null)
+                {
+                    m_table[idx] = e.m_next;
+                }
+                else
+                {
+                    prev.m_next = e.m_next;
+                }
+                e.m_before.m_after = e.m_after;
+                e.m_after.m_before = e.m_before;
+                m_sorted = null;
+                m_modCount++;
+                m_size--;
+                return e;
+            }
+        }
+        return null;
     }
 
-    public Set entrySet()
+    private Entry[] getSorted()
+    {
+        if (m_sorted == null)
+        {
+            Entry[] entries = new Entry[m_size];
+            int i = 0;
+            for (Entry e = m_header.m_after; e != m_header; e = e.m_after)
+            {
+                entries[i++] = e;
+            }
+            Arrays.sort(entries, new Comparator()
+            {
+                public int compare(Object o1, Object o2)
+                {
+                    return StringMap.this.compare(((Entry) o1).m_key, ((Entry) o2).m_key);
+                }
+            });
+            m_sorted = entries;
+        }
+        return m_sorted;
+    }
+
+    private void resize()
+    {
+        Entry[] table = new Entry[m_table.length * 2];
+        for (Entry e = m_header.m_after; e != m_header; e = e.m_after)
+        {
+            int idx = e.m_hash & (table.length - 1);
+            e.m_next = table[idx];
+            table[idx] = e;
+        }
+        m_table = table;
+    }
+
+    private int hash(String key)
+    {
+        int h;
+        if (m_caseSensitive)
+        {
+            h = key.hashCode();
+        }
+        else
+        {
+            h = 0;
+            for (int i = 0, len = key.length(); i < len; i++)
+            {
+                h = 31 * h + fold(key.charAt(i));
+            }
+        }
+        // Spread the higher bits, since the table size is a power of two.
+        return h ^ (h >>> 16);
+    }
+
+    private boolean keyEquals(String s1, String s2)
+    {
+        if (s1 == s2)
+        {
+            return true;
+        }
+        if (m_caseSensitive)
+        {
+            return s1.equals(s2);
+        }
+        int len = s1.length();
+        if (len != s2.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < len; i++)
+        {
+            char c1 = s1.charAt(i);
+            char c2 = s2.charAt(i);
+            if ((c1 != c2) && (fold(c1) != fold(c2)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compare(String s1, String s2)
     {
-        return m_map.entrySet();
+        return (m_caseSensitive) ? s1.compareTo(s2) : s1.compareToIgnoreCase(s2);
+    }
+
+    private static char fold(char c)
+    {
+        // Same folding as String.compareToIgnoreCase().
+        if (c < 128)
+        {
+            return ((c >= 'A') && (c <= 'Z')) ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
     }
 
-    public String toString()
+    private static class Entry implements Map.Entry
     {
-        return m_map.toString();
+        private final String m_key;
+        private final int m_hash;
+        private Object m_value;
+        // Next entry in the same bucket.
+        private Entry m_next;
+        // Neighbours in insertion order.
+        private Entry m_before;
+        private Entry m_after;
+
+        Entry(String key, int hash, Object value)
+        {
+            m_key = key;
+            m_hash = hash;
+            m_value = value;
+        }
+
+        public Object getKey()
+        {
+            return m_key;
+        }
+
+        public Object getValue()
+        {
+            return m_value;
+        }
+
+        public Object setValue(Object value)
+        {
+            Object old = m_value;
+            m_value = value;
+            return old;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            return m_key.equals(e.getKey())
+                && ((m_value == null) ? (e.getValue() == null) : m_value.equals(e.getValue()));
+        }
+
+        public int hashCode()
+        {
+            return m_key.hashCode() ^ ((m_value == null) ? 0 : m_value.hashCode());
+        }
+
+        public String toString()
+        {
+            return m_key + "=" + m_value;
+        }
+    }
+
+    private class EntrySet extends AbstractSet
+    {
+        public int size()
+        {
+            return m_size;
+        }
+
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry entry = (Map.Entry) o;
+            Entry e = (entry.getKey() == null) ? null : getEntry(entry.getKey().toString());
+            return (e != null)
+                && ((e.m_value == null)
+                    ? (entry.getValue() == null) : e.m_value.equals(entry.getValue()));
+        }
+
+        public boolean remove(Object o)
+        {
+            if (contains(o))
+            {
+                removeEntry(((Map.Entry) o).getKey().toString());
+                return true;
+            }
+            return false;
+        }
+
+        public void clear()
+        {
+            StringMap.this.clear();
+        }
+
+        public Iterator iterator()
+        {
+            return new EntryIterator(false);
+        }
+    }
+
+    // Compares keys like the map does, unlike the key set of AbstractMap.
+    private class KeySet extends AbstractSet
+    {
+        public int size()
+        {
+            return m_size;
+        }
+
+        public boolean contains(Object o)
+        {
+            return (o != null) && containsKey(o);
+        }
+
+        public boolean remove(Object o)
+        {
+            return (o != null) && (removeEntry(o.toString()) != null);
+        }
+
+        public void clear()
+        {
+            StringMap.this.clear();
+        }
+
+        public Iterator iterator()
+        {
+            return new EntryIterator(true);
+        }
+    }
+
+    private class EntryIterator implements Iterator
+    {
+        private final boolean m_keys;
+        // The sorted entries, which stay valid while the map is unchanged.
+        private final Entry[] m_entries = getSorted();
+        private int m_next = 0;
+        private Entry m_last = null;
+        private int m_expectedModCount = m_modCount;
+
+        EntryIterator(boolean keys)
+        {
+            m_keys = keys;
+        }
+
+        public boolean hasNext()
+        {
+            return (m_next < m_entries.length);
+        }
+
+        public Object next()
+        {
+            if (m_modCount != m_expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            if (m_next >= m_entries.length)
+            {
+                throw new NoSuchElementException();
+            }
+            m_last = m_entries[m_next++];
+            return (m_keys) ? m_last.m_key : m_last;
+        }
+
+        public void remove()
+        {
+            if (m_last == null)
+            {
+                throw new IllegalStateException();
+            }
+            if (m_modCount != m_expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            removeEntry(m_last.m_key);
+            m_expectedModCount = m_modCount;
+            m_last = null;
+        }
     }
-}
\ No newline at end of file
+}
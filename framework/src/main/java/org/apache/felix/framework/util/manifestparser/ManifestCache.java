@@ -0,0 +1,542 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.capabilityset.Attribute;
+import org.apache.felix.framework.capabilityset.Capability;
+import org.apache.felix.framework.capabilityset.Directive;
+import org.apache.felix.framework.capabilityset.Requirement;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.resolver.Module;
+import org.apache.felix.framework.util.VersionRange;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * Reads and writes the metadata parsed from the manifest of a bundle revision
+ * in a compact binary form, so that the manifest does not have to be parsed
+ * again each time a module is created for the revision. The binary form
+ * records the raw values of all headers the metadata depends on and is
+ * ignored if any of them differ from the current headers. Strings are
+ * written once to a table and referred to by index, which keeps the binary
+ * form small and lets equal strings share a single instance once read.
+**/
+public class ManifestCache
+{
+    // Must be incremented whenever the format or the parsing of the
+    // headers changes.
+    private static final int FORMAT_VERSION = 1;
+
+    // The headers the parsed metadata depends on.
+    private static final String[] HEADERS = {
+        Constants.BUNDLE_MANIFESTVERSION,
+        Constants.BUNDLE_SYMBOLICNAME,
+        Constants.BUNDLE_VERSION,
+        Constants.BUNDLE_NAME,
+        Constants.BUNDLE_ACTIVATOR,
+        Constants.FRAGMENT_HOST,
+        Constants.REQUIRE_BUNDLE,
+        Constants.IMPORT_PACKAGE,
+        Constants.DYNAMICIMPORT_PACKAGE,
+        Constants.EXPORT_PACKAGE,
+        Constants.BUNDLE_NATIVECODE,
+        Constants.BUNDLE_ACTIVATIONPOLICY };
+
+    private static final byte STRING_VALUE = 0;
+    private static final byte VERSION_VALUE = 1;
+    private static final byte VERSION_RANGE_VALUE = 2;
+    private static final byte STRING_LIST_VALUE = 3;
+    private static final byte FILTER_LIST_VALUE = 4;
+
+    private static final int NULL_INDEX = -1;
+
+    /**
+     * Reads the parsed manifest metadata of a module.
+     * @param bytes the binary form of the metadata.
+     * @param logger the logger of the module.
+     * @param configMap the configuration of the framework.
+     * @param owner the module the metadata belongs to.
+     * @param headerMap the current manifest headers of the module.
+     * @return the manifest parser holding the metadata or <tt>null</tt> if
+     *         the metadata was written by a different format version or
+     *         for different headers.
+     * @throws IOException if the binary form is corrupt.
+    **/
+    public static ManifestParser read(
+        byte[] bytes, Logger logger, Map configMap, Module owner, Map headerMap)
+        throws IOException
+    {
+        try
+        {
+            return readParser(bytes, logger, configMap, owner, headerMap);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Thrown for invalid versions or metadata, such as a missing
+            // mandatory attribute.
+            throw new IOException("Invalid manifest metadata: " + ex.getMessage());
+        }
+    }
+
+    private static ManifestParser readParser(
+        byte[] bytes, Logger logger, Map configMap, Module owner, Map headerMap)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != FORMAT_VERSION)
+        {
+            return null;
+        }
+
+        String[] strings = new String[readCount(in)];
+        for (int i = 0; i < strings.length; i++)
+        {
+            strings[i] = in.readUTF();
+        }
+        Reader reader = new Reader(in, strings);
+
+        for (int i = 0; i < HEADERS.length; i++)
+        {
+            Object value = headerMap.get(HEADERS[i]);
+            String cached = reader.readString();
+            if ((value == null) ? (cached != null) : !value.equals(cached))
+            {
+                return null;
+            }
+        }
+
+        String symbolicName = reader.readString();
+        String version = reader.readString();
+        int activationPolicy = in.readInt();
+        String activationIncludeDir = reader.readString();
+        String activationExcludeDir = reader.readString();
+        boolean isExtension = in.readBoolean();
+
+        int count = readCount(in);
+        List<Capability> caps = new ArrayList<Capability>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String namespace = reader.readName();
+            List<Directive> dirs = reader.readDirectives();
+            caps.add(new CapabilityImpl(owner, namespace, dirs, reader.readAttributes()));
+        }
+        List<Requirement> reqs = reader.readRequirements(owner);
+        List<Requirement> dynamicReqs = reader.readRequirements(owner);
+
+        count = readCount(in);
+        List<R4LibraryClause> libraryClauses = new ArrayList<R4LibraryClause>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String[] entries = reader.readStringArray();
+            String[] osnames = reader.readStringArray();
+            String[] processors = reader.readStringArray();
+            String[] osversions = reader.readStringArray();
+            String[] languages = reader.readStringArray();
+            libraryClauses.add(new R4LibraryClause(
+                entries, osnames, processors, osversions, languages,
+                reader.readString()));
+        }
+        boolean libraryHeadersOptional = in.readBoolean();
+
+        return new ManifestParser(
+            logger, configMap, headerMap, symbolicName,
+            (version == null) ? null : Version.parseVersion(version),
+            caps, reqs, dynamicReqs, libraryClauses, libraryHeadersOptional,
+            activationPolicy, activationIncludeDir, activationExcludeDir,
+            isExtension);
+    }
+
+    /**
+     * Writes the parsed manifest metadata of a module.
+     * @param mp the manifest parser holding the metadata.
+     * @param headerMap the manifest headers the metadata was parsed from.
+     * @return the binary form of the metadata.
+     * @throws IOException if the metadata contains values or strings that
+     *         cannot be written.
+    **/
+    public static byte[] write(ManifestParser mp, Map headerMap)
+        throws IOException
+    {
+        // Write the body first to collect the string table.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new Writer(new DataOutputStream(bytes));
+
+        for (int i = 0; i < HEADERS.length; i++)
+        {
+            Object value = headerMap.get(HEADERS[i]);
+            writer.writeString((value == null) ? null : value.toString());
+        }
+
+        writer.writeString(mp.getSymbolicName());
+        writer.writeString(
+            (mp.getBundleVersion() == null) ? null : mp.getBundleVersion().toString());
+        writer.m_out.writeInt(mp.getActivationPolicy());
+        writer.writeString(mp.getActivationIncludeDirective());
+        writer.writeString(mp.getActivationExcludeDirective());
+        writer.m_out.writeBoolean(mp.isExtension());
+
+        List<Capability> caps = mp.getCapabilities();
+        writer.m_out.writeInt(caps.size());
+        for (Capability cap : caps)
+        {
+            writer.writeString(cap.getNamespace());
+            writer.writeDirectives(cap.getDirectives());
+            writer.writeAttributes(cap.getAttributes());
+        }
+        writer.writeRequirements(mp.getRequirements());
+        writer.writeRequirements(mp.getDynamicRequirements());
+
+        List<R4LibraryClause> libraryClauses = mp.getLibraryClauses();
+        writer.m_out.writeInt(libraryClauses.size());
+        for (R4LibraryClause clause : libraryClauses)
+        {
+            writer.writeStringArray(clause.getLibraryEntries());
+            writer.writeStringArray(clause.getOSNames());
+            writer.writeStringArray(clause.getProcessors());
+            writer.writeStringArray(clause.getOSVersions());
+            writer.writeStringArray(clause.getLanguages());
+            writer.writeString(clause.getSelectionFilter());
+        }
+        writer.m_out.writeBoolean(mp.areLibraryHeadersOptional());
+        writer.m_out.flush();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.size() * 2);
+        DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(writer.m_strings.size());
+        for (String s : writer.m_strings)
+        {
+            // Fails for strings longer than 65535 bytes, such as huge
+            // headers, which are then simply not cached.
+            out.writeUTF(s);
+        }
+        bytes.writeTo(out);
+        out.flush();
+        return result.toByteArray();
+    }
+
+    // Since every element takes at least one byte, a count cannot be larger
+    // than the number of remaining bytes unless the binary form is corrupt.
+    private static int readCount(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        if ((count < 0) || (count > in.available()))
+        {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static class Writer
+    {
+        private final DataOutputStream m_out;
+        private final List<String> m_strings = new ArrayList<String>();
+        private final Map<String, Integer> m_indices = new HashMap<String, Integer>();
+
+        Writer(DataOutputStream out)
+        {
+            m_out = out;
+        }
+
+        void writeString(String s) throws IOException
+        {
+            if (s == null)
+            {
+                m_out.writeInt(NULL_INDEX);
+                return;
+            }
+            Integer idx = m_indices.get(s);
+            if (idx == null)
+            {
+                idx = new Integer(m_strings.size());
+                m_strings.add(s);
+                m_indices.put(s, idx);
+            }
+            m_out.writeInt(idx.intValue());
+        }
+
+        void writeStringArray(String[] array) throws IOException
+        {
+            if (array == null)
+            {
+                m_out.writeInt(NULL_INDEX);
+                return;
+            }
+            m_out.writeInt(array.length);
+            for (int i = 0; i < array.length; i++)
+            {
+                writeString(array[i]);
+            }
+        }
+
+        void writeDirectives(List<Directive> dirs) throws IOException
+        {
+            m_out.writeInt(dirs.size());
+            for (Directive dir : dirs)
+            {
+                writeString(dir.getName());
+                writeValue(dir.getValue());
+            }
+        }
+
+        void writeAttributes(List<Attribute> attrs) throws IOException
+        {
+            m_out.writeInt(attrs.size());
+            for (Attribute attr : attrs)
+            {
+                writeString(attr.getName());
+                writeValue(attr.getValue());
+                m_out.writeBoolean(attr.isMandatory());
+            }
+        }
+
+        void writeRequirements(List<Requirement> reqs) throws IOException
+        {
+            m_out.writeInt(reqs.size());
+            for (Requirement req : reqs)
+            {
+                writeString(req.getNamespace());
+                writeDirectives(req.getDirectives());
+                writeFilter(req.getFilter());
+            }
+        }
+
+        void writeFilter(SimpleFilter sf) throws IOException
+        {
+            if (sf == null)
+            {
+                m_out.writeInt(NULL_INDEX);
+                return;
+            }
+            m_out.writeInt(sf.getOperation());
+            writeString(sf.getName());
+            writeValue(sf.getValue());
+        }
+
+        void writeValue(Object value) throws IOException
+        {
+            if (value instanceof String)
+            {
+                m_out.writeByte(STRING_VALUE);
+                writeString((String) value);
+            }
+            else if (value instanceof Version)
+            {
+                m_out.writeByte(VERSION_VALUE);
+                writeString(value.toString());
+            }
+            else if (value instanceof VersionRange)
+            {
+                VersionRange vr = (VersionRange) value;
+                m_out.writeByte(VERSION_RANGE_VALUE);
+                writeString(vr.getFloor().toString());
+                m_out.writeBoolean(vr.isFloorInclusive());
+                writeString((vr.getCeiling() == null) ? null : vr.getCeiling().toString());
+                m_out.writeBoolean(vr.isCeilingInclusive());
+            }
+            else if ((value instanceof List) && !((List) value).isEmpty()
+                && (((List) value).get(0) instanceof SimpleFilter))
+            {
+                List<SimpleFilter> filters = (List<SimpleFilter>) value;
+                m_out.writeByte(FILTER_LIST_VALUE);
+                m_out.writeInt(filters.size());
+                for (SimpleFilter sf : filters)
+                {
+                    writeFilter(sf);
+                }
+            }
+            else if (value instanceof List)
+            {
+                List list = (List) value;
+                m_out.writeByte(STRING_LIST_VALUE);
+                m_out.writeInt(list.size());
+                for (Object o : list)
+                {
+                    if (!(o instanceof String))
+                    {
+                        throw new IOException("Unsupported value: " + o);
+                    }
+                    writeString((String) o);
+                }
+            }
+            else
+            {
+                throw new IOException("Unsupported value: " + value);
+            }
+        }
+    }
+
+    private static class Reader
+    {
+        private final DataInputStream m_in;
+        private final String[] m_strings;
+
+        Reader(DataInputStream in, String[] strings)
+        {
+            m_in = in;
+            m_strings = strings;
+        }
+
+        String readString() throws IOException
+        {
+            int idx = m_in.readInt();
+            if (idx == NULL_INDEX)
+            {
+                return null;
+            }
+            if ((idx < 0) || (idx >= m_strings.length))
+            {
+                throw new IOException("Invalid string index: " + idx);
+            }
+            return m_strings[idx];
+        }
+
+        // Reads a namespace, directive or attribute name, which must not
+        // be null.
+        String readName() throws IOException
+        {
+            String name = readString();
+            if (name == null)
+            {
+                throw new IOException("Missing name.");
+            }
+            return name;
+        }
+
+        String[] readStringArray() throws IOException
+        {
+            int count = m_in.readInt();
+            if (count == NULL_INDEX)
+            {
+                return null;
+            }
+            else if ((count < 0) || (count > m_in.available()))
+            {
+                throw new IOException("Invalid count: " + count);
+            }
+            String[] array = new String[count];
+            for (int i = 0; i < array.length; i++)
+            {
+                array[i] = readString();
+            }
+            return array;
+        }
+
+        List<Directive> readDirectives() throws IOException
+        {
+            int count = readCount(m_in);
+            List<Directive> dirs = new ArrayList<Directive>(count);
+            for (int i = 0; i < count; i++)
+            {
+                String name = readName();
+                dirs.add(new Directive(name, readValue()));
+            }
+            return dirs;
+        }
+
+        List<Attribute> readAttributes() throws IOException
+        {
+            int count = readCount(m_in);
+            List<Attribute> attrs = new ArrayList<Attribute>(count);
+            for (int i = 0; i < count; i++)
+            {
+                String name = readName();
+                Object value = readValue();
+                attrs.add(new Attribute(name, value, m_in.readBoolean()));
+            }
+            return attrs;
+        }
+
+        List<Requirement> readRequirements(Module owner) throws IOException
+        {
+            int count = readCount(m_in);
+            List<Requirement> reqs = new ArrayList<Requirement>(count);
+            for (int i = 0; i < count; i++)
+            {
+                String namespace = readName();
+                List<Directive> dirs = readDirectives();
+                reqs.add(new RequirementImpl(owner, namespace, dirs, readFilter()));
+            }
+            return reqs;
+        }
+
+        SimpleFilter readFilter() throws IOException
+        {
+            int op = m_in.readInt();
+            if (op == NULL_INDEX)
+            {
+                return null;
+            }
+            String name = readString();
+            return new SimpleFilter(name, readValue(), op);
+        }
+
+        Object readValue() throws IOException
+        {
+            byte type = m_in.readByte();
+            switch (type)
+            {
+                case STRING_VALUE:
+                    return readString();
+                case VERSION_VALUE:
+                    return Version.parseVersion(readString());
+                case VERSION_RANGE_VALUE:
+                    Version floor = Version.parseVersion(readString());
+                    boolean isFloorInclusive = m_in.readBoolean();
+                    String ceiling = readString();
+                    return new VersionRange(
+                        floor, isFloorInclusive,
+                        (ceiling == null) ? null : Version.parseVersion(ceiling),
+                        m_in.readBoolean());
+                case STRING_LIST_VALUE:
+                {
+                    int count = readCount(m_in);
+                    List<String> list = new ArrayList<String>(count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        list.add(readString());
+                    }
+                    return list;
+                }
+                case FILTER_LIST_VALUE:
+                {
+                    int count = readCount(m_in);
+                    List<SimpleFilter> list = new ArrayList<SimpleFilter>(count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        list.add(readFilter());
+                    }
+                    return list;
+                }
+                default:
+                    throw new IOException("Invalid value type: " + type);
+            }
+        }
+    }
+}
@@ -226,6 +226,34 @@ public class ManifestParser
         m_isExtension = checkExtensionBundle(headerMap);
     }
 
+    /**
+     * Creates a manifest parser for metadata that was already parsed,
+     * which is used by <tt>ManifestCache</tt>.
+    **/
+    ManifestParser(
+        Logger logger, Map configMap, Map headerMap, String bundleSymbolicName,
+        Version bundleVersion, List<Capability> capabilities,
+        List<Requirement> requirements, List<Requirement> dynamicRequirements,
+        List<R4LibraryClause> libraryClauses, boolean libraryHeadersOptional,
+        int activationPolicy, String activationIncludeDir,
+        String activationExcludeDir, boolean isExtension)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_headerMap = headerMap;
+        m_bundleSymbolicName = bundleSymbolicName;
+        m_bundleVersion = bundleVersion;
+        m_capabilities = capabilities;
+        m_requirements = requirements;
+        m_dynamicRequirements = dynamicRequirements;
+        m_libraryClauses = libraryClauses;
+        m_libraryHeadersOptional = libraryHeadersOptional;
+        m_activationPolicy = activationPolicy;
+        m_activationIncludeDir = activationIncludeDir;
+        m_activationExcludeDir = activationExcludeDir;
+        m_isExtension = isExtension;
+    }
+
     private static List<ParsedHeaderClause> normalizeImportClauses(
         Logger logger, List<ParsedHeaderClause> clauses, String mv)
         throws BundleException
@@ -733,6 +761,11 @@ public class ManifestParser
         return m_libraryClauses;
     }
 
+    boolean areLibraryHeadersOptional()
+    {
+        return m_libraryHeadersOptional;
+    }
+
     /**
      * <p>
      * This method returns the selected native library metadata from
@@ -41,12 +41,19 @@ public class RequirementImpl implements Requirement
     public RequirementImpl(
         Module module, String namespace,
         List<Directive> dirs, List<Attribute> attrs)
+    {
+        this(module, namespace, dirs, convertToFilter(attrs));
+    }
+
+    RequirementImpl(
+        Module module, String namespace,
+        List<Directive> dirs, SimpleFilter filter)
     {
         m_module = module;
         m_namespace = namespace;
         m_dirs = dirs;
         m_dirsConst = Collections.unmodifiableList(m_dirs);
-        m_filter = convertToFilter(attrs);
+        m_filter = filter;
 
         // Find resolution import directives.
         boolean optional = false;
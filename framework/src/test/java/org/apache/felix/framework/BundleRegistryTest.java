@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+
+public class BundleRegistryTest extends TestCase
+{
+    public void testAddBundle()
+    {
+        BundleImpl b1 = createBundle(1);
+        BundleImpl b2 = createBundle(2);
+        BundleImpl b3 = createBundle(3);
+        BundleRegistry registry = BundleRegistry.EMPTY
+            .addBundle("loc3", b3).addBundle("loc1", b1).addBundle("loc2", b2);
+
+        assertSame(b1, registry.getBundle(1));
+        assertSame(b2, registry.getBundle("loc2"));
+        assertNull(registry.getBundle(4));
+        assertNull(registry.getBundle("loc4"));
+
+        // Bundles are kept in identifier order.
+        Bundle[] bundles = registry.getBundles();
+        assertEquals(3, bundles.length);
+        assertSame(b1, bundles[0]);
+        assertSame(b2, bundles[1]);
+        assertSame(b3, bundles[2]);
+    }
+
+    public void testSnapshotsAreImmutable()
+    {
+        BundleImpl b1 = createBundle(1);
+        BundleRegistry registry1 = BundleRegistry.EMPTY.addBundle("loc1", b1);
+        BundleRegistry registry2 = registry1.addBundle("loc2", createBundle(2));
+        BundleRegistry registry3 = registry2.removeBundle("loc1", b1);
+
+        assertEquals(0, BundleRegistry.EMPTY.getBundles().length);
+        assertEquals(1, registry1.getBundles().length);
+        assertNull(registry1.getBundle(2));
+        assertSame(b1, registry2.getBundle("loc1"));
+        assertNull(registry3.getBundle(1));
+        assertNull(registry3.getBundle("loc1"));
+        assertEquals(1, registry3.getBundles().length);
+    }
+
+    public void testManyBundles()
+    {
+        BundleRegistry registry = BundleRegistry.EMPTY;
+        BundleImpl[] bundles = new BundleImpl[100];
+        for (int i = 0; i < bundles.length; i++)
+        {
+            // Include identifiers beyond the integer range.
+            long id = (i % 2 == 0) ? i : ((long) i << 32);
+            bundles[i] = createBundle(id);
+            registry = registry.addBundle("loc" + i, bundles[i]);
+        }
+
+        for (int i = 0; i < bundles.length; i++)
+        {
+            assertSame(bundles[i], registry.getBundle(bundles[i].getBundleId()));
+            assertSame(bundles[i], registry.getBundle("loc" + i));
+        }
+        assertNull(registry.getBundle(1));
+        assertNull(registry.getBundle(1L << 33 | 1));
+
+        for (int i = 0; i < bundles.length; i += 2)
+        {
+            registry = registry.removeBundle("loc" + i, bundles[i]);
+        }
+        for (int i = 0; i < bundles.length; i++)
+        {
+            assertEquals((i % 2 == 0) ? null : bundles[i],
+                registry.getBundle(bundles[i].getBundleId()));
+        }
+        assertEquals(bundles.length / 2, registry.getBundles().length);
+    }
+
+    public void testUninstalledBundles()
+    {
+        BundleImpl b1 = createBundle(1);
+        BundleImpl b2 = createBundle(2);
+        BundleRegistry registry = BundleRegistry.EMPTY
+            .addBundle("loc1", b1).addBundle("loc2", b2)
+            .removeBundle("loc2", b2).addUninstalledBundle(b2);
+
+        // Uninstalled bundles are still found by identifier.
+        assertSame(b2, registry.getBundle(2));
+        assertNull(registry.getBundle("loc2"));
+        assertEquals(1, registry.getBundles().length);
+        assertEquals(1, registry.getUninstalledBundles().length);
+        assertSame(registry, registry.addUninstalledBundle(b2));
+
+        registry = registry.removeUninstalledBundle(b2);
+        assertNull(registry.getBundle(2));
+        assertEquals(0, registry.getUninstalledBundles().length);
+        assertSame(registry, registry.removeUninstalledBundle(b2));
+    }
+
+    public void testInstalledBundleTakesPrecedence()
+    {
+        // A bundle being updated is both installed and uninstalled until
+        // it is refreshed.
+        BundleImpl old = createBundle(1);
+        BundleImpl current = createBundle(1);
+        BundleRegistry registry = BundleRegistry.EMPTY
+            .addUninstalledBundle(old).addBundle("loc1", current);
+
+        assertSame(current, registry.getBundle(1));
+        registry = registry.removeBundle("loc1", current);
+        assertSame(old, registry.getBundle(1));
+    }
+
+    private static BundleImpl createBundle(final long id)
+    {
+        return new BundleImpl() {
+            public long getBundleId()
+            {
+                return id;
+            }
+        };
+    }
+}
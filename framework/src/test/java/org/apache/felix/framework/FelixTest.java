@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+
+public class FelixTest extends TestCase
+{
+    public void testGetIntProperty()
+    {
+        Map config = new HashMap();
+        config.put("valid", "42");
+        config.put("padded", " 7 ");
+        config.put("negative", "-3");
+        config.put("invalid", "many");
+        config.put("empty", "");
+        config.put("long", "3000000000");
+
+        assertEquals(42, Felix.getIntProperty(config, "valid", 1));
+        assertEquals(7, Felix.getIntProperty(config, "padded", 1));
+        assertEquals(-3, Felix.getIntProperty(config, "negative", 1));
+        assertEquals(1, Felix.getIntProperty(config, "missing", 1));
+        assertEquals(1, Felix.getIntProperty(config, "invalid", 1));
+        assertEquals(1, Felix.getIntProperty(config, "empty", 1));
+        assertEquals(1, Felix.getIntProperty(config, "long", 1));
+    }
+
+    public void testGetLongProperty()
+    {
+        Map config = new HashMap();
+        config.put("valid", "3000000000");
+        config.put("padded", " 7 ");
+        config.put("invalid", "1.5");
+
+        assertEquals(3000000000L, Felix.getLongProperty(config, "valid", 0));
+        assertEquals(7, Felix.getLongProperty(config, "padded", 0));
+        assertEquals(0, Felix.getLongProperty(config, "missing", 0));
+        assertEquals(0, Felix.getLongProperty(config, "invalid", 0));
+    }
+
+    public void testInvalidPropertiesUseDefaults() throws Exception
+    {
+        File dir = FrameworkTestUtil.createTempDir("felix");
+        try
+        {
+            Map config = FrameworkTestUtil.createConfig(new File(dir, "cache"));
+            config.put(FelixConstants.RESOLVER_PARALLELISM_PROP, "none");
+            config.put(FelixConstants.RESOLVER_PERMUTATION_LIMIT_PROP, "-1");
+            config.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, "0");
+            config.put(FelixConstants.STARTLEVEL_TIMEOUT_PROP, "never");
+            config.put(FelixConstants.EVENT_THREADS_PROP, "");
+            config.put(FelixConstants.EVENT_TIMEOUT_PROP, "-5");
+
+            Felix felix = new Felix(config);
+            felix.start();
+            try
+            {
+                assertEquals(Bundle.ACTIVE, felix.getState());
+            }
+            finally
+            {
+                felix.stop();
+                felix.waitForStop(10000);
+            }
+        }
+        finally
+        {
+            FrameworkTestUtil.delete(dir);
+        }
+    }
+}
@@ -43,4 +43,39 @@ public class FilterTest extends TestCase
         }
         assertFalse("Filter should not match: " + filter, filter.match(dict));
     }
+
+    public void testRepeatedMatchAcrossValueTypes() throws Exception
+    {
+        Filter filter = FrameworkUtil.createFilter("(value>=10)");
+
+        Dictionary dict = new Hashtable();
+        dict.put("value", new Integer(12));
+        assertTrue(filter.match(dict));
+        assertTrue(filter.match(dict));
+        dict.put("value", "09");
+        assertFalse(filter.match(dict));
+        dict.put("value", new Long(10));
+        assertTrue(filter.match(dict));
+        dict.put("value", new Integer(9));
+        assertFalse(filter.match(dict));
+        dict.put("value", new Integer[] { new Integer(1), new Integer(11) });
+        assertTrue(filter.match(dict));
+        dict.put("value", new int[] { 1, 2 });
+        assertFalse(filter.match(dict));
+    }
+
+    public void testApproximateMatch() throws Exception
+    {
+        Filter filter = FrameworkUtil.createFilter("(name~=Hello World)");
+
+        Dictionary dict = new Hashtable();
+        dict.put("name", "hello world");
+        assertTrue(filter.match(dict));
+        dict.put("name", " HELLOWORLD ");
+        assertTrue(filter.match(dict));
+        dict.put("name", "hello worlds");
+        assertFalse(filter.match(dict));
+        dict.put("name", "hello");
+        assertFalse(filter.match(dict));
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Constants;
+
+/**
+ * Helpers for tests running a framework instance with generated bundles.
+**/
+public class FrameworkTestUtil
+{
+    // Not relying on the JRE specific defaults, which may be missing for
+    // the running JRE.
+    private static final String SYSTEM_PACKAGES =
+        "org.osgi.framework; version=1.5.0,"
+        + "org.osgi.framework.launch; version=1.0.0,"
+        + "org.osgi.framework.hooks.service; version=1.0.0,"
+        + "org.osgi.service.packageadmin; version=1.2.0,"
+        + "org.osgi.service.startlevel; version=1.1.0,"
+        + "org.osgi.service.url; version=1.0.0,"
+        + "org.osgi.util.tracker; version=1.4.0";
+
+    /**
+     * Creates a temporary directory.
+     * @param prefix The prefix of the directory name.
+     * @return The created directory.
+    **/
+    public static File createTempDir(String prefix) throws IOException
+    {
+        File dir = File.createTempFile(prefix, ".test");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * Creates the configuration of a framework using the specified cache
+     * directory, which is cleaned when the framework is initialized.
+     * URL handlers are disabled, since they can only be installed once
+     * per JVM.
+     * @param cacheDir The bundle cache directory.
+     * @return The configuration, which may be extended by the caller.
+    **/
+    public static Map createConfig(File cacheDir)
+    {
+        Map config = new HashMap();
+        config.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        config.put(Constants.FRAMEWORK_SYSTEMPACKAGES, SYSTEM_PACKAGES);
+        config.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        return config;
+    }
+
+    /**
+     * Creates a bundle JAR file with the specified headers containing the
+     * class files of the specified classes, which are read from the class
+     * path of the test.
+     * @param file The JAR file to create.
+     * @param headers The manifest headers in addition to the manifest version.
+     * @param classes The classes to add or <tt>null</tt>.
+     * @return The created file.
+    **/
+    public static File createBundle(File file, Map headers, Class[] classes)
+        throws IOException
+    {
+        Manifest mf = new Manifest();
+        Attributes attrs = mf.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        for (Iterator it = headers.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) it.next();
+            attrs.putValue((String) entry.getKey(), (String) entry.getValue());
+        }
+
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(file), mf);
+        try
+        {
+            for (int i = 0; (classes != null) && (i < classes.length); i++)
+            {
+                String entry = classes[i].getName().replace('.', '/') + ".class";
+                jos.putNextEntry(new ZipEntry(entry));
+                InputStream is = FrameworkTestUtil.class.getClassLoader()
+                    .getResourceAsStream(entry);
+                try
+                {
+                    byte[] buffer = new byte[4096];
+                    for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+                    {
+                        jos.write(buffer, 0, n);
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+                jos.closeEntry();
+            }
+        }
+        finally
+        {
+            jos.close();
+        }
+        return file;
+    }
+
+    /**
+     * Deletes the specified file or directory recursively.
+     * @param file The file to delete.
+    **/
+    public static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        for (int i = 0; (children != null) && (i < children.length); i++)
+        {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+}
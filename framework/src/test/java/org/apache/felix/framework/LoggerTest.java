@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+public class LoggerTest extends TestCase
+{
+    public void testSynchronousByDefault()
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.log(Logger.LOG_ERROR, "msg");
+        assertEquals(1, logger.m_messages.size());
+        assertEquals(Thread.currentThread(), logger.m_threads.get(0));
+    }
+
+    public void testAsynchronousInOrder()
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.setAsynchronous(1000, Logger.OVERFLOW_DROP);
+        for (int i = 0; i < 500; i++)
+        {
+            logger.log(Logger.LOG_ERROR, "msg" + i);
+        }
+        logger.flush();
+
+        assertEquals(500, logger.m_messages.size());
+        for (int i = 0; i < 500; i++)
+        {
+            assertEquals("msg" + i, logger.m_messages.get(i));
+            assertNotSame(Thread.currentThread(), logger.m_threads.get(i));
+        }
+        assertEquals(0, logger.getDroppedCount());
+    }
+
+    public void testLogLevelIsCheckedBeforeBuffering()
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.setAsynchronous(1, Logger.OVERFLOW_DROP);
+        logger.log(Logger.LOG_DEBUG, "ignored");
+        logger.flush();
+        assertEquals(0, logger.m_messages.size());
+        assertEquals(0, logger.getDroppedCount());
+    }
+
+    public void testOverflowDropsNewRecords() throws Exception
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.setAsynchronous(2, Logger.OVERFLOW_DROP);
+        fillWhileBlocked(logger);
+
+        assertEquals(2, logger.getDroppedCount());
+        assertEquals(2, logger.getDroppedCount(Logger.LOG_ERROR));
+        assertEquals(0, logger.getDroppedCount(Logger.LOG_WARNING));
+        assertEquals("blocking", logger.m_messages.get(0));
+        assertTrue(((String) logger.m_messages.get(1)).startsWith("Dropped 2 "));
+        assertEquals("msg0", logger.m_messages.get(2));
+        assertEquals("msg1", logger.m_messages.get(3));
+    }
+
+    public void testOverflowDropsOldestRecords() throws Exception
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.setAsynchronous(2, Logger.OVERFLOW_DROP_OLDEST);
+        fillWhileBlocked(logger);
+
+        assertEquals(2, logger.getDroppedCount());
+        assertEquals("blocking", logger.m_messages.get(0));
+        assertTrue(((String) logger.m_messages.get(1)).startsWith("Dropped 2 "));
+        assertEquals("msg2", logger.m_messages.get(2));
+        assertEquals("msg3", logger.m_messages.get(3));
+    }
+
+    public void testOverflowLogsOnCaller() throws Exception
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.setAsynchronous(2, Logger.OVERFLOW_CALLER);
+        fillWhileBlocked(logger);
+
+        assertEquals(0, logger.getDroppedCount());
+        assertEquals(5, logger.m_messages.size());
+        assertTrue(logger.m_messages.contains("msg2"));
+        assertTrue(logger.m_messages.contains("msg3"));
+        assertEquals(Thread.currentThread(),
+            logger.m_threads.get(logger.m_messages.indexOf("msg3")));
+    }
+
+    public void testSwitchingToSynchronousLogsBufferedRecords()
+    {
+        RecordingLogger logger = new RecordingLogger();
+        logger.setAsynchronous(10, Logger.OVERFLOW_DROP);
+        logger.log(Logger.LOG_ERROR, "async");
+        logger.setAsynchronous(0, null);
+        logger.log(Logger.LOG_ERROR, "sync");
+
+        assertEquals(2, logger.m_messages.size());
+        assertEquals("async", logger.m_messages.get(0));
+        assertEquals("sync", logger.m_messages.get(1));
+        assertEquals(Thread.currentThread(), logger.m_threads.get(1));
+    }
+
+    // Logs a record that blocks the background thread, then four records
+    // into a buffer of two, and finally unblocks the background thread.
+    private void fillWhileBlocked(RecordingLogger logger) throws Exception
+    {
+        logger.m_blocked = true;
+        logger.log(Logger.LOG_ERROR, "blocking");
+        synchronized (logger)
+        {
+            while (logger.m_messages.isEmpty())
+            {
+                logger.wait();
+            }
+        }
+        for (int i = 0; i < 4; i++)
+        {
+            logger.log(Logger.LOG_ERROR, "msg" + i);
+        }
+        synchronized (logger)
+        {
+            logger.m_blocked = false;
+            logger.notifyAll();
+        }
+        logger.flush();
+    }
+
+    private static class RecordingLogger extends Logger
+    {
+        private final List m_messages = new ArrayList();
+        private final List m_threads = new ArrayList();
+        private boolean m_blocked = false;
+
+        protected synchronized void doLog(
+            Bundle bundle, ServiceReference sr, int level,
+            String msg, Throwable throwable)
+        {
+            m_messages.add(msg);
+            m_threads.add(Thread.currentThread());
+            notifyAll();
+            while (m_blocked && (Thread.currentThread().getName().equals("FelixLogger")))
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.Util;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class ModuleClassLoaderTest extends TestCase
+{
+    private static final Class[] CLASSES = new Class[] {
+        Linked.class, Target.class, A.class, B.class, C.class, D.class };
+
+    private File m_dir;
+    private Felix m_felix;
+    private Bundle m_bundle;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("classloader");
+        m_felix = new Felix(FrameworkTestUtil.createConfig(new File(m_dir, "cache")));
+        m_felix.start();
+
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "classloader.test");
+        File file = FrameworkTestUtil.createBundle(
+            new File(m_dir, "bundle.jar"), headers, CLASSES);
+        m_bundle = m_felix.getBundleContext().installBundle(file.toURI().toURL().toString());
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testLoadsFromBundle() throws Exception
+    {
+        Class clazz = m_bundle.loadClass(Target.class.getName());
+        assertNotSame(Target.class, clazz);
+        assertTrue(clazz.getClassLoader() instanceof ModuleImpl.ModuleClassLoader);
+    }
+
+    public void testLoadsThroughImport() throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "classloader.exporter");
+        headers.put(Constants.EXPORT_PACKAGE, Target.class.getPackage().getName());
+        Bundle exporter = install(
+            FrameworkTestUtil.createBundle(new File(m_dir, "exporter.jar"), headers, CLASSES));
+
+        headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "classloader.importer");
+        headers.put(Constants.IMPORT_PACKAGE, Target.class.getPackage().getName());
+        Bundle importer = install(
+            FrameworkTestUtil.createBundle(new File(m_dir, "importer.jar"), headers, null));
+
+        assertSame(exporter.loadClass(Target.class.getName()),
+            importer.loadClass(Target.class.getName()));
+
+        String resource = Target.class.getName().replace('.', '/') + ".class";
+        assertNotNull(importer.getResource(resource));
+        Enumeration urls = importer.getResources(resource);
+        assertNotNull(urls);
+        URL url = (URL) urls.nextElement();
+        assertEquals(exporter.getBundleId(), Util.getBundleIdFromModuleId(url.getHost()));
+        assertFalse(urls.hasMoreElements());
+    }
+
+    public void testDoesNotLoadWithoutImport() throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "classloader.empty");
+        Bundle bundle = install(
+            FrameworkTestUtil.createBundle(new File(m_dir, "empty.jar"), headers, null));
+
+        try
+        {
+            bundle.loadClass(Target.class.getName());
+            fail("Class loaded without an import");
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+        assertNull(bundle.getResource(Target.class.getName().replace('.', '/') + ".class"));
+    }
+
+    public void testImplicitLoadWithoutLoaderLock() throws Exception
+    {
+        if (!isParallelCapablePlatform())
+        {
+            return;
+        }
+
+        final ClassLoader loader = m_bundle.loadClass(A.class.getName()).getClassLoader();
+        final Throwable[] error = new Throwable[1];
+        Thread thread = new Thread() {
+            public void run()
+            {
+                try
+                {
+                    // The JVM loads Target implicitly while initializing
+                    // Linked, which locks the loader unless it is parallel
+                    // capable.
+                    Class.forName(Linked.class.getName(), true, loader);
+                }
+                catch (Throwable ex)
+                {
+                    error[0] = ex;
+                }
+            }
+        };
+
+        synchronized (loader)
+        {
+            thread.start();
+            thread.join(10000);
+            assertFalse("Class loading blocked on the loader lock", thread.isAlive());
+        }
+        assertNull(error[0]);
+    }
+
+    public void testConcurrentLoadsReturnSameClasses() throws Exception
+    {
+        final Class[][] loaded = new Class[8][CLASSES.length];
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[loaded.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < CLASSES.length; j++)
+                        {
+                            // Start at different classes in each thread.
+                            int k = (index + j) % CLASSES.length;
+                            loaded[index][k] = m_bundle.loadClass(CLASSES[k].getName());
+                        }
+                    }
+                    catch (Throwable ex)
+                    {
+                        error[0] = ex;
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join(10000);
+        }
+
+        assertNull(error[0]);
+        for (int i = 1; i < loaded.length; i++)
+        {
+            for (int j = 0; j < CLASSES.length; j++)
+            {
+                assertSame(loaded[0][j], loaded[i][j]);
+            }
+        }
+    }
+
+    private Bundle install(File file) throws Exception
+    {
+        return m_felix.getBundleContext().installBundle(file.toURI().toURL().toString());
+    }
+
+    private static boolean isParallelCapablePlatform()
+    {
+        try
+        {
+            ClassLoader.class.getDeclaredMethod("registerAsParallelCapable", (Class[]) null);
+            return true;
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return false;
+        }
+    }
+
+    public static class Linked
+    {
+        static final Object TARGET = new Target();
+    }
+
+    public static class Target
+    {
+    }
+
+    public static class A
+    {
+    }
+
+    public static class B
+    {
+    }
+
+    public static class C
+    {
+    }
+
+    public static class D
+    {
+    }
+}
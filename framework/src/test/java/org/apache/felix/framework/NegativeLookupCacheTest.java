@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class NegativeLookupCacheTest extends TestCase
+{
+    private static final String PKG = Target.class.getPackage().getName();
+    private static final String MISSING_PKG = PKG + ".missing";
+
+    private File m_dir;
+    private Map m_config;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("negativelookup");
+        m_config = FrameworkTestUtil.createConfig(new File(m_dir, "cache"));
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if (m_felix != null)
+        {
+            m_felix.stop();
+            m_felix.waitForStop(10000);
+        }
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testCountsHitsAndMisses()
+    {
+        NegativeLookupCache cache = new NegativeLookupCache(10);
+        assertFalse(cache.contains(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1));
+        cache.add(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1);
+        assertTrue(cache.contains(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1));
+        assertFalse(cache.contains(NegativeLookupCache.PARENT_CLASS, "a", 1));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // Other caches count on their own.
+        NegativeLookupCache other = new NegativeLookupCache(10);
+        assertFalse(other.contains(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1));
+        assertEquals(0, other.getHitCount());
+        assertEquals(1, other.getMissCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    public void testWiringChangeClearsCache()
+    {
+        NegativeLookupCache cache = new NegativeLookupCache(10);
+        cache.add(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1);
+        assertFalse(cache.contains(NegativeLookupCache.DYNAMIC_IMPORT, "a", 2));
+
+        // Lookups that raced with the wiring change are ignored.
+        cache.add(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1);
+        assertFalse(cache.contains(NegativeLookupCache.DYNAMIC_IMPORT, "a", 2));
+    }
+
+    public void testFullCacheStartsOver()
+    {
+        NegativeLookupCache cache = new NegativeLookupCache(2);
+        cache.add(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1);
+        cache.add(NegativeLookupCache.DYNAMIC_IMPORT, "b", 1);
+        cache.add(NegativeLookupCache.DYNAMIC_IMPORT, "c", 1);
+        assertFalse(cache.contains(NegativeLookupCache.DYNAMIC_IMPORT, "a", 1));
+        assertTrue(cache.contains(NegativeLookupCache.DYNAMIC_IMPORT, "c", 1));
+    }
+
+    public void testDynamicImportMissIsCached() throws Exception
+    {
+        start();
+        Bundle importer = install("importer", null, PKG);
+        NegativeLookupCache cache = getCache(importer);
+
+        assertNotLoaded(importer, Target.class.getName());
+        assertTrue(isCached(cache, NegativeLookupCache.DYNAMIC_IMPORT, PKG));
+
+        long hits = cache.getHitCount();
+        long frameworkHits = m_felix.getNegativeLookupHitCount();
+        assertNotLoaded(importer, Target.class.getName());
+        assertTrue(cache.getHitCount() > hits);
+        assertEquals(cache.getHitCount() - hits,
+            m_felix.getNegativeLookupHitCount() - frameworkHits);
+    }
+
+    public void testInstallingExporterInvalidatesMiss() throws Exception
+    {
+        start();
+        Bundle importer = install("importer", null, PKG);
+        assertNotLoaded(importer, Target.class.getName());
+        assertTrue(isCached(getCache(importer), NegativeLookupCache.DYNAMIC_IMPORT, PKG));
+
+        // Installing the exporter changes the wiring count, so the failed
+        // dynamic import is tried again.
+        Bundle exporter = install("exporter", PKG, null);
+        assertSame(exporter.loadClass(Target.class.getName()),
+            importer.loadClass(Target.class.getName()));
+    }
+
+    public void testBootDelegationMissIsCached() throws Exception
+    {
+        m_config.put(Constants.FRAMEWORK_BOOTDELEGATION, MISSING_PKG);
+        start();
+        Bundle bundle = install("bundle", null, null);
+        NegativeLookupCache cache = getCache(bundle);
+
+        String name = MISSING_PKG + ".Missing";
+        assertNotLoaded(bundle, name);
+        assertTrue(isCached(cache, NegativeLookupCache.BOOT_DELEGATION_CLASS, name));
+
+        String resource = MISSING_PKG.replace('.', '/') + "/missing.txt";
+        assertNull(bundle.getResource(resource));
+        assertTrue(isCached(cache, NegativeLookupCache.BOOT_DELEGATION_RESOURCE, resource));
+    }
+
+    public void testParentLoaderMissIsCached() throws Exception
+    {
+        start();
+        Bundle bundle = install("bundle", null, null);
+        NegativeLookupCache cache = getCache(bundle);
+
+        String name = MISSING_PKG + ".Missing";
+        assertNotLoaded(bundle, name);
+        assertTrue(isCached(cache, NegativeLookupCache.PARENT_CLASS, name));
+
+        // Classes the parent loader has are not cached as missing.
+        assertNotLoaded(bundle, Target.class.getName());
+        assertFalse(isCached(cache, NegativeLookupCache.PARENT_CLASS, Target.class.getName()));
+    }
+
+    private void start() throws Exception
+    {
+        m_felix = new Felix(m_config);
+        m_felix.start();
+    }
+
+    private Bundle install(String symbolicName, String exports, String dynamicImports)
+        throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        if (exports != null)
+        {
+            headers.put(Constants.EXPORT_PACKAGE, exports);
+        }
+        if (dynamicImports != null)
+        {
+            headers.put(Constants.DYNAMICIMPORT_PACKAGE, dynamicImports);
+        }
+        File file = FrameworkTestUtil.createBundle(new File(m_dir, symbolicName + ".jar"),
+            headers, (exports == null) ? null : new Class[] { Target.class });
+        return m_felix.getBundleContext().installBundle(file.toURI().toURL().toString());
+    }
+
+    private NegativeLookupCache getCache(Bundle bundle)
+    {
+        NegativeLookupCache cache =
+            ((ModuleImpl) ((BundleImpl) bundle).getCurrentModule()).getNegativeLookupCache();
+        assertNotNull(cache);
+        return cache;
+    }
+
+    private boolean isCached(NegativeLookupCache cache, char type, String name)
+    {
+        return cache.contains(type, name, m_felix.getResolver().getWiringCount());
+    }
+
+    private void assertNotLoaded(Bundle bundle, String name)
+    {
+        try
+        {
+            bundle.loadClass(name);
+            fail("Loaded " + name);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public static class Target
+    {
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+public class ParallelResolveTest extends TestCase
+{
+    private File m_dir;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("parallelresolve");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if (m_felix != null)
+        {
+            stop();
+        }
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testIndependentGroupsWiredAsSequentially() throws Exception
+    {
+        File[] bundles = new File[16];
+        for (int i = 0; i < 8; i++)
+        {
+            bundles[i * 2] = createBundle(
+                "exporter" + i, "parallel.p" + i, null);
+            bundles[i * 2 + 1] = createBundle("importer" + i, null, "parallel.p" + i);
+        }
+
+        Map sequential = resolveAll(1, bundles);
+        Map parallel = resolveAll(4, bundles);
+        assertEquals(16, sequential.size());
+        assertEquals(sequential, parallel);
+        assertEquals("RESOLVED {parallel.p0=exporter0}",
+            parallel.get("importer0"));
+        assertEquals("RESOLVED {}", parallel.get("exporter7"));
+    }
+
+    public void testGroupsSharingUnresolvedExporterWiredAsSequentially()
+        throws Exception
+    {
+        File[] bundles = new File[] {
+            // Two versions of the shared package, neither resolved yet.
+            createBundle("shared1", "parallel.s; version=1.0", null),
+            createBundle("shared2", "parallel.s; version=2.0", null),
+            // Must use version 1.0, and exposes it through its uses.
+            createBundle("user1", "parallel.u; uses:=parallel.s",
+                "parallel.s; version=\"[1,2)\""),
+            // Would prefer version 2.0, but must be consistent with user1.
+            createBundle("user2", null, "parallel.s,parallel.u"),
+            // Only needs the shared package, so gets the highest version.
+            createBundle("user3", null, "parallel.s"),
+            // An unrelated group, next to one that cannot be resolved.
+            createBundle("other1", "parallel.o", null),
+            createBundle("other2", null, "parallel.o"),
+            createBundle("broken", null, "parallel.missing")
+        };
+
+        Map sequential = resolveAll(1, bundles);
+        Map parallel = resolveAll(4, bundles);
+        assertEquals(sequential, parallel);
+        assertEquals("RESOLVED {parallel.s=shared1, parallel.u=user1}",
+            parallel.get("user2"));
+        assertEquals("RESOLVED {parallel.s=shared2}", parallel.get("user3"));
+        assertEquals("INSTALLED {}", parallel.get("broken"));
+    }
+
+    /**
+     * Installs the specified bundles into a fresh framework with the
+     * specified resolver parallelism and resolves them all at once.
+     * @return a map of the symbolic name of each bundle to its state and
+     *         the bundles it imports its packages from.
+    **/
+    private Map resolveAll(int parallelism, File[] bundles) throws Exception
+    {
+        Map config = FrameworkTestUtil.createConfig(
+            new File(m_dir, "cache" + parallelism));
+        config.put(FelixConstants.RESOLVER_PARALLELISM_PROP, Integer.toString(parallelism));
+        m_felix = new Felix(config);
+        m_felix.start();
+        BundleContext context = m_felix.getBundleContext();
+        for (int i = 0; i < bundles.length; i++)
+        {
+            context.installBundle(bundles[i].toURI().toURL().toString());
+        }
+        PackageAdmin pa = (PackageAdmin) context.getService(
+            context.getServiceReference(PackageAdmin.class.getName()));
+        pa.resolveBundles(null);
+
+        Map imports = new HashMap();
+        Bundle[] installed = context.getBundles();
+        for (int i = 0; i < installed.length; i++)
+        {
+            ExportedPackage[] pkgs = pa.getExportedPackages(installed[i]);
+            for (int j = 0; (pkgs != null) && (j < pkgs.length); j++)
+            {
+                Bundle[] importers = pkgs[j].getImportingBundles();
+                for (int k = 0; (importers != null) && (k < importers.length); k++)
+                {
+                    Map wires = (Map) imports.get(importers[k]);
+                    if (wires == null)
+                    {
+                        wires = new TreeMap();
+                        imports.put(importers[k], wires);
+                    }
+                    wires.put(pkgs[j].getName(), installed[i].getSymbolicName());
+                }
+            }
+        }
+
+        Map wiring = new HashMap();
+        for (int i = 0; i < installed.length; i++)
+        {
+            if (installed[i].getBundleId() == 0)
+            {
+                continue;
+            }
+            Map wires = (Map) imports.get(installed[i]);
+            wiring.put(installed[i].getSymbolicName(),
+                ((installed[i].getState() == Bundle.RESOLVED) ? "RESOLVED " : "INSTALLED ")
+                + ((wires == null) ? new TreeMap() : wires));
+        }
+        stop();
+        return wiring;
+    }
+
+    private void stop() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        m_felix = null;
+    }
+
+    private File createBundle(String symbolicName, String exports, String imports)
+        throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        if (exports != null)
+        {
+            headers.put(Constants.EXPORT_PACKAGE, exports);
+        }
+        if (imports != null)
+        {
+            headers.put(Constants.IMPORT_PACKAGE, imports);
+        }
+        return FrameworkTestUtil.createBundle(
+            new File(m_dir, symbolicName + ".jar"), headers, null);
+    }
+}
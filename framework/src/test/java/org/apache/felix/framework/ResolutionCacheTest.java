@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+public class ResolutionCacheTest extends TestCase
+{
+    private File m_dir;
+    private Map m_config;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("resolutioncache");
+        m_config = FrameworkTestUtil.createConfig(new File(m_dir, "cache"));
+        m_config.put(FelixConstants.RESOLVER_CACHE_PROP, "true");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if (m_felix != null)
+        {
+            stop();
+        }
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testCachedWiresAreUsedAfterRestart() throws Exception
+    {
+        start();
+        install(createBundle("exporter", "cache.a", null, null));
+        install(createBundle("importer", null, "cache.a", null));
+        assertTrue(resolve(null));
+        restart();
+
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertTrue(cache.isValid());
+        Bundle importer = getBundle("importer");
+        assertTrue(resolve(importer));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertTrue(cache.isValid());
+
+        // The exporter was resolved through the cached wire.
+        Bundle exporter = getBundle("exporter");
+        assertEquals(Bundle.RESOLVED, exporter.getState());
+        ExportedPackage pkg = getPackageAdmin().getExportedPackage("cache.a");
+        assertSame(exporter, pkg.getExportingBundle());
+        assertEquals(1, pkg.getImportingBundles().length);
+        assertSame(importer, pkg.getImportingBundles()[0]);
+    }
+
+    public void testHostWithFragmentIsResolvedWithoutCache() throws Exception
+    {
+        start();
+        install(createBundle("exporter", "cache.a", null, null));
+        install(createBundle("importer", null, "cache.a", null));
+        install(createBundle("host", null, "cache.a", null));
+        install(createBundle("fragment", null, null, "host"));
+        assertTrue(resolve(null));
+        restart();
+
+        // The host is not cached, but the other wires are still used.
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertTrue(resolve(getBundle("host")));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.isValid());
+        assertEquals(Bundle.RESOLVED, getBundle("fragment").getState());
+
+        assertTrue(resolve(getBundle("importer")));
+        assertEquals(1, cache.getHitCount());
+        assertTrue(cache.isValid());
+    }
+
+    public void testUnresolvedBundleIsResolvedWithoutCache() throws Exception
+    {
+        start();
+        install(createBundle("exporter", "cache.a", null, null));
+        install(createBundle("importer", null, "cache.a", null));
+        install(createBundle("unresolved", null, "cache.missing", null));
+        resolve(null);
+        restart();
+
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertFalse(resolve(getBundle("unresolved")));
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.isValid());
+
+        assertTrue(resolve(getBundle("importer")));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testInstallInvalidatesCache() throws Exception
+    {
+        start();
+        install(createBundle("exporter", "cache.a", null, null));
+        install(createBundle("importer", null, "cache.a", null));
+        assertTrue(resolve(null));
+        restart();
+
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertTrue(cache.isValid());
+        install(createBundle("other", "cache.a", null, null));
+        assertTrue(resolve(getBundle("importer")));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertFalse(cache.isValid());
+    }
+
+    public void testStaleWireInvalidatesCache() throws Exception
+    {
+        start();
+        install(createBundle("exporter", "cache.a", null, null));
+        install(createBundle("importer", null, "cache.a", null));
+        assertTrue(resolve(null));
+        // The exporter is only removed on shutdown, after its importer
+        // was saved.
+        getBundle("exporter").uninstall();
+        restart();
+
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertFalse(resolve(getBundle("importer")));
+        assertEquals(0, cache.getHitCount());
+        assertFalse(cache.isValid());
+    }
+
+    public void testResolverWiringCachedModuleDifferentlyInvalidatesCache()
+        throws Exception
+    {
+        start();
+        install(createBundle("p1", "cache.p; version=1.0", null, null));
+        install(createBundle("p2", "cache.p; version=2.0", null, null));
+        install(createBundle("d", "cache.d; uses:=cache.p", "cache.p", null));
+        install(createBundle("e", null, "cache.p, cache.d", null));
+        install(createBundle("x", null, "cache.p; version=\"[2,3)\", cache.d", null));
+        // D and E prefer the resolved exporter of the lower version, while
+        // X is not resolved at all.
+        assertTrue(resolve(getBundle("p1")));
+        assertTrue(getPackageAdmin().resolveBundles(
+            new Bundle[] { getBundle("d"), getBundle("e") }));
+        restart();
+
+        // X is resolved by the resolver and pulls D onto the other exporter,
+        // so the cached wires of E must not be used anymore.
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertTrue(resolve(getBundle("x")));
+        assertEquals(1, cache.getMissCount());
+        assertFalse(cache.isValid());
+        assertTrue(resolve(getBundle("e")));
+        assertEquals(0, cache.getHitCount());
+
+        Bundle p2 = getBundle("p2");
+        assertSame(p2, getExporter(getBundle("d"), "cache.p"));
+        assertSame(p2, getExporter(getBundle("e"), "cache.p"));
+    }
+
+    public void testResolverWiringCachedModuleEquallyKeepsCache() throws Exception
+    {
+        start();
+        install(createBundle("p1", "cache.p; version=1.0", null, null));
+        install(createBundle("d", "cache.d; uses:=cache.p", "cache.p", null));
+        install(createBundle("e", null, "cache.p, cache.d", null));
+        install(createBundle("x", null, "cache.d", null));
+        assertTrue(getPackageAdmin().resolveBundles(
+            new Bundle[] { getBundle("d"), getBundle("e") }));
+        restart();
+
+        // X pulls D onto the same exporter as before.
+        ResolutionCache cache = m_felix.getResolutionCache();
+        assertTrue(resolve(getBundle("x")));
+        assertTrue(cache.isValid());
+        assertTrue(resolve(getBundle("e")));
+        assertEquals(1, cache.getHitCount());
+        assertSame(getBundle("p1"), getExporter(getBundle("e"), "cache.p"));
+    }
+
+    private void start() throws Exception
+    {
+        m_felix = new Felix(m_config);
+        m_felix.start();
+    }
+
+    private void stop() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        m_felix = null;
+    }
+
+    // Restarts the framework with the same bundle cache.
+    private void restart() throws Exception
+    {
+        stop();
+        m_config.remove(Constants.FRAMEWORK_STORAGE_CLEAN);
+        start();
+    }
+
+    private void install(File file) throws Exception
+    {
+        m_felix.getBundleContext().installBundle(file.toURI().toURL().toString());
+    }
+
+    private Bundle getBundle(String symbolicName)
+    {
+        Bundle[] bundles = m_felix.getBundleContext().getBundles();
+        for (int i = 0; i < bundles.length; i++)
+        {
+            if (symbolicName.equals(bundles[i].getSymbolicName()))
+            {
+                return bundles[i];
+            }
+        }
+        return null;
+    }
+
+    private PackageAdmin getPackageAdmin()
+    {
+        BundleContext context = m_felix.getBundleContext();
+        return (PackageAdmin) context.getService(
+            context.getServiceReference(PackageAdmin.class.getName()));
+    }
+
+    // Returns the exporter the specified bundle imports the package from.
+    private Bundle getExporter(Bundle importer, String pkgName)
+    {
+        ExportedPackage[] pkgs = getPackageAdmin().getExportedPackages(pkgName);
+        for (int i = 0; (pkgs != null) && (i < pkgs.length); i++)
+        {
+            Bundle[] importers = pkgs[i].getImportingBundles();
+            for (int j = 0; (importers != null) && (j < importers.length); j++)
+            {
+                if (importers[j] == importer)
+                {
+                    return pkgs[i].getExportingBundle();
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean resolve(Bundle bundle)
+    {
+        return getPackageAdmin().resolveBundles(
+            (bundle == null) ? null : new Bundle[] { bundle });
+    }
+
+    private File createBundle(String symbolicName, String exports, String imports,
+        String host) throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        if (exports != null)
+        {
+            headers.put(Constants.EXPORT_PACKAGE, exports);
+        }
+        if (imports != null)
+        {
+            headers.put(Constants.IMPORT_PACKAGE, imports);
+        }
+        if (host != null)
+        {
+            headers.put(Constants.FRAGMENT_HOST, host);
+        }
+        return FrameworkTestUtil.createBundle(
+            new File(m_dir, symbolicName + ".jar"), headers, null);
+    }
+}
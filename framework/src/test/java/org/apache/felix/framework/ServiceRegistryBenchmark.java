@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Hashtable;
+
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.easymock.MockControl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures <tt>ServiceRegistry.getServiceReferences()</tt> and
+ * <tt>getService()</tt>/<tt>ungetService()</tt> throughput for an increasing
+ * number of concurrent threads, each getting a different service. This is
+ * not run as part of
+ * the unit tests; run it with <tt>main()</tt> from the test class path. The
+ * optional arguments are the number of services to register and the number
+ * of milliseconds to run each round.
+**/
+public class ServiceRegistryBenchmark
+{
+    private static final int CLASS_COUNT = 50;
+
+    public static void main(String[] args) throws Exception
+    {
+        int svcCount = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        long duration = (args.length > 1) ? Long.parseLong(args[1]) : 2000;
+
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        final ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        final ServiceReference[] refs = new ServiceReference[svcCount];
+        for (int i = 0; i < svcCount; i++)
+        {
+            Hashtable props = new Hashtable();
+            props.put("index", new Integer(i));
+            refs[i] = sr.registerService(
+                b, new String[] { "bench.Service" + (i % CLASS_COUNT) }, new Object(), props)
+                .getReference();
+        }
+
+        final SimpleFilter filter = SimpleFilter.parse("(index>=" + (svcCount / 2) + ")");
+        Operation lookup = new Operation()
+        {
+            public void run(Bundle bundle, int idx)
+            {
+                sr.getServiceReferences("bench.Service" + (idx % CLASS_COUNT), filter);
+            }
+        };
+        // Each thread keeps one usage of its own service, so the following
+        // gets and ungets only increment and decrement the usage count.
+        Operation getUnget = new Operation()
+        {
+            public void run(Bundle bundle, int idx)
+            {
+                sr.getService(bundle, refs[idx % refs.length]);
+                sr.ungetService(bundle, refs[idx % refs.length]);
+            }
+        };
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threadCount = 1; threadCount <= maxThreads; threadCount *= 2)
+        {
+            long ops = run(lookup, b, threadCount, 1, duration);
+            System.out.println(threadCount + " thread(s): "
+                + ((ops * 1000) / duration) + " lookups/s");
+        }
+        for (int threadCount = 1; threadCount <= maxThreads; threadCount *= 2)
+        {
+            for (int i = 0; i < threadCount; i++)
+            {
+                sr.getService(b, refs[i % refs.length]);
+            }
+            long ops = run(getUnget, b, threadCount, 0, duration);
+            System.out.println(threadCount + " thread(s): "
+                + ((ops * 1000) / duration) + " get/unget pairs/s");
+            sr.ungetServices(b);
+        }
+    }
+
+    private static long run(
+        final Operation op, final Bundle bundle, int threadCount, final int step,
+        long duration)
+        throws InterruptedException
+    {
+        final long[] counts = new long[threadCount];
+        final long end = System.currentTimeMillis() + duration;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            final int idx = i;
+            threads[i] = new Thread("ServiceRegistryBenchmark-" + i)
+            {
+                public void run()
+                {
+                    long count = 0;
+                    int opIdx = idx;
+                    while (System.currentTimeMillis() < end)
+                    {
+                        for (int j = 0; j < 100; j++)
+                        {
+                            op.run(bundle, opIdx);
+                            opIdx += step;
+                        }
+                        count += 100;
+                    }
+                    counts[idx] = count;
+                }
+            };
+        }
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i].start();
+        }
+        long total = 0;
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i].join();
+            total += counts[i];
+        }
+        return total;
+    }
+
+    private interface Operation
+    {
+        void run(Bundle bundle, int idx);
+    }
+}
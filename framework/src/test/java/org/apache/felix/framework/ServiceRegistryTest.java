@@ -25,6 +25,7 @@ import java.util.List;
 
 import junit.framework.TestCase;
 
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.easymock.MockControl;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -295,6 +296,45 @@ public class ServiceRegistryTest extends TestCase
         assertEquals("Unregistration should have no effect", 0, sr.getListenerHooks().size());
     }
     
+    public void testGetServiceReferences()
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        Hashtable props = new Hashtable();
+        props.put("a", "1");
+        ServiceRegistration reg1 = sr.registerService(
+            b, new String[] {String.class.getName(), Object.class.getName()}, "s1", props);
+        ServiceRegistration reg2 = sr.registerService(
+            b, new String[] {Object.class.getName()}, "s2", new Hashtable());
+
+        assertEquals(2, sr.getServiceReferences(null, null).size());
+        assertEquals(2, sr.getServiceReferences(Object.class.getName(), null).size());
+        assertEquals(1, sr.getServiceReferences(String.class.getName(), null).size());
+        assertEquals(0, sr.getServiceReferences(Integer.class.getName(), null).size());
+        assertEquals(1, sr.getServiceReferences(
+            Object.class.getName(), SimpleFilter.parse("(a=1)")).size());
+        assertEquals(1, sr.getServiceReferences(
+            null, SimpleFilter.parse("(&(objectClass=java.lang.Object)(!(a=1)))")).size());
+        assertEquals(2, sr.getServiceReferences(
+            null, SimpleFilter.parse("(objectClass=java.lang.*)")).size());
+
+        List refs = sr.getServiceReferences(String.class.getName(), null);
+        assertSame(reg1.getReference(), refs.get(0));
+        refs.clear();
+        assertEquals("Returned list must be a copy",
+            1, sr.getServiceReferences(String.class.getName(), null).size());
+
+        sr.unregisterService(b, reg1);
+        assertEquals(0, sr.getServiceReferences(String.class.getName(), null).size());
+        assertEquals(1, sr.getServiceReferences(null, null).size());
+        sr.unregisterService(b, reg2);
+        assertEquals(0, sr.getServiceReferences(Object.class.getName(), null).size());
+        assertEquals(0, sr.getServiceReferences(null, null).size());
+    }
+
     public void testInvokeHook() 
     {
         ServiceRegistry sr = new ServiceRegistry(null, null);
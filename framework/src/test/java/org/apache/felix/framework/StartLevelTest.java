@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.service.startlevel.StartLevel;
+
+public class StartLevelTest extends TestCase
+{
+    private static final int BUNDLE_COUNT = 12;
+
+    private File m_dir;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("startlevel");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testParallelStartOfInterdependentBundles() throws Exception
+    {
+        for (int run = 0; run < 3; run++)
+        {
+            Map params = FrameworkTestUtil.createConfig(new File(m_dir, "cache" + run));
+            params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, "4");
+            Felix felix = new Felix(params);
+            felix.start();
+            try
+            {
+                BundleContext context = felix.getBundleContext();
+                StartLevel sl = (StartLevel) context.getService(
+                    context.getServiceReference(StartLevel.class.getName()));
+
+                // Each bundle imports the package of the previous one, so
+                // resolving one bundle resolves all bundles before it.
+                List<Bundle> bundles = new ArrayList<Bundle>();
+                for (int i = 0; i < BUNDLE_COUNT; i++)
+                {
+                    Bundle bundle = context.installBundle(
+                        createBundle(i).toURI().toURL().toString());
+                    sl.setBundleStartLevel(bundle, 2);
+                    bundle.start();
+                    bundles.add(bundle);
+                }
+
+                final List<FrameworkEvent> errors =
+                    Collections.synchronizedList(new ArrayList<FrameworkEvent>());
+                final Object lock = new Object();
+                final boolean[] changed = new boolean[1];
+                context.addFrameworkListener(new FrameworkListener() {
+                    public void frameworkEvent(FrameworkEvent event)
+                    {
+                        if (event.getType() == FrameworkEvent.ERROR)
+                        {
+                            errors.add(event);
+                        }
+                        else if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED)
+                        {
+                            synchronized (lock)
+                            {
+                                changed[0] = true;
+                                lock.notifyAll();
+                            }
+                        }
+                    }
+                });
+
+                sl.setStartLevel(2);
+                synchronized (lock)
+                {
+                    long end = System.currentTimeMillis() + 30000;
+                    while (!changed[0] && (System.currentTimeMillis() < end))
+                    {
+                        lock.wait(1000);
+                    }
+                }
+
+                assertTrue("Start level not changed", changed[0]);
+                assertEquals("Errors: " + errors, 0, errors.size());
+                for (Bundle bundle : bundles)
+                {
+                    assertEquals(bundle.getSymbolicName(), Bundle.ACTIVE, bundle.getState());
+                }
+            }
+            finally
+            {
+                felix.stop();
+                felix.waitForStop(10000);
+            }
+        }
+    }
+
+    private File createBundle(int i) throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "startlevel.test" + i);
+        headers.put(Constants.BUNDLE_ACTIVATOR, DelayActivator.class.getName());
+        headers.put(Constants.EXPORT_PACKAGE, "startlevel.test" + i);
+        headers.put(Constants.IMPORT_PACKAGE, "org.osgi.framework"
+            + ((i > 0) ? ",startlevel.test" + (i - 1) : ""));
+        return FrameworkTestUtil.createBundle(new File(m_dir, "bundle" + i + ".jar"),
+            headers, new Class[] { DelayActivator.class });
+    }
+
+    // Loaded from the test bundles to keep several workers busy at once.
+    public static class DelayActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            Thread.sleep(20);
+        }
+
+        public void stop(BundleContext context)
+        {
+        }
+    }
+}
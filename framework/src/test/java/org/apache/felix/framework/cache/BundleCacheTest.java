@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.FrameworkTestUtil;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.resolver.Content;
+import org.osgi.framework.Constants;
+
+public class BundleCacheTest extends TestCase
+{
+    private File m_dir;
+    private File m_jar;
+    private File m_otherJar;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("bundlecache");
+        m_jar = createJar("bundle.jar", "cache.test");
+        m_otherJar = createJar("other.jar", "cache.other");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testIdenticalJarsAreLinked() throws Exception
+    {
+        if (!isLinkingPlatform())
+        {
+            return;
+        }
+
+        BundleCache cache = createCache("cache", true);
+        BundleArchive ba1 = cache.create(1, "test1", new FileInputStream(m_jar));
+        BundleArchive ba2 = cache.create(2, "test2", new FileInputStream(m_jar));
+        BundleArchive ba3 = cache.create(3, "test3", new FileInputStream(m_otherJar));
+
+        assertEquals("cache.test", ba2.getRevision(0).getManifestHeader()
+            .get(Constants.BUNDLE_SYMBOLICNAME));
+        assertTrue(isLinked(getBundleFile(ba1), getBundleFile(ba2)));
+        assertFalse(isLinked(getBundleFile(ba1), getBundleFile(ba3)));
+
+        ba1.close();
+        ba2.close();
+        ba3.close();
+    }
+
+    public void testReloadedJarsAreLinked() throws Exception
+    {
+        if (!isLinkingPlatform())
+        {
+            return;
+        }
+
+        BundleCache cache = createCache("cache", true);
+        cache.create(1, "test1", new FileInputStream(m_jar)).close();
+
+        // A new cache instance only knows the JAR file after reloading it.
+        cache = createCache("cache", true);
+        BundleArchive[] archives = cache.getArchives();
+        assertEquals(1, archives.length);
+        BundleArchive ba2 = cache.create(2, "test2", new FileInputStream(m_jar));
+
+        assertTrue(isLinked(getBundleFile(archives[0]), getBundleFile(ba2)));
+
+        archives[0].close();
+        ba2.close();
+    }
+
+    public void testJarsOfOtherCachesAreCopied() throws Exception
+    {
+        BundleCache cache1 = createCache("cache1", true);
+        BundleCache cache2 = createCache("cache2", true);
+        BundleArchive ba1 = cache1.create(1, "test1", new FileInputStream(m_jar));
+        BundleArchive ba2 = cache2.create(1, "test1", new FileInputStream(m_jar));
+
+        assertFalse(isLinked(getBundleFile(ba1), getBundleFile(ba2)));
+
+        ba1.close();
+        ba2.close();
+    }
+
+    public void testJarsAreCopiedWithoutDeduplication() throws Exception
+    {
+        BundleCache cache = createCache("cache", false);
+        BundleArchive ba1 = cache.create(1, "test1", new FileInputStream(m_jar));
+        BundleArchive ba2 = cache.create(2, "test2", new FileInputStream(m_jar));
+
+        assertFalse(isLinked(getBundleFile(ba1), getBundleFile(ba2)));
+        assertFalse(new File(getBundleFile(ba1).getParentFile(), "bundle.hash").exists());
+
+        ba1.close();
+        ba2.close();
+    }
+
+    public void testJarIsCopiedAfterLinkedJarWasDeleted() throws Exception
+    {
+        BundleCache cache = createCache("cache", true);
+        BundleArchive ba1 = cache.create(1, "test1", new FileInputStream(m_jar));
+        File file1 = getBundleFile(ba1);
+        ba1.closeAndDelete();
+        assertFalse(file1.exists());
+
+        BundleArchive ba2 = cache.create(2, "test2", new FileInputStream(m_jar));
+        assertTrue(getBundleFile(ba2).exists());
+        assertEquals(m_jar.length(), getBundleFile(ba2).length());
+
+        ba2.close();
+    }
+
+    public void testDeletedArchiveIsNotReloaded() throws Exception
+    {
+        BundleCache cache = createCache("cache", true);
+        BundleArchive ba1 = cache.create(1, "test1", new FileInputStream(m_jar));
+        ba1.close();
+        File archiveDir = new File(new File(m_dir, "cache"), "bundle1");
+        assertTrue(archiveDir.exists());
+
+        // As if the directory could not be deleted completely.
+        assertTrue(BundleCache.markDeleted(archiveDir));
+
+        cache = createCache("cache", true);
+        assertEquals(0, cache.getArchives().length);
+        assertEquals(0, new File(m_dir, "cache").listFiles().length);
+    }
+
+    public void testLazyCacheReadsContent() throws Exception
+    {
+        Map config = createConfig("cache", false);
+        config.put(BundleCache.CACHE_LAZY_PROP, "true");
+        BundleCache cache = new BundleCache(new Logger(), config);
+        BundleArchive ba = cache.create(1, "test1", new FileInputStream(m_jar));
+
+        assertEquals("cache.test", ba.getRevision(0).getManifestHeader()
+            .get(Constants.BUNDLE_SYMBOLICNAME));
+        Content content = ba.getRevision(0).getContent();
+        assertTrue(content.hasEntry("META-INF/MANIFEST.MF"));
+        assertNotNull(content.getEntryAsBytes("META-INF/MANIFEST.MF"));
+        content.close();
+        ba.close();
+    }
+
+    private BundleCache createCache(String name, boolean dedup)
+    {
+        return new BundleCache(new Logger(), createConfig(name, dedup));
+    }
+
+    private Map createConfig(String name, boolean dedup)
+    {
+        // The framework reads the archives first, which creates the directory.
+        File cacheDir = new File(m_dir, name);
+        cacheDir.mkdirs();
+        Map config = new HashMap();
+        config.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        config.put(BundleCache.CACHE_DEDUP_PROP, Boolean.toString(dedup));
+        return config;
+    }
+
+    private File createJar(String name, String symbolicName) throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        return FrameworkTestUtil.createBundle(new File(m_dir, name), headers, null);
+    }
+
+    private static File getBundleFile(BundleArchive ba)
+    {
+        return new File(ba.getRevision(0).getRevisionRootDir(), "bundle.jar");
+    }
+
+    // Appending to one of two linked files also changes the other one.
+    private static boolean isLinked(File file1, File file2) throws Exception
+    {
+        long length = file2.length();
+        FileOutputStream os = new FileOutputStream(file1, true);
+        try
+        {
+            os.write(0);
+        }
+        finally
+        {
+            os.close();
+        }
+        return file2.length() != length;
+    }
+
+    private static boolean isLinkingPlatform()
+    {
+        try
+        {
+            Class.forName("java.nio.file.Files");
+            return true;
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.FrameworkTestUtil;
+import org.apache.felix.framework.util.JarFileX;
+import org.osgi.framework.Constants;
+
+public class JarFileHandleTest extends TestCase
+{
+    private File m_dir;
+    private File[] m_jars;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("jarfilehandle");
+        m_jars = new File[3];
+        for (int i = 0; i < m_jars.length; i++)
+        {
+            Map headers = new HashMap();
+            headers.put(Constants.BUNDLE_SYMBOLICNAME, "handle.test" + i);
+            m_jars[i] = FrameworkTestUtil.createBundle(
+                new File(m_dir, "bundle" + i + ".jar"), headers, null);
+        }
+    }
+
+    protected void tearDown() throws Exception
+    {
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testAcquireAndRelease() throws Exception
+    {
+        JarFileHandle.Pool pool = new JarFileHandle.Pool(0);
+        JarFileHandle handle = new JarFileHandle(m_jars[0], pool);
+
+        JarFileX jarFile = handle.acquire();
+        assertSame(jarFile, handle.acquire());
+        assertEquals(1, pool.getOpenCount());
+
+        // Still in use once.
+        handle.release();
+        assertEquals(1, pool.getOpenCount());
+        assertNotNull(jarFile.getManifest());
+
+        handle.release();
+        assertEquals(0, pool.getOpenCount());
+        handle.close();
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception
+    {
+        JarFileHandle.Pool pool = new JarFileHandle.Pool(2);
+        JarFileHandle[] handles = createHandles(pool);
+
+        use(handles[0]);
+        JarFileX jarFile1 = handles[1].acquire();
+        handles[1].release();
+        JarFileX jarFile0 = handles[0].acquire();
+        handles[0].release();
+        use(handles[2]);
+
+        assertEquals(2, pool.getOpenCount());
+        assertSame(jarFile0, handles[0].acquire());
+        handles[0].release();
+        // The second JAR file was evicted and is opened again.
+        assertNotSame(jarFile1, handles[1].acquire());
+        handles[1].release();
+
+        closeAll(handles);
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    public void testJarFileInUseIsNotEvicted() throws Exception
+    {
+        JarFileHandle.Pool pool = new JarFileHandle.Pool(1);
+        JarFileHandle[] handles = createHandles(pool);
+
+        InputStream is = handles[0].getInputStream("META-INF/MANIFEST.MF");
+        use(handles[1]);
+        use(handles[2]);
+
+        // The stream keeps the first JAR file open, so the others are
+        // closed once they are released.
+        assertEquals(1, pool.getOpenCount());
+        assertTrue(is.read() >= 0);
+
+        is.close();
+        // Closing the stream twice must only release the JAR file once.
+        is.close();
+        use(handles[1]);
+        assertEquals(1, pool.getOpenCount());
+
+        closeAll(handles);
+    }
+
+    public void testClosedWhileStreamIsOpen() throws Exception
+    {
+        JarFileHandle.Pool pool = new JarFileHandle.Pool(1);
+        JarFileHandle handle = new JarFileHandle(m_jars[0], pool);
+
+        InputStream is = handle.getInputStream("META-INF/MANIFEST.MF");
+        handle.close();
+        assertEquals(0, pool.getOpenCount());
+        // The JAR file stays open until the stream is closed.
+        assertTrue(is.read() >= 0);
+        is.close();
+
+        try
+        {
+            handle.acquire();
+            fail("Handle should be closed");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public void testMissingEntryReleasesJarFile() throws Exception
+    {
+        JarFileHandle.Pool pool = new JarFileHandle.Pool(0);
+        JarFileHandle handle = new JarFileHandle(m_jars[0], pool);
+
+        assertNull(handle.getInputStream("missing"));
+        assertEquals(0, pool.getOpenCount());
+        handle.close();
+    }
+
+    public void testPoolsAreIndependent() throws Exception
+    {
+        JarFileHandle.Pool pool1 = new JarFileHandle.Pool(1);
+        JarFileHandle.Pool pool2 = new JarFileHandle.Pool(1);
+        JarFileHandle handle1 = new JarFileHandle(m_jars[0], pool1);
+        JarFileHandle handle2 = new JarFileHandle(m_jars[1], pool2);
+
+        use(handle1);
+        use(handle2);
+        assertEquals(1, pool1.getOpenCount());
+        assertEquals(1, pool2.getOpenCount());
+
+        pool2.setMaxOpen(0);
+        assertEquals(1, pool1.getOpenCount());
+        assertEquals(0, pool2.getOpenCount());
+
+        handle1.close();
+        handle2.close();
+    }
+
+    private JarFileHandle[] createHandles(JarFileHandle.Pool pool)
+    {
+        JarFileHandle[] handles = new JarFileHandle[m_jars.length];
+        for (int i = 0; i < handles.length; i++)
+        {
+            handles[i] = new JarFileHandle(m_jars[i], pool);
+        }
+        return handles;
+    }
+
+    private static void use(JarFileHandle handle) throws IOException
+    {
+        handle.acquire();
+        handle.release();
+    }
+
+    private static void closeAll(JarFileHandle[] handles) throws IOException
+    {
+        for (int i = 0; i < handles.length; i++)
+        {
+            handles[i].close();
+        }
+    }
+}
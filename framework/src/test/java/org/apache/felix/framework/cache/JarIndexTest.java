@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.FrameworkTestUtil;
+import org.apache.felix.framework.Logger;
+
+public class JarIndexTest extends TestCase
+{
+    private static final byte[] STORED = "stored content".getBytes();
+    private static final byte[] DEFLATED = new byte[10000];
+
+    private File m_dir;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = FrameworkTestUtil.createTempDir("jarindex");
+        for (int i = 0; i < DEFLATED.length; i++)
+        {
+            DEFLATED[i] = (byte) (i % 31);
+        }
+    }
+
+    protected void tearDown() throws Exception
+    {
+        FrameworkTestUtil.delete(m_dir);
+        super.tearDown();
+    }
+
+    public void testReadEntries() throws Exception
+    {
+        JarIndex index = JarIndex.open(createJar("test.jar", null, null));
+        assertNotNull(index);
+
+        assertTrue(Arrays.equals(STORED, index.getEntryAsBytes("a/stored.txt")));
+        assertTrue(Arrays.equals(DEFLATED, index.getEntryAsBytes("a/deflated.bin")));
+        assertNull(index.getEntryAsBytes("a/missing.txt"));
+
+        // Only stored entries can be returned without copying.
+        ByteBuffer buffer = index.getEntryAsByteBuffer("a/stored.txt");
+        assertTrue(buffer.isReadOnly());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertTrue(Arrays.equals(STORED, bytes));
+        assertNull(index.getEntryAsByteBuffer("a/deflated.bin"));
+        assertNull(index.getEntryAsByteBuffer("a/missing.txt"));
+    }
+
+    public void testArchiveComment() throws Exception
+    {
+        JarIndex index = JarIndex.open(createJar("comment.jar", null, "a comment"));
+        assertNotNull(index);
+        assertTrue(Arrays.equals(STORED, index.getEntryAsBytes("a/stored.txt")));
+    }
+
+    public void testInvalidFileIsNotIndexed() throws Exception
+    {
+        File file = new File(m_dir, "invalid.jar");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[100]);
+        os.close();
+        assertNull(JarIndex.open(file));
+
+        file = new File(m_dir, "empty.jar");
+        new FileOutputStream(file).close();
+        assertNull(JarIndex.open(file));
+    }
+
+    public void testSignedJarIsNotIndexed() throws Exception
+    {
+        assertNull(JarIndex.open(createJar("signed1.jar", "META-INF/TEST.SF", null)));
+        assertNull(JarIndex.open(createJar("signed2.jar", "meta-inf/test.sf", null)));
+        assertNull(JarIndex.open(createJar("signed3.jar", "Meta-Inf/Test.Sf", null)));
+        assertNotNull(JarIndex.open(createJar("unsigned.jar", "a/TEST.SF", null)));
+    }
+
+    public void testSignedJarFallsBackToJarFile() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(BundleCache.CACHE_MMAP_PROP, "true");
+
+        File file = createJar("unsigned.jar", null, null);
+        JarContent content = new JarContent(
+            new Logger(), config, new Object(), m_dir, file, null);
+        assertNotNull(content.getEntryAsByteBuffer("a/stored.txt"));
+        content.close();
+
+        file = createJar("signed.jar", "meta-inf/test.sf", null);
+        content = new JarContent(new Logger(), config, new Object(), m_dir, file, null);
+        assertNull(content.getEntryAsByteBuffer("a/stored.txt"));
+        assertTrue(Arrays.equals(STORED, content.getEntryAsBytes("a/stored.txt")));
+        assertTrue(Arrays.equals(DEFLATED, content.getEntryAsBytes("a/deflated.bin")));
+        content.close();
+    }
+
+    private File createJar(String name, String signatureFile, String comment)
+        throws Exception
+    {
+        File file = new File(m_dir, name);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try
+        {
+            if (signatureFile != null)
+            {
+                zos.putNextEntry(new ZipEntry(signatureFile));
+                zos.write("Signature-Version: 1.0\r\n".getBytes());
+                zos.closeEntry();
+            }
+
+            ZipEntry entry = new ZipEntry("a/stored.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(STORED.length);
+            CRC32 crc = new CRC32();
+            crc.update(STORED);
+            entry.setCrc(crc.getValue());
+            zos.putNextEntry(entry);
+            zos.write(STORED);
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry("a/deflated.bin"));
+            zos.write(DEFLATED);
+            zos.closeEntry();
+
+            if (comment != null)
+            {
+                zos.setComment(comment);
+            }
+        }
+        finally
+        {
+            zos.close();
+        }
+        return file;
+    }
+}
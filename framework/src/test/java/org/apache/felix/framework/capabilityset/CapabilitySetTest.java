@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.manifestparser.CapabilityImpl;
+import org.osgi.framework.Version;
+
+public class CapabilitySetTest extends TestCase
+{
+    public void testRangeIndexMatching()
+    {
+        List<String> indices = new ArrayList<String>();
+        indices.add(Capability.PACKAGE_ATTR);
+        List<String> rangeIndices = new ArrayList<String>();
+        rangeIndices.add(Capability.VERSION_ATTR);
+        CapabilitySet indexed = new CapabilitySet(indices, rangeIndices, true);
+        CapabilitySet unindexed = new CapabilitySet(null, true);
+
+        for (int i = 0; i < 40; i++)
+        {
+            Capability cap = createPackage("pkg" + (i % 4), new Version(i % 10, 0, 0));
+            indexed.addCapability(cap);
+            unindexed.addCapability(cap);
+        }
+        // A version that is not a Version object cannot be sorted.
+        Capability unsorted = createPackage("pkg1", "5.0.0");
+        indexed.addCapability(unsorted);
+        unindexed.addCapability(unsorted);
+
+        String[] filters = new String[] {
+            "(version>=5.0.0)",
+            "(version<=5.0.0)",
+            "(version=5.0.0)",
+            "(&(version>=2.0.0)(!(version>=6.0.0)))",
+            "(&(!(version<=2.0.0))(package=pkg1)(version<=7.0.0))",
+            "(|(version<=1.0.0)(package=pkg3))",
+            "(version>=foo)"
+        };
+        for (int i = 0; i < filters.length; i++)
+        {
+            SimpleFilter sf = SimpleFilter.parse(filters[i]);
+            Set<Capability> expected = unindexed.match(sf, false);
+            Set<Capability> actual = indexed.match(sf, false);
+            assertEquals("Mismatch for " + filters[i], expected, actual);
+        }
+
+        assertTrue(indexed.match(
+            SimpleFilter.parse("(version>=5.0.0)"), false).contains(unsorted));
+
+        indexed.removeCapability(unsorted);
+        assertFalse(indexed.match(
+            SimpleFilter.parse("(version>=5.0.0)"), false).contains(unsorted));
+        assertEquals(20,
+            indexed.match(SimpleFilter.parse("(version>=5.0.0)"), false).size());
+    }
+
+    private static Capability createPackage(String name, Object version)
+    {
+        List<Attribute> attrs = new ArrayList<Attribute>();
+        attrs.add(new Attribute(Capability.PACKAGE_ATTR, name, false));
+        attrs.add(new Attribute(Capability.VERSION_ATTR, version, false));
+        return new CapabilityImpl(
+            null, Capability.PACKAGE_NAMESPACE, new ArrayList<Directive>(), attrs);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.io.File;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Felix;
+import org.apache.felix.framework.FrameworkTestUtil;
+import org.apache.felix.framework.util.FelixConstants;
+
+public class FilterCacheTest extends TestCase
+{
+    protected void setUp()
+    {
+        FilterCache.clear();
+        FilterCache.setMaxSize(FilterCache.MAX_SIZE_DEFAULT);
+    }
+
+    protected void tearDown()
+    {
+        FilterCache.clear();
+        FilterCache.setMaxSize(FilterCache.MAX_SIZE_DEFAULT);
+    }
+
+    public void testSameFilterIsReturned()
+    {
+        long hits = FilterCache.getHitCount();
+        long misses = FilterCache.getMissCount();
+
+        SimpleFilter sf = FilterCache.parse("(&(objectClass=foo)(a>=1))");
+        assertEquals(SimpleFilter.parse("(&(objectClass=foo)(a>=1))").toString(), sf.toString());
+        assertSame(sf, FilterCache.parse("(&(objectClass=foo)(a>=1))"));
+        assertNotSame(sf, FilterCache.parse("(&(objectClass=foo)(a>=2))"));
+
+        assertEquals(hits + 1, FilterCache.getHitCount());
+        assertEquals(misses + 2, FilterCache.getMissCount());
+    }
+
+    public void testInvalidFilterIsNotCached()
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                FilterCache.parse("(a=b");
+                fail("Invalid filter was parsed.");
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // Expected.
+            }
+        }
+        assertEquals(0, FilterCache.size());
+    }
+
+    public void testLeastRecentlyUsedFiltersAreEvicted()
+    {
+        FilterCache.setMaxSize(2);
+        SimpleFilter a = FilterCache.parse("(a=1)");
+        SimpleFilter b = FilterCache.parse("(b=1)");
+        assertSame(a, FilterCache.parse("(a=1)"));
+        FilterCache.parse("(c=1)");
+
+        assertEquals(2, FilterCache.size());
+        assertSame(a, FilterCache.parse("(a=1)"));
+        assertNotSame(b, FilterCache.parse("(b=1)"));
+    }
+
+    public void testDisabledCache()
+    {
+        FilterCache.setMaxSize(0);
+        SimpleFilter sf = FilterCache.parse("(a=1)");
+        assertNotSame(sf, FilterCache.parse("(a=1)"));
+        assertEquals(0, FilterCache.size());
+    }
+
+    public void testFrameworkConfigDoesNotChangeSharedCache() throws Exception
+    {
+        File dir = FrameworkTestUtil.createTempDir("filtercache");
+        try
+        {
+            Map config = FrameworkTestUtil.createConfig(new File(dir, "cache"));
+            config.put(FelixConstants.FILTER_CACHE_SIZE_PROP, "0");
+            Felix felix = new Felix(config);
+            felix.init();
+            try
+            {
+                SimpleFilter sf = FilterCache.parse("(a=1)");
+                assertSame(sf, FilterCache.parse("(a=1)"));
+            }
+            finally
+            {
+                felix.stop();
+                felix.waitForStop(10000);
+            }
+        }
+        finally
+        {
+            FrameworkTestUtil.delete(dir);
+        }
+    }
+}
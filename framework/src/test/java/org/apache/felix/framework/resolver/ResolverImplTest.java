@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.resolver;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import org.apache.felix.framework.FelixResolverState;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.ModuleImpl;
+import org.apache.felix.framework.capabilityset.Capability;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+public class ResolverImplTest extends TestCase
+{
+    private static final Pattern RESOLVED_AFTER = Pattern.compile(
+        "after (\\d+) candidate permutations, reused package spaces of (\\d+) modules");
+
+    private RecordingLogger m_logger;
+    private FelixResolverState m_state;
+    private Map m_modules;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_logger = new RecordingLogger();
+        m_logger.setLogLevel(Logger.LOG_DEBUG);
+        m_state = new FelixResolverState(m_logger, null);
+        m_modules = new HashMap();
+
+        // Two versions of a package, where the higher one is preferred.
+        addModule(1, "a", "p; version=1.0", null);
+        addModule(2, "b", "p; version=2.0", null);
+        // Both export a package using p, but only c is limited to 1.0.
+        addModule(3, "c", "q; uses:=p", "p; version=\"[1,2)\"");
+        addModule(4, "d", "r; uses:=p", "p");
+        // Uses all of them, so all must agree on p from a.
+        addModule(5, "root", null, "p,q,r");
+    }
+
+    public void testOverlappingUsesNeedSeveralPermutations() throws Exception
+    {
+        Map wires = resolve(new ResolverImpl(m_logger, 0), "root");
+        assertEquals("{p=a, q=c, r=d}", wires.get("root"));
+        assertEquals("{p=a}", wires.get("c"));
+        assertEquals("{p=a}", wires.get("d"));
+
+        int[] counts = getResolvedAfterCounts();
+        assertTrue("Tried " + counts[0] + " permutations", counts[0] > 2);
+        // The package spaces of the exporters of p never change.
+        assertTrue("Reused " + counts[1] + " package spaces", counts[1] > 0);
+    }
+
+    public void testReuseResolvesLikeWithoutReuse() throws Exception
+    {
+        Map reused = resolve(new ResolverImpl(m_logger, 0), "root");
+        int[] reusedCounts = getResolvedAfterCounts();
+        m_logger.m_messages.clear();
+
+        Map notReused = resolve(new ResolverImpl(m_logger, 0, false), "root");
+        int[] notReusedCounts = getResolvedAfterCounts();
+
+        assertEquals(notReused, reused);
+        assertEquals(notReusedCounts[0], reusedCounts[0]);
+        assertEquals(0, notReusedCounts[1]);
+        assertTrue(reusedCounts[1] > 0);
+    }
+
+    public void testPermutationLimitStopsSearch() throws Exception
+    {
+        try
+        {
+            resolve(new ResolverImpl(m_logger, 2), "root");
+            fail("Resolving should have given up.");
+        }
+        catch (ResolveException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith(
+                "Unable to resolve " + m_modules.get("root")
+                + ": gave up after 2 candidate permutations with "));
+            assertTrue(ex.getMessage(), ex.getMessage().indexOf("[last failure: ") > 0);
+            assertSame(m_modules.get("root"), ex.getModule());
+        }
+
+        String warning = null;
+        for (Iterator it = m_logger.m_messages.iterator(); it.hasNext(); )
+        {
+            String msg = (String) it.next();
+            if (msg.startsWith(Logger.LOG_WARNING + " "))
+            {
+                assertNull("Only one warning expected", warning);
+                warning = msg;
+            }
+        }
+        assertNotNull(warning);
+        assertTrue(warning, warning.startsWith(Logger.LOG_WARNING
+            + " Candidate permutation limit reached, reused package spaces of "));
+
+        // A higher limit is not reached.
+        m_logger.m_messages.clear();
+        Map wires = resolve(new ResolverImpl(m_logger, 10), "root");
+        assertEquals("{p=a, q=c, r=d}", wires.get("root"));
+    }
+
+    /**
+     * Resolves the specified module and returns a map of the symbolic
+     * name of each wired module to the exporters of its imported packages.
+    **/
+    private Map resolve(Resolver resolver, String symbolicName) throws Exception
+    {
+        Map<Module, List<Wire>> wireMap =
+            resolver.resolve(m_state, (Module) m_modules.get(symbolicName));
+        Map wires = new HashMap();
+        for (Map.Entry<Module, List<Wire>> entry : wireMap.entrySet())
+        {
+            Map exporters = new TreeMap();
+            for (Wire wire : entry.getValue())
+            {
+                exporters.put(
+                    wire.getCapability().getAttribute(Capability.PACKAGE_ATTR).getValue(),
+                    wire.getExporter().getSymbolicName());
+            }
+            wires.put(entry.getKey().getSymbolicName(), exporters.toString());
+        }
+        return wires;
+    }
+
+    /**
+     * Returns the number of permutations tried and the number of reused
+     * package spaces, as logged after resolving.
+    **/
+    private int[] getResolvedAfterCounts()
+    {
+        for (Iterator it = m_logger.m_messages.iterator(); it.hasNext(); )
+        {
+            Matcher matcher = RESOLVED_AFTER.matcher((String) it.next());
+            if (matcher.find())
+            {
+                return new int[] {
+                    Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) };
+            }
+        }
+        fail("Resolved without trying several permutations.");
+        return null;
+    }
+
+    private void addModule(long bundleId, String symbolicName, String exports,
+        String imports) throws Exception
+    {
+        Map headers = new HashMap();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+        if (exports != null)
+        {
+            headers.put(Constants.EXPORT_PACKAGE, exports);
+        }
+        if (imports != null)
+        {
+            headers.put(Constants.IMPORT_PACKAGE, imports);
+        }
+        Module module = new ModuleImpl(
+            m_logger, new HashMap(), null, createBundle(bundleId), bundleId + ".0",
+            headers, null, null, null, new String[0], new boolean[0]);
+        m_state.addModule(module);
+        m_modules.put(symbolicName, module);
+    }
+
+    // Creates a bundle that only knows its id, which is all the resolver needs.
+    private static Bundle createBundle(final long bundleId)
+    {
+        return (Bundle) Proxy.newProxyInstance(
+            Bundle.class.getClassLoader(), new Class[] { Bundle.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getBundleId"))
+                    {
+                        return new Long(bundleId);
+                    }
+                    else if (method.getName().equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    else if (method.getName().equals("hashCode"))
+                    {
+                        return new Integer((int) bundleId);
+                    }
+                    else if (method.getName().equals("toString"))
+                    {
+                        return "Bundle " + bundleId;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static class RecordingLogger extends Logger
+    {
+        private final List m_messages = new ArrayList();
+
+        protected void doLog(
+            Bundle bundle, ServiceReference sr, int level, String msg, Throwable throwable)
+        {
+            synchronized (m_messages)
+            {
+                m_messages.add(level + " " + msg);
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.felix.framework.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -29,12 +30,15 @@ import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
 import org.easymock.EasyMock;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
@@ -155,6 +159,226 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireServiceEventToMatchingObjectClassListeners() throws Exception
+    {
+        Bundle b = getMockBundle();
+
+        EventDispatcher ed = EventDispatcher.start(new Logger());
+        EventDispatcher.shutdown();
+
+        String[] filters = new String[] {
+            "(objectClass=java.lang.String)",
+            "(objectClass=java.lang.Integer)",
+            null,
+            "(|(objectClass=java.lang.Integer)(objectClass=java.lang.String))",
+            "(&(foo=bar)(objectClass=java.lang.String))",
+            "(foo=bar)"
+        };
+        final List fired = Collections.synchronizedList(new ArrayList());
+        ServiceListener[] listeners = new ServiceListener[filters.length];
+        for (int i = 0; i < filters.length; i++)
+        {
+            final Integer idx = new Integer(i);
+            listeners[i] = new ServiceListener()
+            {
+                public void serviceChanged(ServiceEvent event)
+                {
+                    fired.add(idx);
+                }
+            };
+            ed.addListener(b, ServiceListener.class, listeners[i],
+                (filters[i] == null) ? null : new FilterImpl(filters[i]));
+        }
+
+        ServiceReference sr = (ServiceReference) EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(sr.getProperty(Constants.OBJECTCLASS)).andReturn(new String[]
+            {
+                "java.lang.String"
+            }).anyTimes();
+        EasyMock.expect(sr.getProperty("foo")).andReturn("bar").anyTimes();
+        EasyMock.expect(sr.getPropertyKeys()).andReturn(new String[]
+            {
+                Constants.OBJECTCLASS, "foo"
+            }).anyTimes();
+        sr.isAssignableTo(b, String.class.getName());
+        EasyMock.expectLastCall().andReturn(Boolean.TRUE).anyTimes();
+        EasyMock.replay(new Object[]
+            {
+                sr
+            });
+
+        // Listeners are notified in reverse registration order and the
+        // Integer listener must not be notified.
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(Arrays.asList(new Integer[]
+            {
+                new Integer(5), new Integer(4), new Integer(3), new Integer(2), new Integer(0)
+            }), fired);
+
+        // Updating a filter must update the index.
+        fired.clear();
+        ed.updateListener(b, ServiceListener.class, listeners[1],
+            new FilterImpl("(objectClass=java.lang.String)"));
+        ed.removeListener(b, ServiceListener.class, listeners[0]);
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(Arrays.asList(new Integer[]
+            {
+                new Integer(5), new Integer(4), new Integer(3), new Integer(2), new Integer(1)
+            }), fired);
+    }
+
+    public void testAsynchronousDeliveryMetrics() throws Exception
+    {
+        Bundle b = getMockBundle();
+
+        EventDispatcher ed = EventDispatcher.start(new Logger(), 1, 0);
+        EventDispatcher other = EventDispatcher.start(new Logger(), 1, 0);
+        try
+        {
+            final Object lock = new Object();
+            final boolean[] entered = new boolean[1];
+            final boolean[] released = new boolean[1];
+            final int[] count = new int[1];
+            ed.addListener(b, FrameworkListener.class, new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    synchronized (lock)
+                    {
+                        entered[0] = true;
+                        lock.notifyAll();
+                        while (!released[0])
+                        {
+                            try
+                            {
+                                lock.wait();
+                            }
+                            catch (InterruptedException ex)
+                            {
+                                return;
+                            }
+                        }
+                        count[0]++;
+                        lock.notifyAll();
+                    }
+                }
+            }, null);
+
+            for (int i = 0; i < 3; i++)
+            {
+                ed.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.INFO, b, null));
+            }
+
+            // The first event blocks the listener, so two events are queued.
+            synchronized (lock)
+            {
+                while (!entered[0])
+                {
+                    lock.wait();
+                }
+                assertEquals(2, ed.getMetrics().getQueueDepth());
+                assertEquals(1, ed.getMetrics().getDeliveryCount());
+
+                released[0] = true;
+                lock.notifyAll();
+                while (count[0] < 3)
+                {
+                    lock.wait();
+                }
+            }
+
+            EventDispatcher.Metrics metrics = ed.getMetrics();
+            assertEquals(0, metrics.getQueueDepth());
+            assertEquals(3, metrics.getDeliveryCount());
+            assertTrue(metrics.getMaxDeliveryLatency() >= metrics.getAverageDeliveryLatency());
+
+            // Metrics are kept per dispatcher.
+            assertEquals(0, other.getMetrics().getDeliveryCount());
+        }
+        finally
+        {
+            EventDispatcher.shutdown();
+            EventDispatcher.shutdown();
+        }
+    }
+
+    public void testReaddedListenerReceivesEventsInOrder() throws Exception
+    {
+        Bundle b = getMockBundle();
+
+        EventDispatcher ed = EventDispatcher.start(new Logger(), 2, 0);
+        try
+        {
+            final Object lock = new Object();
+            final boolean[] entered = new boolean[1];
+            final boolean[] released = new boolean[1];
+            final boolean[] concurrent = new boolean[1];
+            final int[] active = new int[1];
+            final List received = new ArrayList();
+            FrameworkListener l = new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    synchronized (lock)
+                    {
+                        concurrent[0] |= (++active[0] > 1);
+                        entered[0] = true;
+                        lock.notifyAll();
+                        while (!released[0])
+                        {
+                            try
+                            {
+                                lock.wait();
+                            }
+                            catch (InterruptedException ex)
+                            {
+                                return;
+                            }
+                        }
+                        received.add(event.getThrowable().getMessage());
+                        active[0]--;
+                        lock.notifyAll();
+                    }
+                }
+            };
+            ed.addListener(b, FrameworkListener.class, l, null);
+            ed.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.INFO, b, new Exception("e1")));
+            ed.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.INFO, b, new Exception("e2")));
+
+            synchronized (lock)
+            {
+                while (!entered[0])
+                {
+                    lock.wait();
+                }
+            }
+
+            // Adding the listener again while it still has pending events
+            // must not deliver new events ahead of or next to them.
+            ed.removeListener(b, FrameworkListener.class, l);
+            ed.addListener(b, FrameworkListener.class, l, null);
+            ed.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.INFO, b, new Exception("e3")));
+            Thread.sleep(100);
+
+            synchronized (lock)
+            {
+                released[0] = true;
+                lock.notifyAll();
+                long end = System.currentTimeMillis() + 5000;
+                while ((received.size() < 3) && (System.currentTimeMillis() < end))
+                {
+                    lock.wait(100);
+                }
+                assertEquals(Arrays.asList(new String[] { "e1", "e2", "e3" }), received);
+                assertFalse(concurrent[0]);
+            }
+        }
+        finally
+        {
+            EventDispatcher.shutdown();
+        }
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares case-insensitive <tt>get()</tt> throughput of <tt>StringMap</tt>
+ * with the <tt>TreeMap</tt> and <tt>StringComparator</tt> combination it
+ * used to be based on, for a map shaped like typical bundle headers, as
+ * well as the throughput of building such a map from a <tt>Hashtable</tt>,
+ * as done for the headers of a bundle's manifest. This is not run as part of the unit tests; run it with <tt>main()</tt> from the
+ * test class path. The optional argument is the number of milliseconds to
+ * run each round.
+**/
+public class StringMapBenchmark
+{
+    private static final String[] KEYS = {
+        "Manifest-Version", "Bundle-ManifestVersion", "Bundle-SymbolicName",
+        "Bundle-Version", "Bundle-Name", "Bundle-Vendor", "Bundle-Activator",
+        "Bundle-Description", "Bundle-DocURL", "Bundle-License",
+        "Bundle-ClassPath", "Import-Package", "Export-Package",
+        "DynamicImport-Package", "Require-Bundle", "Fragment-Host",
+        "Bundle-RequiredExecutionEnvironment", "Bundle-ActivationPolicy",
+        "Created-By", "Built-By", "Tool", "Bnd-LastModified"
+    };
+
+    public static void main(String[] args)
+    {
+        long duration = (args.length > 0) ? Long.parseLong(args[0]) : 2000;
+
+        Map stringMap = new StringMap(false);
+        Map treeMap = new TreeMap(new StringComparator(false));
+        Hashtable headers = new Hashtable();
+        for (int i = 0; i < KEYS.length; i++)
+        {
+            stringMap.put(KEYS[i], KEYS[i]);
+            treeMap.put(KEYS[i], KEYS[i]);
+            headers.put(KEYS[i], KEYS[i]);
+        }
+
+        // Look up keys as declared, in lower case and ones not in the map.
+        String[] lookups = new String[KEYS.length * 3];
+        for (int i = 0; i < KEYS.length; i++)
+        {
+            lookups[i * 3] = KEYS[i];
+            lookups[i * 3 + 1] = KEYS[i].toLowerCase();
+            lookups[i * 3 + 2] = KEYS[i] + "-Missing";
+        }
+
+        // Run each map twice, so the first round warms up the JIT.
+        for (int round = 0; round < 2; round++)
+        {
+            System.out.println("TreeMap:   " + run(treeMap, lookups, duration) + " lookups/s");
+            System.out.println("StringMap: " + run(stringMap, lookups, duration) + " lookups/s");
+        }
+        for (int round = 0; round < 2; round++)
+        {
+            System.out.println("TreeMap:   " + build(false, headers, duration) + " copies/s");
+            System.out.println("StringMap: " + build(true, headers, duration) + " copies/s");
+        }
+    }
+
+    private static long build(boolean stringMap, Map headers, long duration)
+    {
+        long count = 0;
+        int size = 0;
+        long end = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < end)
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                Map map;
+                if (stringMap)
+                {
+                    map = new StringMap(headers, false);
+                }
+                else
+                {
+                    map = new TreeMap(new StringComparator(false));
+                    map.putAll(headers);
+                }
+                size += map.size();
+            }
+            count += 100;
+        }
+        // Use the maps, so building them cannot be optimized away.
+        if (size < 0)
+        {
+            System.out.println(size);
+        }
+        return (count * 1000) / duration;
+    }
+
+    private static long run(Map map, String[] lookups, long duration)
+    {
+        long count = 0;
+        int hits = 0;
+        long end = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < end)
+        {
+            for (int i = 0; i < lookups.length; i++)
+            {
+                if (map.get(lookups[i]) != null)
+                {
+                    hits++;
+                }
+            }
+            count += lookups.length;
+        }
+        // Use the hits, so the lookups cannot be optimized away.
+        if (hits < 0)
+        {
+            System.out.println(hits);
+        }
+        return (count * 1000) / duration;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+
+public class StringMapTest extends TestCase
+{
+    public void testCaseInsensitiveLookup()
+    {
+        StringMap map = new StringMap(false);
+        map.put("Bundle-SymbolicName", "foo");
+        assertEquals("foo", map.get("bundle-symbolicname"));
+        assertEquals("foo", map.get("BUNDLE-SYMBOLICNAME"));
+        assertTrue(map.containsKey("bundle-SymbolicName"));
+        assertNull(map.get("Bundle-Symbolic"));
+
+        assertEquals("foo", map.put("BUNDLE-symbolicName", "bar"));
+        assertEquals(1, map.size());
+        assertEquals("bar", map.get("Bundle-SymbolicName"));
+        // The key of the first put is kept.
+        assertEquals("Bundle-SymbolicName", map.keySet().iterator().next());
+
+        assertEquals("bar", map.remove("bundle-symbolicname"));
+        assertTrue(map.isEmpty());
+    }
+
+    public void testCaseSensitiveLookup()
+    {
+        StringMap map = new StringMap(true);
+        map.put("key", "a");
+        map.put("KEY", "b");
+        assertEquals(2, map.size());
+        assertEquals("a", map.get("key"));
+        assertEquals("b", map.get("KEY"));
+        assertNull(map.get("Key"));
+
+        // Entries are re-added in key order, so the value of the last key
+        // is kept under the first key.
+        map.setCaseSensitive(false);
+        assertEquals(1, map.size());
+        assertEquals("a", map.get("Key"));
+        assertEquals("KEY", map.keySet().iterator().next());
+    }
+
+    public void testKeysAreConvertedToStrings()
+    {
+        StringMap map = new StringMap(false);
+        map.put(new Integer(42), "answer");
+        assertEquals("answer", map.get("42"));
+        assertEquals("answer", map.get(new Integer(42)));
+    }
+
+    public void testIterationInKeyOrder()
+    {
+        StringMap map = new StringMap(false);
+        Map expected = new TreeMap(new StringComparator(false));
+        for (int i = 99; i >= 0; i--)
+        {
+            map.put("key" + i, new Integer(i));
+            expected.put("key" + i, new Integer(i));
+        }
+        map.put("KEY", "upper");
+        expected.put("KEY", "upper");
+        map.put("b", "b");
+        expected.put("b", "b");
+        map.put("A", "a");
+        expected.put("A", "a");
+        assertEquals(103, map.size());
+        assertEquals(new ArrayList(expected.keySet()), new ArrayList(map.keySet()));
+        assertEquals("A", map.keySet().iterator().next());
+
+        int i = 0;
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); i++)
+        {
+            Map.Entry entry = (Map.Entry) it.next();
+            if ((i % 2) == 0)
+            {
+                it.remove();
+                expected.remove(entry.getKey());
+            }
+        }
+        assertEquals(51, map.size());
+        assertEquals(new ArrayList(expected.keySet()), new ArrayList(map.keySet()));
+        assertEquals(new ArrayList(expected.values()), new ArrayList(map.values()));
+    }
+
+    public void testCaseSensitiveKeyOrder()
+    {
+        StringMap map = new StringMap(true);
+        map.put("b", "1");
+        map.put("a", "2");
+        map.put("B", "3");
+        map.put("A", "4");
+        assertEquals(Arrays.asList(new String[] { "A", "B", "a", "b" }),
+            new ArrayList(map.keySet()));
+
+        map.setCaseSensitive(false);
+        assertEquals(Arrays.asList(new String[] { "A", "B" }),
+            new ArrayList(map.keySet()));
+        assertEquals("2", map.get("a"));
+        assertEquals("1", map.get("b"));
+    }
+
+    public void testCopyKeepsKeyOrder()
+    {
+        StringMap map = new StringMap(false);
+        map.put("Import-Package", "a");
+        map.put("Bundle-Version", "1.0");
+        map.put("export-package", "b");
+        StringMap copy = new StringMap(map, false);
+        assertEquals(Arrays.asList(
+            new String[] { "Bundle-Version", "export-package", "Import-Package" }),
+            new ArrayList(copy.keySet()));
+    }
+
+    public void testKeyOrderFollowsChanges()
+    {
+        StringMap map = new StringMap(false);
+        map.put("c", "1");
+        map.put("a", "2");
+        assertEquals(Arrays.asList(new String[] { "a", "c" }),
+            new ArrayList(map.keySet()));
+
+        // Changing the keys after iterating re-sorts them.
+        map.put("B", "3");
+        map.remove("A");
+        assertEquals(Arrays.asList(new String[] { "B", "c" }),
+            new ArrayList(map.keySet()));
+        map.clear();
+        map.put("d", "4");
+        assertEquals(Arrays.asList(new String[] { "d" }),
+            new ArrayList(map.keySet()));
+
+        // Replacing a value does not change the keys.
+        Iterator it = map.keySet().iterator();
+        map.put("D", "5");
+        assertEquals("d", it.next());
+        assertEquals("5", map.get("d"));
+
+        it = map.keySet().iterator();
+        map.put("e", "6");
+        try
+        {
+            it.next();
+            fail("Adding a key should fail the iteration.");
+        }
+        catch (ConcurrentModificationException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public void testMapContract()
+    {
+        Map expected = new HashMap();
+        expected.put("a", "1");
+        expected.put("B", "2");
+        StringMap map = new StringMap(expected, false);
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertTrue(map.containsValue("2"));
+        assertTrue(map.values().contains("1"));
+
+        map.keySet().remove("b");
+        assertEquals(1, map.size());
+        map.entrySet().clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get("a"));
+    }
+}
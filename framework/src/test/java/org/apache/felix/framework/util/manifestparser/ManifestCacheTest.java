@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.capabilityset.Attribute;
+import org.apache.felix.framework.capabilityset.Capability;
+import org.apache.felix.framework.capabilityset.Directive;
+import org.apache.felix.framework.capabilityset.Requirement;
+import org.osgi.framework.Constants;
+
+public class ManifestCacheTest extends TestCase
+{
+    private Map m_headers;
+    private ManifestParser m_parser;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_headers = new HashMap();
+        m_headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        m_headers.put(Constants.BUNDLE_SYMBOLICNAME, "cache.test; singleton:=true");
+        m_headers.put(Constants.BUNDLE_VERSION, "1.2.3.qualifier");
+        m_headers.put(Constants.EXPORT_PACKAGE,
+            "cache.a; version=1.1; uses:=\"cache.b,cache.c\","
+            + " cache.d; company=acme; mandatory:=company");
+        m_headers.put(Constants.IMPORT_PACKAGE,
+            "cache.b; version=\"[1.0,2.0)\", cache.c; resolution:=optional");
+        m_headers.put(Constants.DYNAMICIMPORT_PACKAGE, "cache.dynamic.*");
+        m_headers.put(Constants.REQUIRE_BUNDLE, "other; bundle-version=\"[1,2]\"");
+        m_headers.put(Constants.BUNDLE_ACTIVATIONPOLICY, "lazy; include:=\"cache.a\"");
+        m_parser = new ManifestParser(new Logger(), new HashMap(), null, m_headers);
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        byte[] bytes = ManifestCache.write(m_parser, m_headers);
+        ManifestParser mp = read(bytes);
+
+        assertNotNull(mp);
+        assertEquals(m_parser.getSymbolicName(), mp.getSymbolicName());
+        assertEquals(m_parser.getBundleVersion(), mp.getBundleVersion());
+        assertEquals(m_parser.getManifestVersion(), mp.getManifestVersion());
+        assertEquals(m_parser.getActivationPolicy(), mp.getActivationPolicy());
+        assertEquals(m_parser.getActivationIncludeDirective(),
+            mp.getActivationIncludeDirective());
+        assertEquals(m_parser.getActivationExcludeDirective(),
+            mp.getActivationExcludeDirective());
+        assertEquals(m_parser.isExtension(), mp.isExtension());
+
+        assertCapabilitiesEqual(m_parser.getCapabilities(), mp.getCapabilities());
+        assertRequirementsEqual(m_parser.getRequirements(), mp.getRequirements());
+        assertRequirementsEqual(
+            m_parser.getDynamicRequirements(), mp.getDynamicRequirements());
+
+        // Writing the read metadata again yields the same binary form.
+        assertTrue(Arrays.equals(bytes, ManifestCache.write(mp, m_headers)));
+    }
+
+    public void testChangedHeaderIsIgnored() throws Exception
+    {
+        byte[] bytes = ManifestCache.write(m_parser, m_headers);
+        m_headers.put(Constants.IMPORT_PACKAGE, "cache.b");
+        assertNull(read(bytes));
+
+        m_headers.remove(Constants.IMPORT_PACKAGE);
+        assertNull(read(bytes));
+    }
+
+    public void testOtherFormatVersionIsIgnored() throws Exception
+    {
+        byte[] bytes = ManifestCache.write(m_parser, m_headers);
+        bytes[3]++;
+        assertNull(read(bytes));
+    }
+
+    public void testTruncatedInputFails() throws Exception
+    {
+        byte[] bytes = ManifestCache.write(m_parser, m_headers);
+        for (int length = 0; length < bytes.length; length++)
+        {
+            byte[] truncated = new byte[length];
+            System.arraycopy(bytes, 0, truncated, 0, length);
+            try
+            {
+                read(truncated);
+                fail("Truncated to " + length + " bytes should fail");
+            }
+            catch (IOException ex)
+            {
+                // Expected.
+            }
+        }
+    }
+
+    public void testCorruptInputFails() throws Exception
+    {
+        byte[] bytes = ManifestCache.write(m_parser, m_headers);
+
+        // A string table larger than the input.
+        byte[] corrupt = (byte[]) bytes.clone();
+        corrupt[4] = 0x7f;
+        assertFails(corrupt);
+
+        // Garbage after the format version.
+        corrupt = (byte[]) bytes.clone();
+        for (int i = 4; i < corrupt.length; i++)
+        {
+            corrupt[i] = (byte) 0xff;
+        }
+        assertFails(corrupt);
+    }
+
+    public void testCorruptedBytesOnlyFailWithIOException() throws Exception
+    {
+        byte[] bytes = ManifestCache.write(m_parser, m_headers);
+        int[] masks = { 0x01, 0x5a, 0xff };
+        for (int i = 0; i < bytes.length; i++)
+        {
+            for (int j = 0; j < masks.length; j++)
+            {
+                byte[] corrupt = (byte[]) bytes.clone();
+                corrupt[i] ^= masks[j];
+                try
+                {
+                    // The result may be null or differ in a value, as long
+                    // as reading does not fail with an unexpected exception.
+                    read(corrupt);
+                }
+                catch (IOException ex)
+                {
+                    // Expected.
+                }
+            }
+        }
+    }
+
+    private ManifestParser read(byte[] bytes) throws IOException
+    {
+        return ManifestCache.read(bytes, new Logger(), new HashMap(), null, m_headers);
+    }
+
+    private void assertFails(byte[] bytes)
+    {
+        try
+        {
+            read(bytes);
+            fail("Corrupt input should fail");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static void assertCapabilitiesEqual(List<Capability> expected, List<Capability> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).getNamespace(), actual.get(i).getNamespace());
+            assertDirectivesEqual(expected.get(i).getDirectives(), actual.get(i).getDirectives());
+            assertAttributesEqual(expected.get(i).getAttributes(), actual.get(i).getAttributes());
+            assertEquals(expected.get(i).getUses(), actual.get(i).getUses());
+        }
+    }
+
+    private static void assertRequirementsEqual(List<Requirement> expected, List<Requirement> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).getNamespace(), actual.get(i).getNamespace());
+            assertDirectivesEqual(expected.get(i).getDirectives(), actual.get(i).getDirectives());
+            assertEquals(expected.get(i).getFilter().toString(),
+                actual.get(i).getFilter().toString());
+            assertEquals(expected.get(i).isOptional(), actual.get(i).isOptional());
+        }
+    }
+
+    private static void assertDirectivesEqual(List<Directive> expected, List<Directive> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+        }
+    }
+
+    private static void assertAttributesEqual(List<Attribute> expected, List<Attribute> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(String.valueOf(expected.get(i).getValue()),
+                String.valueOf(actual.get(i).getValue()));
+            assertEquals(expected.get(i).isMandatory(), actual.get(i).isMandatory());
+        }
+    }
+}